@@ -0,0 +1,261 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.business;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import edu.washington.cs.cse490h.donut.Constants;
+
+/**
+ * <p>
+ * Every node of the ring, as far as this node has heard by gossip, so the successor of any id can
+ * be found here without asking another node. News of a node joining or dying is passed on to a
+ * random member each round for a few times log2 of the members known, which reaches all of them
+ * with high probability.
+ * </p>
+ * <p>
+ * Each member has an incarnation, which only that member raises. A node that hears it is thought
+ * dead raises its own and tells the others it is alive, so one missed round of gossip does not
+ * take a live node out of every table for good.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class Membership {
+
+    /** News is passed on for this many rounds per doubling of the members known. */
+    public static final int           RUMOR_ROUNDS = 3;
+    /** How long without a round of gossip before the membership is no longer to be trusted. */
+    public static final long          STALE_AFTER  = 10L * Constants.GOSSIP_INTERVAL;
+
+    private final TNode               self;
+    /** By node id, the dead along with the live so old news of them is not taken as new. */
+    private final Map<KeyId, Member>  members      = new HashMap<KeyId, Member>();
+    /** What to pass on, and for how many rounds it has been. */
+    private final Map<KeyId, Integer> rumors       = new LinkedHashMap<KeyId, Integer>();
+    private volatile Table            table        = new Table(new long[0], new TNode[0]);
+    private volatile long             lastHeard;
+
+    /** The live members, sorted by id. Swapped whole on every change, as Node's RoutingTable. */
+    private static class Table {
+        final long[]  ids;
+        final TNode[] peers;
+
+        Table(long[] ids, TNode[] peers) {
+            this.ids = ids;
+            this.peers = peers;
+        }
+    }
+
+    public Membership(TNode self) {
+        this.self = self;
+        if (self != null && self.getNodeId() != null) {
+            apply(new Member(self, true, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Takes in news of a member, if it is newer than what is known here, and passes it on.
+     * 
+     * @return whether it was news
+     */
+    public synchronized boolean apply(Member member) {
+        TNode node = member.getNode();
+        if (node == null || node.getNodeId() == null) {
+            return false;
+        }
+        Member known = members.get(node.getNodeId());
+        if (known != null && !isNewer(member, known)) {
+            return false;
+        }
+        if (node.equals(self) && !member.isAlive()) {
+            // Refute it: still here, as of a newer incarnation
+            member = new Member(self, true, member.getIncarnation() + 1);
+        }
+        members.put(node.getNodeId(), member);
+        rumors.put(node.getNodeId(), 0);
+        if (known == null || known.isAlive() != member.isAlive()
+                || !known.getNode().equals(node)) {
+            rebuild();
+        }
+        return true;
+    }
+
+    /**
+     * Takes in what a round of gossip brought.
+     */
+    public synchronized void applyAll(List<Member> heard) {
+        for (Member member : heard) {
+            apply(member);
+        }
+        lastHeard = System.currentTimeMillis();
+    }
+
+    /**
+     * Spreads that {@code node} is dead, as of the incarnation it was last known alive in.
+     */
+    public synchronized void suspect(TNode node) {
+        if (node == null || node.getNodeId() == null || node.equals(self)) {
+            return;
+        }
+        Member known = members.get(node.getNodeId());
+        if (known != null && known.isAlive() && known.getNode().equals(node)) {
+            apply(new Member(node, false, known.getIncarnation()));
+        }
+    }
+
+    /**
+     * @return the news to pass on this round, each piece counting against its rounds
+     */
+    public synchronized List<Member> getRumors() {
+        // By how many members are known now rather than when it was heard, so that news heard
+        // just after joining is not dropped before it reaches the ring this node joined
+        int rounds = RUMOR_ROUNDS * (32 - Integer.numberOfLeadingZeros(members.size()));
+        List<Member> result = new ArrayList<Member>(rumors.size());
+        Iterator<Map.Entry<KeyId, Integer>> i = rumors.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<KeyId, Integer> rumor = i.next();
+            result.add(members.get(rumor.getKey()));
+            if (rumor.getValue() + 1 >= rounds) {
+                i.remove();
+            } else {
+                rumor.setValue(rumor.getValue() + 1);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return everything known here, for a node that has missed news or just joined
+     */
+    public synchronized List<Member> getMembers() {
+        return new ArrayList<Member>(members.values());
+    }
+
+    /**
+     * @return the first live member at or after {@code id} going clockwise, or null if none is
+     *         known
+     */
+    public TNode successor(KeyId id) {
+        Table current = table;
+        if (current.ids.length == 0) {
+            return null;
+        }
+        int i = Arrays.binarySearch(current.ids, id.getId());
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return current.peers[i % current.peers.length];
+    }
+
+    /**
+     * @return a live member other than this node, or null if none is known
+     */
+    public TNode randomPeer(Random random) {
+        Table current = table;
+        int others = current.peers.length - (isAlive(self) ? 1 : 0);
+        if (others <= 0) {
+            return null;
+        }
+        TNode peer = current.peers[random.nextInt(current.peers.length)];
+        while (peer.equals(self)) {
+            peer = current.peers[random.nextInt(current.peers.length)];
+        }
+        return peer;
+    }
+
+    /**
+     * @return whether anything has been heard of {@code node}, alive or dead
+     */
+    public synchronized boolean isKnown(TNode node) {
+        if (node == null || node.getNodeId() == null) {
+            return false;
+        }
+        Member known = members.get(node.getNodeId());
+        return known != null && known.getNode().equals(node);
+    }
+
+    /**
+     * @return whether {@code node} is a live member, as far as is known here
+     */
+    public boolean isAlive(TNode node) {
+        Table current = table;
+        if (node == null || node.getNodeId() == null) {
+            return false;
+        }
+        int i = Arrays.binarySearch(current.ids, node.getNodeId().getId());
+        return i >= 0 && current.peers[i].equals(node);
+    }
+
+    /**
+     * @return how many members are alive, this node among them
+     */
+    public int size() {
+        return table.peers.length;
+    }
+
+    /**
+     * @return when a round of gossip last brought anything, in milliseconds since the epoch, or 0
+     *         if none ever has
+     */
+    public long getLastHeard() {
+        return lastHeard;
+    }
+
+    /**
+     * @return whether it has been {@link #STALE_AFTER} since a round of gossip last brought
+     *         anything, or none ever has
+     */
+    public boolean isStale() {
+        return System.currentTimeMillis() - lastHeard > STALE_AFTER;
+    }
+
+    private static boolean isNewer(Member member, Member known) {
+        if (member.getIncarnation() != known.getIncarnation()) {
+            return member.getIncarnation() > known.getIncarnation();
+        }
+        return known.isAlive() && !member.isAlive();
+    }
+
+    private void rebuild() {
+        List<Member> alive = new ArrayList<Member>(members.size());
+        for (Member member : members.values()) {
+            if (member.isAlive()) {
+                alive.add(member);
+            }
+        }
+        long[] ids = new long[alive.size()];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = alive.get(i).getNode().getNodeId().getId();
+        }
+        Arrays.sort(ids);
+        TNode[] peers = new TNode[ids.length];
+        for (Member member : alive) {
+            long id = member.getNode().getNodeId().getId();
+            peers[Arrays.binarySearch(ids, id)] = member.getNode();
+        }
+        table = new Table(ids, peers);
+    }
+
+}
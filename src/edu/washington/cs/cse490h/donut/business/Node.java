@@ -17,6 +17,7 @@
 package edu.washington.cs.cse490h.donut.business;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 
@@ -29,11 +30,25 @@ import edu.washington.cs.cse490h.donut.util.KeyIdUtil;
  * @author alevy, jprouty
  */
 public class Node {
-    private final TNode tNode;
+    /** Classic Chord: one finger per bit of the key space. */
+    public static final int       DEFAULT_BASE   = 2;
+    public static final int       MAX_BASE       = 256;
+    /** The longest the successor list grows to reach past other positions of this process. */
+    public static final int       MAX_SUCCESSORS = 4 * Constants.SUCCESSOR_LIST_SIZE;
+
+    /** Only changed by {@link #moveTo}. */
+    private volatile TNode        tNode;
+    private final int             base;
+    /** How far clockwise from this node each finger's interval starts. */
+    private final long[]          fingerOffsets;
 
-    private List<TNode> fingers;
-    private List<TNode> successorList;
-    private TNode       predecessor;
+    /**
+     * Swapped whole on every change, so readers never lock. Writers synchronize on this Node so
+     * that one change is not lost to another made at the same time.
+     */
+    private volatile RoutingTable routingTable;
+    private volatile TNode        predecessor;
+    private volatile Membership   membership;
 
     /**
      * Create a new Chord ring
@@ -42,10 +57,28 @@ public class Node {
      *            The Thrift Node object that describes the physical topology of the node.
      */
     public Node(TNode tNode) {
+        this(tNode, DEFAULT_BASE);
+    }
+
+    /**
+     * Create a new Chord ring, routing in base {@code base}: for each digit of the id there are
+     * base - 1 fingers, at 1, 2, .., base - 1 times base^digit past this node. A lookup then
+     * resolves a whole digit per hop, taking log_base(N) hops rather than log_2(N), for (base - 1)
+     * log_base(N) distinct fingers rather than log_2(N).
+     * 
+     * @param base
+     *            a power of two from 2, classic Chord, to {@link #MAX_BASE}
+     */
+    public Node(TNode tNode, int base) {
+        if (base < 2 || base > MAX_BASE || Integer.bitCount(base) != 1)
+            throw new IllegalArgumentException("Base must be a power of two from 2 to "
+                    + MAX_BASE + ": " + base);
         this.tNode = tNode;
+        this.base = base;
+        this.fingerOffsets = fingerOffsets(base);
         this.predecessor = null;
-        initFingers();
-        initSuccessorList();
+        this.routingTable = new RoutingTable(tNode, fingerOffsets.length);
+        this.membership = new Membership(tNode);
     }
 
     /**
@@ -62,44 +95,96 @@ public class Node {
         this(new TNode(name, port, id));
     }
 
+    public Node(String name, int port, KeyId id, int base) {
+        this(new TNode(name, port, id), base);
+    }
+
+    private static long[] fingerOffsets(int base) {
+        int digitBits = Integer.numberOfTrailingZeros(base);
+        List<Long> offsets = new ArrayList<Long>();
+        for (int shift = 0; shift < Constants.KEY_SPACE; shift += digitBits) {
+            for (long j = 1; j < base; ++j) {
+                // The top digit may be cut short by the end of the key space
+                if (shift + 64 - Long.numberOfLeadingZeros(j) > Constants.KEY_SPACE)
+                    break;
+                offsets.add(j << shift);
+            }
+        }
+        long[] result = new long[offsets.size()];
+        for (int i = 0; i < result.length; ++i)
+            result[i] = offsets.get(i);
+        return result;
+    }
+
+    /**
+     * Searches this Node's finger table for the closest preceding node to the given key.
+     * 
+     * @param entryId
+     * @return the {@link Node} from the finger table that is the closest and preceding the entryId
+     */
+    public TNode closestPrecedingNode(KeyId entryId) throws IllegalArgumentException {
+        return routingTable.closestPrecedingNode(entryId);
+    }
+
     /**
-     * Initializes the successor list.
+     * The next step of an iterative lookup of {@code entryId}, passing over the nodes in
+     * {@code failed} if there is another way.
+     * 
+     * @return the successor, done, if it holds the id. Otherwise the closest preceding node, or
+     *         the successor if every node known between here and the id has failed.
      */
-    private void initSuccessorList() {
-        this.successorList = new ArrayList<TNode>(Constants.SUCCESSOR_LIST_SIZE);
+    public Hop nextHop(KeyId entryId, Collection<TNode> failed) {
+        RoutingTable table = routingTable;
+        TNode next = table.closestPrecedingNode(entryId, failed);
+        if (!next.equals(tNode))
+            return new Hop(next, false);
+
+        TNode successor = table.getSuccessor(failed);
+        return new Hop(successor, KeyIdUtil.isAfterXButBeforeEqualY(entryId, getNodeId(),
+                successor.getNodeId()));
+    }
 
-        // Adds the initial successor
-        for (int i = 0; i < Constants.SUCCESSOR_LIST_SIZE; i++)
-            this.successorList.add(tNode);
+    /**
+     * Leaves the ring and starts over at {@code id}, just after joining it again with
+     * {@code successor} as the successor. Everything learned about the ring so far is forgotten,
+     * as it was learned from where this node was before.
+     */
+    public synchronized void moveTo(KeyId id, TNode successor) {
+        tNode = new TNode(tNode.getName(), tNode.getPort(), id);
+        predecessor = null;
+        routingTable = new RoutingTable(tNode, fingerOffsets.length);
+        membership = new Membership(tNode);
+        setSuccessor(successor);
     }
 
     /**
-     * Initializes the finger table. The successor and all fingers will become this, creating a
-     * complete chord ring.
+     * @return every node of the ring this node has heard of by gossip
      */
-    private void initFingers() {
-        this.fingers = new ArrayList<TNode>(Constants.KEY_SPACE);
-        for (int i = 0; i < Constants.KEY_SPACE; i++)
-            this.fingers.add(tNode);
+    public Membership getMembership() {
+        return membership;
+    }
+
+    public int getBase() {
+        return base;
     }
 
     /**
-     * Scans this Node's finger table for the closest preceding node to the given key.
-     * 
-     * @param entryId
-     * @return the {@link Node} from the finger table that is the closest and preceding the entryId
+     * @return how far clockwise from this node the interval of finger i starts. Finger i is the
+     *         successor of this node's id plus this.
      */
-    public TNode closestPrecedingNode(KeyId entryId) throws IllegalArgumentException {
-        for (int i = fingers.size() - 1; i >= 0; --i) {
-            KeyId currentFinger = getFinger(i).getNodeId();
-            // (id, finger, us)
-            // (finger, us, id)
-            if (!currentFinger.equals(getNodeId())
-                    && KeyIdUtil.isAfterXButBeforeEqualY(entryId, currentFinger, getNodeId())) {
-                return getFinger(i);
-            }
-        }
-        return getTNode();
+    public long getFingerOffset(int i) {
+        return fingerOffsets[i];
+    }
+
+    /**
+     * @return how far clockwise from this node the interval of finger i ends, exclusive. Any node
+     *         in the interval serves as the finger.
+     */
+    public long getFingerEnd(int i) {
+        // The next multiple of the digit's place, which wraps to 0 at the end of the key space
+        int digitBits = Integer.numberOfTrailingZeros(base);
+        int shift = Long.numberOfTrailingZeros(fingerOffsets[i]) / digitBits * digitBits;
+        return fingerOffsets[i] + (1L << shift);
     }
 
     public KeyId getNodeId() {
@@ -119,7 +204,7 @@ public class Node {
     }
 
     public TNode getSuccessor() {
-        return successorList.get(0);
+        return routingTable.getSuccessor();
     }
 
     /**
@@ -130,13 +215,12 @@ public class Node {
      * @return fingers[i]
      */
     public TNode getFinger(int i) {
-        if (i < 0 && i >= fingers.size())
+        RoutingTable table = routingTable;
+        if (i < 0 || i >= table.getFingerCount())
             // Invalid range
             throw new IndexOutOfBoundsException();
-        if (i == 0)
-            return getSuccessor();
 
-        return fingers.get(i);
+        return table.getFinger(i);
     }
 
     /**
@@ -147,17 +231,12 @@ public class Node {
      * @param n
      *            The node to set
      */
-    public void setFinger(int i, TNode n) {
-        if (i < 0 || i >= fingers.size())
+    public synchronized void setFinger(int i, TNode n) {
+        if (i < 0 || i >= routingTable.getFingerCount())
             // Invalid range
             throw new IndexOutOfBoundsException();
 
-        if (i == 0) {
-            setSuccessor(n);
-            return;
-        }
-
-        fingers.set(i, n);
+        routingTable = routingTable.withFinger(i, n);
     }
 
     @Override
@@ -213,21 +292,43 @@ public class Node {
         }
     }
 
-    public void updateSuccessorList(List<TNode> list) {
-        int i;
-        for (i = 0; (i < Constants.SUCCESSOR_LIST_SIZE - 1) && (i < list.size()); i++) {
-            try {
-                setSuccessor(i + 1, list.get(i));
-            } catch (IndexOutOfBoundsException e) {
-                addSuccessor(list.get(i));
-            }
+    /**
+     * Takes the successor list of the successor after the successor itself. Other positions of
+     * this process, which share its store, and further positions of a process already listed do
+     * not count towards {@link Constants#SUCCESSOR_LIST_SIZE}, so the list reaches past them to as
+     * many distinct processes to replicate to, up to {@link #MAX_SUCCESSORS} nodes in all.
+     */
+    public synchronized void updateSuccessorList(List<TNode> list) {
+        List<TNode> successors = routingTable.getSuccessorList();
+        List<TNode> result = new ArrayList<TNode>(Constants.SUCCESSOR_LIST_SIZE);
+        List<TNode> counted = new ArrayList<TNode>(Constants.SUCCESSOR_LIST_SIZE);
+        if (!successors.isEmpty()) {
+            add(successors.get(0), result, counted);
         }
+        for (int i = 0; counted.size() < Constants.SUCCESSOR_LIST_SIZE && i < list.size()
+                && result.size() < MAX_SUCCESSORS; i++) {
+            add(list.get(i), result, counted);
+        }
+        routingTable = routingTable.withSuccessors(result);
+    }
 
-        // Remove any leftover successors
-        i++;
-        while (i < getSuccessorList().size()) {
-            removeSuccessor(i);
+    /**
+     * Adds a successor, not counting it if it is another position of this process or of a process
+     * already counted. Coming round to a node already seen always counts, as the ring has no more.
+     */
+    private void add(TNode successor, List<TNode> result, List<TNode> counted) {
+        result.add(successor);
+        if (!successor.equals(tNode) && !counted.contains(successor)) {
+            if (isSibling(successor)) {
+                return;
+            }
+            for (TNode other : counted) {
+                if (isSameProcess(other, successor)) {
+                    return;
+                }
+            }
         }
+        counted.add(successor);
     }
 
     @Override
@@ -243,33 +344,79 @@ public class Node {
         return tNode.getPort();
     }
 
-    public void setSuccessor(TNode node) {
-        this.successorList.set(0, node);
+    public synchronized void setSuccessor(TNode node) {
+        List<TNode> successors = routingTable.getSuccessorList();
+        successors.set(0, node);
+        routingTable = routingTable.withSuccessors(successors);
     }
 
     public List<TNode> getFingers() {
-        List<TNode> result = new ArrayList<TNode>(fingers);
-        result.set(0, getSuccessor());
-        return result;
+        return routingTable.getFingers();
     }
 
     public List<TNode> getSuccessorList() {
-        return new ArrayList<TNode>(successorList);
+        return routingTable.getSuccessorList();
+    }
+
+    /**
+     * @return the nodes to keep copies of this node's range on: the first node of each process in
+     *         the successor list, up to {@link Constants#SUCCESSOR_LIST_SIZE}, leaving out this
+     *         process, whose positions share one store
+     */
+    public List<TNode> getReplicas() {
+        List<TNode> replicas = new ArrayList<TNode>(Constants.SUCCESSOR_LIST_SIZE);
+        for (TNode successor : getSuccessorList()) {
+            if (replicas.size() == Constants.SUCCESSOR_LIST_SIZE) {
+                break;
+            }
+            if (successor.equals(tNode) || isSibling(successor)) {
+                continue;
+            }
+            boolean seen = false;
+            for (TNode replica : replicas) {
+                seen |= isSameProcess(replica, successor);
+            }
+            if (!seen) {
+                replicas.add(successor);
+            }
+        }
+        return replicas;
+    }
+
+    /**
+     * @return whether {@code other} is another position of this process
+     */
+    private boolean isSibling(TNode other) {
+        return !other.equals(tNode) && isSameProcess(tNode, other);
+    }
+
+    /**
+     * @return whether two nodes are positions of the same process, by their name and port. Nodes
+     *         without a name are never taken for the same process.
+     */
+    public static boolean isSameProcess(TNode a, TNode b) {
+        return a.getName() != null && a.getName().equals(b.getName()) && a.getPort() == b.getPort();
     }
 
-    public void setSuccessor(int i, TNode node) {
-        this.successorList.set(i, node);
+    public synchronized void setSuccessor(int i, TNode node) {
+        List<TNode> successors = routingTable.getSuccessorList();
+        successors.set(i, node);
+        routingTable = routingTable.withSuccessors(successors);
     }
 
-    public void addSuccessor(TNode node) {
-        this.successorList.add(node);
+    public synchronized void addSuccessor(TNode node) {
+        List<TNode> successors = routingTable.getSuccessorList();
+        successors.add(node);
+        routingTable = routingTable.withSuccessors(successors);
     }
 
     public void removeSuccessor() {
-        this.successorList.remove(0);
+        removeSuccessor(0);
     }
 
-    public void removeSuccessor(int i) {
-        this.successorList.remove(i);
+    public synchronized void removeSuccessor(int i) {
+        List<TNode> successors = routingTable.getSuccessorList();
+        successors.remove(i);
+        routingTable = routingTable.withSuccessors(successors);
     }
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.business;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import edu.washington.cs.cse490h.donut.Constants;
+
+/**
+ * <p>
+ * A snapshot of a {@link Node}'s fingers and successor list. It is never changed once built; a
+ * change to the node builds a new one and swaps it in, so a lookup reads one consistent table
+ * without taking a lock, however often the maintenance threads update it.
+ * </p>
+ * <p>
+ * Next to the fingers it keeps every distinct peer among them, sorted by how far it is clockwise
+ * from this node, so {@link #closestPrecedingNode} is a binary search over a {@code long[]}.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class RoutingTable {
+
+    private final TNode   self;
+    private final long    selfId;
+    /** fingers[0] is always the successor. */
+    private final TNode[] fingers;
+    private final TNode[] successors;
+
+    /**
+     * The distance of each peer clockwise from this node, with the sign bit flipped so that the
+     * signed order of the keys is the unsigned order of the distances. Sorted, no duplicates.
+     */
+    private final long[]  keys;
+    private final TNode[] peers;
+
+    /**
+     * The table of a node alone in its ring: every finger and successor is itself.
+     */
+    public RoutingTable(TNode self) {
+        this(self, Constants.KEY_SPACE);
+    }
+
+    /**
+     * Like {@link #RoutingTable(TNode)}, with {@code fingerCount} fingers.
+     */
+    public RoutingTable(TNode self, int fingerCount) {
+        this(self, fill(self, fingerCount), fill(self, Constants.SUCCESSOR_LIST_SIZE));
+    }
+
+    private RoutingTable(TNode self, TNode[] fingers, TNode[] successors) {
+        this.self = self;
+        // Without an id of its own a node cannot tell which peers precede what
+        boolean routable = self != null && self.getNodeId() != null;
+        this.selfId = routable ? self.getNodeId().getId() : 0;
+        this.fingers = fingers;
+        this.successors = successors;
+        if (successors.length > 0) {
+            fingers[0] = successors[0];
+        }
+
+        long[] sortedKeys = new long[fingers.length];
+        TNode[] sortedPeers = new TNode[fingers.length];
+        int size = 0;
+        for (int i = 0; routable && i < fingers.length; ++i) {
+            TNode finger = fingers[i];
+            if (finger == null || finger.getNodeId() == null || (i == 0 && successors.length == 0)
+                    || finger.getNodeId().getId() == selfId) {
+                continue;
+            }
+            long key = (finger.getNodeId().getId() - selfId) ^ Long.MIN_VALUE;
+            int j = Arrays.binarySearch(sortedKeys, 0, size, key);
+            if (j >= 0) {
+                // Same id as an earlier finger: the later one wins, as the old scan from the top
+                sortedPeers[j] = finger;
+                continue;
+            }
+            j = -j - 1;
+            System.arraycopy(sortedKeys, j, sortedKeys, j + 1, size - j);
+            System.arraycopy(sortedPeers, j, sortedPeers, j + 1, size - j);
+            sortedKeys[j] = key;
+            sortedPeers[j] = finger;
+            ++size;
+        }
+        this.keys = Arrays.copyOf(sortedKeys, size);
+        this.peers = Arrays.copyOf(sortedPeers, size);
+    }
+
+    private static TNode[] fill(TNode n, int size) {
+        TNode[] result = new TNode[size];
+        Arrays.fill(result, n);
+        return result;
+    }
+
+    /**
+     * @return the peer closest before {@code entryId} going clockwise from this node, or this
+     *         node if there is none. Should the fingers be out of order for a while, this is still
+     *         the closest of them, rather than whichever comes last in the table.
+     */
+    public TNode closestPrecedingNode(KeyId entryId) {
+        return closestPrecedingNode(entryId, Collections.<TNode> emptySet());
+    }
+
+    /**
+     * Like {@link #closestPrecedingNode(KeyId)}, but passing over the peers in {@code excluded},
+     * so a lookup can go round a peer it could not reach.
+     */
+    public TNode closestPrecedingNode(KeyId entryId, Collection<TNode> excluded) {
+        if (peers.length == 0)
+            return self;
+        long distance = entryId.getId() - selfId;
+        int i;
+        if (distance == 0) {
+            // The whole ring precedes it
+            i = peers.length - 1;
+        } else {
+            i = Arrays.binarySearch(keys, distance ^ Long.MIN_VALUE);
+            // Strictly before it
+            i = i >= 0 ? i - 1 : -i - 2;
+        }
+        while (i >= 0 && !excluded.isEmpty() && excluded.contains(peers[i]))
+            --i;
+        return i < 0 ? self : peers[i];
+    }
+
+    /**
+     * @return the first successor not in {@code excluded}, or the successor if they all are
+     */
+    public TNode getSuccessor(Collection<TNode> excluded) {
+        for (TNode successor : successors) {
+            if (!excluded.contains(successor))
+                return successor;
+        }
+        return getSuccessor();
+    }
+
+    /**
+     * @return a copy of this table with fingers[i] = n
+     */
+    public RoutingTable withFinger(int i, TNode n) {
+        if (i == 0) {
+            TNode[] newSuccessors = successors.clone();
+            newSuccessors[0] = n;
+            return new RoutingTable(self, fingers.clone(), newSuccessors);
+        }
+        TNode[] newFingers = fingers.clone();
+        newFingers[i] = n;
+        return new RoutingTable(self, newFingers, successors);
+    }
+
+    /**
+     * @return a copy of this table with the given successor list
+     */
+    public RoutingTable withSuccessors(List<TNode> successorList) {
+        return new RoutingTable(self, fingers.clone(), successorList
+                .toArray(new TNode[successorList.size()]));
+    }
+
+    public TNode getSuccessor() {
+        return successors[0];
+    }
+
+    public TNode getFinger(int i) {
+        if (i == 0)
+            return getSuccessor();
+        return fingers[i];
+    }
+
+    public int getFingerCount() {
+        return fingers.length;
+    }
+
+    public List<TNode> getFingers() {
+        List<TNode> result = new ArrayList<TNode>(Arrays.asList(fingers));
+        result.set(0, getSuccessor());
+        return result;
+    }
+
+    public List<TNode> getSuccessorList() {
+        return new ArrayList<TNode>(Arrays.asList(successors));
+    }
+
+    /**
+     * @return how many distinct peers the fingers point at
+     */
+    public int getPeerCount() {
+        return peers.length;
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.fs;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+
+import org.apache.thrift.TException;
+
+import edu.washington.cs.cse490h.donut.service.DataNotFoundException;
+import edu.washington.cs.cse490h.donut.service.HashService;
+import edu.washington.cs.cse490h.donut.util.ContentChunker;
+
+/**
+ * <p>
+ * Files on top of the hash table. A file's content is split by a {@link ContentChunker} and each
+ * chunk is stored under the hash of its content, so a chunk that is already in the ring, from this
+ * file or any other, is neither sent nor stored again. The file's own entry is just its
+ * {@link FileManifest}.
+ * </p>
+ * <p>
+ * Removing a file only removes its manifest, since its chunks may be shared with other files.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class DonutFileSystem {
+
+    public static final String         FILE_PREFIX  = "file:";
+    public static final String         CHUNK_PREFIX = "chunk:";
+
+    /** How many chunks this client remembers having seen in the ring. */
+    private static final int           KNOWN_CHUNKS = 16384;
+
+    private final HashService.Iface    hashService;
+    private final ContentChunker       chunker;
+    /**
+     * Chunks known to be stored, so they are not even asked about again. This layer never removes
+     * a chunk, so what it has seen stays there.
+     */
+    private final Map<String, Boolean> knownChunks;
+
+    public DonutFileSystem(HashService.Iface hashService) {
+        this(hashService, new ContentChunker());
+    }
+
+    public DonutFileSystem(HashService.Iface hashService, ContentChunker chunker) {
+        this.hashService = hashService;
+        this.chunker = chunker;
+        this.knownChunks = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > KNOWN_CHUNKS;
+            }
+        };
+    }
+
+    /**
+     * Stores {@code content} as the file at {@code path}, replacing what was there.
+     * 
+     * @return the number of chunks that had to be sent, the rest being in the ring already
+     */
+    public int write(String path, byte[] content) throws TException {
+        List<String> hashes = new ArrayList<String>();
+        List<Integer> lengths = new ArrayList<Integer>();
+        int sent = 0;
+        int start = 0;
+        for (int end : chunker.split(content)) {
+            byte[] chunk = Arrays.copyOfRange(content, start, end);
+            String hash = hash(chunk);
+            if (!isStored(hash)) {
+                hashService.put(CHUNK_PREFIX + hash, chunk);
+                remember(hash);
+                ++sent;
+            }
+            hashes.add(hash);
+            lengths.add(chunk.length);
+            start = end;
+        }
+        // Only once every chunk is in, so a reader never sees a manifest with chunks missing
+        hashService.put(FILE_PREFIX + path, new FileManifest(hashes, lengths).encode());
+        return sent;
+    }
+
+    public byte[] read(String path) throws DataNotFoundException, TException {
+        FileManifest manifest = stat(path);
+        if (manifest.getLength() > Integer.MAX_VALUE) {
+            throw new TException(path + " is too big to read whole");
+        }
+        byte[] content = new byte[(int) manifest.getLength()];
+        // A chunk that repeats within the file is fetched once
+        Map<String, byte[]> fetched = new HashMap<String, byte[]>();
+        int offset = 0;
+        for (int i = 0; i < manifest.getChunkCount(); ++i) {
+            String hash = manifest.getHashes().get(i);
+            byte[] chunk = fetched.get(hash);
+            if (chunk == null) {
+                chunk = hashService.get(CHUNK_PREFIX + hash);
+                if (chunk.length != manifest.getLengths().get(i) || !hash.equals(hash(chunk))) {
+                    throw new TException("Chunk " + hash + " of " + path + " is corrupt");
+                }
+                fetched.put(hash, chunk);
+            }
+            System.arraycopy(chunk, 0, content, offset, chunk.length);
+            offset += chunk.length;
+        }
+        return content;
+    }
+
+    /**
+     * @throws DataNotFoundException
+     *             if there is no file at {@code path}
+     */
+    public FileManifest stat(String path) throws DataNotFoundException, TException {
+        try {
+            return FileManifest.decode(hashService.get(FILE_PREFIX + path));
+        } catch (DataFormatException e) {
+            throw new TException(e);
+        }
+    }
+
+    public void delete(String path) throws TException {
+        hashService.remove(FILE_PREFIX + path);
+    }
+
+    /**
+     * @return the SHA-1 of {@code chunk}, in hex
+     */
+    public static String hash(byte[] chunk) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA").digest(chunk);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Will never happen because SHA algorithm exists
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Asks the ring about a chunk it does not know of. {@link HashService.Iface#getChunks} only
+     * returns the chunk's size, so the chunk itself is not sent back to find out.
+     */
+    private boolean isStored(String hash) throws TException {
+        synchronized (knownChunks) {
+            if (knownChunks.get(hash) != null) {
+                return true;
+            }
+        }
+        try {
+            hashService.getChunks(CHUNK_PREFIX + hash);
+        } catch (DataNotFoundException e) {
+            return false;
+        }
+        remember(hash);
+        return true;
+    }
+
+    private void remember(String hash) {
+        synchronized (knownChunks) {
+            knownChunks.put(hash, Boolean.TRUE);
+        }
+    }
+
+}
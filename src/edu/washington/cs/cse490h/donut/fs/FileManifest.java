@@ -0,0 +1,140 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.fs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+/**
+ * What a file is made of: the content hash and length of each of its chunks, in order. This is
+ * the value stored under the file's name; the chunks themselves are stored under their hashes.
+ * 
+ * @author jprouty
+ */
+public class FileManifest {
+
+    private static final byte   VERSION = 1;
+
+    private final List<String>  hashes;
+    private final List<Integer> lengths;
+    private final long          length;
+
+    public FileManifest(List<String> hashes, List<Integer> lengths) {
+        if (hashes.size() != lengths.size())
+            throw new IllegalArgumentException("Need a length for every hash");
+        this.hashes = Collections.unmodifiableList(new ArrayList<String>(hashes));
+        this.lengths = Collections.unmodifiableList(new ArrayList<Integer>(lengths));
+        long total = 0;
+        for (int chunkLength : lengths) {
+            total += chunkLength;
+        }
+        this.length = total;
+    }
+
+    public List<String> getHashes() {
+        return hashes;
+    }
+
+    public List<Integer> getLengths() {
+        return lengths;
+    }
+
+    public int getChunkCount() {
+        return hashes.size();
+    }
+
+    /**
+     * @return the length of the file, in bytes
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            out.writeInt(hashes.size());
+            for (int i = 0; i < hashes.size(); ++i) {
+                out.writeUTF(hashes.get(i));
+                out.writeInt(lengths.get(i));
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Will never happen, it is all in memory
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws DataFormatException
+     *             if {@code encoded} is not a manifest
+     */
+    public static FileManifest decode(byte[] encoded) throws DataFormatException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        try {
+            if (in.readByte() != VERSION) {
+                throw new DataFormatException("Not a file manifest");
+            }
+            int count = in.readInt();
+            if (count < 0) {
+                throw new DataFormatException("Negative chunk count: " + count);
+            }
+            List<String> hashes = new ArrayList<String>();
+            List<Integer> lengths = new ArrayList<Integer>();
+            for (int i = 0; i < count; ++i) {
+                hashes.add(in.readUTF());
+                lengths.add(in.readInt());
+            }
+            if (in.read() != -1) {
+                throw new DataFormatException("Trailing bytes after the manifest");
+            }
+            return new FileManifest(hashes, lengths);
+        } catch (IOException e) {
+            throw new DataFormatException("Truncated file manifest");
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof FileManifest)) {
+            return false;
+        }
+        FileManifest other = (FileManifest) obj;
+        return hashes.equals(other.hashes) && lengths.equals(other.lengths);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashes.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "FileManifest(" + hashes.size() + " chunks, " + length + " bytes)";
+    }
+
+}
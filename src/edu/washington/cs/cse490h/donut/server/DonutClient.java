@@ -16,37 +16,80 @@
 
 package edu.washington.cs.cse490h.donut.server;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import org.apache.thrift.TException;
 
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 
+import edu.washington.cs.cse490h.donut.business.Member;
+import edu.washington.cs.cse490h.donut.business.Membership;
 import edu.washington.cs.cse490h.donut.business.Node;
+import edu.washington.cs.cse490h.donut.service.LatencyTracker;
+import edu.washington.cs.cse490h.donut.service.LoadMonitor;
 import edu.washington.cs.cse490h.donut.service.LocatorClientFactory;
+import edu.washington.cs.cse490h.donut.service.NodeLocator;
 import edu.washington.cs.cse490h.donut.service.RetryFailedException;
 import edu.washington.cs.cse490h.donut.Constants;
 import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Load;
+import edu.washington.cs.cse490h.donut.service.DataNotFoundException;
 import edu.washington.cs.cse490h.donut.service.NodeNotFoundException;
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
 import edu.washington.cs.cse490h.donut.business.TNode;
 import edu.washington.cs.cse490h.donut.service.KeyLocator.Iface;
+import edu.washington.cs.cse490h.donut.service.application.MerkleTree;
+import edu.washington.cs.cse490h.donut.util.EntryKeyUtil;
 import edu.washington.cs.cse490h.donut.util.KeyIdUtil;
 
 /**
  * @author alevy
  */
 public class DonutClient extends Thread {
+    /** The name of the number of nodes to choose each finger from to inject. */
+    public static final String          PROXIMITY_CANDIDATES         = "ProximityCandidates";
+    public static final int             DEFAULT_PROXIMITY_CANDIDATES = 1;
+
+    /** The name of whether to move lightly loaded nodes into the range of this one to inject. */
+    public static final String          REBALANCE                    = "Rebalance";
+
+    /** The name of whether to run anti-entropy against the successor list to inject. */
+    public static final String          ANTI_ENTROPY                 = "AntiEntropy";
+
+    /** Every this many rounds of gossip, the whole membership is asked for, to catch up. */
+    public static final int             FULL_GOSSIP_ROUNDS           = 20;
+
     private static final Logger         LOGGER;
 
     private final Node                  node;
     private final LocatorClientFactory  clientFactory;
+    private final LatencyTracker        latencies;
+    private int                         proximityCandidates;
+    private NodeLocator.Lookup          lookup;
+    private final Random                random;
+    private int                         gossipRounds;
+    private int                         membersAfterGossip;
+    private boolean                     rebalance;
+    private boolean                     antiEntropyEnabled;
 
     private int                         nextFingerToUpdate;
 
     final private AbstractRunAtInterval stabilize;
     final private AbstractRunAtInterval checkPredecessor;
     final private AbstractRunAtInterval fixFingers;
+    final private AbstractRunAtInterval antiEntropy;
+    final private AbstractRunAtInterval gossip;
+    final private AbstractRunAtInterval rebalancing;
 
     static {
         LOGGER = Logger.getLogger(DonutClient.class.getName());
@@ -56,6 +99,10 @@ public class DonutClient extends Thread {
     public DonutClient(Node node, LocatorClientFactory clientFactory) {
         this.node = node;
         this.clientFactory = clientFactory;
+        this.latencies = new LatencyTracker(clientFactory);
+        this.proximityCandidates = DEFAULT_PROXIMITY_CANDIDATES;
+        this.lookup = NodeLocator.Lookup.ITERATIVE;
+        this.random = new Random();
         nextFingerToUpdate = 0;
 
         // Initialize the worker threads
@@ -77,6 +124,67 @@ public class DonutClient extends Thread {
                 checkPredecessor();
             }
         };
+
+        antiEntropy = new AbstractRunAtInterval(Constants.ANTI_ENTROPY_INTERVAL) {
+            public void runClosure() {
+                antiEntropy();
+            }
+        };
+
+        gossip = new AbstractRunAtInterval(Constants.GOSSIP_INTERVAL) {
+            public void runClosure() {
+                gossip();
+            }
+        };
+
+        rebalancing = new AbstractRunAtInterval(Constants.REBALANCE_INTERVAL) {
+            public void runClosure() {
+                rebalance();
+            }
+        };
+    }
+
+    /**
+     * @param proximityCandidates
+     *            how many of the nodes in each finger's interval to choose the nearest from, 1 to
+     *            always take the first
+     */
+    @Inject(optional = true)
+    public void setProximityCandidates(@Named(PROXIMITY_CANDIDATES) int proximityCandidates) {
+        this.proximityCandidates = proximityCandidates;
+    }
+
+    public int getProximityCandidates() {
+        return proximityCandidates;
+    }
+
+    /**
+     * The membership is only gossiped for {@link NodeLocator.Lookup#ONE_HOP}, which is the only
+     * lookup that uses it. Only takes effect before the worker threads are started.
+     */
+    @Inject(optional = true)
+    public void setLookup(@Named(NodeLocator.LOOKUP) NodeLocator.Lookup lookup) {
+        this.lookup = lookup;
+    }
+
+    /**
+     * Only takes effect before the worker threads are started.
+     */
+    @Inject(optional = true)
+    public void setRebalance(@Named(REBALANCE) boolean rebalance) {
+        this.rebalance = rebalance;
+    }
+
+    /**
+     * Only takes effect before the worker threads are started.
+     */
+    @Inject(optional = true)
+    public void setAntiEntropy(@Named(ANTI_ENTROPY) boolean antiEntropy) {
+        this.antiEntropyEnabled = antiEntropy;
+    }
+
+    public LatencyTracker getLatencies() {
+        return latencies;
     }
 
     public void join(TNode n) throws TException {
@@ -146,12 +254,16 @@ public class DonutClient extends Thread {
 
         // Keep as separate variable: Be careful of some weird java issues with overflowing ints
         long base = node.getNodeId().getId();
-        long pow = 0x0000000000000001L << finger;
-        long id = base + pow;
+        long id = base + node.getFingerOffset(finger);
 
         KeyId keyId = new KeyId(id);
         try {
             TNode updatedFinger = iface.findSuccessor(keyId);
+            if (finger > 0 && proximityCandidates > 1) {
+                // Finger 0 is the successor, which has to be exactly that
+                updatedFinger = closestInInterval(updatedFinger, id, base
+                        + node.getFingerEnd(finger));
+            }
             this.node.setFinger(finger, updatedFinger);
         } catch (TException e1) {
             LOGGER.warning("Thrift Exception in findSuccessor ["
@@ -161,6 +273,59 @@ public class DonutClient extends Thread {
         clientFactory.release(node.getTNode());
     }
 
+    /**
+     * Proximity neighbour selection: any node in [start, end) serves as the finger for that
+     * interval without a lookup taking more hops, so of the first few nodes there, from
+     * {@code first} on, the one with the lowest round trip time is taken.
+     * 
+     * @param first
+     *            the successor of {@code start}
+     */
+    private TNode closestInInterval(TNode first, long start, long end) {
+        if (first.getNodeId() == null || !isInInterval(first.getNodeId().getId(), start, end)) {
+            // The interval is empty, the next node after it is all there is
+            return first;
+        }
+        TNode best = first;
+        long bestRtt = latencies.getRtt(first);
+        TNode current = first;
+        for (int i = 1; i < proximityCandidates; ++i) {
+            TNode next;
+            try {
+                Iface currentClient = clientFactory.get(current);
+                try {
+                    // Answered by current itself, from its successor
+                    next = currentClient.findSuccessor(new KeyId(current.getNodeId().getId() + 1));
+                } finally {
+                    clientFactory.release(current);
+                }
+            } catch (RetryFailedException e) {
+                break;
+            } catch (TException e) {
+                break;
+            }
+            if (next == null || next.getNodeId() == null || next.equals(first)
+                    || !isInInterval(next.getNodeId().getId(), start, end)) {
+                break;
+            }
+            long rtt = latencies.getRtt(next);
+            if (rtt < bestRtt) {
+                best = next;
+                bestRtt = rtt;
+            }
+            current = next;
+        }
+        return best;
+    }
+
+    /**
+     * @return whether id is in [start, end) going clockwise, the whole ring if start == end
+     */
+    private static boolean isInInterval(long id, long start, long end) {
+        long length = end - start;
+        return length == 0 || ((id - start) ^ Long.MIN_VALUE) < (length ^ Long.MIN_VALUE);
+    }
+
     /**
      * Called periodically. Verify's immediate successor, and tell's successor about us.
      */
@@ -175,7 +340,6 @@ public class DonutClient extends Thread {
             LOGGER.info("Lost successor [" + Node.TNodeToString(node.getTNode()) + "]: Successor- "
                     + Node.TNodeToString(successor));
 
-            clientFactory.release(successor);
             node.removeSuccessor();
             return;
         }
@@ -204,8 +368,6 @@ public class DonutClient extends Thread {
             } catch (RetryFailedException e) {
                 LOGGER.info("Lost successor [" + Node.TNodeToString(node.getTNode())
                         + "]: Successor - " + Node.TNodeToString(node.getSuccessor()));
-
-                clientFactory.release(successor);
                 return;
             }
         }
@@ -226,6 +388,207 @@ public class DonutClient extends Thread {
         }
     }
 
+    /**
+     * Called periodically. Swaps what this node has heard of the membership lately with a random
+     * member, and takes in what it has heard. A member that cannot be reached is spread as dead;
+     * it will say otherwise if it is not.
+     */
+    public void gossip() {
+        Membership membership = node.getMembership();
+        // The successor until it has been heard of, and then as often as any other member, so
+        // that members that have only heard of each other still hear of the rest of the ring
+        TNode peer = node.getSuccessor();
+        if (membership.isKnown(peer) && random.nextInt(membership.size() + 1) != 0) {
+            TNode member = membership.randomPeer(random);
+            if (member != null) {
+                peer = member;
+            }
+        }
+        if (peer == null || peer.equals(node.getTNode())) {
+            return;
+        }
+        // Ask for everything just after joining, from a node not known to be a member, while
+        // nodes not known before keep turning up, and now and then for any news that was missed
+        boolean pull = membership.size() <= 1 || !membership.isAlive(peer)
+                || membership.size() > membersAfterGossip
+                || ++gossipRounds % FULL_GOSSIP_ROUNDS == 0;
+        List<Member> rumors = membership.getRumors();
+        try {
+            Iface peerClient = clientFactory.get(peer);
+            try {
+                membership.applyAll(peerClient.gossip(rumors, pull));
+            } finally {
+                clientFactory.release(peer);
+            }
+            membersAfterGossip = membership.size();
+        } catch (RetryFailedException e) {
+            LOGGER.info("Gossip [" + Node.TNodeToString(node.getTNode()) + "] could not reach "
+                    + Node.TNodeToString(peer));
+            membership.suspect(peer);
+        } catch (TException e) {
+            LOGGER.info("Gossip [" + Node.TNodeToString(node.getTNode()) + "] failed with "
+                    + Node.TNodeToString(peer) + ": " + e);
+            membership.suspect(peer);
+        }
+    }
+
+    /**
+     * Called periodically. Compares the load of this node with that of a random other node, and
+     * if this one is overloaded, asks the other to move into the middle of this one's range.
+     */
+    public void rebalance() {
+        List<TNode> peers = new ArrayList<TNode>();
+        TNode member = node.getMembership().randomPeer(random);
+        if (member != null) {
+            // Any node in the ring, if it is known
+            peers.add(member);
+        } else {
+            peers.addAll(new LinkedHashSet<TNode>(node.getFingers()));
+            peers.remove(node.getTNode());
+        }
+        if (!peers.isEmpty()) {
+            rebalance(peers.get(random.nextInt(peers.size())));
+        }
+    }
+
+    /**
+     * Asks {@code peer} to move into the middle of this node's range if this node is overloaded
+     * next to it.
+     * 
+     * @return whether it moved
+     */
+    public boolean rebalance(TNode peer) {
+        try {
+            Load mine;
+            Iface selfClient = clientFactory.get(node.getTNode());
+            try {
+                mine = selfClient.getLoad();
+            } finally {
+                clientFactory.release(node.getTNode());
+            }
+            Iface peerClient = clientFactory.get(peer);
+            try {
+                Load theirs = peerClient.getLoad();
+                if (mine.getSplitId() == null || !LoadMonitor.isOverloaded(mine, theirs)) {
+                    return false;
+                }
+                LOGGER.info("Rebalance [" + Node.TNodeToString(node.getTNode()) + "]: " + mine
+                        + " against " + Node.TNodeToString(peer) + " " + theirs);
+                return peerClient.migrate(mine.getSplitId());
+            } finally {
+                clientFactory.release(peer);
+            }
+        } catch (RetryFailedException e) {
+            LOGGER.info("Rebalance [" + Node.TNodeToString(node.getTNode()) + "] could not reach "
+                    + Node.TNodeToString(peer));
+        } catch (TException e) {
+            LOGGER.warning("Rebalance [" + Node.TNodeToString(node.getTNode()) + "] failed with "
+                    + Node.TNodeToString(peer) + ": " + e);
+        }
+        return false;
+    }
+
+    /**
+     * Called periodically, if enabled. Brings every replica of this node, see
+     * {@link Node#getReplicas()}, up to date with the data this node is responsible for. A replica
+     * that missed a replicatePut or replicateRemove would otherwise keep the wrong data until the
+     * ring changes.
+     */
+    public void antiEntropy() {
+        TNode predecessor = node.getPredecessor();
+        if (predecessor == null) {
+            // Not sure which range is ours
+            return;
+        }
+        TNode self = node.getTNode();
+        for (TNode replica : node.getReplicas()) {
+            try {
+                Iface replicaClient = clientFactory.get(replica);
+                try {
+                    synchronize(self, replicaClient, predecessor.getNodeId(), self.getNodeId());
+                } finally {
+                    clientFactory.release(replica);
+                }
+            } catch (RetryFailedException e) {
+                LOGGER.info("Anti-entropy [" + Node.TNodeToString(self) + "] could not reach "
+                        + Node.TNodeToString(replica));
+            } catch (TException e) {
+                LOGGER.warning("Anti-entropy [" + Node.TNodeToString(self) + "] failed with "
+                        + Node.TNodeToString(replica) + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Walks down the Merkle trees of both nodes over (start, end], only descending into the
+     * subtrees whose hashes differ, and makes the replica's copy of each differing leaf match this
+     * node's. The connection to {@code self} is only held for one level or leaf at a time, so that
+     * the other maintenance of this node is not kept waiting for the whole walk.
+     * 
+     * @return the number of leaves that were repaired
+     */
+    public int synchronize(TNode self, Iface replica, KeyId start, KeyId end)
+            throws TException, RetryFailedException {
+        int depth = MerkleTree.getDepth(start, end);
+        List<Integer> positions = new ArrayList<Integer>();
+        positions.add(0);
+        for (int level = 0; level <= depth && !positions.isEmpty(); ++level) {
+            List<Long> mine;
+            Iface selfClient = clientFactory.get(self);
+            try {
+                mine = selfClient.getMerkleHashes(start, end, level, positions);
+            } finally {
+                clientFactory.release(self);
+            }
+            List<Long> theirs = replica.getMerkleHashes(start, end, level, positions);
+            List<Integer> differing = new ArrayList<Integer>();
+            for (int i = 0; i < positions.size(); ++i) {
+                if (!mine.get(i).equals(theirs.get(i))) {
+                    if (level == depth) {
+                        differing.add(positions.get(i));
+                    } else {
+                        differing.add(positions.get(i) * 2);
+                        differing.add(positions.get(i) * 2 + 1);
+                    }
+                }
+            }
+            if (level == depth) {
+                for (int leaf : differing) {
+                    KeyId[] range = MerkleTree.getLeafRange(start, end, leaf);
+                    if (range != null) {
+                        Iface client = clientFactory.get(self);
+                        try {
+                            repair(client, replica, range[0], range[1]);
+                        } finally {
+                            clientFactory.release(self);
+                        }
+                    }
+                }
+                return differing.size();
+            }
+            positions = differing;
+        }
+        return 0;
+    }
+
+    private void repair(Iface self, Iface replica, KeyId start, KeyId end) throws TException {
+        Set<EntryKey> keys = new TreeSet<EntryKey>(EntryKeyUtil.COMPARATOR);
+        keys.addAll(self.getDataRange(start, end));
+        for (EntryKey key : keys) {
+            try {
+                DataPair entry = self.getEntry(key);
+                replica.replicatePut(key, entry.getData(), 0, entry.getExpiresAt());
+            } catch (DataNotFoundException e) {
+                // Removed since the range was read. The next round will catch up.
+            }
+        }
+        for (EntryKey key : replica.getDataRange(start, end)) {
+            if (!keys.contains(key)) {
+                replica.replicateRemove(key, 0);
+            }
+        }
+    }
+
     /**
      * Stops the worker threads.
      */
@@ -233,6 +596,68 @@ public class DonutClient extends Thread {
         stabilize.kill();
         checkPredecessor.kill();
         fixFingers.kill();
+        antiEntropy.kill();
+        gossip.kill();
+        rebalancing.kill();
+    }
+
+    /**
+     * Runs the maintenance on {@code scheduler} instead of on worker threads of its own, so that
+     * the positions of {@link VirtualNodes} share a few threads between them. Cancelled by shutting
+     * down the scheduler.
+     */
+    public void schedule(ScheduledExecutorService scheduler) {
+        scheduleAtInterval(scheduler, Constants.STABILIZE_INTERVAL, new Runnable() {
+            public void run() {
+                stabilize();
+            }
+        });
+        scheduleAtInterval(scheduler, Constants.CHECK_PREDECESSOR_INTERVAL, new Runnable() {
+            public void run() {
+                checkPredecessor();
+            }
+        });
+        scheduleAtInterval(scheduler, Constants.FIX_FINGERS_INTERVAL, new Runnable() {
+            public void run() {
+                fixFingers();
+            }
+        });
+        if (antiEntropyEnabled) {
+            scheduleAtInterval(scheduler, Constants.ANTI_ENTROPY_INTERVAL, new Runnable() {
+                public void run() {
+                    antiEntropy();
+                }
+            });
+        }
+        if (lookup == NodeLocator.Lookup.ONE_HOP) {
+            scheduleAtInterval(scheduler, Constants.GOSSIP_INTERVAL, new Runnable() {
+                public void run() {
+                    gossip();
+                }
+            });
+        }
+        if (rebalance) {
+            scheduleAtInterval(scheduler, Constants.REBALANCE_INTERVAL, new Runnable() {
+                public void run() {
+                    rebalance();
+                }
+            });
+        }
+    }
+
+    private void scheduleAtInterval(ScheduledExecutorService scheduler, int interval,
+            final Runnable task) {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // The scheduler would quietly never run it again
+                    LOGGER.severe("Maintenance [" + Node.TNodeToString(node.getTNode())
+                            + "] failed: " + e);
+                }
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -245,5 +670,14 @@ public class DonutClient extends Thread {
         stabilize.start();
         checkPredecessor.start();
         fixFingers.start();
+        if (antiEntropyEnabled) {
+            antiEntropy.start();
+        }
+        if (lookup == NodeLocator.Lookup.ONE_HOP) {
+            gossip.start();
+        }
+        if (rebalance) {
+            rebalancing.start();
+        }
     }
 }
@@ -16,6 +16,7 @@
 
 package edu.washington.cs.cse490h.donut.server;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.UUID;
@@ -26,23 +27,45 @@ import org.kohsuke.args4j.Option;
 
 import com.google.inject.Binder;
 import com.google.inject.Module;
+import com.google.inject.name.Names;
 
 import edu.washington.cs.cse490h.donut.business.KeyId;
 import edu.washington.cs.cse490h.donut.business.Node;
 import edu.washington.cs.cse490h.donut.service.DonutHashRequestService;
 import edu.washington.cs.cse490h.donut.service.HashService;
+import edu.washington.cs.cse490h.donut.service.IterativeLookup;
 import edu.washington.cs.cse490h.donut.service.KeyLocator;
 import edu.washington.cs.cse490h.donut.service.LocatorClientFactory;
 import edu.washington.cs.cse490h.donut.service.NodeLocator;
+import edu.washington.cs.cse490h.donut.service.ParallelLookup;
 import edu.washington.cs.cse490h.donut.service.RemoteLocatorClientFactory;
+import edu.washington.cs.cse490h.donut.service.application.DonutBoundedHashTableService;
+import edu.washington.cs.cse490h.donut.service.application.DonutConcurrentHashTableService;
+import edu.washington.cs.cse490h.donut.service.application.DonutExpiringHashTableService;
 import edu.washington.cs.cse490h.donut.service.application.DonutHashTableService;
 import edu.washington.cs.cse490h.donut.service.application.DonutInMemoryHashTableService;
+import edu.washington.cs.cse490h.donut.service.application.DonutIndexedHashTableService;
+import edu.washington.cs.cse490h.donut.service.application.DonutLogHashTableService;
+import edu.washington.cs.cse490h.donut.service.application.DonutLsmHashTableService;
+import edu.washington.cs.cse490h.donut.service.application.DonutMerkleHashTableService;
+import edu.washington.cs.cse490h.donut.service.application.DonutOffHeapHashTableService;
+import edu.washington.cs.cse490h.donut.service.application.DonutSortedHashTableService;
+import edu.washington.cs.cse490h.donut.service.application.DonutVersionedHashTableService;
+import edu.washington.cs.cse490h.donut.service.application.DonutWalHashTableService;
+import edu.washington.cs.cse490h.donut.util.ValueCodec;
 
 /**
  * @author alevy
  */
 public class DonutModule implements Module {
 
+    /**
+     * The {@link DonutHashTableService} implementations a Node can store its data in.
+     */
+    public enum Storage {
+        MEMORY, INDEXED, SORTED, CONCURRENT, VERSIONED, OFFHEAP, LOG, LSM, BOUNDED
+    }
+
     @Option(name = "--hostname", usage = "the hostname to use for this Node")
     private String hostname          = InetAddress.getLocalHost().getCanonicalHostName();
 
@@ -65,6 +88,60 @@ public class DonutModule implements Module {
     @Option(name = "--known-port", usage = "the port of a known node (default: 8080)")
     private int    knownPort     = 8080;
 
+    @Option(name = "--storage", usage = "where this Node keeps its data: MEMORY, INDEXED, SORTED, CONCURRENT, VERSIONED, OFFHEAP, LOG, LSM or BOUNDED (default: CONCURRENT)")
+    private Storage storage      = Storage.CONCURRENT;
+
+    @Option(name = "--data-dir", usage = "the directory for on disk storage (default: data)")
+    private File    dataDir      = new File("data");
+
+    @Option(name = "--memory-budget", usage = "the bytes of data BOUNDED storage keeps in memory (default: 67108864)")
+    private long    memoryBudget = 64 * 1024 * 1024;
+
+    @Option(name = "--cold-storage", usage = "where BOUNDED storage keeps what does not fit in memory: LOG, or LSM to keep only its summaries on the heap (default: LOG)")
+    private Storage coldStorage  = Storage.LOG;
+
+    @Option(name = "--compress-threshold", usage = "values of at least this many bytes are compressed, 0 for never (default: 1024)")
+    private int     compressThreshold = ValueCodec.DEFAULT_THRESHOLD;
+
+    @Option(name = "--merkle-tree", usage = "keep a Merkle tree of the data up to date and run anti-entropy against it every few minutes, at the cost of a read before every write")
+    private boolean merkleTree   = false;
+
+    @Option(name = "--ttl", usage = "expire entries put with an expiry time, rather than keep them for good")
+    private boolean ttl          = false;
+
+    @Option(name = "--wal", usage = "log every write ahead in <data-dir>/wal, so acknowledged writes survive a crash")
+    private boolean wal          = false;
+
+    @Option(name = "--wal-commit-window", usage = "the milliseconds the write-ahead log waits for more writes before each fsync (default: 2)")
+    private int     walCommitWindow = DonutWalHashTableService.DEFAULT_COMMIT_WINDOW;
+
+    @Option(name = "--lookup", usage = "how this Node finds the successor of an id: ITERATIVE, asking each hop in turn, RECURSIVE, each hop asking the next, ONE_HOP, from the whole membership of the ring learned by gossip, or PARALLEL, asking several hops at a time (default: ITERATIVE)")
+    private NodeLocator.Lookup lookup = NodeLocator.Lookup.ITERATIVE;
+
+    @Option(name = "--hop-timeout", usage = "the milliseconds an iterative lookup waits for each hop before trying another (default: 1000)")
+    private long    hopTimeout   = IterativeLookup.DEFAULT_HOP_TIMEOUT;
+
+    @Option(name = "--alpha", usage = "how many hops a PARALLEL lookup asks at a time, going on with the first to answer (default: 3)")
+    private int     alpha        = ParallelLookup.DEFAULT_ALPHA;
+
+    @Option(name = "--proximity-candidates", usage = "how many of the nodes each finger could point at are pinged to take the nearest, 1 to take the first (default: 1)")
+    private int     proximityCandidates = DonutClient.DEFAULT_PROXIMITY_CANDIDATES;
+
+    @Option(name = "--base", usage = "the base the finger table routes in, a power of two up to 256: each hop resolves one digit, for base - 1 fingers per digit (default: 2)")
+    private int     base         = Node.DEFAULT_BASE;
+
+    @Option(name = "--capacity", usage = "how much of the key space this Node takes, relative to a Node of capacity 1 (default: 1)")
+    private int     capacity     = 1;
+
+    @Option(name = "--virtual-nodes", usage = "the ring positions taken for each unit of capacity, more for a more even share of the key space (default: 1)")
+    private int     virtualNodes = 1;
+
+    @Option(name = "--rebalance", usage = "now and then compare this Node's load with another's, and if it has several times as much, have the other move into the middle of its range")
+    private boolean rebalance    = false;
+
+    private DonutHashTableService hashTableService;
+    private ValueCodec            valueCodec;
+
     public DonutModule() throws Exception {
     }
 
@@ -85,13 +162,128 @@ public class DonutModule implements Module {
     }
 
     public void configure(Binder binder) {
-        Node node = new Node(getHostname(), getPort(), new KeyId(getKey()));
+        Node node = new Node(getHostname(), getPort(), new KeyId(getKey()), getBase());
 
         binder.bind(Node.class).toInstance(node);
         binder.bind(LocatorClientFactory.class).to(RemoteLocatorClientFactory.class);
         binder.bind(KeyLocator.Iface.class).to(NodeLocator.class);
         binder.bind(HashService.Iface.class).to(DonutHashRequestService.class);
-        binder.bind(DonutHashTableService.class).to(DonutInMemoryHashTableService.class);
+        binder.bind(DonutHashTableService.class).toInstance(getHashTableService());
+        binder.bind(ValueCodec.class).toInstance(getValueCodec());
+        binder.bindConstant().annotatedWith(Names.named(NodeLocator.LOOKUP)).to(lookup);
+        binder.bindConstant().annotatedWith(Names.named(NodeLocator.HOP_TIMEOUT)).to(hopTimeout);
+        binder.bindConstant().annotatedWith(Names.named(NodeLocator.ALPHA)).to(alpha);
+        binder.bindConstant().annotatedWith(Names.named(DonutClient.PROXIMITY_CANDIDATES)).to(
+                proximityCandidates);
+        binder.bindConstant().annotatedWith(Names.named(VirtualNodes.POSITIONS)).to(
+                getPositions());
+        binder.bindConstant().annotatedWith(Names.named(DonutClient.REBALANCE)).to(rebalance);
+        binder.bindConstant().annotatedWith(Names.named(DonutClient.ANTI_ENTROPY)).to(merkleTree);
+    }
+
+    /**
+     * Creates the {@link ValueCodec} for {@code --compress-threshold} the first time it is called,
+     * so its metrics cover every injector configured by this module.
+     */
+    public synchronized ValueCodec getValueCodec() {
+        if (valueCodec == null) {
+            valueCodec = new ValueCodec(compressThreshold);
+        }
+        return valueCodec;
+    }
+
+    /**
+     * Creates the {@link DonutHashTableService} chosen by {@code --storage} the first time it is
+     * called. Every injector configured by this module shares that one instance, so a store on
+     * disk is only ever opened once.
+     */
+    public synchronized DonutHashTableService getHashTableService() {
+        if (hashTableService == null) {
+            switch (storage) {
+            case MEMORY:
+                hashTableService = new DonutInMemoryHashTableService();
+                break;
+            case INDEXED:
+                hashTableService = new DonutIndexedHashTableService();
+                break;
+            case SORTED:
+                hashTableService = new DonutSortedHashTableService();
+                break;
+            case VERSIONED:
+                hashTableService = new DonutVersionedHashTableService();
+                break;
+            case OFFHEAP:
+                hashTableService = new DonutOffHeapHashTableService();
+                break;
+            case LOG:
+                try {
+                    DonutLogHashTableService logService = new DonutLogHashTableService(dataDir);
+                    logService.startCompaction(DonutLogHashTableService.DEFAULT_COMPACT_INTERVAL);
+                    hashTableService = logService;
+                } catch (IOException e) {
+                    System.err.println("Unable to open the log in " + dataDir + ": " + e);
+                    System.exit(1);
+                }
+                break;
+            case LSM:
+                try {
+                    hashTableService = new DonutLsmHashTableService(dataDir);
+                } catch (IOException e) {
+                    System.err.println("Unable to open the LSM tree in " + dataDir + ": " + e);
+                    System.exit(1);
+                }
+                break;
+            case BOUNDED:
+                try {
+                    DonutHashTableService cold;
+                    if (coldStorage == Storage.LSM) {
+                        cold = new DonutLsmHashTableService(dataDir);
+                    } else if (coldStorage == Storage.LOG) {
+                        DonutLogHashTableService logService = new DonutLogHashTableService(dataDir);
+                        logService
+                                .startCompaction(DonutLogHashTableService.DEFAULT_COMPACT_INTERVAL);
+                        cold = logService;
+                    } else {
+                        throw new IOException("Cold storage must be LOG or LSM, not "
+                                + coldStorage);
+                    }
+                    hashTableService = new DonutBoundedHashTableService(cold, memoryBudget);
+                } catch (IOException e) {
+                    System.err.println("Unable to open the cold storage in " + dataDir + ": " + e);
+                    System.exit(1);
+                }
+                break;
+            default:
+                hashTableService = new DonutConcurrentHashTableService();
+            }
+            if (wal) {
+                File walDir = new File(dataDir, "wal");
+                try {
+                    DonutWalHashTableService walService = new DonutWalHashTableService(
+                            hashTableService, walDir, walCommitWindow,
+                            DonutWalHashTableService.DEFAULT_MAX_SEGMENT_SIZE);
+                    walService
+                            .startCheckpoints(DonutWalHashTableService.DEFAULT_CHECKPOINT_INTERVAL);
+                    hashTableService = walService;
+                } catch (IOException e) {
+                    System.err.println("Unable to open the write-ahead log in " + walDir + ": "
+                            + e);
+                    System.exit(1);
+                }
+            }
+            if (merkleTree) {
+                hashTableService = new DonutMerkleHashTableService(hashTableService);
+            }
+            if (ttl) {
+                // Outermost, so expired entries leave the Merkle tree too
+                DonutExpiringHashTableService expiringService = new DonutExpiringHashTableService(
+                        hashTableService);
+                expiringService
+                        .startExpiration(DonutExpiringHashTableService.DEFAULT_EXPIRE_INTERVAL);
+                hashTableService = expiringService;
+            }
+        }
+        return hashTableService;
     }
 
     public void setHostname(String hostname) {
@@ -134,6 +326,150 @@ public class DonutModule implements Module {
         return knownPort;
     }
 
+    public void setStorage(Storage storage) {
+        this.storage = storage;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    public void setDataDir(File dataDir) {
+        this.dataDir = dataDir;
+    }
+
+    public File getDataDir() {
+        return dataDir;
+    }
+
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public void setColdStorage(Storage coldStorage) {
+        this.coldStorage = coldStorage;
+    }
+
+    public Storage getColdStorage() {
+        return coldStorage;
+    }
+
+    public void setCompressThreshold(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    public void setMerkleTree(boolean merkleTree) {
+        this.merkleTree = merkleTree;
+    }
+
+    public boolean isMerkleTree() {
+        return merkleTree;
+    }
+
+    public void setTtl(boolean ttl) {
+        this.ttl = ttl;
+    }
+
+    public boolean isTtl() {
+        return ttl;
+    }
+
+    public void setWal(boolean wal) {
+        this.wal = wal;
+    }
+
+    public boolean isWal() {
+        return wal;
+    }
+
+    public void setWalCommitWindow(int walCommitWindow) {
+        this.walCommitWindow = walCommitWindow;
+    }
+
+    public int getWalCommitWindow() {
+        return walCommitWindow;
+    }
+
+    public void setLookup(NodeLocator.Lookup lookup) {
+        this.lookup = lookup;
+    }
+
+    public NodeLocator.Lookup getLookup() {
+        return lookup;
+    }
+
+    public void setHopTimeout(long hopTimeout) {
+        this.hopTimeout = hopTimeout;
+    }
+
+    public long getHopTimeout() {
+        return hopTimeout;
+    }
+
+    public void setAlpha(int alpha) {
+        this.alpha = alpha;
+    }
+
+    public int getAlpha() {
+        return alpha;
+    }
+
+    public void setProximityCandidates(int proximityCandidates) {
+        this.proximityCandidates = proximityCandidates;
+    }
+
+    public int getProximityCandidates() {
+        return proximityCandidates;
+    }
+
+    public void setBase(int base) {
+        this.base = base;
+    }
+
+    public int getBase() {
+        return base;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setVirtualNodes(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    /**
+     * @return how many ring positions this Node takes, {@code --virtual-nodes} for each unit of
+     *         {@code --capacity}
+     */
+    public int getPositions() {
+        return capacity * virtualNodes;
+    }
+
+    public void setRebalance(boolean rebalance) {
+        this.rebalance = rebalance;
+    }
+
+    public boolean isRebalance() {
+        return rebalance;
+    }
+
     public int getRequestPort() {
         return port + requestPortOffset;
     }
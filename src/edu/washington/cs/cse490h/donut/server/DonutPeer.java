@@ -32,27 +32,27 @@ public class DonutPeer {
     public static final String DONUT_REQUEST_SERVER = "DonutRequestServer";
 
     private final DonutServer  server;
-    private final DonutClient  client;
+    private final VirtualNodes positions;
     private final DonutServer  requestThread;
 
     @Inject
-    public DonutPeer(@Named(value = DONUT_NODE) DonutServer serverThread, DonutClient client,
+    public DonutPeer(@Named(value = DONUT_NODE) DonutServer serverThread, VirtualNodes positions,
             @Named(value = DONUT_REQUEST_SERVER) DonutServer requestThread) {
         this.server = serverThread;
-        this.client = client;
+        this.positions = positions;
         this.requestThread = requestThread;
     }
 
     public void run(TNode knownNode) throws TException {
         server.start();
-        client.join(knownNode);
-        client.start();
+        positions.join(knownNode);
+        positions.start();
         requestThread.start();
     }
 
     public void kill() {
         requestThread.kill();
         server.kill();
-        client.kill();
+        positions.kill();
     }
 }
@@ -47,16 +47,22 @@ public class Providers {
         }
     }
 
-    protected static class TKeyLocatorProcessorProvider implements Provider<TProcessor> {
-        private final KeyLocator.Iface iface;
+    /**
+     * The server for every ring position of {@link VirtualNodes}, each connection getting a
+     * processor of its own to {@link KeyLocator.Iface#address} to one of them.
+     */
+    protected static class TVirtualNodesServerProvider implements Provider<TServer> {
+        private final VirtualNodes     positions;
+        private final TServerTransport transport;
 
         @Inject
-        private TKeyLocatorProcessorProvider(KeyLocator.Iface iface) {
-            this.iface = iface;
+        private TVirtualNodesServerProvider(TServerTransport transport, VirtualNodes positions) {
+            this.positions = positions;
+            this.transport = transport;
         }
 
-        public TProcessor get() {
-            return new KeyLocator.Processor(iface);
+        public TServer get() {
+            return new TThreadPoolServer(positions.getProcessorFactory(), transport);
         }
     }
 
@@ -16,13 +16,13 @@
 
 package edu.washington.cs.cse490h.donut.server;
 
-import org.apache.thrift.TProcessor;
 import org.apache.thrift.server.TServer;
 import org.apache.thrift.transport.TServerSocket;
 import org.apache.thrift.transport.TServerTransport;
 import org.apache.thrift.transport.TTransportException;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.Scopes;
 
 /**
  * @author alevy
@@ -45,7 +45,7 @@ public class ServerModule extends AbstractModule {
             System.err.println("Unable to listen on port " + donutModule.getPort() + ".");
             System.exit(1);
         }
-        binder().bind(TProcessor.class).toProvider(Providers.TKeyLocatorProcessorProvider.class);
-        binder().bind(TServer.class).toProvider(Providers.TServerProvider.class);
+        binder().bind(VirtualNodes.class).in(Scopes.SINGLETON);
+        binder().bind(TServer.class).toProvider(Providers.TVirtualNodesServerProvider.class);
     }
 }
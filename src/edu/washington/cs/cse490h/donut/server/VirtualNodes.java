@@ -0,0 +1,168 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.TProcessorFactory;
+import org.apache.thrift.transport.TTransport;
+
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.name.Named;
+
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Node;
+import edu.washington.cs.cse490h.donut.business.TNode;
+import edu.washington.cs.cse490h.donut.service.KeyLocator;
+import edu.washington.cs.cse490h.donut.service.LocatorClientFactory;
+import edu.washington.cs.cse490h.donut.service.NodeLocator;
+import edu.washington.cs.cse490h.donut.service.VirtualNodeLocator;
+import edu.washington.cs.cse490h.donut.service.application.DonutHashTableService;
+
+/**
+ * <p>
+ * The ring positions one process takes, so that a bigger machine can take a bigger share of the
+ * key space. The first position is the injected {@link Node}; the others get ids derived from its
+ * id, so a restarted process takes the same positions again.
+ * </p>
+ * <p>
+ * Every position keeps its own fingers, predecessor and successor list, but they share one
+ * {@link DonutHashTableService}, since their ranges never overlap, one server port, which a
+ * connection {@link KeyLocator.Iface#address}es to the position it is for, one
+ * {@link LocatorClientFactory} for all of their locators and another for all of their clients,
+ * and one scheduler for the maintenance of all of them.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class VirtualNodes {
+
+    /** The name of the number of ring positions to inject. */
+    public static final String       POSITIONS           = "Positions";
+
+    /** One for each kind of maintenance, as they may each wait on a slow peer. */
+    private static final int         MAINTENANCE_THREADS = 5;
+
+    private final List<Node>         nodes;
+    private final List<NodeLocator>  locators;
+    private final List<DonutClient>  clients;
+    private ScheduledExecutorService scheduler;
+
+    @Inject
+    public VirtualNodes(Injector injector, Node node, DonutHashTableService service,
+            @Named(POSITIONS) int positions) {
+        if (positions < 1) {
+            throw new IllegalArgumentException("positions must be >= 1");
+        }
+        LocatorClientFactory locatorFactory = injector.getInstance(LocatorClientFactory.class);
+        LocatorClientFactory clientFactory = injector.getInstance(LocatorClientFactory.class);
+
+        nodes = new ArrayList<Node>(positions);
+        locators = new ArrayList<NodeLocator>(positions);
+        clients = new ArrayList<DonutClient>(positions);
+        Set<KeyId> ids = new HashSet<KeyId>();
+        for (int i = 0; i < positions; ++i) {
+            Node position = i == 0 ? node : new Node(node.getName(), node.getPort(), new KeyId(UUID
+                    .nameUUIDFromBytes((node.getNodeId().getId() + "#" + i).getBytes())
+                    .getMostSignificantBits()), node.getBase());
+            if (!ids.add(position.getNodeId())) {
+                // Two ids the same is vanishingly unlikely, and one position would do for both
+                continue;
+            }
+            NodeLocator locator = new NodeLocator(position, service, locatorFactory);
+            injector.injectMembers(locator);
+            DonutClient client = new DonutClient(position, clientFactory);
+            injector.injectMembers(client);
+
+            nodes.add(position);
+            locators.add(locator);
+            clients.add(client);
+        }
+    }
+
+    /**
+     * @return a processor for each connection to the server port, which starts out at the first
+     *         position
+     */
+    public TProcessorFactory getProcessorFactory() {
+        return new TProcessorFactory(null) {
+            @Override
+            public TProcessor getProcessor(TTransport transport) {
+                return new KeyLocator.Processor(new VirtualNodeLocator(locators));
+            }
+        };
+    }
+
+    /**
+     * Joins every position to the ring through {@code knownNode}, which may be the first position
+     * to start a new ring.
+     */
+    public void join(TNode knownNode) throws TException {
+        for (DonutClient client : clients) {
+            client.join(knownNode);
+        }
+    }
+
+    /**
+     * Starts the maintenance of every position.
+     */
+    public synchronized void start() {
+        scheduler = Executors.newScheduledThreadPool(MAINTENANCE_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "VirtualNodes");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (DonutClient client : clients) {
+            client.schedule(scheduler);
+        }
+    }
+
+    /**
+     * Stops the maintenance of every position.
+     */
+    public synchronized void kill() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    public List<Node> getNodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    public List<NodeLocator> getLocators() {
+        return Collections.unmodifiableList(locators);
+    }
+
+    public List<DonutClient> getClients() {
+        return Collections.unmodifiableList(clients);
+    }
+
+}
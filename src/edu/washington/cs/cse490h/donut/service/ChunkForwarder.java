@@ -0,0 +1,171 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.thrift.TException;
+
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.TNode;
+
+/**
+ * <p>
+ * Sends chunks down the replication chain on a thread of its own, in the order they were handed
+ * over, so the node that took a chunk from a client can take the next one while this one is being
+ * replicated. At most {@code depth} chunks wait at a time; beyond that {@link #forward} blocks,
+ * which keeps the memory held per node bounded however big the value.
+ * </p>
+ * <p>
+ * Each chunk is tracked by its key until it has been replicated, so the entry pointing at the
+ * chunks of one value only waits for those, and only hears of their failures. A chunk that could
+ * not be replicated is kept until {@link #flush} or {@link #forget} asks for it.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class ChunkForwarder {
+
+    private final LocatorClientFactory               clientFactory;
+    private final Semaphore                          window;
+    private final ExecutorService                    executor;
+    private final ConcurrentMap<EntryKey, Future<?>> pending;
+
+    public ChunkForwarder(LocatorClientFactory clientFactory, int depth) {
+        this.clientFactory = clientFactory;
+        this.window = new Semaphore(depth);
+        this.pending = new ConcurrentHashMap<EntryKey, Future<?>>();
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ChunkForwarder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues a {@link KeyLocator.Iface#replicatePutChunk} to each of {@code replicas}, waiting for
+     * room in the queue if it is full.
+     */
+    public void forward(final List<TNode> replicas, final EntryKey key, final byte[] data,
+            final long expiresAt) throws TException {
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            throw new TException(e);
+        }
+        FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+            public Void call() throws Exception {
+                for (TNode replica : replicas) {
+                    KeyLocator.Iface client = clientFactory.get(replica);
+                    try {
+                        client.replicatePutChunk(key, data, 0, expiresAt);
+                    } finally {
+                        clientFactory.release(replica);
+                    }
+                }
+                return null;
+            }
+        }) {
+            @Override
+            protected void done() {
+                window.release();
+                try {
+                    get();
+                    pending.remove(key, this);
+                } catch (Exception e) {
+                    // Kept for the entry that points at the chunk to hear of
+                }
+            }
+        };
+        // Tracked before it can run, so it cannot be done before it is tracked
+        pending.put(key, task);
+        executor.execute(task);
+    }
+
+    /**
+     * Waits until the chunks with the given keys, of those queued so far, have been replicated.
+     * 
+     * @throws TException
+     *             if any of them could not be
+     */
+    public void flush(Collection<EntryKey> keys) throws TException {
+        for (EntryKey key : keys) {
+            Future<?> future = pending.get(key);
+            if (future == null) {
+                continue;
+            }
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                throw new TException(e);
+            } catch (ExecutionException e) {
+                throw new TException("Unable to replicate chunk " + key, e.getCause());
+            } finally {
+                if (future.isDone()) {
+                    pending.remove(key, future);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until the chunk with the given key, if it is queued, is done with, and forgets whether
+     * it could be replicated, as for a chunk that is being removed.
+     */
+    public void forget(EntryKey key) throws TException {
+        Future<?> future = pending.get(key);
+        if (future == null) {
+            return;
+        }
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            throw new TException(e);
+        } catch (ExecutionException e) {
+            // It is on its way out anyway
+        } finally {
+            if (future.isDone()) {
+                pending.remove(key, future);
+            }
+        }
+    }
+
+    /**
+     * @return the number of chunks queued or waiting for a flush to hear that they failed
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+}
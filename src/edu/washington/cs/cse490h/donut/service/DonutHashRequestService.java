@@ -16,72 +16,323 @@
 
 package edu.washington.cs.cse490h.donut.service;
 
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
 import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
 
 import com.google.inject.Inject;
 
+import edu.washington.cs.cse490h.donut.Constants;
+import edu.washington.cs.cse490h.donut.business.ChunkedValue;
 import edu.washington.cs.cse490h.donut.business.EntryKey;
 import edu.washington.cs.cse490h.donut.business.TNode;
 import edu.washington.cs.cse490h.donut.util.KeyIdUtil;
+import edu.washington.cs.cse490h.donut.util.ValueCodec;
 
 /**
+ * <p>
+ * The entry point for clients. Values are encoded by a {@link ValueCodec} here and nowhere else, so
+ * the nodes store and replicate them compressed and they are only decompressed on the way back out
+ * of {@link #get(String)}.
+ * </p>
+ * <p>
+ * Values bigger than {@link Constants#CHUNK_SIZE} are stored in chunks, each one an entry of its
+ * own with the same id as the value, so they all live on the same nodes as the value and move with
+ * it. The entry for the value itself only says where its chunks are.
+ * </p>
+ * <p>
+ * Which node owns a key is looked up once and then kept in an {@link OwnerCache}, so a request
+ * for a key in a range seen before goes straight to its owner. If the owner turns out not to be
+ * responsible, cannot be reached, or does not have the data, the owner is looked up again and the
+ * request sent once more.
+ * </p>
+ * 
  * @author alevy
  */
 public class DonutHashRequestService implements HashService.Iface {
 
     private final KeyLocator.Iface     keyLocator;
     private final LocatorClientFactory clientFactory;
+    private final ValueCodec           codec;
+    private final OwnerCache           owners  = new OwnerCache();
+    private final Random               uploads = new Random();
+
+    /**
+     * What is sent to the owner of a key. It may be sent twice, to a different owner the second
+     * time, if the first owner was taken from the cache and was wrong.
+     */
+    private interface Request<T> {
+        T send(KeyLocator.Iface owner) throws DataNotFoundException, NotResponsibleForId,
+                TException;
+    }
 
-    @Inject
     public DonutHashRequestService(KeyLocator.Iface keyLocator, LocatorClientFactory clientFactory) {
+        this(keyLocator, clientFactory, new ValueCodec());
+    }
+
+    @Inject
+    public DonutHashRequestService(KeyLocator.Iface keyLocator, LocatorClientFactory clientFactory,
+            ValueCodec codec) {
         this.keyLocator = keyLocator;
         this.clientFactory = clientFactory;
+        this.codec = codec;
     }
 
-    public byte[] get(String key) throws DataNotFoundException, TException {
-        EntryKey entryKey = new EntryKey(KeyIdUtil.generateKeyId(key), key);
-        TNode successor = keyLocator.findSuccessor(entryKey.getId());
+    public byte[] get(final String key) throws DataNotFoundException, TException {
+        final EntryKey entryKey = new EntryKey(KeyIdUtil.generateKeyId(key), key);
+        return send(entryKey, new Request<byte[]>() {
+            public byte[] send(KeyLocator.Iface owner) throws DataNotFoundException, TException {
+                byte[] stored = owner.get(entryKey);
+                ChunkedValue chunked = ValueCodec.decodeChunked(stored);
+                if (chunked == null) {
+                    return decode(stored);
+                }
+                if (chunked.getLength() > Integer.MAX_VALUE) {
+                    throw new TException("Value of " + key + " is too big to get whole");
+                }
+                byte[] value = new byte[(int) chunked.getLength()];
+                int length = 0;
+                for (int i = 0; i < chunked.getChunks(); ++i) {
+                    byte[] chunk = decode(owner.get(chunkKey(entryKey, chunked.getUpload(), i)));
+                    if (length + chunk.length > value.length) {
+                        throw new TException("Chunks of " + key + " are longer than the value");
+                    }
+                    System.arraycopy(chunk, 0, value, length, chunk.length);
+                    length += chunk.length;
+                }
+                if (length != value.length) {
+                    throw new TException("Chunks of " + key + " are shorter than the value");
+                }
+                return value;
+            }
+        });
+    }
 
-        try {
-            KeyLocator.Iface hashClient = clientFactory.get(successor);
-            return hashClient.get(entryKey);
-        } catch (RetryFailedException e) {
-            throw new TException(e);
-        } finally {
-            clientFactory.release(successor);
+    public void put(String key, byte[] value) throws TException {
+        put(key, value, 0);
+    }
+
+    /**
+     * The entry expires at the same moment on every node that holds it, so the TTL is turned into
+     * a deadline once, here.
+     */
+    public void putWithTtl(String key, byte[] value, long ttl) throws TException {
+        if (ttl <= 0) {
+            throw new TException("TTL must be positive: " + ttl);
         }
+        put(key, value, System.currentTimeMillis() + ttl);
     }
 
-    public void put(String key, byte[] value) throws TException {
+    private void put(String key, final byte[] value, final long expiresAt) throws TException {
+        final EntryKey entryKey = new EntryKey(KeyIdUtil.generateKeyId(key), key);
+        sendWrite(entryKey, new Request<Void>() {
+            public Void send(KeyLocator.Iface owner) throws NotResponsibleForId, TException {
+                if (value.length <= Constants.CHUNK_SIZE) {
+                    owner.put(entryKey, codec.encode(value), expiresAt);
+                    return null;
+                }
+                long upload = newUpload();
+                int chunks = 0;
+                for (int offset = 0; offset < value.length; offset += Constants.CHUNK_SIZE) {
+                    byte[] chunk = Arrays.copyOfRange(value, offset, Math.min(value.length,
+                            offset + Constants.CHUNK_SIZE));
+                    owner.putChunk(chunkKey(entryKey, upload, chunks++), codec.encode(chunk),
+                            expiresAt);
+                }
+                owner.put(entryKey, ValueCodec.encodeChunked(new ChunkedValue(upload, chunks,
+                        value.length)), expiresAt);
+                return null;
+            }
+        });
+    }
+
+    public void remove(String key) throws TException {
+        final EntryKey entryKey = new EntryKey(KeyIdUtil.generateKeyId(key), key);
+        sendWrite(entryKey, new Request<Void>() {
+            public Void send(KeyLocator.Iface owner) throws NotResponsibleForId, TException {
+                owner.remove(entryKey);
+                return null;
+            }
+        });
+    }
+
+    public long beginChunks(String key) throws TException {
+        return newUpload();
+    }
+
+    public void putChunk(String key, long upload, int index, final byte[] chunk)
+            throws TException {
+        if (chunk.length > Constants.CHUNK_SIZE) {
+            throw new TException("Chunks can be at most " + Constants.CHUNK_SIZE + " bytes");
+        }
+        if (upload == 0 || index < 0) {
+            throw new TException("No chunk " + index + " of upload " + upload);
+        }
         EntryKey entryKey = new EntryKey(KeyIdUtil.generateKeyId(key), key);
-        TNode successor = keyLocator.findSuccessor(entryKey.getId());
+        final EntryKey chunkKey = chunkKey(entryKey, upload, index);
+        sendWrite(entryKey, new Request<Void>() {
+            public Void send(KeyLocator.Iface owner) throws NotResponsibleForId, TException {
+                owner.putChunk(chunkKey, codec.encode(chunk), 0);
+                return null;
+            }
+        });
+    }
+
+    public void commitChunks(String key, long upload, int chunks, long length) throws TException {
+        final EntryKey entryKey = new EntryKey(KeyIdUtil.generateKeyId(key), key);
+        final byte[] stored = ValueCodec.encodeChunked(new ChunkedValue(upload, chunks, length));
+        sendWrite(entryKey, new Request<Void>() {
+            public Void send(KeyLocator.Iface owner) throws NotResponsibleForId, TException {
+                owner.put(entryKey, stored, 0);
+                return null;
+            }
+        });
+    }
+
+    public ChunkedValue getChunks(String key) throws DataNotFoundException, TException {
+        final EntryKey entryKey = new EntryKey(KeyIdUtil.generateKeyId(key), key);
+        return send(entryKey, new Request<ChunkedValue>() {
+            public ChunkedValue send(KeyLocator.Iface owner) throws DataNotFoundException,
+                    TException {
+                byte[] stored = owner.get(entryKey);
+                ChunkedValue chunked = ValueCodec.decodeChunked(stored);
+                if (chunked == null) {
+                    // Put whole, so it is its own single chunk
+                    return new ChunkedValue(0, 1, decode(stored).length);
+                }
+                return chunked;
+            }
+        });
+    }
 
+    /**
+     * @throws DataNotFoundException
+     *             if there is no such chunk, which is also the case once the value has been
+     *             replaced by another upload
+     */
+    public byte[] getChunk(String key, final long upload, final int index)
+            throws DataNotFoundException, TException {
+        final EntryKey entryKey = new EntryKey(KeyIdUtil.generateKeyId(key), key);
+        return send(entryKey, new Request<byte[]>() {
+            public byte[] send(KeyLocator.Iface owner) throws DataNotFoundException, TException {
+                if (upload != 0) {
+                    return decode(owner.get(chunkKey(entryKey, upload, index)));
+                }
+                byte[] stored = owner.get(entryKey);
+                if (index != 0 || ValueCodec.decodeChunked(stored) != null) {
+                    throw new DataNotFoundException();
+                }
+                return decode(stored);
+            }
+        });
+    }
+
+    public ValueCodec getCodec() {
+        return codec;
+    }
+
+    public OwnerCache getOwners() {
+        return owners;
+    }
+
+    /**
+     * @return the key under which a chunk of the value of {@code key} is stored. It has the id of
+     *         {@code key}, so it sorts and moves together with it.
+     */
+    public static EntryKey chunkKey(EntryKey key, long upload, int index) {
+        return new EntryKey(key.getId(), key.getKey() + '\0' + upload + '\0' + index);
+    }
+
+    private long newUpload() {
+        synchronized (uploads) {
+            long upload;
+            do {
+                upload = uploads.nextLong();
+            } while (upload == 0);
+            return upload;
+        }
+    }
+
+    private byte[] decode(byte[] stored) throws TException {
         try {
-            KeyLocator.Iface hashClient = clientFactory.get(successor);
-            hashClient.put(entryKey, value);
-        } catch (RetryFailedException e) {
+            return codec.decode(stored);
+        } catch (DataFormatException e) {
             throw new TException(e);
-        } catch (NotResponsibleForId e) {
-            throw new TException(e);
-        } finally {
-            clientFactory.release(successor);
         }
     }
 
-    public void remove(String key) throws TException {
-        EntryKey entryKey = new EntryKey(KeyIdUtil.generateKeyId(key), key);
-        TNode successor = keyLocator.findSuccessor(entryKey.getId());
+    /**
+     * Sends {@code request} to the owner of {@code key}, as cached if it is. A cached owner that
+     * is not responsible for the key or cannot be reached is forgotten and the owner looked up
+     * again. So is one that does not have the data, as it may have gone to a node that joined.
+     */
+    private <T> T send(EntryKey key, Request<T> request) throws DataNotFoundException,
+            TException {
+        TNode cached = owners.get(key.getId());
+        if (cached != null) {
+            try {
+                return sendTo(cached, request);
+            } catch (DataNotFoundException e) {
+                TNode owner = lookUp(key);
+                if (owner.equals(cached)) {
+                    throw e;
+                }
+                return sendOnce(owner, request);
+            } catch (NotResponsibleForId e) {
+                owners.invalidate(cached);
+            } catch (RetryFailedException e) {
+                owners.invalidate(cached);
+            } catch (TTransportException e) {
+                owners.invalidate(cached);
+            }
+        }
+        return sendOnce(lookUp(key), request);
+    }
 
+    /**
+     * {@link #send}, for requests that never throw {@link DataNotFoundException}.
+     */
+    private void sendWrite(EntryKey key, Request<Void> request) throws TException {
         try {
-            KeyLocator.Iface hashClient = clientFactory.get(successor);
-            hashClient.remove(entryKey);
-        } catch (RetryFailedException e) {
+            send(key, request);
+        } catch (DataNotFoundException e) {
             throw new TException(e);
+        }
+    }
+
+    private <T> T sendOnce(TNode owner, Request<T> request) throws DataNotFoundException,
+            TException {
+        try {
+            return sendTo(owner, request);
         } catch (NotResponsibleForId e) {
+            owners.invalidate(owner);
             throw new TException(e);
+        } catch (RetryFailedException e) {
+            owners.invalidate(owner);
+            throw new TException(e);
+        } catch (TTransportException e) {
+            owners.invalidate(owner);
+            throw e;
+        }
+    }
+
+    private <T> T sendTo(TNode owner, Request<T> request) throws DataNotFoundException,
+            NotResponsibleForId, RetryFailedException, TException {
+        KeyLocator.Iface client = clientFactory.get(owner);
+        try {
+            return request.send(client);
         } finally {
-            clientFactory.release(successor);
+            clientFactory.release(owner);
         }
     }
 
+    private TNode lookUp(EntryKey key) throws TException {
+        TNode owner = keyLocator.findSuccessor(key.getId());
+        owners.put(key.getId(), owner);
+        return owner;
+    }
+
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.thrift.TException;
+
+import edu.washington.cs.cse490h.donut.Constants;
+import edu.washington.cs.cse490h.donut.business.Hop;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Node;
+import edu.washington.cs.cse490h.donut.business.TNode;
+
+/**
+ * <p>
+ * Finds the successor of an id by asking one node after another for its next hop with
+ * {@link KeyLocator.Iface#findNextHop}, rather than having each node forward the lookup and wait
+ * on the rest of it. Only this node waits, on one connection at a time.
+ * </p>
+ * <p>
+ * A hop that fails or does not answer within the hop timeout is added to the failed list and the
+ * last node that did answer is asked again, so it can point at another of its fingers instead.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class IterativeLookup {
+
+    public static final long           DEFAULT_HOP_TIMEOUT = 1000;
+
+    /** Enough for any lookup that is getting closer, even with a few fallbacks on the way. */
+    public static final int            MAX_HOPS            = 2 * Constants.KEY_SPACE;
+
+    private final Node                 node;
+    private final LocatorClientFactory clientFactory;
+    private final long                 hopTimeout;
+    private final ExecutorService      executor;
+
+    /**
+     * @param hopTimeout
+     *            the milliseconds to wait for each hop to answer
+     */
+    public IterativeLookup(Node node, LocatorClientFactory clientFactory, long hopTimeout) {
+        this.node = node;
+        this.clientFactory = clientFactory;
+        this.hopTimeout = hopTimeout;
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "IterativeLookup");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public TNode findSuccessor(KeyId entryId) throws TException {
+        List<TNode> failed = new ArrayList<TNode>();
+        // The nodes that answered, this one first, to fall back on when a hop fails
+        List<TNode> path = new ArrayList<TNode>();
+        path.add(node.getTNode());
+        Hop hop = node.nextHop(entryId, failed);
+
+        for (int hops = 0; hops < MAX_HOPS; ++hops) {
+            if (hop.isDone()) {
+                return hop.getNode();
+            }
+            TNode next = hop.getNode();
+            try {
+                hop = ask(next, entryId, failed);
+                path.add(next);
+            } catch (TException e) {
+                failed.add(next);
+                hop = askAgain(path, entryId, failed);
+            }
+        }
+        throw new TException("No route to " + entryId + " in " + MAX_HOPS + " hops");
+    }
+
+    /**
+     * Asks the last node on the path that still answers, dropping the ones that do not. This node
+     * is always there to ask, at the bottom of the path.
+     */
+    private Hop askAgain(List<TNode> path, KeyId entryId, List<TNode> failed) {
+        while (true) {
+            TNode last = path.get(path.size() - 1);
+            try {
+                return ask(last, entryId, failed);
+            } catch (TException e) {
+                failed.add(last);
+                path.remove(path.size() - 1);
+            }
+        }
+    }
+
+    private Hop ask(final TNode next, final KeyId entryId, List<TNode> failed) throws TException {
+        if (next.equals(node.getTNode())) {
+            return node.nextHop(entryId, failed);
+        }
+        // A copy, as a hop that timed out may still be sending it
+        final List<TNode> failedCopy = new ArrayList<TNode>(failed);
+        Future<Hop> future = executor.submit(new Callable<Hop>() {
+            public Hop call() throws Exception {
+                KeyLocator.Iface client = clientFactory.get(next);
+                try {
+                    return client.findNextHop(entryId, failedCopy);
+                } finally {
+                    clientFactory.release(next);
+                }
+            }
+        });
+        try {
+            Hop hop = future.get(hopTimeout, TimeUnit.MILLISECONDS);
+            if (hop == null || hop.getNode() == null) {
+                throw new TException(Node.TNodeToString(next) + " returned no hop");
+            }
+            return hop;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new TException(Node.TNodeToString(next) + " timed out", e);
+        } catch (ExecutionException e) {
+            throw new TException(Node.TNodeToString(next) + " failed", e.getCause());
+        } catch (InterruptedException e) {
+            throw new TException(e);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.thrift.TException;
+
+import edu.washington.cs.cse490h.donut.business.TNode;
+
+/**
+ * Round trip times to other nodes, measured by timing a {@link KeyLocator.Iface#ping} and
+ * smoothed the way TCP smooths its own, so one slow ping does not make a near node look far. A
+ * time measured recently is reused rather than pinging the node again.
+ * 
+ * @author jprouty
+ */
+public class LatencyTracker {
+
+    /** How long a measured time is reused before the node is pinged again. */
+    public static final long           DEFAULT_MAX_AGE = 10000;
+
+    /** How many nodes are remembered, the least recently asked about going first. */
+    private static final int           MAX_PEERS       = 1024;
+
+    private final LocatorClientFactory clientFactory;
+    private final long                 maxAge;
+    private final Map<TNode, Estimate> estimates;
+
+    private static class Estimate {
+        /** Smoothed, in nanoseconds. */
+        long rtt;
+        long measuredAt;
+    }
+
+    public LatencyTracker(LocatorClientFactory clientFactory) {
+        this(clientFactory, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * @param maxAge
+     *            the milliseconds a measured time is reused for
+     */
+    public LatencyTracker(LocatorClientFactory clientFactory, long maxAge) {
+        this.clientFactory = clientFactory;
+        this.maxAge = maxAge;
+        this.estimates = new LinkedHashMap<TNode, Estimate>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<TNode, Estimate> eldest) {
+                return size() > MAX_PEERS;
+            }
+        };
+    }
+
+    /**
+     * @return the smoothed round trip time to {@code node} in nanoseconds, or
+     *         {@link Long#MAX_VALUE} if it cannot be reached
+     */
+    public long getRtt(TNode node) {
+        long now = System.currentTimeMillis();
+        synchronized (estimates) {
+            Estimate estimate = estimates.get(node);
+            if (estimate != null && now - estimate.measuredAt < maxAge) {
+                return estimate.rtt;
+            }
+        }
+        long sample = ping(node);
+        if (sample == Long.MAX_VALUE) {
+            synchronized (estimates) {
+                estimates.remove(node);
+            }
+            return sample;
+        }
+        synchronized (estimates) {
+            Estimate estimate = estimates.get(node);
+            if (estimate == null) {
+                estimate = new Estimate();
+                estimate.rtt = sample;
+                estimates.put(node, estimate);
+            } else {
+                // rtt = 7/8 rtt + 1/8 sample
+                estimate.rtt += (sample - estimate.rtt) >> 3;
+            }
+            estimate.measuredAt = now;
+            return estimate.rtt;
+        }
+    }
+
+    private long ping(TNode node) {
+        long start = System.nanoTime();
+        try {
+            KeyLocator.Iface client = clientFactory.get(node);
+            try {
+                client.ping();
+            } finally {
+                clientFactory.release(node);
+            }
+        } catch (RetryFailedException e) {
+            return Long.MAX_VALUE;
+        } catch (TException e) {
+            return Long.MAX_VALUE;
+        }
+        return System.nanoTime() - start;
+    }
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Load;
+import edu.washington.cs.cse490h.donut.service.application.DonutHashTableService;
+import edu.washington.cs.cse490h.donut.util.KeyIdUtil;
+
+/**
+ * <p>
+ * How busy a node is: the client requests it answers per second, counted over windows of a few
+ * seconds, and the ids of the latest of them, to tell where in its range they fall. Together
+ * with the keys and bytes of the range, that makes its {@link Load}.
+ * </p>
+ * <p>
+ * A node is overloaded next to another, in the sense of Karger and Ruhl's item balancing, when
+ * it has {@link #IMBALANCE} times as much of one kind of load and no less of any other. The other
+ * node can then hand its range to its successor and take half of this one's instead.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class LoadMonitor {
+
+    public static final long   DEFAULT_WINDOW   = 10000;
+
+    /** How many of the latest requested ids are kept. */
+    public static final int    SAMPLES          = 1024;
+
+    /** How many values of a range are read at most to estimate its bytes. */
+    public static final int    SIZE_SAMPLES     = 256;
+
+    public static final int    IMBALANCE        = 4;
+
+    /** Below these, a node is never overloaded, however little the other node has. */
+    public static final long   MIN_KEYS         = 64;
+    public static final long   MIN_BYTES        = 1024 * 1024;
+    public static final double MIN_REQUEST_RATE = 10;
+
+    private final long         window;
+    private final long[]       samples;
+    private int                sampleCount;
+    private int                nextSample;
+    private long               windowStart;
+    private long               windowRequests;
+    private double             requestRate;
+
+    public LoadMonitor() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window
+     *            the milliseconds requests are counted over
+     */
+    public LoadMonitor(long window) {
+        this.window = window;
+        this.samples = new long[SAMPLES];
+        this.windowStart = System.currentTimeMillis();
+    }
+
+    /**
+     * Counts a client request for {@code id}.
+     */
+    public synchronized void record(KeyId id) {
+        roll(System.currentTimeMillis());
+        ++windowRequests;
+        samples[nextSample] = id.getId();
+        nextSample = (nextSample + 1) % SAMPLES;
+        if (sampleCount < SAMPLES) {
+            ++sampleCount;
+        }
+    }
+
+    /**
+     * @return the requests per second over the last whole window
+     */
+    public synchronized double getRequestRate() {
+        roll(System.currentTimeMillis());
+        return requestRate;
+    }
+
+    /**
+     * Forgets every request so far, as after the node moves to another range.
+     */
+    public synchronized void reset() {
+        sampleCount = 0;
+        nextSample = 0;
+        windowStart = System.currentTimeMillis();
+        windowRequests = 0;
+        requestRate = 0;
+    }
+
+    private void roll(long now) {
+        long elapsed = now - windowStart;
+        if (elapsed >= window) {
+            requestRate = windowRequests * 1000.0 / elapsed;
+            windowStart = now;
+            windowRequests = 0;
+        }
+    }
+
+    /**
+     * @return the load of the entries of {@code service} after {@code start} and before or equal
+     *         to {@code end}, and of the requests for them. The keys are counted from the index
+     *         alone; only up to {@link #SIZE_SAMPLES} values, spread evenly over them, are read
+     *         to estimate the bytes and where they lie.
+     */
+    public Load getLoad(DonutHashTableService service, KeyId start, KeyId end) {
+        List<Weighted> points = new ArrayList<Weighted>();
+        Set<EntryKey> keys = service.getRange(start, end);
+        int n = keys.size();
+        double stride = Math.max(1.0, (double) n / SIZE_SAMPLES);
+        List<Weighted> sized = new ArrayList<Weighted>();
+        long sampledBytes = 0;
+        int index = 0;
+        double next = 0;
+        for (EntryKey key : keys) {
+            // Each kind of load counts the same towards where the range splits
+            points.add(new Weighted(key.getId().getId(), 1.0 / n));
+            if (index++ >= next) {
+                next += stride;
+                DataPair value = service.get(key);
+                long size = value == null || value.getData() == null ? 0 : value.getData().length;
+                sampledBytes += size;
+                sized.add(new Weighted(key.getId().getId(), size));
+            }
+        }
+        for (Weighted point : sized) {
+            point.weight /= sampledBytes == 0 ? 1 : sampledBytes;
+        }
+        points.addAll(sized);
+        long bytes = sized.isEmpty() ? 0 : Math.round((double) sampledBytes * n / sized.size());
+        List<Weighted> requested = new ArrayList<Weighted>();
+        synchronized (this) {
+            for (int i = 0; i < sampleCount; ++i) {
+                if (KeyIdUtil.isAfterXButBeforeOrEqualY(samples[i], start.getId(), end.getId())) {
+                    requested.add(new Weighted(samples[i], 1));
+                }
+            }
+        }
+        for (Weighted point : requested) {
+            point.weight /= requested.size();
+        }
+        points.addAll(requested);
+        return new Load(n, bytes, getRequestRate(), split(points, start, end));
+    }
+
+    /**
+     * @return the id that has half the weight of the points after it and half before or at it,
+     *         or null if that is {@code end}, which is as good as not splitting at all
+     */
+    private static KeyId split(List<Weighted> points, KeyId start, KeyId end) {
+        final long from = start.getId();
+        Collections.sort(points, new Comparator<Weighted>() {
+            public int compare(Weighted a, Weighted b) {
+                // Clockwise from start, as unsigned distances
+                long x = (a.id - from) ^ Long.MIN_VALUE;
+                long y = (b.id - from) ^ Long.MIN_VALUE;
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        double total = 0;
+        for (Weighted point : points) {
+            total += point.weight;
+        }
+        double sum = 0;
+        for (Weighted point : points) {
+            sum += point.weight;
+            // Short of the middle by no more than rounding errors
+            if (sum >= total / 2 * (1 - 1e-9)) {
+                return point.id == end.getId() ? null : new KeyId(point.id);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether {@code mine} has {@link #IMBALANCE} times as much of one kind of load as
+     *         {@code theirs}, and no less of any other
+     */
+    public static boolean isOverloaded(Load mine, Load theirs) {
+        if (theirs.getKeys() > mine.getKeys() || theirs.getBytes() > mine.getBytes()
+                || theirs.getRequestRate() > mine.getRequestRate()) {
+            return false;
+        }
+        return mine.getKeys() >= MIN_KEYS && mine.getKeys() > IMBALANCE * theirs.getKeys()
+                || mine.getBytes() >= MIN_BYTES && mine.getBytes() > IMBALANCE * theirs.getBytes()
+                || mine.getRequestRate() >= MIN_REQUEST_RATE
+                && mine.getRequestRate() > IMBALANCE * theirs.getRequestRate();
+    }
+
+    private static class Weighted {
+        final long id;
+        double     weight;
+
+        Weighted(long id, double weight) {
+            this.id = id;
+            this.weight = weight;
+        }
+    }
+
+}
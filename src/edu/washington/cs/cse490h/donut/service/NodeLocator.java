@@ -16,34 +16,108 @@
 
 package edu.washington.cs.cse490h.donut.service;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.thrift.TException;
 
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 
 import edu.washington.cs.cse490h.donut.Constants;
+import edu.washington.cs.cse490h.donut.business.ChunkedValue;
 import edu.washington.cs.cse490h.donut.business.DataPair;
 import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.Hop;
 import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Load;
+import edu.washington.cs.cse490h.donut.business.Member;
+import edu.washington.cs.cse490h.donut.business.Membership;
 import edu.washington.cs.cse490h.donut.business.Node;
 import edu.washington.cs.cse490h.donut.business.TNode;
 import edu.washington.cs.cse490h.donut.service.KeyLocator.Iface;
+import edu.washington.cs.cse490h.donut.service.application.DonutExpiringHashTableService;
 import edu.washington.cs.cse490h.donut.service.application.DonutHashTableService;
+import edu.washington.cs.cse490h.donut.service.application.DonutMerkleHashTableService;
+import edu.washington.cs.cse490h.donut.service.application.MerkleTree;
+import edu.washington.cs.cse490h.donut.util.BloomFilter;
 import edu.washington.cs.cse490h.donut.util.KeyIdUtil;
+import edu.washington.cs.cse490h.donut.util.ValueCodec;
 
 /**
  * @author alevy
  */
 public class NodeLocator implements Iface {
 
+    /**
+     * How {@link NodeLocator#findSuccessor} finds a successor it does not know of.
+     */
+    public enum Lookup {
+        /** This node asks one hop after another for the next, see {@link IterativeLookup}. */
+        ITERATIVE,
+        /** Each node forwards the lookup to the next and waits for the answer. */
+        RECURSIVE,
+        /**
+         * Answered here from the whole ring's {@link Membership}, learned by gossip, in no hops at
+         * all. As ITERATIVE when the membership is stale or disagrees with the fingers.
+         */
+        ONE_HOP,
+        /**
+         * As ITERATIVE, but asking alpha nodes at a time and going on with the first to answer,
+         * see {@link ParallelLookup}.
+         */
+        PARALLEL
+    }
+
+    /** The name of the {@link Lookup} constant to inject. */
+    public static final String          LOOKUP                      = "Lookup";
+    /** The name of the milliseconds to wait for each hop of an iterative lookup. */
+    public static final String          HOP_TIMEOUT                 = "HopTimeout";
+    /** The name of how many queries a parallel lookup has out at a time. */
+    public static final String          ALPHA                       = "Alpha";
+
+    /**
+     * How often an entry that is missing or out of date here is taken for one that is not by the
+     * summary sent with {@link #getMissingRange}. Anti-entropy repairs those later.
+     */
+    public static final double          SUMMARY_FALSE_POSITIVE_RATE = 0.001;
+
+    /**
+     * A node that moved does not move again for this many milliseconds, several rounds of
+     * rebalancing, so that it is not passed back and forth between overloaded nodes.
+     */
+    public static final long            MIGRATION_COOLDOWN          = 60000;
+
+    /**
+     * How many milliseconds the leaf hashes of a range scanned for {@link #getMerkleHashes} are
+     * reused for the levels below the root, long enough for one round of anti-entropy to walk
+     * every level of the tree.
+     */
+    public static final long            SCANNED_LEAVES_TIME         = 10000;
+
     private static Logger               LOGGER;
     private final Node                  node;
     private final LocatorClientFactory  clientFactory;
     private final DonutHashTableService service;
+    private ChunkForwarder              chunkForwarder;
+    private Lookup                      lookup                      = Lookup.ITERATIVE;
+    private long                        hopTimeout;
+    private IterativeLookup             iterativeLookup;
+    private int                         alpha                       = ParallelLookup.DEFAULT_ALPHA;
+    private ParallelLookup              parallelLookup;
+    private final LoadMonitor           loads                       = new LoadMonitor();
+    private final AtomicBoolean         migrating                   = new AtomicBoolean();
+    private volatile long               lastMigration;
+    private volatile ScannedLeaves      scannedLeaves;
 
     static {
         LOGGER = Logger.getLogger(NodeLocator.class.getName());
@@ -55,6 +129,7 @@ public class NodeLocator implements Iface {
         this.node = node;
         this.service = service;
         this.clientFactory = clientFactory;
+        this.hopTimeout = IterativeLookup.DEFAULT_HOP_TIMEOUT;
     }
 
     public TNode findSuccessor(KeyId entryId) throws TException {
@@ -66,6 +141,18 @@ public class NodeLocator implements Iface {
                     + entryId.toString() + "\"");
             return node.getSuccessor();
         }
+        if (lookup == Lookup.ONE_HOP) {
+            TNode successor = findInMembership(entryId);
+            if (successor != null) {
+                return successor;
+            }
+        }
+        if (lookup == Lookup.PARALLEL) {
+            return getParallelLookup().findSuccessor(entryId);
+        }
+        if (lookup != Lookup.RECURSIVE) {
+            return getIterativeLookup().findSuccessor(entryId);
+        }
         try {
             LOGGER.info("I am NOT the predecessor [" + printNode(this.node.getTNode()) + "]: Id \""
                     + entryId.toString() + "\" \n" + "Connecting to " + next.getPort());
@@ -77,8 +164,72 @@ public class NodeLocator implements Iface {
         }
     }
 
+    /**
+     * @return the successor of {@code entryId} by the membership, or null if it is not to be
+     *         trusted
+     */
+    private TNode findInMembership(KeyId entryId) {
+        Membership membership = node.getMembership();
+        if (membership.isStale()) {
+            return null;
+        }
+        TNode successor = membership.successor(entryId);
+        if (successor == null) {
+            return null;
+        }
+        // A finger at or after the id but before that would be the successor instead
+        TNode finger = node.closestPrecedingNode(successor.getNodeId());
+        if (!finger.equals(node.getTNode())
+                && !KeyIdUtil.isAfterXButBeforeOrEqualY(finger.getNodeId().getId(), node
+                        .getNodeId().getId(), entryId.getId() - 1)) {
+            return null;
+        }
+        return successor;
+    }
+
+    public Hop findNextHop(KeyId entryId, List<TNode> failed) throws TException {
+        return node.nextHop(entryId, failed);
+    }
+
+    public List<Member> gossip(List<Member> members, boolean pull) throws TException {
+        Membership membership = node.getMembership();
+        List<Member> answer = pull ? membership.getMembers() : membership.getRumors();
+        membership.applyAll(members);
+        return answer;
+    }
+
+    @Inject(optional = true)
+    public void setLookup(@Named(LOOKUP) Lookup lookup) {
+        this.lookup = lookup;
+    }
+
+    public Lookup getLookup() {
+        return lookup;
+    }
+
+    /**
+     * Only takes effect before the first iterative or parallel lookup.
+     */
+    @Inject(optional = true)
+    public synchronized void setHopTimeout(@Named(HOP_TIMEOUT) long hopTimeout) {
+        this.hopTimeout = hopTimeout;
+    }
+
+    /**
+     * Only takes effect before the first parallel lookup.
+     */
+    @Inject(optional = true)
+    public synchronized void setAlpha(@Named(ALPHA) int alpha) {
+        this.alpha = alpha;
+    }
+
+    public synchronized int getAlpha() {
+        return alpha;
+    }
+
     public byte[] get(EntryKey key) throws TException, DataNotFoundException {
         LOGGER.info("Get entity with id \"" + key.toString() + "\".");
+        loads.record(key.getId());
         DataPair data = service.get(key);
         if (data == null) {
             throw new DataNotFoundException();
@@ -86,24 +237,52 @@ public class NodeLocator implements Iface {
         return data.getData();
     }
 
-    public void put(EntryKey key, byte[] data) throws TException, NotResponsibleForId {
+    public DataPair getEntry(EntryKey key) throws TException, DataNotFoundException {
+        LOGGER.info("Get entry with id \"" + key.toString() + "\".");
+        DataPair data = service.get(key);
+        if (data == null) {
+            throw new DataNotFoundException();
+        }
+        return data;
+    }
+
+    public void put(EntryKey key, byte[] data, long expiresAt) throws TException,
+            NotResponsibleForId {
         if (!KeyIdUtil.isAfterXButBeforeEqualY(key.getId(), node.getPredecessor().getNodeId(), node
                 .getNodeId())) {
             LOGGER.info("Not responsible for entity with id \"" + key.toString() + "\".");
             throw new NotResponsibleForId(key.getId());
         }
+        loads.record(key.getId());
         LOGGER.info("Put \"" + data + "\" into entity with id \"" + key.toString() + "\".");
-        service.put(key, data, Constants.SUCCESSOR_LIST_SIZE);
-        TNode successor = node.getSuccessor();
-        if (!successor.equals(node.getTNode())) {
+        // The chunks of a value have to be everywhere before the entry that points at them
+        flushChunks(key, data);
+        DataPair old = service.get(key);
+        store(key, data, Constants.SUCCESSOR_LIST_SIZE, expiresAt);
+        for (TNode replica : node.getReplicas()) {
             try {
-                clientFactory.get(successor).replicatePut(key, data,
-                        Constants.SUCCESSOR_LIST_SIZE - 1);
-                clientFactory.release(successor);
+                clientFactory.get(replica).replicatePut(key, data, 0, expiresAt);
+                clientFactory.release(replica);
             } catch (RetryFailedException e) {
                 throw new TException(e);
             }
         }
+        removeChunks(key, old, data);
+    }
+
+    public void putChunk(EntryKey key, byte[] data, long expiresAt) throws TException,
+            NotResponsibleForId {
+        if (!KeyIdUtil.isAfterXButBeforeEqualY(key.getId(), node.getPredecessor().getNodeId(), node
+                .getNodeId())) {
+            LOGGER.info("Not responsible for entity with id \"" + key.toString() + "\".");
+            throw new NotResponsibleForId(key.getId());
+        }
+        loads.record(key.getId());
+        store(key, data, Constants.SUCCESSOR_LIST_SIZE, expiresAt);
+        List<TNode> replicas = node.getReplicas();
+        if (!replicas.isEmpty()) {
+            getChunkForwarder().forward(replicas, key, data, expiresAt);
+        }
     }
 
     public void remove(EntryKey key) throws TException, NotResponsibleForId {
@@ -112,27 +291,34 @@ public class NodeLocator implements Iface {
             LOGGER.info("Not responsible for entity with id \"" + key.toString() + "\".");
             throw new NotResponsibleForId(key.getId());
         }
+        loads.record(key.getId());
         LOGGER.info("Remove entity with id \"" + key.toString() + "\".");
+        // A chunk still on its way to the replicas has to get there before its remove does
+        ChunkForwarder forwarder = getChunkForwarderIfAny();
+        if (forwarder != null) {
+            forwarder.forget(key);
+        }
+        DataPair old = service.get(key);
         service.remove(key);
-        TNode successor = node.getSuccessor();
-        if (!node.getSuccessor().equals(node.getTNode())) {
+        for (TNode replica : node.getReplicas()) {
             try {
-                clientFactory.get(successor)
-                        .replicateRemove(key, Constants.SUCCESSOR_LIST_SIZE - 1);
-                clientFactory.release(successor);
+                clientFactory.get(replica).replicateRemove(key, 0);
+                clientFactory.release(replica);
             } catch (RetryFailedException e) {
                 throw new TException(e);
             }
         }
+        removeChunks(key, old, null);
     }
 
-    public void replicatePut(EntryKey key, byte[] data, int numReplicas) throws TException {
+    public void replicatePut(EntryKey key, byte[] data, int numReplicas, long expiresAt)
+            throws TException {
         LOGGER.info("Put \"" + data + "\" into entity with id \"" + key.toString() + "\".");
-        service.put(key, data, numReplicas);
+        store(key, data, numReplicas, expiresAt);
         if (numReplicas > 0) {
             TNode successor = node.getSuccessor();
             try {
-                clientFactory.get(successor).replicatePut(key, data, numReplicas - 1);
+                clientFactory.get(successor).replicatePut(key, data, numReplicas - 1, expiresAt);
                 clientFactory.release(successor);
             } catch (RetryFailedException e) {
                 throw new TException(e);
@@ -140,6 +326,15 @@ public class NodeLocator implements Iface {
         }
     }
 
+    /**
+     * Replicas pass chunks on as they come, rather than queueing them, so two nodes that are on
+     * each other's chains never wait for each other's queues.
+     */
+    public void replicatePutChunk(EntryKey key, byte[] data, int numReplicas, long expiresAt)
+            throws TException {
+        replicatePut(key, data, numReplicas, expiresAt);
+    }
+
     public void replicateRemove(EntryKey key, int numReplicas) throws TException {
         LOGGER.info("Remove entity with id \"" + key.toString() + "\".");
         service.remove(key);
@@ -154,10 +349,95 @@ public class NodeLocator implements Iface {
         }
     }
 
+    private synchronized IterativeLookup getIterativeLookup() {
+        if (iterativeLookup == null) {
+            iterativeLookup = new IterativeLookup(node, clientFactory, hopTimeout);
+        }
+        return iterativeLookup;
+    }
+
+    private synchronized ParallelLookup getParallelLookup() {
+        if (parallelLookup == null) {
+            parallelLookup = new ParallelLookup(node, clientFactory, alpha, hopTimeout);
+        }
+        return parallelLookup;
+    }
+
+    private synchronized ChunkForwarder getChunkForwarder() {
+        if (chunkForwarder == null) {
+            chunkForwarder = new ChunkForwarder(clientFactory, Constants.CHUNK_PIPELINE_DEPTH);
+        }
+        return chunkForwarder;
+    }
+
+    private synchronized ChunkForwarder getChunkForwarderIfAny() {
+        return chunkForwarder;
+    }
+
+    /**
+     * Waits for the chunks {@code data} points at, if it is the entry of a value stored in chunks.
+     */
+    private void flushChunks(EntryKey key, byte[] data) throws TException {
+        ChunkForwarder forwarder = getChunkForwarderIfAny();
+        ChunkedValue chunked = ValueCodec.decodeChunked(data);
+        if (forwarder == null || chunked == null) {
+            return;
+        }
+        List<EntryKey> chunks = new ArrayList<EntryKey>(chunked.getChunks());
+        for (int i = 0; i < chunked.getChunks(); ++i) {
+            chunks.add(DonutHashRequestService.chunkKey(key, chunked.getUpload(), i));
+        }
+        forwarder.flush(chunks);
+    }
+
+    /**
+     * Removes the chunks of a value stored in chunks once the entry pointing at them is gone or
+     * points elsewhere.
+     */
+    private void removeChunks(EntryKey key, DataPair old, byte[] replacement) throws TException,
+            NotResponsibleForId {
+        ChunkedValue chunked = old == null ? null : ValueCodec.decodeChunked(old.getData());
+        if (chunked == null
+                || (replacement != null && chunked.equals(ValueCodec.decodeChunked(replacement)))) {
+            return;
+        }
+        for (int i = 0; i < chunked.getChunks(); ++i) {
+            remove(DonutHashRequestService.chunkKey(key, chunked.getUpload(), i));
+        }
+    }
+
+    /**
+     * The hash of an entry in a summary: its key, data and expiry, so an entry whose data or expiry
+     * has changed since is missing from the summary.
+     */
+    private static long summaryHash(EntryKey key, DataPair value) {
+        return MerkleTree.hash(key, value.getData()) + value.getExpiresAt() * 0xc2b2ae3d27d4eb4fL;
+    }
+
+    /**
+     * Puts into the local store, with the expiry if the store can expire entries.
+     */
+    private void store(EntryKey key, byte[] data, int numReplicas, long expiresAt) {
+        if (expiresAt != 0 && service instanceof DonutExpiringHashTableService) {
+            ((DonutExpiringHashTableService) service).put(key, data, numReplicas, expiresAt);
+        } else {
+            service.put(key, data, numReplicas);
+        }
+    }
+
     public DonutHashTableService getService() {
         return service;
     }
 
+    /**
+     * This node is the only ring position here, so it can only be addressed by its own id.
+     */
+    public void address(KeyId nodeId) throws TException, NodeNotFoundException {
+        if (!nodeId.equals(node.getNodeId())) {
+            throw new NodeNotFoundException();
+        }
+    }
+
     /*
      * Should do nothing if connection completes. If the connection fails, then a TException is
      * thrown.
@@ -184,8 +464,7 @@ public class NodeLocator implements Iface {
                 // Copy data that belongs to me from my successor
                 try {
                     Iface successorClient = clientFactory.get(successor);
-                    copyData(successorClient, successorClient.getDataRange(n.getNodeId(), node
-                            .getNodeId()));
+                    copyMissing(successorClient, n.getNodeId(), node.getNodeId());
                     clientFactory.release(successor);
                 } catch (RetryFailedException e) {
                     throw new TException(e);
@@ -195,8 +474,7 @@ public class NodeLocator implements Iface {
             // Copy data that I should replicate from new predecessor
             try {
                 Iface predecessorClient = clientFactory.get(n);
-                copyData(predecessorClient, predecessorClient.getDataRange(node.getNodeId(), n
-                        .getNodeId()));
+                copyMissing(predecessorClient, node.getNodeId(), n.getNodeId());
                 clientFactory.release(n);
             } catch (RetryFailedException e) {
                 throw new TException(e);
@@ -206,17 +484,37 @@ public class NodeLocator implements Iface {
         return node.getSuccessorList();
     }
 
+    /**
+     * Copies the entries of (start, end] that are missing or out of date here from {@code client}.
+     * Only a summary of what is here is sent, rather than the entries that are there being fetched
+     * one by one, so a node that was only briefly away fetches little more than what it missed.
+     */
+    private void copyMissing(Iface client, KeyId start, KeyId end) throws TException {
+        Set<EntryKey> keys = service.getRange(start, end);
+        BloomFilter summary = new BloomFilter(keys.size(), SUMMARY_FALSE_POSITIVE_RATE);
+        for (EntryKey key : keys) {
+            DataPair value = service.get(key);
+            if (value != null) {
+                summary.add(summaryHash(key, value));
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(summary.serializedSize());
+        summary.writeTo(buffer);
+        copyData(client, client.getMissingRange(start, end, buffer.array()));
+    }
+
     private void copyData(Iface client, Set<EntryKey> keySet) throws TException {
-        try {
-            for (EntryKey key : keySet) {
-                byte[] data;
-                data = client.get(key);
-                service.put(key, data, Constants.SUCCESSOR_LIST_SIZE);
+        for (EntryKey key : keySet) {
+            DataPair data;
+            try {
+                data = client.getEntry(key);
+            } catch (DataNotFoundException e) {
+                // Expired, removed or handed off since the keys were listed. Anti-entropy or the
+                // next notify settles it.
+                LOGGER.info("Skipping [" + key + "], gone before it could be copied");
+                continue;
             }
-        } catch (DataNotFoundException e) {
-            // We were lied to! Die gracefully
-            LOGGER.severe("Data copying failed because of bad data. Exiting...");
-            System.exit(1);
+            store(key, data.getData(), Constants.SUCCESSOR_LIST_SIZE, data.getExpiresAt());
         }
     }
 
@@ -224,6 +522,125 @@ public class NodeLocator implements Iface {
         return node.getFingers();
     }
 
+    /**
+     * Nothing is known of the range of a node without a predecessor, which has just joined or
+     * moved, so only its requests count then.
+     */
+    public Load getLoad() throws TException {
+        TNode predecessor = node.getPredecessor();
+        if (predecessor == null) {
+            return new Load(0, 0, loads.getRequestRate(), null);
+        }
+        return loads.getLoad(service, predecessor.getNodeId(), node.getNodeId());
+    }
+
+    /**
+     * Hands what this node is responsible for to its successor, which the range falls to as soon
+     * as this node is gone, and joins again at {@code nodeId}. The data of the new range is copied
+     * from the new successor when the new predecessor notifies this node, as for any join. Refused
+     * while this node has no range of its own to hand over, moved too recently or is moving
+     * already. The entries handed over are dropped once the successor has taken them, unless
+     * another position of this process keeps them.
+     */
+    public boolean migrate(KeyId nodeId) throws TException {
+        if (!migrating.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            return migrateOnce(nodeId);
+        } finally {
+            migrating.set(false);
+        }
+    }
+
+    private boolean migrateOnce(KeyId nodeId) throws TException {
+        long now = System.currentTimeMillis();
+        TNode predecessor = node.getPredecessor();
+        List<TNode> successors = node.getSuccessorList();
+        TNode successor = successors.get(0);
+        if (lastMigration != 0 && now - lastMigration < MIGRATION_COOLDOWN
+                || predecessor == null || successor.equals(node.getTNode())
+                || nodeId.equals(node.getNodeId())) {
+            return false;
+        }
+        Map<EntryKey, byte[]> handed = new LinkedHashMap<EntryKey, byte[]>();
+        TNode newSuccessor;
+        try {
+            Iface successorClient = clientFactory.get(successor);
+            try {
+                for (EntryKey key : service.getRange(predecessor.getNodeId(), node.getNodeId())) {
+                    DataPair data = service.get(key);
+                    if (data != null) {
+                        // Its successors already have it, as they were replicas
+                        successorClient.replicatePut(key, data.getData(), 0, data.getExpiresAt());
+                        handed.put(key, data.getData());
+                    }
+                }
+                newSuccessor = successorClient.findSuccessor(nodeId);
+            } finally {
+                clientFactory.release(successor);
+            }
+        } catch (RetryFailedException e) {
+            throw new TException(e);
+        }
+        if (newSuccessor == null || newSuccessor.equals(node.getTNode())) {
+            return false;
+        }
+        boolean kept = isKeptBySibling(successors);
+        LOGGER.warning("Moving [" + Node.TNodeToString(node.getTNode()) + "] from "
+                + node.getNodeId() + " to " + nodeId);
+        node.moveTo(nodeId, newSuccessor);
+        loads.reset();
+        lastMigration = now;
+        if (!kept) {
+            for (Map.Entry<EntryKey, byte[]> entry : handed.entrySet()) {
+                // Unless it was written again since it was handed over
+                DataPair data = service.get(entry.getKey());
+                if (data != null && Arrays.equals(entry.getValue(), data.getData())) {
+                    service.remove(entry.getKey());
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether another position of this process is the first of {@code successors}, or
+     *         one of the replicas it picks from the rest of them, so that the entries it is
+     *         responsible for stay in the store this process shares
+     */
+    private boolean isKeptBySibling(List<TNode> successors) {
+        TNode self = node.getTNode();
+        TNode owner = successors.get(0);
+        if (Node.isSameProcess(owner, self)) {
+            return true;
+        }
+        List<TNode> replicas = new ArrayList<TNode>(Constants.SUCCESSOR_LIST_SIZE);
+        for (TNode successor : successors.subList(1, successors.size())) {
+            if (replicas.size() == Constants.SUCCESSOR_LIST_SIZE) {
+                break;
+            }
+            if (successor.equals(self) || Node.isSameProcess(owner, successor)) {
+                continue;
+            }
+            if (Node.isSameProcess(self, successor)) {
+                return true;
+            }
+            boolean seen = false;
+            for (TNode replica : replicas) {
+                seen |= Node.isSameProcess(replica, successor);
+            }
+            if (!seen) {
+                replicas.add(successor);
+            }
+        }
+        return false;
+    }
+
+    public Node getNode() {
+        return node;
+    }
+
     public String printNode(TNode n) {
         if (n == null)
             return "NULL";
@@ -235,4 +652,68 @@ public class NodeLocator implements Iface {
         return service.getRange(start, end);
     }
 
+    /**
+     * @param summary
+     *            a {@link BloomFilter} of the {@link #summaryHash} of every entry in the range that
+     *            the caller has
+     */
+    public Set<EntryKey> getMissingRange(KeyId start, KeyId end, byte[] summary)
+            throws TException {
+        BloomFilter filter;
+        try {
+            filter = BloomFilter.readFrom(ByteBuffer.wrap(summary));
+        } catch (IllegalArgumentException e) {
+            throw new TException(e);
+        }
+        Set<EntryKey> missing = new TreeSet<EntryKey>();
+        for (EntryKey key : service.getRange(start, end)) {
+            DataPair value = service.get(key);
+            if (value != null && !filter.mightContain(summaryHash(key, value))) {
+                missing.add(key);
+            }
+        }
+        return missing;
+    }
+
+    public List<Long> getMerkleHashes(KeyId start, KeyId end, int level, List<Integer> positions)
+            throws TException {
+        DonutHashTableService merkleService = service;
+        if (merkleService instanceof DonutExpiringHashTableService) {
+            merkleService = ((DonutExpiringHashTableService) merkleService).getDelegate();
+        }
+        if (merkleService instanceof DonutMerkleHashTableService) {
+            return ((DonutMerkleHashTableService) merkleService).getMerkleTree().getHashes(start,
+                    end, level, positions);
+        }
+        // No tree kept up to date, so hash the whole range, as stored like a tree would. A round
+        // of anti-entropy starts at the root and then asks for every level below it, which are
+        // taken from the same scan.
+        ScannedLeaves scanned = scannedLeaves;
+        long now = System.currentTimeMillis();
+        if (level == 0 || scanned == null || !scanned.start.equals(start)
+                || !scanned.end.equals(end) || now - scanned.time > SCANNED_LEAVES_TIME) {
+            scanned = new ScannedLeaves(start, end, now, MerkleTree.getLeaves(merkleService, start,
+                    end));
+            scannedLeaves = scanned;
+        }
+        return MerkleTree.getHashes(scanned.leaves, level, positions);
+    }
+
+    /**
+     * The leaf hashes of a range, scanned from a store that keeps no Merkle tree.
+     */
+    private static class ScannedLeaves {
+        final KeyId  start;
+        final KeyId  end;
+        final long   time;
+        final long[] leaves;
+
+        ScannedLeaves(KeyId start, KeyId end, long time, long[] leaves) {
+            this.start = start;
+            this.end = end;
+            this.time = time;
+            this.leaves = leaves;
+        }
+    }
+
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.TNode;
+
+/**
+ * <p>
+ * Which node owns which range of ids, as far as this client has seen. Each range ends at its
+ * owner's id and starts at the furthest id back that a lookup has found the owner responsible
+ * for, and the ranges are kept sorted by where they end. A lookup of any id in between is then
+ * answered here without a {@code findSuccessor}.
+ * </p>
+ * <p>
+ * The ranges go stale as nodes join and leave. The caller is expected to {@link #invalidate} an
+ * owner that turns out not to be responsible or cannot be reached, and look it up again.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class OwnerCache {
+
+    public static final int                 DEFAULT_MAX_RANGES = 4096;
+
+    private final int                       maxRanges;
+    /** By the id each range ends at, which is its owner's. */
+    private final TreeMap<Long, OwnedRange> ranges             = new TreeMap<Long, OwnedRange>();
+    private long                            hits;
+    private long                            misses;
+
+    private static class OwnedRange {
+        /** Inclusive, as is the owner's id at the other end. */
+        final long  start;
+        final TNode owner;
+
+        OwnedRange(long start, TNode owner) {
+            this.start = start;
+            this.owner = owner;
+        }
+    }
+
+    public OwnerCache() {
+        this(DEFAULT_MAX_RANGES);
+    }
+
+    public OwnerCache(int maxRanges) {
+        this.maxRanges = maxRanges;
+    }
+
+    /**
+     * @return the owner of {@code id}, or null if no range known covers it
+     */
+    public synchronized TNode get(KeyId id) {
+        Map.Entry<Long, OwnedRange> entry = ranges.ceilingEntry(id.getId());
+        if (entry == null) {
+            // Only a range that wraps past the top of the key space can hold it
+            entry = ranges.firstEntry();
+        }
+        if (entry != null && covers(entry.getValue().start, entry.getKey(), id.getId())) {
+            ++hits;
+            return entry.getValue().owner;
+        }
+        ++misses;
+        return null;
+    }
+
+    /**
+     * Records that {@code owner} was found responsible for {@code id}, so it is also responsible
+     * for everything from {@code id} up to its own id. Ranges that end within that are dropped,
+     * since they can no longer be right.
+     */
+    public synchronized void put(KeyId id, TNode owner) {
+        if (owner.getNodeId() == null) {
+            return;
+        }
+        long end = owner.getNodeId().getId();
+        long start = id.getId();
+        OwnedRange known = ranges.get(end);
+        if (known != null && known.owner.equals(owner) && covers(known.start, end, start)) {
+            start = known.start;
+        }
+
+        if (start <= end) {
+            ranges.subMap(start, end).clear();
+        } else {
+            ranges.tailMap(start).clear();
+            ranges.headMap(end).clear();
+        }
+        ranges.put(end, new OwnedRange(start, owner));
+        if (ranges.size() > maxRanges) {
+            ranges.remove(ranges.firstKey().equals(end) ? ranges.lastKey() : ranges.firstKey());
+        }
+    }
+
+    /**
+     * Forgets the range of {@code owner}.
+     */
+    public synchronized void invalidate(TNode owner) {
+        if (owner.getNodeId() == null) {
+            return;
+        }
+        OwnedRange known = ranges.get(owner.getNodeId().getId());
+        if (known != null && known.owner.equals(owner)) {
+            ranges.remove(owner.getNodeId().getId());
+        }
+    }
+
+    public synchronized int size() {
+        return ranges.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return whether {@code id} is in [start, end], going clockwise from start
+     */
+    private static boolean covers(long start, long end, long id) {
+        // Unsigned comparison of the distances from start
+        return ((id - start) ^ Long.MIN_VALUE) <= ((end - start) ^ Long.MIN_VALUE);
+    }
+
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TException;
+
+import edu.washington.cs.cse490h.donut.business.Hop;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Node;
+import edu.washington.cs.cse490h.donut.business.TNode;
+
+/**
+ * <p>
+ * Finds the successor of an id the way Kademlia does, with up to alpha
+ * {@link KeyLocator.Iface#findNextHop} queries out at a time rather than the one of an
+ * {@link IterativeLookup}. They go to the nodes known closest before the id, from this node's
+ * fingers and successor list at first and then from the hops the queries answer with.
+ * </p>
+ * <p>
+ * The lookup moves on with whichever query answers first: a closer node it points at is asked
+ * next, without waiting on the others, so one slow or dead node on the way costs no more than
+ * the time the others take to answer. A query that does not answer within the hop timeout is
+ * given up on and its node passed over by the queries after it.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class ParallelLookup {
+
+    public static final int            DEFAULT_ALPHA = 3;
+
+    private final Node                 node;
+    private final LocatorClientFactory clientFactory;
+    private final int                  alpha;
+    private final long                 hopTimeout;
+    private final ExecutorService      executor;
+
+    /** A query that is out. */
+    private static class Query {
+        final TNode node;
+        final long  deadline;
+
+        Query(TNode node, long deadline) {
+            this.node = node;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * @param alpha
+     *            how many queries to have out at a time
+     * @param hopTimeout
+     *            the milliseconds to wait for each query to answer
+     */
+    public ParallelLookup(Node node, LocatorClientFactory clientFactory, int alpha,
+            long hopTimeout) {
+        if (alpha < 1) {
+            throw new IllegalArgumentException("alpha must be >= 1");
+        }
+        this.node = node;
+        this.clientFactory = clientFactory;
+        this.alpha = alpha;
+        this.hopTimeout = hopTimeout;
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ParallelLookup");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public TNode findSuccessor(KeyId entryId) throws TException {
+        TNode self = node.getTNode();
+        Hop local = node.nextHop(entryId, Collections.<TNode> emptySet());
+        if (local.isDone()) {
+            return local.getNode();
+        }
+
+        // The nodes to ask, by how far each is from the id; this node is as far as any may be
+        TreeMap<Long, TNode> candidates = new TreeMap<Long, TNode>();
+        long limit = distance(self, entryId);
+        for (TNode candidate : node.getFingers()) {
+            addCandidate(candidates, candidate, entryId, limit);
+        }
+        for (TNode candidate : node.getSuccessorList()) {
+            addCandidate(candidates, candidate, entryId, limit);
+        }
+        addCandidate(candidates, local.getNode(), entryId, limit);
+
+        Set<TNode> asked = new HashSet<TNode>();
+        asked.add(self);
+        List<TNode> failed = new ArrayList<TNode>();
+        CompletionService<Hop> completion = new ExecutorCompletionService<Hop>(executor);
+        Map<Future<Hop>, Query> queries = new HashMap<Future<Hop>, Query>();
+        try {
+            while (true) {
+                while (queries.size() < alpha && asked.size() <= IterativeLookup.MAX_HOPS) {
+                    TNode next = closest(candidates, asked);
+                    if (next == null) {
+                        break;
+                    }
+                    asked.add(next);
+                    long deadline = System.currentTimeMillis() + hopTimeout;
+                    queries.put(ask(completion, next, entryId, failed), new Query(next, deadline));
+                }
+                if (queries.isEmpty()) {
+                    throw new TException("No route to " + entryId + " after asking "
+                            + (asked.size() - 1) + " nodes");
+                }
+
+                Future<Hop> answered = completion.poll(untilFirstDeadline(queries),
+                        TimeUnit.MILLISECONDS);
+                if (answered == null) {
+                    expire(queries, failed);
+                    continue;
+                }
+                Query query = queries.remove(answered);
+                if (query == null) {
+                    // Given up on already
+                    continue;
+                }
+                Hop hop;
+                try {
+                    hop = answered.get();
+                } catch (ExecutionException e) {
+                    failed.add(query.node);
+                    continue;
+                }
+                if (hop == null || hop.getNode() == null) {
+                    failed.add(query.node);
+                } else if (hop.isDone()) {
+                    return hop.getNode();
+                } else {
+                    addCandidate(candidates, hop.getNode(), entryId, limit);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new TException(e);
+        } finally {
+            for (Future<Hop> future : queries.keySet()) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private Future<Hop> ask(CompletionService<Hop> completion, final TNode next,
+            final KeyId entryId, List<TNode> failed) {
+        // A copy, as the query may still be sending it when more have failed
+        final List<TNode> failedCopy = new ArrayList<TNode>(failed);
+        return completion.submit(new Callable<Hop>() {
+            public Hop call() throws Exception {
+                KeyLocator.Iface client = clientFactory.get(next);
+                try {
+                    return client.findNextHop(entryId, failedCopy);
+                } finally {
+                    clientFactory.release(next);
+                }
+            }
+        });
+    }
+
+    private static long untilFirstDeadline(Map<Future<Hop>, Query> queries) {
+        long first = Long.MAX_VALUE;
+        for (Query query : queries.values()) {
+            first = Math.min(first, query.deadline);
+        }
+        return Math.max(0, first - System.currentTimeMillis());
+    }
+
+    /**
+     * Gives up on the queries that are past their deadline.
+     */
+    private static void expire(Map<Future<Hop>, Query> queries, List<TNode> failed) {
+        long now = System.currentTimeMillis();
+        for (Future<Hop> future : new ArrayList<Future<Hop>>(queries.keySet())) {
+            Query query = queries.get(future);
+            if (query.deadline <= now) {
+                future.cancel(true);
+                queries.remove(future);
+                failed.add(query.node);
+            }
+        }
+    }
+
+    /**
+     * @return the candidate closest to the id that has not been asked yet, or null if there is
+     *         none
+     */
+    private static TNode closest(TreeMap<Long, TNode> candidates, Set<TNode> asked) {
+        for (TNode candidate : candidates.values()) {
+            if (!asked.contains(candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds {@code candidate} if it is closer to the id than {@code limit}.
+     */
+    private static void addCandidate(TreeMap<Long, TNode> candidates, TNode candidate,
+            KeyId entryId, long limit) {
+        if (candidate == null || candidate.getNodeId() == null) {
+            return;
+        }
+        long distance = distance(candidate, entryId);
+        if (distance < limit) {
+            candidates.put(distance, candidate);
+        }
+    }
+
+    /**
+     * @return how far {@code n} is before {@code entryId} going clockwise, with the sign bit
+     *         flipped so that the signed order is the unsigned one. A node at the id itself is
+     *         furthest, as it precedes the id only by going all the way round.
+     */
+    private static long distance(TNode n, KeyId entryId) {
+        return (entryId.getId() - n.getNodeId().getId() - 1) ^ Long.MIN_VALUE;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+}
@@ -17,6 +17,7 @@
 package edu.washington.cs.cse490h.donut.service;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.HashMap;
 import java.util.Map;
@@ -29,24 +30,65 @@ import edu.washington.cs.cse490h.donut.service.KeyLocator;
 import edu.washington.cs.cse490h.donut.business.TNode;
 
 /**
+ * Opens at most one connection to each node at a time; {@link #get} waits for the last one to be
+ * released. Connecting and asking for the position happen outside the lock, so a node that hangs
+ * holds up only those waiting for it, and only until the timeouts.
+ * 
  * @author alevy
  */
 public class RemoteLocatorClientFactory extends AbstractRetriable<KeyLocator.Iface, TNode>
         implements LocatorClientFactory {
 
-    private Map<TNode, Socket> socketMap = new HashMap<TNode, Socket>();
+    /** Milliseconds to wait to connect to a node, and for it to answer which position it is. */
+    public static final int          DEFAULT_CONNECT_TIMEOUT = 5000;
+
+    /** Milliseconds to wait for a node to answer any other call. */
+    public static final int          DEFAULT_READ_TIMEOUT    = 60000;
+
+    private final int                connectTimeout;
+    private final int                readTimeout;
+    private final Map<TNode, Socket> socketMap               = new HashMap<TNode, Socket>();
+
+    public RemoteLocatorClientFactory() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    public RemoteLocatorClientFactory(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
 
     @Override
-    public synchronized KeyLocator.Iface tryOne(TNode node) throws Exception {
-        TProtocol protocol;
+    public KeyLocator.Iface tryOne(TNode node) throws Exception {
+        Socket socket = reserve(node);
+        try {
+            socket.connect(new InetSocketAddress(node.getName(), node.getPort()), connectTimeout);
+            socket.setSoTimeout(connectTimeout);
+            TProtocol protocol = new TBinaryProtocol(new TSocket(socket));
+            KeyLocator.Client client = new KeyLocator.Client(protocol);
+            if (node.getNodeId() != null) {
+                // The process may host several positions on the ring, of which this is one
+                client.address(node.getNodeId());
+            }
+            socket.setSoTimeout(readTimeout);
+            return client;
+        } catch (Exception e) {
+            release(node);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until no connection to {@code node} is open, and takes its place with a socket yet to
+     * be connected.
+     */
+    private synchronized Socket reserve(TNode node) throws InterruptedException {
         while (socketMap.containsKey(node)) {
             wait();
         }
-
-        Socket socket = new Socket(node.getName(), node.getPort());
+        Socket socket = new Socket();
         socketMap.put(node, socket);
-        protocol = new TBinaryProtocol(new TSocket(socket));
-        return new KeyLocator.Client(protocol);
+        return socket;
     }
 
     public synchronized void release(TNode node) {
@@ -58,6 +100,7 @@ public class RemoteLocatorClientFactory extends AbstractRetriable<KeyLocator.Ifa
         } catch (IOException e) {
             e.printStackTrace();
         }
-        notify();
+        // Those waiting may be waiting for other nodes
+        notifyAll();
     }
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service;
+
+import java.util.List;
+import java.util.Set;
+
+import org.apache.thrift.TException;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.Hop;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Load;
+import edu.washington.cs.cse490h.donut.business.Member;
+import edu.washington.cs.cse490h.donut.business.TNode;
+import edu.washington.cs.cse490h.donut.service.KeyLocator.Iface;
+
+/**
+ * One connection to a process that hosts several ring positions. Every call goes to the
+ * {@link NodeLocator} of the position the connection was last {@link #address}ed to, or of the
+ * first position if it never was.
+ * 
+ * @author jprouty
+ */
+public class VirtualNodeLocator implements Iface {
+
+    private final List<NodeLocator> locators;
+    private NodeLocator             addressed;
+
+    /**
+     * @param locators
+     *            of every position, the first position first
+     */
+    public VirtualNodeLocator(List<NodeLocator> locators) {
+        this.locators = locators;
+        this.addressed = locators.get(0);
+    }
+
+    /**
+     * Goes by the id each position has now, as a position may {@link #migrate}.
+     */
+    public void address(KeyId nodeId) throws TException, NodeNotFoundException {
+        for (NodeLocator locator : locators) {
+            if (nodeId.equals(locator.getNode().getNodeId())) {
+                addressed = locator;
+                return;
+            }
+        }
+        throw new NodeNotFoundException();
+    }
+
+    public TNode findSuccessor(KeyId entryId) throws TException {
+        return addressed.findSuccessor(entryId);
+    }
+
+    public Hop findNextHop(KeyId entryId, List<TNode> failed) throws TException {
+        return addressed.findNextHop(entryId, failed);
+    }
+
+    public List<Member> gossip(List<Member> members, boolean pull) throws TException {
+        return addressed.gossip(members, pull);
+    }
+
+    public TNode getPredecessor() throws TException, NodeNotFoundException {
+        return addressed.getPredecessor();
+    }
+
+    public void ping() throws TException {
+        addressed.ping();
+    }
+
+    public byte[] get(EntryKey key) throws TException, DataNotFoundException {
+        return addressed.get(key);
+    }
+
+    public DataPair getEntry(EntryKey key) throws TException, DataNotFoundException {
+        return addressed.getEntry(key);
+    }
+
+    public void put(EntryKey key, byte[] data, long expiresAt) throws TException,
+            NotResponsibleForId {
+        addressed.put(key, data, expiresAt);
+    }
+
+    public void replicatePut(EntryKey key, byte[] data, int numReplicas, long expiresAt)
+            throws TException {
+        addressed.replicatePut(key, data, numReplicas, expiresAt);
+    }
+
+    public void putChunk(EntryKey key, byte[] data, long expiresAt) throws TException,
+            NotResponsibleForId {
+        addressed.putChunk(key, data, expiresAt);
+    }
+
+    public void replicatePutChunk(EntryKey key, byte[] data, int numReplicas, long expiresAt)
+            throws TException {
+        addressed.replicatePutChunk(key, data, numReplicas, expiresAt);
+    }
+
+    public void remove(EntryKey key) throws TException, NotResponsibleForId {
+        addressed.remove(key);
+    }
+
+    public void replicateRemove(EntryKey key, int numReplicas) throws TException {
+        addressed.replicateRemove(key, numReplicas);
+    }
+
+    public Set<EntryKey> getDataRange(KeyId start, KeyId end) throws TException {
+        return addressed.getDataRange(start, end);
+    }
+
+    public Set<EntryKey> getMissingRange(KeyId start, KeyId end, byte[] summary)
+            throws TException {
+        return addressed.getMissingRange(start, end, summary);
+    }
+
+    public List<TNode> notify(TNode n) throws TException {
+        return addressed.notify(n);
+    }
+
+    public List<TNode> getFingers() throws TException {
+        return addressed.getFingers();
+    }
+
+    public Load getLoad() throws TException {
+        return addressed.getLoad();
+    }
+
+    public boolean migrate(KeyId nodeId) throws TException {
+        return addressed.migrate(nodeId);
+    }
+
+    public List<Long> getMerkleHashes(KeyId start, KeyId end, int level, List<Integer> positions)
+            throws TException {
+        return addressed.getMerkleHashes(start, end, level, positions);
+    }
+
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.util.BloomFilter;
+import edu.washington.cs.cse490h.donut.util.EntryKeyUtil;
+import edu.washington.cs.cse490h.donut.util.FrequencySketch;
+
+/**
+ * <p>
+ * Store that keeps at most a configured number of bytes in memory, so a heavy writer cannot run a
+ * node out of heap. Entries that do not fit are spilled to a disk tier (any other
+ * {@link DonutHashTableService}, normally a {@link DonutLogHashTableService}) and read back from it
+ * on a miss. A node never drops data it was handed, it only holds keys it owns or replicates, so
+ * every evicted entry is still its responsibility and is spilled rather than thrown away.
+ * </p>
+ * <p>
+ * Which entries stay in memory is decided by W-TinyLFU. New entries enter a small LRU window. An
+ * entry leaving the window is only admitted to the main segmented LRU (probation and protected) if
+ * a {@link FrequencySketch} says it is used more often than the entry it would push out. Scans and
+ * one-off writes therefore pass through the window without flushing out the hot keys.
+ * </p>
+ * <p>
+ * Memory is authoritative: an entry in memory hides any copy of it on disk. An entry read back from
+ * disk is clean and is simply dropped when evicted. Only entries written since they were loaded are
+ * written to disk when they leave.
+ * </p>
+ * <p>
+ * Hits in memory do not take the policy's lock. They are queued in a small lossy buffer that is
+ * replayed into the policy in batches, and a hit that finds the buffer full is not counted at all,
+ * so under load the frequencies are kept from a sample of the hits rather than every one of them.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class DonutBoundedHashTableService implements DurableHashTableService {
+
+    /** Rough per entry cost of the index, key and bookkeeping on the heap. */
+    private static final int                             ENTRY_OVERHEAD = 96;
+    private static final int                             STRIPES        = 64;
+
+    private final DonutHashTableService                  disk;
+    private final ConcurrentSkipListMap<EntryKey, Entry> memory;
+    private final Lock[]                                 locks;
+    private final Policy                                 policy;
+    private final AtomicLong                             hits           = new AtomicLong();
+    private final AtomicLong                             misses         = new AtomicLong();
+
+    /**
+     * @param disk
+     *            where entries that do not fit in memory are kept
+     * @param maxBytes
+     *            the memory budget in bytes
+     */
+    public DonutBoundedHashTableService(DonutHashTableService disk, long maxBytes) {
+        this.disk = disk;
+        this.memory = new ConcurrentSkipListMap<EntryKey, Entry>(EntryKeyUtil.COMPARATOR);
+        this.locks = new Lock[STRIPES];
+        for (int i = 0; i < STRIPES; ++i) {
+            locks[i] = new ReentrantLock();
+        }
+        this.policy = new Policy(maxBytes);
+    }
+
+    public DataPair get(EntryKey key) {
+        Entry entry = memory.get(key);
+        if (entry != null) {
+            hits.incrementAndGet();
+            policy.recordHit(entry);
+            return entry.value;
+        }
+        misses.incrementAndGet();
+
+        Lock lock = lockFor(key);
+        lock.lock();
+        try {
+            entry = memory.get(key);
+            if (entry == null) {
+                DataPair value = disk.get(key);
+                if (value == null) {
+                    return null;
+                }
+                entry = new Entry(key, value, false);
+                memory.put(key, entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+        spill(policy.onInsert(entry));
+        return entry.value;
+    }
+
+    public void put(EntryKey key, byte[] data, int numReplicas) {
+        Entry entry = new Entry(key, new DataPair(data, numReplicas), true);
+        Entry old;
+        Lock lock = lockFor(key);
+        lock.lock();
+        try {
+            old = memory.put(key, entry);
+        } finally {
+            lock.unlock();
+        }
+        if (old != null) {
+            policy.onRemove(old);
+        }
+        spill(policy.onInsert(entry));
+    }
+
+    public void remove(EntryKey key) {
+        Entry old;
+        Lock lock = lockFor(key);
+        lock.lock();
+        try {
+            old = memory.remove(key);
+            disk.remove(key);
+        } finally {
+            lock.unlock();
+        }
+        if (old != null) {
+            policy.onRemove(old);
+        }
+    }
+
+    public Set<EntryKey> getRange(KeyId start, KeyId end) {
+        Set<EntryKey> result = new LinkedHashSet<EntryKey>();
+        for (SortedMap<EntryKey, Entry> range : EntryKeyUtil.ringRange(memory, start, end)) {
+            result.addAll(range.keySet());
+        }
+        result.addAll(disk.getRange(start, end));
+        return result;
+    }
+
+    /**
+     * Writes the entries changed in memory to disk and syncs the disk tier, if it keeps what it is
+     * given. The entries stay in memory, now clean.
+     */
+    public void sync() throws IOException {
+        for (Entry entry : memory.values()) {
+            Lock lock = lockFor(entry.key);
+            lock.lock();
+            try {
+                if (entry.dirty && memory.get(entry.key) == entry) {
+                    disk.put(entry.key, entry.value.getData(), entry.value.getReplicas());
+                    entry.dirty = false;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (disk instanceof DurableHashTableService) {
+            ((DurableHashTableService) disk).sync();
+        }
+    }
+
+    /**
+     * @return the bytes currently charged against the memory budget
+     */
+    public long getMemoryBytes() {
+        return policy.getBytes();
+    }
+
+    /**
+     * @return the number of entries held in memory
+     */
+    public int getMemoryCount() {
+        return memory.size();
+    }
+
+    /**
+     * @return the fraction of gets so far that were served from memory
+     */
+    public double getHitRatio() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Moves entries the policy evicted out of memory. Dirty entries are written to disk first, so
+     * a reader always finds the entry in one tier or the other. An entry that was replaced or
+     * removed in the meantime is left alone.
+     */
+    private void spill(List<Entry> evicted) {
+        for (Entry entry : evicted) {
+            Lock lock = lockFor(entry.key);
+            lock.lock();
+            try {
+                if (memory.get(entry.key) == entry) {
+                    if (entry.dirty) {
+                        disk.put(entry.key, entry.value.getData(), entry.value.getReplicas());
+                    }
+                    memory.remove(entry.key);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private Lock lockFor(EntryKey key) {
+        return locks[(key.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    private static class Entry {
+        static final int NONE      = 0;
+        static final int WINDOW    = 1;
+        static final int PROBATION = 2;
+        static final int PROTECTED = 3;
+
+        final EntryKey   key;
+        final DataPair   value;
+        /** Only read and cleared under the key's stripe lock. */
+        boolean          dirty;
+        final int        size;
+        final long       hash;
+        int              queue     = NONE;
+        boolean          retired;
+
+        Entry(EntryKey key, DataPair value, boolean dirty) {
+            this.key = key;
+            this.value = value;
+            this.dirty = dirty;
+            this.size = ENTRY_OVERHEAD + key.getKey().length() * 2 + value.getData().length;
+            this.hash = BloomFilter.hash(key);
+        }
+    }
+
+    /**
+     * The W-TinyLFU bookkeeping. Decides which entries stay, but never touches the data itself.
+     */
+    private static class Policy {
+        private static final int                     READ_BUFFER_SIZE = 128;
+        private static final int                     DRAIN_THRESHOLD  = 32;
+
+        private final long                           windowMax;
+        private final long                           protectedMax;
+        private final long                           mainMax;
+        private final FrequencySketch                sketch;
+
+        private final LinkedHashMap<EntryKey, Entry> window    = new LinkedHashMap<EntryKey, Entry>();
+        private final LinkedHashMap<EntryKey, Entry> probation = new LinkedHashMap<EntryKey, Entry>();
+        private final LinkedHashMap<EntryKey, Entry> protect   = new LinkedHashMap<EntryKey, Entry>();
+        private long                                 windowBytes;
+        private long                                 probationBytes;
+        private long                                 protectedBytes;
+
+        /** Hits waiting to be replayed, in slots {@link #readHead} to {@link #readTail}. */
+        private final AtomicReferenceArray<Entry>    readBuffer;
+        private final AtomicLong                     readTail = new AtomicLong();
+        /** Only moved while holding {@link #lock}. */
+        private volatile long                        readHead;
+        /** Guards the queues, so a hit can skip the drain when another thread is doing it. */
+        private final Lock                           lock     = new ReentrantLock();
+
+        Policy(long maxBytes) {
+            windowMax = Math.max(maxBytes / 100, 1);
+            mainMax = maxBytes - windowMax;
+            protectedMax = mainMax * 8 / 10;
+            // Guess at the number of entries from a 1 KB average
+            sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE / 2, maxBytes / 1024));
+            readBuffer = new AtomicReferenceArray<Entry>(READ_BUFFER_SIZE);
+        }
+
+        long getBytes() {
+            lock.lock();
+            try {
+                return windowBytes + probationBytes + protectedBytes;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Queues a hit without locking, dropping it if the buffer is full or another hit got the
+         * slot first, and replays the buffer once enough hits are waiting unless another thread
+         * already is.
+         */
+        void recordHit(Entry entry) {
+            long tail = readTail.get();
+            long pending = tail - readHead;
+            if (pending < READ_BUFFER_SIZE && readTail.compareAndSet(tail, tail + 1)) {
+                readBuffer.lazySet((int) tail & (READ_BUFFER_SIZE - 1), entry);
+                ++pending;
+            }
+            if (pending >= DRAIN_THRESHOLD && lock.tryLock()) {
+                try {
+                    drainHits();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /** Replays the queued hits. The caller holds {@link #lock}. */
+        private void drainHits() {
+            long tail = readTail.get();
+            for (long i = readHead; i < tail; ++i) {
+                // A slot whose hit has not been written yet is skipped
+                Entry entry = readBuffer.getAndSet((int) i & (READ_BUFFER_SIZE - 1), null);
+                if (entry != null) {
+                    onAccess(entry);
+                }
+            }
+            readHead = tail;
+        }
+
+        private void onAccess(Entry entry) {
+            sketch.increment(entry.hash);
+            switch (entry.queue) {
+            case Entry.WINDOW:
+                window.remove(entry.key);
+                window.put(entry.key, entry);
+                break;
+            case Entry.PROBATION:
+                probation.remove(entry.key);
+                probationBytes -= entry.size;
+                protect.put(entry.key, entry);
+                protectedBytes += entry.size;
+                entry.queue = Entry.PROTECTED;
+                demoteProtected();
+                break;
+            case Entry.PROTECTED:
+                protect.remove(entry.key);
+                protect.put(entry.key, entry);
+                break;
+            default:
+                // Already on its way out
+            }
+        }
+
+        /**
+         * Adds an entry to the window.
+         * 
+         * @return the entries that have to leave memory
+         */
+        List<Entry> onInsert(Entry entry) {
+            List<Entry> evicted = new LinkedList<Entry>();
+            lock.lock();
+            try {
+                // So the hits so far count towards what gets admitted
+                drainHits();
+                if (entry.retired) {
+                    // Replaced before it was ever added
+                    return evicted;
+                }
+                sketch.increment(entry.hash);
+                window.put(entry.key, entry);
+                windowBytes += entry.size;
+                entry.queue = Entry.WINDOW;
+
+                while (windowBytes > windowMax && !window.isEmpty()) {
+                    Entry candidate = window.values().iterator().next();
+                    unlink(candidate);
+                    admit(candidate, evicted);
+                }
+                return evicted;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void onRemove(Entry entry) {
+            lock.lock();
+            try {
+                entry.retired = true;
+                unlink(entry);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Moves a candidate from the window into probation if it is worth more than what it
+         * pushes out.
+         */
+        private void admit(Entry candidate, List<Entry> evicted) {
+            if (candidate.size > mainMax) {
+                evicted.add(candidate);
+                return;
+            }
+            List<Entry> victims = new LinkedList<Entry>();
+            long freed = 0;
+            int candidateFrequency = sketch.frequency(candidate.hash);
+            Iterator<Entry> probationIt = probation.values().iterator();
+            Iterator<Entry> protectedIt = protect.values().iterator();
+            while (probationBytes + protectedBytes - freed + candidate.size > mainMax) {
+                Entry victim = probationIt.hasNext() ? probationIt.next() : protectedIt.next();
+                if (sketch.frequency(victim.hash) >= candidateFrequency) {
+                    evicted.add(candidate);
+                    return;
+                }
+                victims.add(victim);
+                freed += victim.size;
+            }
+            for (Entry victim : victims) {
+                unlink(victim);
+                evicted.add(victim);
+            }
+            probation.put(candidate.key, candidate);
+            probationBytes += candidate.size;
+            candidate.queue = Entry.PROBATION;
+        }
+
+        private void demoteProtected() {
+            while (protectedBytes > protectedMax) {
+                Entry demoted = protect.values().iterator().next();
+                protect.remove(demoted.key);
+                protectedBytes -= demoted.size;
+                probation.put(demoted.key, demoted);
+                probationBytes += demoted.size;
+                demoted.queue = Entry.PROBATION;
+            }
+        }
+
+        private void unlink(Entry entry) {
+            switch (entry.queue) {
+            case Entry.WINDOW:
+                window.remove(entry.key);
+                windowBytes -= entry.size;
+                break;
+            case Entry.PROBATION:
+                probation.remove(entry.key);
+                probationBytes -= entry.size;
+                break;
+            case Entry.PROTECTED:
+                protect.remove(entry.key);
+                protectedBytes -= entry.size;
+                break;
+            default:
+            }
+            entry.queue = Entry.NONE;
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.util.EntryKeyUtil;
+
+/**
+ * Ring ordered store that is safe to share between the Thrift worker threads and the replication
+ * calls coming in from other peers. Backed by a lock-free skip list: reads never block, and writers
+ * only contend when they touch neighbouring keys.
+ * <p>
+ * {@link #getRange} iterates weakly consistent views of the skip list. It never throws
+ * {@link java.util.ConcurrentModificationException} and never blocks writers. Every key that is
+ * present for the whole call is returned, and no key removed before the call started is returned.
+ * Keys written while the range is being read may or may not show up, which is fine for
+ * {@link edu.washington.cs.cse490h.donut.service.NodeLocator#notify} since those writes are
+ * replicated on their own.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class DonutConcurrentHashTableService extends DonutSortedHashTableService {
+
+    public DonutConcurrentHashTableService() {
+        super(new ConcurrentSkipListMap<EntryKey, DataPair>(EntryKeyUtil.COMPARATOR));
+    }
+
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.server.AbstractRunAtInterval;
+import edu.washington.cs.cse490h.donut.util.TimerWheel;
+import edu.washington.cs.cse490h.donut.util.TimerWheel.Timeout;
+
+/**
+ * <p>
+ * Wraps another store and removes entries from it once they expire. Expiry times are absolute, so
+ * every replica of an entry is handed the same one by the replication chain and drops its copy on
+ * its own, without a remove being sent down the chain.
+ * </p>
+ * <p>
+ * The expiry time is stored with the value, in a header in front of the data:
+ * </p>
+ * 
+ * <pre>
+ * MAGIC (3 bytes) | expires at (long) | data
+ * </pre>
+ * <p>
+ * so it survives a restart of a store on disk. Values that never expire are stored as they are,
+ * unless they happen to start with {@link #MAGIC}, in which case they get a header with an expiry
+ * of 0.
+ * </p>
+ * <p>
+ * Pending expirations are kept in {@link TimerWheel}s in memory, one for each stripe of keys, so a
+ * put or a remove costs O(1) whatever the TTL. They are rebuilt from the headers in the store by
+ * {@link #recover}, in the background once the store is open, so that opening a store on disk
+ * does not read all of it. An entry that has expired but not been swept yet is already hidden
+ * from {@link #get}, and from {@link #getRange} once it is scheduled.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class DonutExpiringHashTableService implements DonutHashTableService {
+
+    public static final int                        DEFAULT_EXPIRE_INTERVAL = 100;
+
+    private static final int                       STRIPES                 = 64;
+
+    private static final byte[]                    MAGIC                   = { 0x5e, 0x1d, 0x7a };
+    private static final int                       HEADER_SIZE             = MAGIC.length + 8;
+
+    private final DonutHashTableService            delegate;
+    /** Only changed with the stripe of the key held. */
+    private final Map<EntryKey, Timeout<EntryKey>> timeouts;
+    private final Stripe[]                         stripes;
+
+    private AbstractRunAtInterval                  expirer;
+
+    /** A lock and the expirations of the keys it guards. */
+    private static class Stripe {
+        final Lock                 lock = new ReentrantLock();
+        final TimerWheel<EntryKey> wheel;
+
+        Stripe(long now) {
+            this.wheel = new TimerWheel<EntryKey>(DEFAULT_EXPIRE_INTERVAL, now);
+        }
+    }
+
+    /**
+     * Opens the store without reading it. The entries already in {@code delegate} are only
+     * scheduled to expire by {@link #recover}.
+     */
+    public DonutExpiringHashTableService(DonutHashTableService delegate) {
+        this.delegate = delegate;
+        this.timeouts = new ConcurrentHashMap<EntryKey, Timeout<EntryKey>>();
+        long now = System.currentTimeMillis();
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; ++i) {
+            stripes[i] = new Stripe(now);
+        }
+    }
+
+    /**
+     * Schedules the expiry of every entry already in the store that has one and is not scheduled
+     * yet. Reads every value, so it is left to the expiration thread rather than done on opening.
+     * 
+     * @return the number of entries scheduled
+     */
+    public int recover() {
+        int scheduled = 0;
+        for (EntryKey key : delegate.getRange(new KeyId(0), new KeyId(0))) {
+            Stripe stripe = stripeFor(key);
+            stripe.lock.lock();
+            try {
+                // Read under the lock, so that a put since the range was taken is not undone
+                DataPair value = delegate.get(key);
+                long expiresAt = value == null ? 0 : readExpiresAt(value.getData());
+                if (expiresAt != 0 && !timeouts.containsKey(key)) {
+                    timeouts.put(key, stripe.wheel.schedule(key, expiresAt));
+                    ++scheduled;
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return scheduled;
+    }
+
+    /**
+     * @return the entry, with {@link DataPair#getExpiresAt()} set if it expires
+     */
+    public DataPair get(EntryKey key) {
+        DataPair value = delegate.get(key);
+        if (value == null || !hasHeader(value.getData())) {
+            return value;
+        }
+        long expiresAt = readExpiresAt(value.getData());
+        if (expiresAt != 0 && expiresAt <= System.currentTimeMillis()) {
+            return null;
+        }
+        byte[] stored = value.getData();
+        byte[] data = new byte[stored.length - HEADER_SIZE];
+        System.arraycopy(stored, HEADER_SIZE, data, 0, data.length);
+        DataPair expiring = new DataPair(data, value.getReplicas());
+        expiring.setExpiresAt(expiresAt);
+        return expiring;
+    }
+
+    public void put(EntryKey key, byte[] data, int numReplicas) {
+        put(key, data, numReplicas, 0);
+    }
+
+    /**
+     * @param expiresAt
+     *            when the entry expires, in milliseconds since the epoch, or 0 for never
+     */
+    public void put(EntryKey key, byte[] data, int numReplicas, long expiresAt) {
+        Stripe stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            delegate.put(key, withHeader(data, expiresAt), numReplicas);
+            Timeout<EntryKey> old = expiresAt == 0 ? timeouts.remove(key) : timeouts.put(key,
+                    stripe.wheel.schedule(key, expiresAt));
+            if (old != null) {
+                stripe.wheel.cancel(old);
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    public void remove(EntryKey key) {
+        Stripe stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            delegate.remove(key);
+            Timeout<EntryKey> old = timeouts.remove(key);
+            if (old != null) {
+                stripe.wheel.cancel(old);
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    public Set<EntryKey> getRange(KeyId start, KeyId end) {
+        Set<EntryKey> range = delegate.getRange(start, end);
+        if (timeouts.isEmpty()) {
+            return range;
+        }
+        long now = System.currentTimeMillis();
+        for (Iterator<EntryKey> i = range.iterator(); i.hasNext();) {
+            Timeout<EntryKey> timeout = timeouts.get(i.next());
+            if (timeout != null && timeout.getDeadline() <= now) {
+                i.remove();
+            }
+        }
+        return range;
+    }
+
+    /**
+     * @return when the entry expires, in milliseconds since the epoch, or 0 for never
+     */
+    public long getExpiresAt(EntryKey key) {
+        Timeout<EntryKey> timeout = timeouts.get(key);
+        return timeout == null ? 0 : timeout.getDeadline();
+    }
+
+    /**
+     * Removes every entry that expired at or before {@code now} from the underlying store.
+     * 
+     * @return the number of entries removed
+     */
+    public int expire(long now) {
+        int removed = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                for (EntryKey key : stripe.wheel.advance(now)) {
+                    // Only if it was not put again after its timeout fired
+                    Timeout<EntryKey> timeout = timeouts.get(key);
+                    if (timeout == null || timeout.isPending()) {
+                        continue;
+                    }
+                    timeouts.remove(key);
+                    delegate.remove(key);
+                    ++removed;
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Sweeps out expired entries at the given interval (in milliseconds) on a background thread,
+     * which first {@link #recover}s the expirations of what is already in the store.
+     */
+    public void startExpiration(int interval) {
+        expirer = new AbstractRunAtInterval(interval) {
+            private boolean recovered;
+
+            @Override
+            public void runClosure() {
+                if (!recovered) {
+                    recover();
+                    recovered = true;
+                }
+                expire(System.currentTimeMillis());
+            }
+        };
+        expirer.setDaemon(true);
+        expirer.start();
+    }
+
+    public void stopExpiration() {
+        if (expirer != null) {
+            expirer.kill();
+            expirer = null;
+        }
+    }
+
+    /**
+     * @return the number of entries that are waiting to expire
+     */
+    public int getPendingCount() {
+        return timeouts.size();
+    }
+
+    public DonutHashTableService getDelegate() {
+        return delegate;
+    }
+
+    private Stripe stripeFor(EntryKey key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    /**
+     * @return {@code data} as it is stored, with a header if it expires or could be taken for one
+     *         that has a header
+     */
+    private static byte[] withHeader(byte[] data, long expiresAt) {
+        if (expiresAt == 0 && !hasHeader(data)) {
+            return data;
+        }
+        byte[] stored = new byte[HEADER_SIZE + data.length];
+        System.arraycopy(MAGIC, 0, stored, 0, MAGIC.length);
+        for (int i = 0; i < 8; ++i) {
+            stored[MAGIC.length + i] = (byte) (expiresAt >>> (56 - 8 * i));
+        }
+        System.arraycopy(data, 0, stored, HEADER_SIZE, data.length);
+        return stored;
+    }
+
+    /**
+     * @return when a stored value expires, or 0 if it has no header or never expires
+     */
+    private static long readExpiresAt(byte[] stored) {
+        if (!hasHeader(stored)) {
+            return 0;
+        }
+        long expiresAt = 0;
+        for (int i = 0; i < 8; ++i) {
+            expiresAt = (expiresAt << 8) | (stored[MAGIC.length + i] & 0xff);
+        }
+        return expiresAt;
+    }
+
+    private static boolean hasHeader(byte[] data) {
+        if (data == null || data.length < HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; ++i) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.util.EntryKeyUtil;
+import edu.washington.cs.cse490h.donut.util.LongKeyedIndex;
+
+/**
+ * In memory store on a {@link LongKeyedIndex}, so lookups work on the primitive id and string of a
+ * key instead of hashing {@link EntryKey}s. The keys are also kept sorted in ring order, as in
+ * {@link DonutSortedHashTableService}, so {@link #getRange} only touches the keys it returns.
+ * 
+ * @author jprouty
+ */
+public class DonutIndexedHashTableService implements DonutHashTableService {
+
+    private final LongKeyedIndex<DataPair> index;
+    private final SortedSet<EntryKey>      order = new TreeSet<EntryKey>(EntryKeyUtil.COMPARATOR);
+
+    public DonutIndexedHashTableService() {
+        this.index = new LongKeyedIndex<DataPair>();
+    }
+
+    public DonutIndexedHashTableService(int expectedSize) {
+        this.index = new LongKeyedIndex<DataPair>(expectedSize);
+    }
+
+    public synchronized DataPair get(EntryKey key) {
+        return index.get(key.getId().getId(), key.getKey());
+    }
+
+    public synchronized void put(EntryKey key, byte[] data, int numReplicas) {
+        if (index.put(key.getId().getId(), key.getKey(), new DataPair(data, numReplicas)) == null) {
+            order.add(key);
+        }
+    }
+
+    public synchronized void remove(EntryKey key) {
+        if (index.remove(key.getId().getId(), key.getKey()) != null) {
+            order.remove(key);
+        }
+    }
+
+    public synchronized Set<EntryKey> getRange(KeyId start, KeyId end) {
+        // Keep the ring order for callers that stream the result
+        Set<EntryKey> result = new LinkedHashSet<EntryKey>();
+        for (EntryKey[] bounds : EntryKeyUtil.ringBounds(start, end)) {
+            result.addAll(EntryKeyUtil.slice(order, bounds));
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+}
@@ -0,0 +1,637 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.server.AbstractRunAtInterval;
+import edu.washington.cs.cse490h.donut.util.EntryKeyUtil;
+
+/**
+ * <p>
+ * Durable, log structured store (in the style of Bitcask). Every put and remove is appended to the
+ * active segment of a log kept in one directory. An in memory, ring ordered index maps each key to
+ * the segment and offset of its latest record, so a read is a single positioned read.
+ * </p>
+ * <p>
+ * When the active segment grows past its maximum size it is closed and a hint file is written next
+ * to it. A hint holds only the keys and offsets of the segment, so on restart the index is rebuilt
+ * from hints without reading any values. Only a segment without a hint (the one that was active
+ * when the node went down) is scanned, and a torn record at its tail is cut off.
+ * </p>
+ * <p>
+ * Closed segments that are mostly dead records are compacted in the background: their live records
+ * are appended to the active segment, which is then closed, and only then are the old files
+ * deleted. A remove is only carried over while an older segment still holds a record it hides.
+ * </p>
+ *
+ * <pre>
+ * record: crc (int) | body length (int) | id (long) | replicas (int) | value length (int, -1 for
+ *         a remove) | key length (int) | key | value
+ * hint:   id (long) | key length (int) | key | offset (long) | record length (int) | removed (byte)
+ * </pre>
+ *
+ * @author jprouty
+ */
+public class DonutLogHashTableService implements DurableHashTableService {
+
+    private static final Logger                             LOGGER;
+
+    public static final long                                DEFAULT_MAX_SEGMENT_SIZE = 64 << 20;
+    public static final int                                 DEFAULT_COMPACT_INTERVAL = 60 * 1000;
+
+    /** Segments with less than this fraction of live bytes get compacted. */
+    private static final double                             COMPACT_THRESHOLD        = 0.5;
+
+    private static final int                                HEADER_SIZE              = 8;
+    private static final int                                BODY_FIXED_SIZE          = 20;
+    private static final Charset                            UTF8                     = Charset
+                                                                                             .forName("UTF-8");
+    private static final String                             LOG_SUFFIX               = ".log";
+    private static final String                             HINT_SUFFIX              = ".hint";
+
+    private final File                                      directory;
+    private final long                                      maxSegmentSize;
+    private final ConcurrentSkipListMap<EntryKey, Location> index;
+    private final ConcurrentHashMap<Integer, Segment>       segments;
+
+    /** Guards appends, the active segment and the live byte counts. */
+    private final Object                                    writeLock                = new Object();
+    private Segment                                         active;
+    private ByteArrayOutputStream                           activeHint;
+
+    private AbstractRunAtInterval                           compactor;
+
+    static {
+        LOGGER = Logger.getLogger(DonutLogHashTableService.class.getName());
+    }
+
+    public DonutLogHashTableService(File directory) throws IOException {
+        this(directory, DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the log in {@code directory}, creating it if needed, and rebuilds the index from it.
+     */
+    public DonutLogHashTableService(File directory, long maxSegmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create " + directory);
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+        this.index = new ConcurrentSkipListMap<EntryKey, Location>(EntryKeyUtil.COMPARATOR);
+        this.segments = new ConcurrentHashMap<Integer, Segment>();
+        recover();
+    }
+
+    public DataPair get(EntryKey key) {
+        // A concurrent compaction may delete the segment under us, in which case the index
+        // already points at the record's new home.
+        for (int attempt = 0; attempt < 3; ++attempt) {
+            Location location = index.get(key);
+            if (location == null) {
+                return null;
+            }
+            Segment segment = segments.get(location.segment);
+            if (segment == null) {
+                continue;
+            }
+            try {
+                ByteBuffer record = segment.read(location.offset, location.length);
+                record.position(HEADER_SIZE + 8);
+                int replicas = record.getInt();
+                byte[] data = new byte[record.getInt()];
+                record.position(record.position() + 4 + record.getInt(record.position()));
+                record.get(data);
+                return new DataPair(data, replicas);
+            } catch (ClosedChannelException e) {
+                continue;
+            } catch (IOException e) {
+                throw new StorageException(e);
+            }
+        }
+        throw new StorageException("Record for " + key + " keeps moving");
+    }
+
+    public void put(EntryKey key, byte[] data, int numReplicas) {
+        ByteBuffer record = encode(key, data, numReplicas);
+        synchronized (writeLock) {
+            Location location = append(key, record, false);
+            markDead(index.put(key, location));
+        }
+    }
+
+    public void remove(EntryKey key) {
+        synchronized (writeLock) {
+            if (!index.containsKey(key)) {
+                return;
+            }
+            append(key, encode(key, null, 0), true);
+            markDead(index.remove(key));
+        }
+    }
+
+    public Set<EntryKey> getRange(KeyId start, KeyId end) {
+        Set<EntryKey> result = new LinkedHashSet<EntryKey>();
+        for (SortedMap<EntryKey, Location> range : EntryKeyUtil.ringRange(index, start, end)) {
+            result.addAll(range.keySet());
+        }
+        return result;
+    }
+
+    /**
+     * Compacts the segments at the given interval (in milliseconds) on a background thread.
+     */
+    public void startCompaction(int interval) {
+        compactor = new AbstractRunAtInterval(interval) {
+            @Override
+            public void runClosure() {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    LOGGER.warning("Compaction of " + directory + " failed: " + e);
+                }
+            }
+        };
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Rewrites the live records of every closed segment that is mostly dead and deletes it.
+     */
+    public void compact() throws IOException {
+        List<Integer> ids = new ArrayList<Integer>(segments.keySet());
+        Collections.sort(ids);
+        List<Segment> compacted = new ArrayList<Segment>();
+        for (Integer id : ids) {
+            Segment segment = segments.get(id);
+            if (segment == null || segment == active) {
+                continue;
+            }
+            if (segment.size > 0 && (double) segment.liveBytes / segment.size >= COMPACT_THRESHOLD) {
+                continue;
+            }
+            compact(segment);
+            compacted.add(segment);
+        }
+        if (compacted.isEmpty()) {
+            return;
+        }
+
+        synchronized (writeLock) {
+            // What was rewritten must be on disk, with a hint, before the files it came from go
+            if (active.size > 0) {
+                int next = active.id + 1;
+                closeActive();
+                openActive(next);
+            }
+            for (Segment segment : compacted) {
+                segments.remove(segment.id);
+                segment.close();
+            }
+        }
+        for (Segment segment : compacted) {
+            segmentFile(segment.id, HINT_SUFFIX).delete();
+            segmentFile(segment.id, LOG_SUFFIX).delete();
+            LOGGER.info("Compacted segment " + segment.id + " of " + directory);
+        }
+    }
+
+    /**
+     * Appends the live records of {@code segment} to the active segment, and the removes that
+     * still hide a record of their key in an older segment.
+     */
+    private void compact(final Segment segment) throws IOException {
+        final Map<EntryKey, ByteBuffer> removes = new HashMap<EntryKey, ByteBuffer>();
+        scan(segment, new RecordVisitor() {
+            public void visit(EntryKey key, long offset, ByteBuffer record, boolean removed) {
+                synchronized (writeLock) {
+                    Location current = index.get(key);
+                    if (removed) {
+                        if (current == null) {
+                            removes.put(key, record);
+                        } else {
+                            // Put again since, so the remove no longer matters
+                            removes.remove(key);
+                        }
+                    } else if (current != null && current.segment == segment.id
+                            && current.offset == offset) {
+                        markDead(current);
+                        index.put(key, append(key, record, false));
+                    }
+                }
+            }
+        });
+        if (removes.isEmpty()) {
+            return;
+        }
+
+        final Set<EntryKey> shadowed = new HashSet<EntryKey>();
+        for (Segment older : segments.values()) {
+            if (older.id >= segment.id) {
+                continue;
+            }
+            File hint = segmentFile(older.id, HINT_SUFFIX);
+            if (!hint.exists()) {
+                shadowed.addAll(removes.keySet());
+                break;
+            }
+            readHint(hint, new HintVisitor() {
+                public void visit(EntryKey key, long offset, int length, boolean removed) {
+                    if (!removed && removes.containsKey(key)) {
+                        shadowed.add(key);
+                    }
+                }
+            });
+        }
+        synchronized (writeLock) {
+            for (EntryKey key : shadowed) {
+                if (!index.containsKey(key)) {
+                    // Kept for as long as the record it hides may be, so not to be compacted again
+                    // and again on its own
+                    ByteBuffer record = removes.get(key);
+                    append(key, record, true);
+                    active.liveBytes += record.limit();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces the active segment to disk. The closed segments already are.
+     */
+    public void sync() throws IOException {
+        synchronized (writeLock) {
+            active.force();
+        }
+    }
+
+    /**
+     * Stops the compactor, and closes the active segment so that it gets a hint file.
+     */
+    public void close() throws IOException {
+        if (compactor != null) {
+            compactor.kill();
+        }
+        synchronized (writeLock) {
+            closeActive();
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+        }
+    }
+
+    /**
+     * @return the number of segments the log is currently made of
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    private void recover() throws IOException {
+        String[] names = directory.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(LOG_SUFFIX);
+            }
+        });
+        List<Integer> ids = new ArrayList<Integer>();
+        for (String name : names) {
+            ids.add(Integer.valueOf(name.substring(0, name.length() - LOG_SUFFIX.length())));
+        }
+        Collections.sort(ids);
+
+        for (Integer id : ids) {
+            final Segment segment = new Segment(id, segmentFile(id, LOG_SUFFIX));
+            segments.put(id, segment);
+            File hintFile = segmentFile(id, HINT_SUFFIX);
+            if (hintFile.exists()) {
+                loadHint(segment, hintFile);
+            } else {
+                // The segment that was active when we went down. Rebuild its hint as we go.
+                ByteArrayOutputStream hint = new ByteArrayOutputStream();
+                final DataOutputStream hintOut = new DataOutputStream(hint);
+                long end = scan(segment, new RecordVisitor() {
+                    public void visit(EntryKey key, long offset, ByteBuffer record,
+                            boolean removed) {
+                        apply(segment, key, offset, record.limit(), removed);
+                        writeHintEntry(hintOut, key, offset, record.limit(), removed);
+                    }
+                });
+                if (end < segment.size) {
+                    LOGGER.warning("Truncating torn tail of segment " + id + " at " + end);
+                    segment.truncate(end);
+                }
+                writeHint(id, hint);
+            }
+        }
+
+        int next = ids.isEmpty() ? 1 : ids.get(ids.size() - 1) + 1;
+        openActive(next);
+    }
+
+    private void loadHint(final Segment segment, File hint) throws IOException {
+        readHint(hint, new HintVisitor() {
+            public void visit(EntryKey key, long offset, int length, boolean removed) {
+                apply(segment, key, offset, length, removed);
+            }
+        });
+    }
+
+    private static void readHint(File hint, HintVisitor visitor) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(hint)));
+        try {
+            while (true) {
+                long id;
+                try {
+                    id = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] keyBytes = new byte[in.readInt()];
+                in.readFully(keyBytes);
+                long offset = in.readLong();
+                int length = in.readInt();
+                boolean removed = in.readByte() != 0;
+                visitor.visit(new EntryKey(new KeyId(id), new String(keyBytes, UTF8)), offset,
+                        length, removed);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Replays one record into the index during recovery. Segments are replayed oldest first.
+     */
+    private void apply(Segment segment, EntryKey key, long offset, int length, boolean removed) {
+        if (removed) {
+            markDead(index.remove(key));
+        } else {
+            markDead(index.put(key, new Location(segment.id, offset, length)));
+            segment.liveBytes += length;
+        }
+    }
+
+    /**
+     * Reads every intact record of the segment in order.
+     *
+     * @return the offset just past the last intact record
+     */
+    private long scan(Segment segment, RecordVisitor visitor) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                segment.file)));
+        long offset = 0;
+        try {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int checksum;
+                int bodyLength;
+                byte[] body;
+                try {
+                    checksum = in.readInt();
+                    bodyLength = in.readInt();
+                    if (bodyLength < BODY_FIXED_SIZE
+                            || offset + HEADER_SIZE + bodyLength > segment.size) {
+                        break;
+                    }
+                    body = new byte[bodyLength];
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bodyLength);
+                record.putInt(checksum).putInt(bodyLength).put(body).flip();
+                ByteBuffer fields = ByteBuffer.wrap(body);
+                long id = fields.getLong();
+                fields.getInt();
+                boolean removed = fields.getInt() < 0;
+                byte[] keyBytes = new byte[fields.getInt()];
+                fields.get(keyBytes);
+                visitor.visit(new EntryKey(new KeyId(id), new String(keyBytes, UTF8)), offset,
+                        record, removed);
+                offset += record.limit();
+            }
+        } finally {
+            in.close();
+        }
+        return offset;
+    }
+
+    private static ByteBuffer encode(EntryKey key, byte[] data, int replicas) {
+        byte[] keyBytes = key.getKey().getBytes(UTF8);
+        int bodyLength = BODY_FIXED_SIZE + keyBytes.length + (data == null ? 0 : data.length);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bodyLength);
+        record.position(HEADER_SIZE);
+        record.putLong(key.getId().getId());
+        record.putInt(replicas);
+        record.putInt(data == null ? -1 : data.length);
+        record.putInt(keyBytes.length);
+        record.put(keyBytes);
+        if (data != null) {
+            record.put(data);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_SIZE, bodyLength);
+        record.putInt(0, (int) crc.getValue());
+        record.putInt(4, bodyLength);
+        record.rewind();
+        return record;
+    }
+
+    /**
+     * Appends an encoded record to the active segment, rolling it first if it is full. Must hold
+     * {@link #writeLock}.
+     */
+    private Location append(EntryKey key, ByteBuffer record, boolean removed) {
+        try {
+            if (active.size > 0 && active.size + record.limit() > maxSegmentSize) {
+                int next = active.id + 1;
+                closeActive();
+                openActive(next);
+            }
+            long offset = active.append(record);
+            writeHintEntry(new DataOutputStream(activeHint), key, offset, record.limit(), removed);
+            if (removed) {
+                return null;
+            }
+            active.liveBytes += record.limit();
+            return new Location(active.id, offset, record.limit());
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    private void markDead(Location location) {
+        if (location != null) {
+            Segment segment = segments.get(location.segment);
+            if (segment != null) {
+                segment.liveBytes -= location.length;
+            }
+        }
+    }
+
+    private void openActive(int id) throws IOException {
+        active = new Segment(id, segmentFile(id, LOG_SUFFIX));
+        activeHint = new ByteArrayOutputStream();
+        segments.put(id, active);
+    }
+
+    private void closeActive() throws IOException {
+        active.force();
+        writeHint(active.id, activeHint);
+    }
+
+    private void writeHint(int id, ByteArrayOutputStream hint) throws IOException {
+        File tmp = segmentFile(id, HINT_SUFFIX + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            hint.writeTo(out);
+            out.getChannel().force(true);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(segmentFile(id, HINT_SUFFIX)))
+            throw new IOException("Unable to write hint for segment " + id);
+    }
+
+    private static void writeHintEntry(DataOutputStream out, EntryKey key, long offset,
+            int length, boolean removed) {
+        try {
+            byte[] keyBytes = key.getKey().getBytes(UTF8);
+            out.writeLong(key.getId().getId());
+            out.writeInt(keyBytes.length);
+            out.write(keyBytes);
+            out.writeLong(offset);
+            out.writeInt(length);
+            out.writeByte(removed ? 1 : 0);
+        } catch (IOException e) {
+            // Writing to memory
+            throw new RuntimeException(e);
+        }
+    }
+
+    private File segmentFile(int id, String suffix) {
+        return new File(directory, String.format("%09d", id) + suffix);
+    }
+
+    private interface RecordVisitor {
+        void visit(EntryKey key, long offset, ByteBuffer record, boolean removed);
+    }
+
+    private interface HintVisitor {
+        void visit(EntryKey key, long offset, int length, boolean removed);
+    }
+
+    private static class Location {
+        final int  segment;
+        final long offset;
+        final int  length;
+
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Segment {
+        final int         id;
+        final File        file;
+        final FileChannel channel;
+        volatile long     size;
+        long              liveBytes;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.size = channel.size();
+        }
+
+        long append(ByteBuffer record) throws IOException {
+            long offset = size;
+            ByteBuffer buffer = record.duplicate();
+            buffer.rewind();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+            size += record.limit();
+            return offset;
+        }
+
+        ByteBuffer read(long offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0)
+                    throw new EOFException("Record at " + offset + " runs past segment " + id);
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        void truncate(long length) throws IOException {
+            channel.truncate(length);
+            size = length;
+        }
+
+        void force() throws IOException {
+            channel.force(true);
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,618 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Logger;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.util.EntryKeyUtil;
+
+/**
+ * <p>
+ * Log structured merge tree store for nodes that hold more data than fits in memory. Writes go to a
+ * sorted in memory memtable. A full memtable is written out as an immutable {@link SortedRun} in
+ * level 0, and runs are read through memory mapped files, each with its own Bloom filter.
+ * </p>
+ * <p>
+ * Compaction is leveled. Runs in level 0 may overlap, and once there are more than
+ * {@link #LEVEL0_MAX_RUNS} of them they are merged with the overlapping runs of level 1. Every other
+ * level holds non-overlapping runs of about {@link #TARGET_RUN_SIZE} bytes, and is allowed
+ * {@link #LEVEL_FANOUT} times the bytes of the level above it. When a level is over budget one of
+ * its runs is merged into the next level. A removed key is kept as a tombstone until it reaches the
+ * deepest level.
+ * </p>
+ * <p>
+ * Every source is sorted by {@link EntryKeyUtil#COMPARATOR}, so {@link #getRange} is a merge of the
+ * slices of the memtable and of each run that fall in the range. The list of runs in each level is
+ * kept in a MANIFEST file that is replaced atomically after every flush and compaction. The
+ * memtable itself is only written to disk when it fills up or the store is closed.
+ * </p>
+ * <p>
+ * Reads never lock: they see an immutable snapshot of the levels. Writes are serialized, and a
+ * write that fills the memtable pays for the flush and any compaction it causes.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class DonutLsmHashTableService implements DurableHashTableService {
+
+    private static final Logger                               LOGGER;
+
+    public static final long                                  DEFAULT_MEMTABLE_SIZE = 4 << 20;
+    public static final int                                   LEVEL0_MAX_RUNS       = 4;
+    public static final int                                   LEVEL_FANOUT          = 10;
+    public static final long                                  TARGET_RUN_SIZE       = 8 << 20;
+
+    private static final String                               RUN_SUFFIX            = ".run";
+    private static final String                               MANIFEST              = "MANIFEST";
+    private static final int                                  ENTRY_OVERHEAD        = 48;
+
+    private final File                                        directory;
+    private final long                                        memtableSize;
+    private final long                                        targetRunSize;
+
+    private volatile ConcurrentSkipListMap<EntryKey, DataPair> memtable;
+    private volatile List<List<SortedRun>>                    levels;
+    private long                                              memtableBytes;
+    private int                                               nextRunId;
+    private int[]                                             compactPointers       = new int[0];
+
+    static {
+        LOGGER = Logger.getLogger(DonutLsmHashTableService.class.getName());
+    }
+
+    public DonutLsmHashTableService(File directory) throws IOException {
+        this(directory, DEFAULT_MEMTABLE_SIZE, TARGET_RUN_SIZE);
+    }
+
+    /**
+     * Opens the store in {@code directory}, creating it if needed.
+     */
+    public DonutLsmHashTableService(File directory, long memtableSize, long targetRunSize)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create " + directory);
+        this.directory = directory;
+        this.memtableSize = memtableSize;
+        this.targetRunSize = targetRunSize;
+        this.memtable = new ConcurrentSkipListMap<EntryKey, DataPair>(EntryKeyUtil.COMPARATOR);
+        this.levels = new ArrayList<List<SortedRun>>();
+        this.nextRunId = 1;
+        recover();
+    }
+
+    public DataPair get(EntryKey key) {
+        DataPair value = memtable.get(key);
+        if (value == null) {
+            value = getFromRuns(levels, key);
+        }
+        return value == null || value.getData() == null ? null : value;
+    }
+
+    private static DataPair getFromRuns(List<List<SortedRun>> levels, EntryKey key) {
+        for (int level = 0; level < levels.size(); ++level) {
+            List<SortedRun> runs = levels.get(level);
+            if (level == 0) {
+                // Newest first
+                for (int i = runs.size() - 1; i >= 0; --i) {
+                    DataPair value = runs.get(i).get(key);
+                    if (value != null) {
+                        return value;
+                    }
+                }
+            } else {
+                SortedRun run = findRun(runs, key);
+                if (run != null) {
+                    DataPair value = run.get(key);
+                    if (value != null) {
+                        return value;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the run of a non-overlapping level whose key range holds {@code key}, if any
+     */
+    private static SortedRun findRun(List<SortedRun> runs, EntryKey key) {
+        int low = 0;
+        int high = runs.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            SortedRun run = runs.get(mid);
+            if (EntryKeyUtil.COMPARATOR.compare(run.getLast(), key) < 0) {
+                low = mid + 1;
+            } else if (EntryKeyUtil.COMPARATOR.compare(run.getFirst(), key) > 0) {
+                high = mid - 1;
+            } else {
+                return run;
+            }
+        }
+        return null;
+    }
+
+    public synchronized void put(EntryKey key, byte[] data, int numReplicas) {
+        write(key, new DataPair(data, numReplicas));
+    }
+
+    public synchronized void remove(EntryKey key) {
+        write(key, new DataPair(null, 0));
+    }
+
+    private void write(EntryKey key, DataPair value) {
+        memtable.put(key, value);
+        memtableBytes += ENTRY_OVERHEAD + key.getKey().length()
+                + (value.getData() == null ? 0 : value.getData().length);
+        if (memtableBytes >= memtableSize) {
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new StorageException(e);
+            }
+        }
+    }
+
+    public Set<EntryKey> getRange(KeyId start, KeyId end) {
+        // Read the memtable before the levels: a flush publishes its run before it swaps the
+        // memtable, so nothing can slip between the two
+        ConcurrentSkipListMap<EntryKey, DataPair> memtable = this.memtable;
+        List<List<SortedRun>> levels = this.levels;
+
+        Set<EntryKey> result = new LinkedHashSet<EntryKey>();
+        for (EntryKey[] bounds : EntryKeyUtil.ringBounds(start, end)) {
+            merge(result, EntryKeyUtil.slice(memtable, bounds), levels, bounds);
+        }
+        return result;
+    }
+
+    /**
+     * Adds to {@code result}, in order, the live keys between the bounds in the memtable view and
+     * every run.
+     */
+    private static void merge(Set<EntryKey> result, SortedMap<EntryKey, DataPair> memRange,
+            List<List<SortedRun>> levels, EntryKey[] bounds) {
+        PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(8, Cursor.ORDER);
+        int priority = Integer.MAX_VALUE;
+        addCursor(queue, new MapCursor(memRange.entrySet().iterator(), priority--));
+        for (int level = 0; level < levels.size(); ++level) {
+            List<SortedRun> runs = levels.get(level);
+            if (level == 0) {
+                for (int i = runs.size() - 1; i >= 0; --i) {
+                    addCursor(queue, new RunCursor(runs.get(i), bounds[0], bounds[1], priority--));
+                }
+            } else {
+                // Runs of a level never share keys, so they can share a priority
+                for (SortedRun run : runs) {
+                    addCursor(queue, new RunCursor(run, bounds[0], bounds[1], priority));
+                }
+                --priority;
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            Cursor newest = queue.poll();
+            EntryKey key = newest.key;
+            if (!newest.removed) {
+                result.add(key);
+            }
+            advance(queue, newest);
+            while (!queue.isEmpty() && EntryKeyUtil.COMPARATOR.compare(queue.peek().key, key) == 0) {
+                advance(queue, queue.poll());
+            }
+        }
+    }
+
+    private static void addCursor(PriorityQueue<Cursor> queue, Cursor cursor) {
+        if (cursor.next()) {
+            queue.add(cursor);
+        }
+    }
+
+    private static void advance(PriorityQueue<Cursor> queue, Cursor cursor) {
+        if (cursor.next()) {
+            queue.add(cursor);
+        }
+    }
+
+    /**
+     * Writes the memtable out as a level 0 run, then compacts as needed.
+     */
+    public synchronized void flush() throws IOException {
+        if (memtable.isEmpty()) {
+            return;
+        }
+        SortedRun.Writer writer = newWriter();
+        for (Map.Entry<EntryKey, DataPair> entry : memtable.entrySet()) {
+            writer.add(entry.getKey(), entry.getValue());
+        }
+        SortedRun run = writer.finish();
+
+        List<List<SortedRun>> next = copyLevels(1);
+        next.get(0).add(run);
+        publish(next);
+        memtable = new ConcurrentSkipListMap<EntryKey, DataPair>(EntryKeyUtil.COMPARATOR);
+        memtableBytes = 0;
+
+        compact();
+    }
+
+    /**
+     * Compacts until level 0 and every other level are within their budgets.
+     */
+    public synchronized void compact() throws IOException {
+        while (levels.size() > 0 && levels.get(0).size() > LEVEL0_MAX_RUNS) {
+            List<SortedRun> inputs = new ArrayList<SortedRun>(levels.get(0));
+            compactInto(1, inputs, inputs);
+        }
+        for (int level = 1; level < levels.size(); ++level) {
+            while (levelBytes(level) > maxLevelBytes(level)) {
+                List<SortedRun> runs = levels.get(level);
+                int pointer = compactPointers[level] % runs.size();
+                compactPointers[level] = pointer + 1;
+                List<SortedRun> inputs = new ArrayList<SortedRun>();
+                inputs.add(runs.get(pointer));
+                compactInto(level + 1, inputs, inputs);
+            }
+        }
+    }
+
+    /**
+     * Merges {@code inputs} (all from the level above, newest last) with the runs of
+     * {@code level} they overlap, and replaces them all with the merged runs in {@code level}.
+     */
+    private void compactInto(int level, List<SortedRun> inputs, List<SortedRun> removeFromAbove)
+            throws IOException {
+        List<List<SortedRun>> next = copyLevels(level + 1);
+        EntryKey low = null;
+        EntryKey high = null;
+        for (SortedRun run : inputs) {
+            if (run.size() == 0) {
+                continue;
+            }
+            if (low == null || EntryKeyUtil.COMPARATOR.compare(run.getFirst(), low) < 0) {
+                low = run.getFirst();
+            }
+            if (high == null || EntryKeyUtil.COMPARATOR.compare(run.getLast(), high) > 0) {
+                high = run.getLast();
+            }
+        }
+
+        List<SortedRun> overlapping = new ArrayList<SortedRun>();
+        List<SortedRun> target = next.get(level);
+        for (Iterator<SortedRun> it = target.iterator(); it.hasNext();) {
+            SortedRun run = it.next();
+            if (low != null && run.size() > 0
+                    && EntryKeyUtil.COMPARATOR.compare(run.getLast(), low) >= 0
+                    && EntryKeyUtil.COMPARATOR.compare(run.getFirst(), high) <= 0) {
+                overlapping.add(run);
+                it.remove();
+            }
+        }
+
+        boolean bottom = true;
+        for (int deeper = level + 1; deeper < next.size(); ++deeper) {
+            bottom &= next.get(deeper).isEmpty();
+        }
+
+        // Oldest first, the merge gives later cursors precedence
+        List<SortedRun> sources = new ArrayList<SortedRun>(overlapping);
+        sources.addAll(inputs);
+        List<SortedRun> outputs = mergeRuns(sources, bottom);
+
+        next.get(level - 1).removeAll(removeFromAbove);
+        target.addAll(outputs);
+        Collections.sort(target, new Comparator<SortedRun>() {
+            public int compare(SortedRun a, SortedRun b) {
+                return EntryKeyUtil.COMPARATOR.compare(a.getFirst(), b.getFirst());
+            }
+        });
+        publish(next);
+
+        for (SortedRun run : sources) {
+            run.getFile().delete();
+        }
+        LOGGER.info("Compacted " + sources.size() + " runs into " + outputs.size()
+                + " runs in level " + level + " of " + directory);
+    }
+
+    /**
+     * Merges runs into new runs of about {@link #targetRunSize} bytes. Runs later in the list win
+     * over earlier ones.
+     */
+    private List<SortedRun> mergeRuns(List<SortedRun> sources, boolean dropTombstones)
+            throws IOException {
+        PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(sources.size() + 1, Cursor.ORDER);
+        for (int i = 0; i < sources.size(); ++i) {
+            addCursor(queue, new RunCursor(sources.get(i), null, null, i));
+        }
+
+        List<SortedRun> outputs = new ArrayList<SortedRun>();
+        SortedRun.Writer writer = null;
+        try {
+            while (!queue.isEmpty()) {
+                RunCursor newest = (RunCursor) queue.poll();
+                EntryKey key = newest.key;
+                if (!(dropTombstones && newest.removed)) {
+                    if (writer == null) {
+                        writer = newWriter();
+                    }
+                    writer.add(key, newest.run.valueAt(newest.index));
+                    if (writer.getBytes() >= targetRunSize) {
+                        outputs.add(writer.finish());
+                        writer = null;
+                    }
+                }
+                advance(queue, newest);
+                while (!queue.isEmpty()
+                        && EntryKeyUtil.COMPARATOR.compare(queue.peek().key, key) == 0) {
+                    advance(queue, queue.poll());
+                }
+            }
+            if (writer != null) {
+                outputs.add(writer.finish());
+            }
+        } catch (IOException e) {
+            if (writer != null) {
+                writer.abort();
+            }
+            for (SortedRun run : outputs) {
+                run.getFile().delete();
+            }
+            throw e;
+        }
+        return outputs;
+    }
+
+    /**
+     * Flushes the memtable, as the runs on disk are all that survive a crash.
+     */
+    public void sync() throws IOException {
+        flush();
+    }
+
+    /**
+     * Flushes the memtable so that nothing is lost on restart.
+     */
+    public synchronized void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * @return the number of runs in each level
+     */
+    public synchronized List<Integer> getRunCounts() {
+        List<Integer> counts = new ArrayList<Integer>();
+        for (List<SortedRun> runs : levels) {
+            counts.add(runs.size());
+        }
+        return counts;
+    }
+
+    private long levelBytes(int level) {
+        long bytes = 0;
+        for (SortedRun run : levels.get(level)) {
+            bytes += run.getBytes();
+        }
+        return bytes;
+    }
+
+    private long maxLevelBytes(int level) {
+        long bytes = memtableSize * LEVEL0_MAX_RUNS;
+        for (int i = 1; i < level; ++i) {
+            bytes *= LEVEL_FANOUT;
+        }
+        return bytes;
+    }
+
+    private SortedRun.Writer newWriter() throws IOException {
+        int id = nextRunId++;
+        return new SortedRun.Writer(id, runFile(id));
+    }
+
+    private List<List<SortedRun>> copyLevels(int atLeast) {
+        List<List<SortedRun>> copy = new ArrayList<List<SortedRun>>();
+        for (List<SortedRun> runs : levels) {
+            copy.add(new ArrayList<SortedRun>(runs));
+        }
+        while (copy.size() < atLeast) {
+            copy.add(new ArrayList<SortedRun>());
+        }
+        return copy;
+    }
+
+    /**
+     * Makes a new set of levels durable in the MANIFEST and then visible to readers.
+     */
+    private void publish(List<List<SortedRun>> next) throws IOException {
+        File tmp = new File(directory, MANIFEST + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(fileOut, "UTF-8"));
+        out.println("next " + nextRunId);
+        for (int level = 0; level < next.size(); ++level) {
+            for (SortedRun run : next.get(level)) {
+                out.println(level + " " + run.getId());
+            }
+        }
+        out.flush();
+        fileOut.getChannel().force(true);
+        out.close();
+        if (!tmp.renameTo(new File(directory, MANIFEST)))
+            throw new IOException("Unable to replace the MANIFEST of " + directory);
+
+        if (compactPointers.length < next.size()) {
+            int[] grown = new int[next.size()];
+            System.arraycopy(compactPointers, 0, grown, 0, compactPointers.length);
+            compactPointers = grown;
+        }
+        levels = next;
+    }
+
+    private void recover() throws IOException {
+        File manifest = new File(directory, MANIFEST);
+        List<List<SortedRun>> recovered = new ArrayList<List<SortedRun>>();
+        Set<String> live = new HashSet<String>();
+        if (manifest.exists()) {
+            BufferedReader in = new BufferedReader(new FileReader(manifest));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split(" ");
+                    if (fields[0].equals("next")) {
+                        nextRunId = Integer.parseInt(fields[1]);
+                        continue;
+                    }
+                    int level = Integer.parseInt(fields[0]);
+                    int id = Integer.parseInt(fields[1]);
+                    while (recovered.size() <= level) {
+                        recovered.add(new ArrayList<SortedRun>());
+                    }
+                    recovered.get(level).add(SortedRun.open(id, runFile(id)));
+                    live.add(runFile(id).getName());
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        // Runs left behind by a flush or compaction that never made it into the MANIFEST
+        for (String name : directory.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(RUN_SUFFIX);
+            }
+        })) {
+            if (!live.contains(name)) {
+                new File(directory, name).delete();
+            }
+        }
+
+        compactPointers = new int[recovered.size()];
+        levels = recovered;
+    }
+
+    private File runFile(int id) {
+        return new File(directory, String.format("%09d", id) + RUN_SUFFIX);
+    }
+
+    /**
+     * A position in one sorted source of a merge.
+     */
+    private static abstract class Cursor {
+        static final Comparator<Cursor> ORDER = new Comparator<Cursor>() {
+                                                  public int compare(Cursor a, Cursor b) {
+                                                      int c = EntryKeyUtil.COMPARATOR.compare(
+                                                              a.key, b.key);
+                                                      if (c != 0) {
+                                                          return c;
+                                                      }
+                                                      // Higher priority (newer) first
+                                                      return a.priority > b.priority ? -1
+                                                              : a.priority == b.priority ? 0 : 1;
+                                                  }
+                                              };
+
+        final int                       priority;
+        EntryKey                        key;
+        boolean                         removed;
+
+        Cursor(int priority) {
+            this.priority = priority;
+        }
+
+        /**
+         * Moves to the next key, setting {@link #key} and {@link #removed}.
+         * 
+         * @return false when the source is exhausted
+         */
+        abstract boolean next();
+    }
+
+    private static class MapCursor extends Cursor {
+        private final Iterator<Map.Entry<EntryKey, DataPair>> iterator;
+
+        MapCursor(Iterator<Map.Entry<EntryKey, DataPair>> iterator, int priority) {
+            super(priority);
+            this.iterator = iterator;
+        }
+
+        @Override
+        boolean next() {
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            Map.Entry<EntryKey, DataPair> entry = iterator.next();
+            key = entry.getKey();
+            removed = entry.getValue().getData() == null;
+            return true;
+        }
+    }
+
+    private static class RunCursor extends Cursor {
+        final SortedRun          run;
+        private final EntryKey   high;
+        int                      index;
+
+        /**
+         * Walks the keys of {@code run} strictly between {@code low} and {@code high}, which are
+         * sentinels or <code>null</code> for unbounded.
+         */
+        RunCursor(SortedRun run, EntryKey low, EntryKey high, int priority) {
+            super(priority);
+            this.run = run;
+            this.high = high;
+            this.index = (low == null ? 0 : run.ceiling(low)) - 1;
+        }
+
+        @Override
+        boolean next() {
+            if (++index >= run.size()) {
+                return false;
+            }
+            key = run.keyAt(index);
+            if (high != null && EntryKeyUtil.COMPARATOR.compare(key, high) >= 0) {
+                index = run.size();
+                return false;
+            }
+            removed = run.isRemovedAt(index);
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+
+/**
+ * Wraps another store and keeps a {@link MerkleTree} of its contents up to date, so anti-entropy
+ * only has to scan the edges of a range. The tree is built from the store the first time it is
+ * asked for, so a node that never runs anti-entropy never reads its whole store. From then on
+ * each write reads the old value first to take it out of the tree.
+ * 
+ * @author jprouty
+ */
+public class DonutMerkleHashTableService implements DonutHashTableService {
+
+    private static final int            STRIPES = 64;
+
+    private final DonutHashTableService delegate;
+    private final Lock[]                locks;
+    private volatile MerkleTree         tree;
+
+    public DonutMerkleHashTableService(DonutHashTableService delegate) {
+        this.delegate = delegate;
+        this.locks = new Lock[STRIPES];
+        for (int i = 0; i < STRIPES; ++i) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    public DataPair get(EntryKey key) {
+        return delegate.get(key);
+    }
+
+    public void put(EntryKey key, byte[] data, int numReplicas) {
+        Lock lock = lockFor(key);
+        lock.lock();
+        try {
+            MerkleTree tree = this.tree;
+            if (tree == null) {
+                delegate.put(key, data, numReplicas);
+                return;
+            }
+            DataPair old = delegate.get(key);
+            delegate.put(key, data, numReplicas);
+            if (old != null) {
+                tree.subtract(key, old.getData());
+            }
+            tree.add(key, data);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void remove(EntryKey key) {
+        Lock lock = lockFor(key);
+        lock.lock();
+        try {
+            MerkleTree tree = this.tree;
+            if (tree == null) {
+                delegate.remove(key);
+                return;
+            }
+            DataPair old = delegate.get(key);
+            delegate.remove(key);
+            if (old != null) {
+                tree.subtract(key, old.getData());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Set<EntryKey> getRange(KeyId start, KeyId end) {
+        return delegate.getRange(start, end);
+    }
+
+    /**
+     * Builds the tree the first time it is called, holding off every write until it is done.
+     */
+    public synchronized MerkleTree getMerkleTree() {
+        if (tree == null) {
+            for (Lock lock : locks) {
+                lock.lock();
+            }
+            try {
+                tree = new MerkleTree(delegate);
+            } finally {
+                for (Lock lock : locks) {
+                    lock.unlock();
+                }
+            }
+        }
+        return tree;
+    }
+
+    public DonutHashTableService getDelegate() {
+        return delegate;
+    }
+
+    private Lock lockFor(EntryKey key) {
+        return locks[(key.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.util.EntryKeyUtil;
+
+/**
+ * Store that keeps value bytes out of the Java heap, so large nodes do not pay for them in GC
+ * pauses. Values live in chunks handed out by a {@link SlabAllocator}. The heap only holds a ring
+ * ordered index from {@link EntryKey} to chunk handle. Each chunk starts with the value length and
+ * replica count, followed by the value bytes.
+ * <p>
+ * Readers and writers of the same key are serialized by a striped lock. A chunk is only freed after
+ * its key has been pointed somewhere else under the write lock, so no reader can still be copying
+ * out of it.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class DonutOffHeapHashTableService implements DonutHashTableService {
+
+    private static final int                            HEADER_SIZE = 8;
+    private static final int                            STRIPES     = 64;
+
+    private final SlabAllocator                         allocator;
+    private final ConcurrentSkipListMap<EntryKey, Long> index;
+    private final ReadWriteLock[]                       locks;
+
+    public DonutOffHeapHashTableService() {
+        allocator = new SlabAllocator();
+        index = new ConcurrentSkipListMap<EntryKey, Long>(EntryKeyUtil.COMPARATOR);
+        locks = new ReadWriteLock[STRIPES];
+        for (int i = 0; i < STRIPES; ++i) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    public DataPair get(EntryKey key) {
+        ReadWriteLock lock = lockFor(key);
+        lock.readLock().lock();
+        try {
+            Long handle = index.get(key);
+            if (handle == null) {
+                return null;
+            }
+            ByteBuffer chunk = allocator.view(handle);
+            byte[] data = new byte[chunk.getInt()];
+            int replicas = chunk.getInt();
+            chunk.get(data);
+            return new DataPair(data, replicas);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void put(EntryKey key, byte[] data, int numReplicas) {
+        long handle = allocator.allocate(HEADER_SIZE + data.length);
+        ByteBuffer chunk = allocator.view(handle);
+        chunk.putInt(data.length);
+        chunk.putInt(numReplicas);
+        chunk.put(data);
+
+        Long old;
+        ReadWriteLock lock = lockFor(key);
+        lock.writeLock().lock();
+        try {
+            old = index.put(key, handle);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        free(old);
+    }
+
+    public void remove(EntryKey key) {
+        Long old;
+        ReadWriteLock lock = lockFor(key);
+        lock.writeLock().lock();
+        try {
+            old = index.remove(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        free(old);
+    }
+
+    public Set<EntryKey> getRange(KeyId start, KeyId end) {
+        Set<EntryKey> result = new LinkedHashSet<EntryKey>();
+        for (SortedMap<EntryKey, Long> range : EntryKeyUtil.ringRange(index, start, end)) {
+            result.addAll(range.keySet());
+        }
+        return result;
+    }
+
+    /**
+     * @return the allocator holding the values, for its occupancy and fragmentation figures
+     */
+    public SlabAllocator getAllocator() {
+        return allocator;
+    }
+
+    private void free(Long handle) {
+        if (handle != null) {
+            // Nobody can reach the chunk anymore, so reading its header is safe
+            allocator.free(handle, HEADER_SIZE + allocator.view(handle).getInt());
+        }
+    }
+
+    private ReadWriteLock lockFor(EntryKey key) {
+        return locks[(key.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+}
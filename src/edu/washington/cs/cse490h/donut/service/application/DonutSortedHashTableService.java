@@ -0,0 +1,72 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.util.EntryKeyUtil;
+
+/**
+ * In memory store that keeps its entries sorted in ring order, so {@link #getRange} only touches
+ * the keys it returns (O(log n + k)) instead of scanning the whole map.
+ * 
+ * @author jprouty
+ */
+public class DonutSortedHashTableService implements DonutHashTableService {
+
+    private final SortedMap<EntryKey, DataPair> map;
+
+    public DonutSortedHashTableService() {
+        this(new TreeMap<EntryKey, DataPair>(EntryKeyUtil.COMPARATOR));
+    }
+
+    /**
+     * @param map
+     *            an empty map sorted by {@link EntryKeyUtil#COMPARATOR}
+     */
+    public DonutSortedHashTableService(SortedMap<EntryKey, DataPair> map) {
+        this.map = map;
+    }
+
+    public DataPair get(EntryKey entryId) {
+        return map.get(entryId);
+    }
+
+    public void put(EntryKey key, byte[] data, int replicas) {
+        map.put(key, new DataPair(data, replicas));
+    }
+
+    public void remove(EntryKey entryId) {
+        map.remove(entryId);
+    }
+
+    public Set<EntryKey> getRange(KeyId start, KeyId end) {
+        // Keep the ring order for callers that stream the result
+        Set<EntryKey> result = new LinkedHashSet<EntryKey>();
+        for (SortedMap<EntryKey, DataPair> range : EntryKeyUtil.ringRange(map, start, end)) {
+            result.addAll(range.keySet());
+        }
+        return result;
+    }
+
+}
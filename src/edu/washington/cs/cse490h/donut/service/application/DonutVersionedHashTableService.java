@@ -0,0 +1,116 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.util.EntryKeyUtil;
+import edu.washington.cs.cse490h.donut.util.PersistentSortedMap;
+
+/**
+ * <p>
+ * In memory store whose every version is an immutable {@link PersistentSortedMap}. A write builds
+ * the next version from the current one, sharing all but O(log n) nodes, and swaps it in with a
+ * compare-and-set, so neither writers nor readers ever take a lock.
+ * </p>
+ * <p>
+ * A {@link #snapshot()} is just the version that is current at the time, which makes it O(1) to
+ * take and free to keep. {@link #getRange} answers from one, so a range handed to a joining node is
+ * consistent even while writes keep coming in.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class DonutVersionedHashTableService implements SnapshotHashTableService {
+
+    private final AtomicReference<PersistentSortedMap<EntryKey, DataPair>> current;
+
+    public DonutVersionedHashTableService() {
+        PersistentSortedMap<EntryKey, DataPair> empty = PersistentSortedMap
+                .empty(EntryKeyUtil.COMPARATOR);
+        this.current = new AtomicReference<PersistentSortedMap<EntryKey, DataPair>>(empty);
+    }
+
+    public DataPair get(EntryKey key) {
+        return current.get().get(key);
+    }
+
+    public void put(EntryKey key, byte[] data, int numReplicas) {
+        DataPair value = new DataPair(data, numReplicas);
+        PersistentSortedMap<EntryKey, DataPair> version;
+        do {
+            version = current.get();
+        } while (!current.compareAndSet(version, version.plus(key, value)));
+    }
+
+    public void remove(EntryKey key) {
+        PersistentSortedMap<EntryKey, DataPair> version;
+        PersistentSortedMap<EntryKey, DataPair> next;
+        do {
+            version = current.get();
+            next = version.minus(key);
+        } while (next != version && !current.compareAndSet(version, next));
+    }
+
+    public Set<EntryKey> getRange(KeyId start, KeyId end) {
+        return snapshot().getRange(start, end);
+    }
+
+    public HashTableSnapshot snapshot() {
+        return new Snapshot(current.get());
+    }
+
+    private static class Snapshot implements HashTableSnapshot {
+        private final PersistentSortedMap<EntryKey, DataPair> map;
+
+        Snapshot(PersistentSortedMap<EntryKey, DataPair> map) {
+            this.map = map;
+        }
+
+        public DataPair get(EntryKey key) {
+            return map.get(key);
+        }
+
+        public Set<EntryKey> getRange(KeyId start, KeyId end) {
+            // Keep the ring order for callers that stream the result
+            Set<EntryKey> result = new LinkedHashSet<EntryKey>();
+            for (EntryKey[] bounds : EntryKeyUtil.ringBounds(start, end)) {
+                Iterator<Map.Entry<EntryKey, DataPair>> it = map.iterator(bounds[0], bounds[1]);
+                while (it.hasNext()) {
+                    result.add(it.next().getKey());
+                }
+            }
+            return result;
+        }
+
+        public int size() {
+            return map.size();
+        }
+
+        public Iterator<Map.Entry<EntryKey, DataPair>> iterator() {
+            return map.iterator();
+        }
+    }
+
+}
@@ -0,0 +1,621 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.server.AbstractRunAtInterval;
+
+/**
+ * <p>
+ * Makes the writes to another store durable with a write-ahead log. Every put and remove is
+ * logged before it is applied, and does not return until its record is on disk, so a write that
+ * has been acknowledged survives a crash even if the store it went to was only in memory.
+ * </p>
+ * <p>
+ * Records are not forced to disk one at a time. Writers add theirs to a shared batch, and a single
+ * committer thread writes the batch and forces it with one {@link FileChannel#force}, waiting up
+ * to a commit window first for more writers to join. However many writers there are, it costs
+ * about one fsync per commit window.
+ * </p>
+ * <p>
+ * A checkpoint writes everything in the store to a checkpoint file and deletes the segments of the
+ * log it covers. On startup the checkpoint is loaded into the store and the rest of the log is
+ * replayed on top of it; a torn record at the tail of the log is cut off. A
+ * {@link DurableHashTableService} keeps what it holds itself, so for one the checkpoint only syncs
+ * the store and records where the log starts, and nothing is copied or loaded back.
+ * </p>
+ * 
+ * <pre>
+ * record:     crc of body and sequence number (int) | body length (int) | sequence number (long) |
+ *             body
+ * body:       id (long) | replicas (int) | value length (int, -1 for a remove) | key length (int) |
+ *             key | value
+ * checkpoint: first sequence number not in it (long) | record ...
+ * </pre>
+ * 
+ * @author jprouty
+ */
+public class DonutWalHashTableService implements DonutHashTableService {
+
+    private static final Logger         LOGGER;
+
+    public static final int             DEFAULT_COMMIT_WINDOW       = 2;
+    public static final int             DEFAULT_CHECKPOINT_INTERVAL = 5 * 60 * 1000;
+    public static final long            DEFAULT_MAX_SEGMENT_SIZE    = 64 << 20;
+
+    private static final int            STRIPES                     = 64;
+    private static final int            HEADER_SIZE                 = 16;
+    private static final int            BODY_FIXED_SIZE             = 20;
+    private static final Charset        UTF8                        = Charset.forName("UTF-8");
+    private static final String         SEGMENT_SUFFIX              = ".wal";
+    private static final String         CHECKPOINT                  = "checkpoint";
+
+    private final DonutHashTableService delegate;
+    private final File                  directory;
+    private final int                   commitWindow;
+    private final long                  maxSegmentSize;
+    /** Held while a key is logged and applied, so it is logged in the order it is applied. */
+    private final Lock[]                locks;
+
+    /** Guards the batch, the sequence numbers, the failure and closing. */
+    private final Object                batchLock                   = new Object();
+    private ByteArrayOutputStream       batch                       = new ByteArrayOutputStream();
+    /** The sequence number of the next record. */
+    private long                        nextSeq;
+    /** Every record before this one is on disk. */
+    private long                        durableSeq;
+    private IOException                 failure;
+    private boolean                     closed;
+    private long                        commits;
+
+    /** Guards the segment being written. */
+    private final Object                segmentLock                 = new Object();
+    private int                         activeId;
+    private FileChannel                 active;
+    private long                        activeSize;
+
+    private final Thread                committer;
+    private AbstractRunAtInterval       checkpointer;
+
+    static {
+        LOGGER = Logger.getLogger(DonutWalHashTableService.class.getName());
+    }
+
+    public DonutWalHashTableService(DonutHashTableService delegate, File directory)
+            throws IOException {
+        this(delegate, directory, DEFAULT_COMMIT_WINDOW, DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the log in {@code directory}, creating it if needed, and replays it into
+     * {@code delegate}.
+     * 
+     * @param commitWindow
+     *            how long, in milliseconds, the committer waits for more writers before it forces
+     *            a batch to disk. 0 forces each batch as soon as it has a record.
+     */
+    public DonutWalHashTableService(DonutHashTableService delegate, File directory,
+            int commitWindow, long maxSegmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create " + directory);
+        this.delegate = delegate;
+        this.directory = directory;
+        this.commitWindow = commitWindow;
+        this.maxSegmentSize = maxSegmentSize;
+        this.locks = new Lock[STRIPES];
+        for (int i = 0; i < STRIPES; ++i) {
+            locks[i] = new ReentrantLock();
+        }
+        recover();
+
+        this.committer = new Thread(new Runnable() {
+            public void run() {
+                commit();
+            }
+        }, "WalCommitter");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    public DataPair get(EntryKey key) {
+        return delegate.get(key);
+    }
+
+    public void put(EntryKey key, byte[] data, int numReplicas) {
+        long seq;
+        Lock lock = lockFor(key);
+        lock.lock();
+        try {
+            seq = log(key, data, numReplicas);
+            delegate.put(key, data, numReplicas);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(seq);
+    }
+
+    public void remove(EntryKey key) {
+        long seq;
+        Lock lock = lockFor(key);
+        lock.lock();
+        try {
+            seq = log(key, null, 0);
+            delegate.remove(key);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(seq);
+    }
+
+    public Set<EntryKey> getRange(KeyId start, KeyId end) {
+        return delegate.getRange(start, end);
+    }
+
+    /**
+     * Writes everything in the store to a new checkpoint, or syncs a store that is on disk, and
+     * deletes the segments of the log that are older than it. Writes carry on meanwhile: the
+     * checkpoint may hold some of the writes made while it is written, which are replayed on top of
+     * it again on startup to the same effect.
+     */
+    public synchronized void checkpoint() throws IOException {
+        long startSeq;
+        int firstKept;
+        // With every stripe held, every record logged so far has been applied too
+        for (Lock lock : locks) {
+            lock.lock();
+        }
+        try {
+            synchronized (batchLock) {
+                startSeq = nextSeq;
+            }
+            synchronized (segmentLock) {
+                roll();
+                firstKept = activeId;
+            }
+        } finally {
+            for (Lock lock : locks) {
+                lock.unlock();
+            }
+        }
+
+        boolean durable = delegate instanceof DurableHashTableService;
+        if (durable) {
+            ((DurableHashTableService) delegate).sync();
+        }
+        File tmp = new File(directory, CHECKPOINT + ".tmp");
+        FileOutputStream file = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            out.writeLong(startSeq);
+            if (!durable) {
+                for (EntryKey key : delegate.getRange(new KeyId(0), new KeyId(0))) {
+                    DataPair value = delegate.get(key);
+                    if (value != null) {
+                        ByteBuffer record = encode(key, value.getData(), value.getReplicas(), 0);
+                        out.write(record.array(), 0, record.limit());
+                    }
+                }
+            }
+            out.flush();
+            file.getChannel().force(true);
+        } finally {
+            file.close();
+        }
+        if (!tmp.renameTo(new File(directory, CHECKPOINT)))
+            throw new IOException("Unable to replace the checkpoint in " + directory);
+
+        for (int id : segmentIds()) {
+            if (id < firstKept) {
+                segmentFile(id).delete();
+            }
+        }
+        LOGGER.info("Checkpointed " + directory + " at record " + startSeq);
+    }
+
+    /**
+     * Checkpoints at the given interval (in milliseconds) on a background thread.
+     */
+    public void startCheckpoints(int interval) {
+        checkpointer = new AbstractRunAtInterval(interval) {
+            @Override
+            public void runClosure() {
+                try {
+                    checkpoint();
+                } catch (IOException e) {
+                    LOGGER.warning("Checkpoint of " + directory + " failed: " + e);
+                }
+            }
+        };
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    /**
+     * Stops the checkpoints, waits for the last batch to be forced and closes the log. Writes made
+     * after this fail.
+     */
+    public void close() throws IOException {
+        if (checkpointer != null) {
+            checkpointer.kill();
+        }
+        synchronized (batchLock) {
+            closed = true;
+            batchLock.notifyAll();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (segmentLock) {
+            active.close();
+        }
+    }
+
+    /**
+     * @return the number of segments the log is currently made of
+     */
+    public int getSegmentCount() {
+        return segmentIds().size();
+    }
+
+    /**
+     * @return how many times a batch has been forced to disk
+     */
+    public long getCommitCount() {
+        synchronized (batchLock) {
+            return commits;
+        }
+    }
+
+    public DonutHashTableService getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Adds a record to the batch.
+     * 
+     * @return its sequence number
+     */
+    private long log(EntryKey key, byte[] data, int replicas) {
+        ByteBuffer record = encode(key, data, replicas, -1);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_SIZE, record.limit() - HEADER_SIZE);
+        synchronized (batchLock) {
+            if (failure != null) {
+                throw new StorageException("Write-ahead log of " + directory + " failed", failure);
+            }
+            if (closed) {
+                throw new StorageException("Write-ahead log of " + directory + " is closed");
+            }
+            long seq = nextSeq++;
+            seal(record, crc, seq);
+            batch.write(record.array(), 0, record.limit());
+            batchLock.notifyAll();
+            return seq;
+        }
+    }
+
+    private void awaitDurable(long seq) {
+        synchronized (batchLock) {
+            while (durableSeq <= seq && failure == null) {
+                try {
+                    batchLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new StorageException("Interrupted waiting for the write-ahead log");
+                }
+            }
+            if (durableSeq <= seq) {
+                throw new StorageException("Write-ahead log of " + directory + " failed", failure);
+            }
+        }
+    }
+
+    /**
+     * The committer: writes and forces one batch at a time until the log is closed.
+     */
+    private void commit() {
+        while (true) {
+            synchronized (batchLock) {
+                while (batch.size() == 0 && !closed) {
+                    try {
+                        batchLock.wait();
+                    } catch (InterruptedException e) {
+                        // Only close stops the committer
+                    }
+                }
+                if (batch.size() == 0) {
+                    return;
+                }
+            }
+            if (commitWindow > 0) {
+                // Let the writers that are about to log join this batch
+                try {
+                    Thread.sleep(commitWindow);
+                } catch (InterruptedException e) {
+                    // Commit what we have
+                }
+            }
+
+            ByteArrayOutputStream full;
+            long upTo;
+            synchronized (batchLock) {
+                full = batch;
+                batch = new ByteArrayOutputStream();
+                upTo = nextSeq;
+            }
+            try {
+                synchronized (segmentLock) {
+                    if (activeSize > 0 && activeSize + full.size() > maxSegmentSize) {
+                        roll();
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(full.toByteArray());
+                    while (buffer.hasRemaining()) {
+                        active.write(buffer, activeSize + buffer.position());
+                    }
+                    activeSize += full.size();
+                    active.force(false);
+                }
+            } catch (IOException e) {
+                LOGGER.severe("Write-ahead log of " + directory + " failed: " + e);
+                synchronized (batchLock) {
+                    failure = e;
+                    batchLock.notifyAll();
+                }
+                return;
+            }
+            synchronized (batchLock) {
+                durableSeq = upTo;
+                ++commits;
+                batchLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Starts a new segment. Everything written to the old one has already been forced. Must hold
+     * {@link #segmentLock}.
+     */
+    private void roll() throws IOException {
+        active.close();
+        openActive(activeId + 1);
+    }
+
+    private void openActive(int id) throws IOException {
+        activeId = id;
+        active = new RandomAccessFile(segmentFile(id), "rw").getChannel();
+        activeSize = active.size();
+    }
+
+    private void recover() throws IOException {
+        long startSeq = 0;
+        File checkpoint = new File(directory, CHECKPOINT);
+        if (checkpoint.exists()) {
+            startSeq = loadCheckpoint(checkpoint);
+        }
+        long next = startSeq;
+        List<Integer> ids = segmentIds();
+        for (int id : ids) {
+            next = Math.max(next, replay(id, startSeq));
+        }
+        nextSeq = next;
+        durableSeq = next;
+        openActive(ids.isEmpty() ? 1 : ids.get(ids.size() - 1) + 1);
+    }
+
+    /**
+     * @return the first sequence number the checkpoint does not cover
+     */
+    private long loadCheckpoint(File checkpoint) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                checkpoint)));
+        try {
+            long startSeq = in.readLong();
+            long offset = 8;
+            while (offset < checkpoint.length()) {
+                int length = apply(in, checkpoint.length() - offset, Long.MIN_VALUE);
+                if (length < 0) {
+                    throw new IOException("Corrupt checkpoint in " + directory);
+                }
+                offset += length;
+            }
+            return startSeq;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Applies the records of a segment from {@code startSeq} on, and cuts off a torn tail.
+     * 
+     * @return the sequence number after the last record in the segment
+     */
+    private long replay(int id, long startSeq) throws IOException {
+        File file = segmentFile(id);
+        long size = file.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        long offset = 0;
+        long next = 0;
+        try {
+            while (offset < size) {
+                in.mark(HEADER_SIZE);
+                in.skipBytes(8);
+                long seq = in.readLong();
+                in.reset();
+                int length = apply(in, size - offset, startSeq);
+                if (length < 0) {
+                    break;
+                }
+                offset += length;
+                next = seq + 1;
+            }
+        } catch (EOFException e) {
+            // Torn header
+        } finally {
+            in.close();
+        }
+        if (offset < size) {
+            LOGGER.warning("Truncating torn tail of write-ahead log segment " + id + " at "
+                    + offset);
+            RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+            try {
+                truncated.setLength(offset);
+            } finally {
+                truncated.close();
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Reads one record and applies it to the store if its sequence number is at least
+     * {@code startSeq}.
+     * 
+     * @return the length of the record, or -1 if it is torn or corrupt
+     */
+    private int apply(DataInputStream in, long remaining, long startSeq) throws IOException {
+        if (remaining < HEADER_SIZE) {
+            return -1;
+        }
+        int checksum = in.readInt();
+        int bodyLength = in.readInt();
+        long seq = in.readLong();
+        if (bodyLength < BODY_FIXED_SIZE || HEADER_SIZE + (long) bodyLength > remaining) {
+            return -1;
+        }
+        byte[] body = new byte[bodyLength];
+        in.readFully(body);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        updateCrc(crc, seq);
+        if ((int) crc.getValue() != checksum) {
+            return -1;
+        }
+
+        if (seq >= startSeq) {
+            ByteBuffer fields = ByteBuffer.wrap(body);
+            long id = fields.getLong();
+            int replicas = fields.getInt();
+            int valueLength = fields.getInt();
+            byte[] keyBytes = new byte[fields.getInt()];
+            fields.get(keyBytes);
+            EntryKey key = new EntryKey(new KeyId(id), new String(keyBytes, UTF8));
+            if (valueLength < 0) {
+                delegate.remove(key);
+            } else {
+                byte[] data = new byte[valueLength];
+                fields.get(data);
+                delegate.put(key, data, replicas);
+            }
+        }
+        return HEADER_SIZE + bodyLength;
+    }
+
+    /**
+     * Encodes a record. Unless {@code seq} is given, it is left to {@link #seal} once the record
+     * has its place in the log.
+     */
+    private static ByteBuffer encode(EntryKey key, byte[] data, int replicas, long seq) {
+        byte[] keyBytes = key.getKey().getBytes(UTF8);
+        int bodyLength = BODY_FIXED_SIZE + keyBytes.length + (data == null ? 0 : data.length);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bodyLength);
+        record.position(HEADER_SIZE);
+        record.putLong(key.getId().getId());
+        record.putInt(replicas);
+        record.putInt(data == null ? -1 : data.length);
+        record.putInt(keyBytes.length);
+        record.put(keyBytes);
+        if (data != null) {
+            record.put(data);
+        }
+        record.putInt(4, bodyLength);
+        record.flip();
+        if (seq >= 0) {
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), HEADER_SIZE, bodyLength);
+            seal(record, crc, seq);
+        }
+        return record;
+    }
+
+    /**
+     * Fills in the sequence number and the checksum, given a CRC already over the body. The body is
+     * checksummed before the sequence number, so that can be done outside {@link #batchLock}.
+     */
+    private static void seal(ByteBuffer record, CRC32 bodyCrc, long seq) {
+        updateCrc(bodyCrc, seq);
+        record.putInt(0, (int) bodyCrc.getValue());
+        record.putLong(8, seq);
+    }
+
+    private static void updateCrc(CRC32 crc, long seq) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (seq >>> shift));
+        }
+    }
+
+    private List<Integer> segmentIds() {
+        String[] names = directory.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        List<Integer> ids = new ArrayList<Integer>();
+        for (String name : names) {
+            ids.add(Integer.valueOf(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private File segmentFile(int id) {
+        return new File(directory, String.format("%09d", id) + SEGMENT_SUFFIX);
+    }
+
+    private Lock lockFor(EntryKey key) {
+        return locks[(key.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import java.io.IOException;
+
+/**
+ * A {@link DonutHashTableService} that keeps its data on disk, so a write-ahead log in front of it
+ * can be cut short by syncing the store rather than copying it.
+ * 
+ * @author jprouty
+ */
+public interface DurableHashTableService extends DonutHashTableService {
+
+    /**
+     * Makes every write applied so far survive a crash.
+     */
+    void sync() throws IOException;
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import java.util.Map;
+import java.util.Set;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+
+/**
+ * A read only, point in time view of a store. It never changes, whatever is written to the store
+ * after it was taken. Iterating it walks every entry in ring order.
+ * 
+ * @author jprouty
+ */
+public interface HashTableSnapshot extends Iterable<Map.Entry<EntryKey, DataPair>> {
+
+    DataPair get(EntryKey key);
+
+    Set<EntryKey> getRange(KeyId start, KeyId end);
+
+    int size();
+
+}
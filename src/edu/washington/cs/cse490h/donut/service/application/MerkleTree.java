@@ -0,0 +1,290 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.util.BloomFilter;
+
+/**
+ * <p>
+ * Hashes of a store's contents, arranged so two replicas can find out which parts of a range they
+ * disagree on without sending the range.
+ * </p>
+ * <p>
+ * The ring is cut into {@link #BUCKETS} equal buckets of ids. For a range (start, end], the leaves
+ * are the buckets it covers, in ring order, with the first and last clipped to the range. The hash
+ * of a leaf is the sum of the hashes of its entries (key and data, but not the replica count, which
+ * differs along the replica chain), so a write updates it in O(1). Above the leaves is a binary
+ * tree: level 0 is the root, and the children of position p on one level are 2p and 2p + 1 on the
+ * next. Both sides derive the same shape from the range alone, so they can walk down it together
+ * and only look at the leaves whose hashes differ.
+ * </p>
+ * <p>
+ * A tree made with {@link #MerkleTree(DonutHashTableService)} keeps the bucket sums up to date as
+ * it is told about writes and only scans the clipped leaves. The static {@link #getHashes} scans
+ * the whole range instead, for stores that do not keep a tree.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class MerkleTree {
+
+    public static final int             LEAF_BITS   = 12;
+    public static final int             BUCKETS     = 1 << LEAF_BITS;
+
+    private static final long           BUCKET_SIZE = 1L << (64 - LEAF_BITS);
+
+    private final DonutHashTableService store;
+    private final AtomicLongArray       buckets;
+
+    /**
+     * Builds the bucket sums from everything already in {@code store}. From then on every write to
+     * the store has to be passed on to {@link #add} and {@link #subtract}.
+     */
+    public MerkleTree(DonutHashTableService store) {
+        this.store = store;
+        this.buckets = new AtomicLongArray(BUCKETS);
+        for (EntryKey key : store.getRange(new KeyId(0), new KeyId(0))) {
+            DataPair value = store.get(key);
+            if (value != null) {
+                add(key, value.getData());
+            }
+        }
+    }
+
+    public void add(EntryKey key, byte[] data) {
+        buckets.addAndGet(bucket(key.getId().getId()), hash(key, data));
+    }
+
+    public void subtract(EntryKey key, byte[] data) {
+        buckets.addAndGet(bucket(key.getId().getId()), -hash(key, data));
+    }
+
+    /**
+     * @return the hashes at the given positions of one level of the tree over (start, end]
+     */
+    public List<Long> getHashes(KeyId start, KeyId end, int level, List<Integer> positions) {
+        Range range = new Range(start.getId(), end.getId());
+        long[] leaves = new long[range.count];
+        for (int i = 0; i < range.count; ++i) {
+            if (range.isWhole(i)) {
+                leaves[i] = buckets.get(range.bucketOf(i));
+            } else {
+                leaves[i] = scan(store, range.low(i), range.high(i));
+            }
+        }
+        return select(leaves, level, positions);
+    }
+
+    /**
+     * Computes the same hashes as {@link #getHashes(KeyId, KeyId, int, List)} by scanning every
+     * entry of the range in {@code store}.
+     */
+    public static List<Long> getHashes(DonutHashTableService store, KeyId start, KeyId end,
+            int level, List<Integer> positions) {
+        return getHashes(getLeaves(store, start, end), level, positions);
+    }
+
+    /**
+     * @return the leaf hashes of the tree over (start, end], by scanning every entry of the range
+     *         in {@code store}, to be passed to {@link #getHashes(long[], int, List)} for each
+     *         level
+     */
+    public static long[] getLeaves(DonutHashTableService store, KeyId start, KeyId end) {
+        Range range = new Range(start.getId(), end.getId());
+        long[] leaves = new long[range.count];
+        for (EntryKey key : store.getRange(start, end)) {
+            DataPair value = store.get(key);
+            if (value != null) {
+                leaves[range.leafOf(key.getId().getId())] += hash(key, value.getData());
+            }
+        }
+        return leaves;
+    }
+
+    /**
+     * @return the hashes at the given positions of one level of the tree on top of {@code leaves}
+     */
+    public static List<Long> getHashes(long[] leaves, int level, List<Integer> positions) {
+        return select(leaves, level, positions);
+    }
+
+    /**
+     * @return the index of the leaf level of the tree over (start, end]
+     */
+    public static int getDepth(KeyId start, KeyId end) {
+        return depth(new Range(start.getId(), end.getId()).count);
+    }
+
+    /**
+     * @return the ids covered by a leaf of the tree over (start, end], as an exclusive lower and
+     *         inclusive upper bound, or <code>null</code> if there is no such leaf
+     */
+    public static KeyId[] getLeafRange(KeyId start, KeyId end, int leaf) {
+        Range range = new Range(start.getId(), end.getId());
+        if (leaf < 0 || leaf >= range.count) {
+            return null;
+        }
+        return new KeyId[] { new KeyId(range.low(leaf)), new KeyId(range.high(leaf)) };
+    }
+
+    /**
+     * The hash of one entry. Only the key and the data count, so copies of an entry on different
+     * replicas hash the same.
+     */
+    public static long hash(EntryKey key, byte[] data) {
+        // FNV-1a over the data, folded into the key's hash
+        long h = 0xcbf29ce484222325L;
+        for (byte b : data) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return mix(BloomFilter.hash(key) ^ h * 0x9e3779b97f4a7c15L);
+    }
+
+    private static long scan(DonutHashTableService store, long low, long high) {
+        long sum = 0;
+        for (EntryKey key : store.getRange(new KeyId(low), new KeyId(high))) {
+            DataPair value = store.get(key);
+            if (value != null) {
+                sum += hash(key, value.getData());
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Builds the tree on top of the leaves and picks out the requested hashes. Positions that are
+     * not in the tree hash to 0.
+     */
+    private static List<Long> select(long[] leaves, int level, List<Integer> positions) {
+        int depth = depth(leaves.length);
+        long[] hashes = new long[1 << depth];
+        System.arraycopy(leaves, 0, hashes, 0, leaves.length);
+        for (int d = depth; d > level; --d) {
+            long[] parents = new long[hashes.length / 2];
+            for (int i = 0; i < parents.length; ++i) {
+                parents[i] = combine(hashes[2 * i], hashes[2 * i + 1]);
+            }
+            hashes = parents;
+        }
+        List<Long> result = new ArrayList<Long>(positions.size());
+        for (int position : positions) {
+            result.add(level > depth || position < 0 || position >= hashes.length ? 0L
+                    : hashes[position]);
+        }
+        return result;
+    }
+
+    private static int depth(int leaves) {
+        int depth = 0;
+        while ((1 << depth) < leaves) {
+            ++depth;
+        }
+        return depth;
+    }
+
+    private static long combine(long left, long right) {
+        if (left == 0 && right == 0) {
+            return 0;
+        }
+        return mix(left * 0x9e3779b97f4a7c15L + right);
+    }
+
+    private static long mix(long h) {
+        // MurmurHash3 finalizer
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int bucket(long id) {
+        return (int) (id >>> (64 - LEAF_BITS));
+    }
+
+    private static long firstId(int bucket) {
+        return (long) bucket << (64 - LEAF_BITS);
+    }
+
+    /**
+     * The leaves of the tree over the ring range (start, end].
+     */
+    private static class Range {
+        final long start;
+        final long end;
+        final int  firstBucket;
+        final int  count;
+
+        Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+            if (start == end) {
+                // The whole ring, every bucket whole
+                firstBucket = 0;
+                count = BUCKETS;
+            } else {
+                firstBucket = bucket(start + 1);
+                long length = end - (start + 1);
+                if (bucket(end) == firstBucket && length >= 0 && length < BUCKET_SIZE) {
+                    count = 1;
+                } else if (bucket(end) == firstBucket) {
+                    // Goes all the way around, so the first bucket is cut in two
+                    count = BUCKETS + 1;
+                } else {
+                    count = ((bucket(end) - firstBucket) & (BUCKETS - 1)) + 1;
+                }
+            }
+        }
+
+        int bucketOf(int leaf) {
+            return (firstBucket + leaf) & (BUCKETS - 1);
+        }
+
+        long low(int leaf) {
+            return leaf == 0 && start != end ? start : firstId(bucketOf(leaf)) - 1;
+        }
+
+        long high(int leaf) {
+            return leaf == count - 1 && start != end ? end : firstId(bucketOf(leaf))
+                    + BUCKET_SIZE - 1;
+        }
+
+        boolean isWhole(int leaf) {
+            return low(leaf) == firstId(bucketOf(leaf)) - 1
+                    && high(leaf) == firstId(bucketOf(leaf)) + BUCKET_SIZE - 1;
+        }
+
+        int leafOf(long id) {
+            int leaf = (bucket(id) - firstBucket) & (BUCKETS - 1);
+            if (leaf == 0 && count > BUCKETS && id - (start + 1) < 0) {
+                // In the part of the first bucket that comes back around at the end
+                return count - 1;
+            }
+            return leaf;
+        }
+    }
+
+}
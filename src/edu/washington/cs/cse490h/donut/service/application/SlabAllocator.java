@@ -0,0 +1,249 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Hands out chunks of direct (off-heap) memory, memcached style. Chunks come in power of two size
+ * classes from {@link #MIN_CHUNK_SIZE} up to {@link #SLAB_SIZE}. Each size class carves its chunks
+ * out of {@link #SLAB_SIZE} slabs and keeps freed chunks on a free list, so they are reused by the
+ * next allocation of that class. Requests bigger than a slab get a dedicated buffer of their own.
+ * </p>
+ * <p>
+ * A chunk is named by a <code>long</code> handle so callers can index it without holding any
+ * object on the heap. Memory is never handed back to the operating system, it is only reused.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class SlabAllocator {
+
+    public static final int        MIN_CHUNK_SIZE = 64;
+    public static final int        SLAB_SIZE      = 1 << 20;
+
+    private static final int       HUGE;
+    private static final int[]     CHUNK_SIZES;
+
+    static {
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (int size = MIN_CHUNK_SIZE; size <= SLAB_SIZE; size <<= 1) {
+            sizes.add(size);
+        }
+        CHUNK_SIZES = new int[sizes.size()];
+        for (int i = 0; i < CHUNK_SIZES.length; ++i) {
+            CHUNK_SIZES[i] = sizes.get(i);
+        }
+        HUGE = CHUNK_SIZES.length;
+    }
+
+    private final List<List<ByteBuffer>> slabs;
+    private final long[][]               freeLists;
+    private final int[]                  freeCounts;
+    private final int[]                  nextOffsets;
+
+    private final List<ByteBuffer>       hugeBuffers;
+    private final List<Integer>          freeHugeSlots;
+
+    private long                         allocatedBytes;
+    private long                         usedBytes;
+    private long                         requestedBytes;
+
+    public SlabAllocator() {
+        slabs = new ArrayList<List<ByteBuffer>>(CHUNK_SIZES.length);
+        freeLists = new long[CHUNK_SIZES.length][];
+        freeCounts = new int[CHUNK_SIZES.length];
+        nextOffsets = new int[CHUNK_SIZES.length];
+        for (int i = 0; i < CHUNK_SIZES.length; ++i) {
+            slabs.add(new ArrayList<ByteBuffer>());
+            freeLists[i] = new long[16];
+            // Forces a new slab on the first allocation
+            nextOffsets[i] = SLAB_SIZE;
+        }
+        hugeBuffers = new ArrayList<ByteBuffer>();
+        freeHugeSlots = new ArrayList<Integer>();
+    }
+
+    /**
+     * Allocates a chunk that can hold at least {@code size} bytes.
+     * 
+     * @return the handle of the chunk
+     */
+    public synchronized long allocate(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("size must be >= 0");
+
+        int sizeClass = sizeClass(size);
+        requestedBytes += size;
+        if (sizeClass == HUGE) {
+            return allocateHuge(size);
+        }
+
+        int chunkSize = CHUNK_SIZES[sizeClass];
+        usedBytes += chunkSize;
+        if (freeCounts[sizeClass] > 0) {
+            return freeLists[sizeClass][--freeCounts[sizeClass]];
+        }
+
+        List<ByteBuffer> classSlabs = slabs.get(sizeClass);
+        if (nextOffsets[sizeClass] + chunkSize > SLAB_SIZE) {
+            classSlabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+            allocatedBytes += SLAB_SIZE;
+            nextOffsets[sizeClass] = 0;
+        }
+        int offset = nextOffsets[sizeClass];
+        nextOffsets[sizeClass] += chunkSize;
+        return handle(sizeClass, classSlabs.size() - 1, offset);
+    }
+
+    private long allocateHuge(int size) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        allocatedBytes += size;
+        usedBytes += size;
+        int slot;
+        if (freeHugeSlots.isEmpty()) {
+            slot = hugeBuffers.size();
+            hugeBuffers.add(buffer);
+        } else {
+            slot = freeHugeSlots.remove(freeHugeSlots.size() - 1);
+            hugeBuffers.set(slot, buffer);
+        }
+        return handle(HUGE, slot, 0);
+    }
+
+    /**
+     * Returns a chunk to its size class.
+     * 
+     * @param handle
+     *            a handle returned by {@link #allocate}
+     * @param size
+     *            the size that was asked for when the chunk was allocated
+     */
+    public synchronized void free(long handle, int size) {
+        int sizeClass = sizeClassOf(handle);
+        requestedBytes -= size;
+        if (sizeClass == HUGE) {
+            int slot = slabOf(handle);
+            int capacity = hugeBuffers.get(slot).capacity();
+            allocatedBytes -= capacity;
+            usedBytes -= capacity;
+            hugeBuffers.set(slot, null);
+            freeHugeSlots.add(slot);
+            return;
+        }
+
+        usedBytes -= CHUNK_SIZES[sizeClass];
+        long[] freeList = freeLists[sizeClass];
+        if (freeCounts[sizeClass] == freeList.length) {
+            long[] grown = new long[freeList.length * 2];
+            System.arraycopy(freeList, 0, grown, 0, freeList.length);
+            freeLists[sizeClass] = grown;
+            freeList = grown;
+        }
+        freeList[freeCounts[sizeClass]++] = handle;
+    }
+
+    /**
+     * Returns a buffer positioned at the start of the chunk and limited to its end. The buffer is
+     * private to the caller, but the memory behind it is not: callers must make sure the chunk is
+     * not freed while they use it.
+     */
+    public ByteBuffer view(long handle) {
+        int sizeClass = sizeClassOf(handle);
+        ByteBuffer slab;
+        synchronized (this) {
+            slab = sizeClass == HUGE ? hugeBuffers.get(slabOf(handle)) : slabs.get(sizeClass).get(
+                    slabOf(handle));
+        }
+        ByteBuffer view = slab.duplicate();
+        int offset = offsetOf(handle);
+        view.limit(offset + (sizeClass == HUGE ? slab.capacity() : CHUNK_SIZES[sizeClass]));
+        view.position(offset);
+        return view;
+    }
+
+    /**
+     * @return bytes of direct memory reserved by this allocator
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return bytes of the chunks that are currently handed out
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return bytes that callers asked for in the chunks that are currently handed out
+     */
+    public synchronized long getRequestedBytes() {
+        return requestedBytes;
+    }
+
+    /**
+     * @return the fraction of reserved memory that is handed out, the rest is on free lists or at
+     *         the tail of a slab
+     */
+    public synchronized double getOccupancy() {
+        return allocatedBytes == 0 ? 0 : (double) usedBytes / allocatedBytes;
+    }
+
+    /**
+     * @return the fraction of handed out memory that is lost to rounding up to a size class
+     */
+    public synchronized double getFragmentation() {
+        return usedBytes == 0 ? 0 : 1 - (double) requestedBytes / usedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SlabAllocator(allocated: " + allocatedBytes + ", used: " + usedBytes
+                + ", requested: " + requestedBytes + ")";
+    }
+
+    private static int sizeClass(int size) {
+        for (int i = 0; i < CHUNK_SIZES.length; ++i) {
+            if (size <= CHUNK_SIZES[i]) {
+                return i;
+            }
+        }
+        return HUGE;
+    }
+
+    private static long handle(int sizeClass, int slab, int offset) {
+        return ((long) sizeClass << 56) | ((long) slab << 32) | offset;
+    }
+
+    private static int sizeClassOf(long handle) {
+        return (int) (handle >>> 56);
+    }
+
+    private static int slabOf(long handle) {
+        return (int) ((handle >>> 32) & 0xffffff);
+    }
+
+    private static int offsetOf(long handle) {
+        return (int) handle;
+    }
+
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.util.BloomFilter;
+import edu.washington.cs.cse490h.donut.util.EntryKeyUtil;
+
+/**
+ * <p>
+ * An immutable file of records sorted by {@link EntryKeyUtil#COMPARATOR}, read through a
+ * {@link MappedByteBuffer}. The file ends with the offset of every record, so lookups are a binary
+ * search straight over the mapping, and with a {@link BloomFilter} of its keys, so most lookups for
+ * keys that are not in the run never touch the records at all.
+ * </p>
+ * <p>
+ * A removed key is kept as a record with no value (a tombstone), which is returned as a
+ * {@link DataPair} with <code>null</code> data.
+ * </p>
+ * 
+ * <pre>
+ * record: id (long) | key length (int) | key | replicas (int) | value length (int, -1 if removed) | value
+ * file:   records | record offsets (int each) | bloom filter | count (int) | index offset (int)
+ *         | bloom offset (int) | MAGIC (int)
+ * </pre>
+ * 
+ * @author jprouty
+ */
+public class SortedRun {
+
+    private static final int     MAGIC       = 0xd0a7105e;
+    private static final int     FOOTER_SIZE = 16;
+    private static final double  BLOOM_FPP   = 0.01;
+    private static final Charset UTF8        = Charset.forName("UTF-8");
+
+    private final int            id;
+    private final File           file;
+    private final ByteBuffer     buffer;
+    private final int            count;
+    private final int            indexOffset;
+    private final BloomFilter    bloomFilter;
+    private final EntryKey       first;
+    private final EntryKey       last;
+
+    private SortedRun(int id, File file, ByteBuffer buffer) throws IOException {
+        this.id = id;
+        this.file = file;
+        this.buffer = buffer;
+        int footer = buffer.limit() - FOOTER_SIZE;
+        if (footer < 0 || buffer.getInt(footer + 12) != MAGIC)
+            throw new IOException(file + " is not a sorted run");
+        this.count = buffer.getInt(footer);
+        this.indexOffset = buffer.getInt(footer + 4);
+        ByteBuffer bloom = buffer.duplicate();
+        bloom.position(buffer.getInt(footer + 8));
+        try {
+            this.bloomFilter = BloomFilter.readFrom(bloom);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + " has a damaged Bloom filter: " + e.getMessage());
+        }
+        this.first = count == 0 ? null : keyAt(0);
+        this.last = count == 0 ? null : keyAt(count - 1);
+    }
+
+    /**
+     * Maps a run written by a {@link Writer}.
+     */
+    public static SortedRun open(int id, File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid after the channel is closed and after the file is deleted
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    raf.length());
+            return new SortedRun(id, file, buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the size of the run's file in bytes
+     */
+    public long getBytes() {
+        return buffer.limit();
+    }
+
+    public EntryKey getFirst() {
+        return first;
+    }
+
+    public EntryKey getLast() {
+        return last;
+    }
+
+    /**
+     * @return the value of the key, a {@link DataPair} with <code>null</code> data if the run
+     *         removes it, or <code>null</code> if the run knows nothing about the key
+     */
+    public DataPair get(EntryKey key) {
+        if (count == 0 || !bloomFilter.mightContain(key)) {
+            return null;
+        }
+        int i = ceiling(key);
+        if (i < count && EntryKeyUtil.COMPARATOR.compare(keyAt(i), key) == 0) {
+            return valueAt(i);
+        }
+        return null;
+    }
+
+    /**
+     * @return the index of the first record whose key is not smaller than {@code key}, or
+     *         {@link #size()} if there is none
+     */
+    public int ceiling(EntryKey key) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (EntryKeyUtil.COMPARATOR.compare(keyAt(mid), key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public EntryKey keyAt(int i) {
+        int offset = offsetOf(i);
+        long keyId = buffer.getLong(offset);
+        byte[] key = new byte[buffer.getInt(offset + 8)];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + 12);
+        view.get(key);
+        return new EntryKey(new KeyId(keyId), new String(key, UTF8));
+    }
+
+    public boolean isRemovedAt(int i) {
+        int offset = offsetOf(i);
+        return buffer.getInt(offset + 16 + buffer.getInt(offset + 8)) < 0;
+    }
+
+    public DataPair valueAt(int i) {
+        int offset = offsetOf(i);
+        offset += 12 + buffer.getInt(offset + 8);
+        int replicas = buffer.getInt(offset);
+        int length = buffer.getInt(offset + 4);
+        if (length < 0) {
+            return new DataPair(null, replicas);
+        }
+        byte[] data = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + 8);
+        view.get(data);
+        return new DataPair(data, replicas);
+    }
+
+    private int offsetOf(int i) {
+        return buffer.getInt(indexOffset + i * 4);
+    }
+
+    @Override
+    public String toString() {
+        return "SortedRun(" + id + ", " + count + " records)";
+    }
+
+    /**
+     * Writes a run. Records must be added in {@link EntryKeyUtil#COMPARATOR} order.
+     */
+    public static class Writer {
+        private final int              id;
+        private final File             file;
+        private final FileOutputStream fileOut;
+        private final DataOutputStream out;
+        private int                    offset;
+        private int[]                  offsets = new int[1024];
+        private long[]                 hashes  = new long[1024];
+        private int                    count;
+
+        public Writer(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.fileOut = new FileOutputStream(file);
+            this.out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+        }
+
+        /**
+         * @param value
+         *            the value, with <code>null</code> data for a removed key
+         */
+        public void add(EntryKey key, DataPair value) throws IOException {
+            if (count == offsets.length) {
+                int[] grownOffsets = new int[count * 2];
+                System.arraycopy(offsets, 0, grownOffsets, 0, count);
+                offsets = grownOffsets;
+                long[] grownHashes = new long[count * 2];
+                System.arraycopy(hashes, 0, grownHashes, 0, count);
+                hashes = grownHashes;
+            }
+            offsets[count] = offset;
+            hashes[count] = BloomFilter.hash(key);
+            ++count;
+
+            byte[] keyBytes = key.getKey().getBytes(UTF8);
+            byte[] data = value.getData();
+            out.writeLong(key.getId().getId());
+            out.writeInt(keyBytes.length);
+            out.write(keyBytes);
+            out.writeInt(value.getReplicas());
+            out.writeInt(data == null ? -1 : data.length);
+            if (data != null) {
+                out.write(data);
+            }
+            offset += 20 + keyBytes.length + (data == null ? 0 : data.length);
+        }
+
+        /**
+         * @return the number of bytes of records written so far
+         */
+        public int getBytes() {
+            return offset;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        /**
+         * Writes the index and bloom filter, syncs the file to disk and maps it.
+         */
+        public SortedRun finish() throws IOException {
+            int indexOffset = offset;
+            for (int i = 0; i < count; ++i) {
+                out.writeInt(offsets[i]);
+            }
+
+            BloomFilter bloomFilter = new BloomFilter(count, BLOOM_FPP);
+            for (int i = 0; i < count; ++i) {
+                bloomFilter.add(hashes[i]);
+            }
+            ByteBuffer bloom = ByteBuffer.allocate(bloomFilter.serializedSize());
+            bloomFilter.writeTo(bloom);
+            out.write(bloom.array());
+
+            out.writeInt(count);
+            out.writeInt(indexOffset);
+            out.writeInt(indexOffset + count * 4);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getChannel().force(true);
+            out.close();
+            return open(id, file);
+        }
+
+        /**
+         * Gives up on the run and deletes its file.
+         */
+        public void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Deleting it anyway
+            }
+            file.delete();
+        }
+    }
+
+}
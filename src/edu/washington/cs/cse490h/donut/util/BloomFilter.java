@@ -0,0 +1,149 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.util;
+
+import java.nio.ByteBuffer;
+
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+
+/**
+ * A Bloom filter over 64-bit hashes. The k probe positions are derived from the two halves of the
+ * hash (Kirsch-Mitzenmacher double hashing), so one hash per key is all it costs.
+ * 
+ * @author jprouty
+ */
+public class BloomFilter {
+
+    /** More probes than this never pay off, so a filter that was read may not ask for more. */
+    public static final int MAX_HASHES = 64;
+
+    private final long[] bits;
+    private final int    numBits;
+    private final int    numHashes;
+
+    /**
+     * Creates an empty filter sized for {@code expectedKeys} keys at about the given false
+     * positive rate.
+     */
+    public BloomFilter(int expectedKeys, double falsePositiveRate) {
+        int n = Math.max(expectedKeys, 1);
+        int m = (int) Math.min(Integer.MAX_VALUE - 63, Math.ceil(-n * Math.log(falsePositiveRate)
+                / (Math.log(2) * Math.log(2))));
+        this.numBits = Math.max(64, (m + 63) & ~63);
+        this.numHashes = Math.min(MAX_HASHES, Math.max(1, (int) Math.round((double) numBits / n
+                * Math.log(2))));
+        this.bits = new long[numBits / 64];
+    }
+
+    private BloomFilter(long[] bits, int numHashes) {
+        this.bits = bits;
+        this.numBits = bits.length * 64;
+        this.numHashes = numHashes;
+    }
+
+    public void add(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; ++i) {
+            int bit = ((h1 + i * h2) & 0x7fffffff) % numBits;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; ++i) {
+            int bit = ((h1 + i * h2) & 0x7fffffff) % numBits;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void add(EntryKey key) {
+        add(hash(key));
+    }
+
+    public boolean mightContain(EntryKey key) {
+        return mightContain(hash(key));
+    }
+
+    /**
+     * @return the number of bytes {@link #writeTo} writes
+     */
+    public int serializedSize() {
+        return 8 + bits.length * 8;
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(bits.length);
+        buffer.putInt(numHashes);
+        for (long word : bits) {
+            buffer.putLong(word);
+        }
+    }
+
+    /**
+     * Reads a filter written by {@link #writeTo} from the buffer's position.
+     * 
+     * @throws IllegalArgumentException
+     *             if the buffer does not hold a whole filter
+     */
+    public static BloomFilter readFrom(ByteBuffer buffer) {
+        if (buffer.remaining() < 8) {
+            throw new IllegalArgumentException("Truncated Bloom filter header");
+        }
+        int words = buffer.getInt();
+        int numHashes = buffer.getInt();
+        if (words < 1 || words > buffer.remaining() / 8) {
+            throw new IllegalArgumentException("Bloom filter of " + words + " words in "
+                    + buffer.remaining() + " bytes");
+        }
+        if (numHashes < 1 || numHashes > MAX_HASHES) {
+            throw new IllegalArgumentException("Bloom filter with " + numHashes + " hashes");
+        }
+        long[] bits = new long[words];
+        for (int i = 0; i < bits.length; ++i) {
+            bits[i] = buffer.getLong();
+        }
+        return new BloomFilter(bits, numHashes);
+    }
+
+    /**
+     * A well mixed 64-bit hash of both the id and the string of an {@link EntryKey}.
+     */
+    public static long hash(EntryKey key) {
+        // FNV-1a over the string, folded with the id
+        long h = 0xcbf29ce484222325L;
+        String s = key.getKey();
+        for (int i = 0; i < s.length(); ++i) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= key.getId().getId() * 0x9e3779b97f4a7c15L;
+        // MurmurHash3 finalizer
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
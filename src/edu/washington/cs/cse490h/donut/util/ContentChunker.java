@@ -0,0 +1,112 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>
+ * Splits content into chunks where the content itself says to, rather than every so many bytes.
+ * A rolling (gear) hash of the last 64 or so bytes is kept, and a chunk ends wherever its top bits
+ * are all zero. An edit to some content therefore only moves the boundaries around the edit, and
+ * every chunk before and after it comes out the same as before.
+ * </p>
+ * <p>
+ * The boundaries depend only on the content and the sizes, never on the machine, so every client
+ * splits the same content the same way.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class ContentChunker {
+
+    public static final int     DEFAULT_MIN_SIZE     = 2 * 1024;
+    public static final int     DEFAULT_AVERAGE_SIZE = 8 * 1024;
+    public static final int     DEFAULT_MAX_SIZE     = 64 * 1024;
+
+    /** A random value for each byte. Fixed, since every client has to agree on it. */
+    private static final long[] GEAR                 = new long[256];
+
+    static {
+        Random random = new Random(0x5eed0fdecafL);
+        for (int i = 0; i < GEAR.length; ++i) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int           minSize;
+    private final int           maxSize;
+    private final long          mask;
+
+    public ContentChunker() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_AVERAGE_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param averageSize
+     *            the size chunks come out at on average past {@code minSize}. Must be a power of
+     *            two.
+     */
+    public ContentChunker(int minSize, int averageSize, int maxSize) {
+        if (Integer.bitCount(averageSize) != 1)
+            throw new IllegalArgumentException("averageSize must be a power of two");
+        if (minSize < 0 || maxSize < Math.max(minSize, 1))
+            throw new IllegalArgumentException("Need 0 <= minSize <= maxSize and 0 < maxSize");
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        int bits = Integer.numberOfTrailingZeros(averageSize);
+        // The top bits, which depend on the most bytes
+        this.mask = bits == 0 ? 0 : -1L << (64 - bits);
+    }
+
+    /**
+     * @return the end of each chunk of {@code data}, in order. The last one is always
+     *         {@code data.length}, unless {@code data} is empty.
+     */
+    public int[] split(byte[] data) {
+        List<Integer> ends = new ArrayList<Integer>();
+        int start = 0;
+        while (start < data.length) {
+            start = next(data, start);
+            ends.add(start);
+        }
+        int[] result = new int[ends.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = ends.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return the end of the chunk that starts at {@code start}
+     */
+    public int next(byte[] data, int start) {
+        int end = (int) Math.min(data.length, (long) start + maxSize);
+        int i = (int) Math.min(end, (long) start + minSize);
+        long hash = 0;
+        while (i < end) {
+            hash = (hash << 1) + GEAR[data[i++] & 0xff];
+            if ((hash & mask) == 0) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+
+/**
+ * Ordering helpers for {@link EntryKey}s laid out around the Chord ring.
+ * 
+ * @author jprouty
+ */
+public class EntryKeyUtil {
+
+    /**
+     * Orders {@link EntryKey}s by their {@link KeyId} (as a signed long, which is the same order
+     * {@link KeyIdUtil#isAfterXButBeforeEqualY} walks the ring in) and then by their string key. A
+     * <code>null</code> string key sorts after every other key with the same id, which is what
+     * makes {@link #upperBound(KeyId)} work.
+     */
+    public static final Comparator<EntryKey> COMPARATOR = new Comparator<EntryKey>() {
+        public int compare(EntryKey a, EntryKey b) {
+            long x = a.getId().getId();
+            long y = b.getId().getId();
+            if (x != y) {
+                return x < y ? -1 : 1;
+            }
+            if (a.getKey() == null) {
+                return b.getKey() == null ? 0 : 1;
+            }
+            if (b.getKey() == null) {
+                return -1;
+            }
+            return a.getKey().compareTo(b.getKey());
+        }
+    };
+
+    /**
+     * Returns a sentinel {@link EntryKey} that sorts (under {@link #COMPARATOR}) after every real
+     * key with the given id and before every key with a larger id. It must never be stored.
+     */
+    public static EntryKey upperBound(KeyId id) {
+        return new EntryKey(id, null);
+    }
+
+    /**
+     * Splits the ring range of keys whose id is after {@code start} and before or equal to
+     * {@code end} into linear intervals of {@link #COMPARATOR}. Each interval is a pair of exclusive
+     * bounds, made with {@link #upperBound(KeyId)}, where <code>null</code> means unbounded. A range
+     * that wraps past the largest id becomes two intervals, in ring order.
+     * 
+     * @param start
+     *            The exclusive lower bound
+     * @param end
+     *            The inclusive upper bound
+     */
+    public static List<EntryKey[]> ringBounds(KeyId start, KeyId end) {
+        List<EntryKey[]> result = new ArrayList<EntryKey[]>(2);
+        long x = start.getId();
+        long y = end.getId();
+        if (x == y) {
+            // Same as KeyIdUtil: the whole keyspace
+            result.add(new EntryKey[] { null, null });
+        } else if (x < y) {
+            result.add(new EntryKey[] { upperBound(start), upperBound(end) });
+        } else {
+            result.add(new EntryKey[] { upperBound(start), null });
+            result.add(new EntryKey[] { null, upperBound(end) });
+        }
+        return result;
+    }
+
+    /**
+     * Returns the view of {@code map} between a pair of bounds from {@link #ringBounds}.
+     */
+    public static <V> SortedMap<EntryKey, V> slice(SortedMap<EntryKey, V> map, EntryKey[] bounds) {
+        if (bounds[0] == null) {
+            return bounds[1] == null ? map : map.headMap(bounds[1]);
+        }
+        return bounds[1] == null ? map.tailMap(bounds[0]) : map.subMap(bounds[0], bounds[1]);
+    }
+
+    /**
+     * Returns the view of {@code set} between a pair of bounds from {@link #ringBounds}.
+     */
+    public static SortedSet<EntryKey> slice(SortedSet<EntryKey> set, EntryKey[] bounds) {
+        if (bounds[0] == null) {
+            return bounds[1] == null ? set : set.headSet(bounds[1]);
+        }
+        return bounds[1] == null ? set.tailSet(bounds[0]) : set.subSet(bounds[0], bounds[1]);
+    }
+
+    /**
+     * Returns the views of {@code map} that together hold exactly the keys whose id is after
+     * {@code start} and before or equal to {@code end} on the ring, in ring order. Takes O(log n)
+     * for sorted maps backed by a tree or skip list, the keys themselves are only touched when the
+     * caller iterates the views.
+     * 
+     * @param map
+     *            a map sorted by {@link #COMPARATOR}
+     * @param start
+     *            The exclusive lower bound
+     * @param end
+     *            The inclusive upper bound
+     */
+    public static <V> List<SortedMap<EntryKey, V>> ringRange(SortedMap<EntryKey, V> map,
+            KeyId start, KeyId end) {
+        List<SortedMap<EntryKey, V>> result = new ArrayList<SortedMap<EntryKey, V>>(2);
+        for (EntryKey[] bounds : ringBounds(start, end)) {
+            result.add(slice(map, bounds));
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.util;
+
+/**
+ * A count-min sketch of recent access frequencies (the TinyLFU sketch). Each key is counted in
+ * {@link #DEPTH} rows of small saturating counters, and its estimate is the smallest of them. Once
+ * the sketch has seen ten times as many accesses as it has counters per row, every counter is
+ * halved, so old popularity fades away. Not thread safe.
+ * 
+ * @author jprouty
+ */
+public class FrequencySketch {
+
+    public static final int     MAX_COUNT = 15;
+
+    private static final int    DEPTH     = 4;
+    private static final long[] SEEDS     = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+            0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    private final byte[][]      counters;
+    private final int           mask;
+    private final int           sampleSize;
+    private int                 samples;
+
+    /**
+     * @param expectedKeys
+     *            about how many distinct keys are being tracked
+     */
+    public FrequencySketch(int expectedKeys) {
+        int width = Integer.highestOneBit(Math.max(expectedKeys, 16) - 1) << 1;
+        counters = new byte[DEPTH][width];
+        mask = width - 1;
+        sampleSize = 10 * width;
+    }
+
+    /**
+     * Counts one access of the key with the given hash.
+     */
+    public void increment(long hash) {
+        boolean added = false;
+        for (int i = 0; i < DEPTH; ++i) {
+            int index = index(hash, i);
+            if (counters[i][index] < MAX_COUNT) {
+                ++counters[i][index];
+                added = true;
+            }
+        }
+        if (added && ++samples >= sampleSize) {
+            age();
+        }
+    }
+
+    /**
+     * @return the estimated number of recent accesses of the key with the given hash, at most
+     *         {@link #MAX_COUNT}
+     */
+    public int frequency(long hash) {
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; ++i) {
+            frequency = Math.min(frequency, counters[i][index(hash, i)]);
+        }
+        return frequency;
+    }
+
+    private void age() {
+        for (byte[] row : counters) {
+            for (int i = 0; i < row.length; ++i) {
+                row[i] >>= 1;
+            }
+        }
+        samples /= 2;
+    }
+
+    private int index(long hash, int row) {
+        long h = (hash ^ SEEDS[row]) * 0x9e3779b97f4a7c15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+}
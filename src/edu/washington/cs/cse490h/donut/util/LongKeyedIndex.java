@@ -0,0 +1,192 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.util;
+
+/**
+ * <p>
+ * A hash table keyed on the two halves of an <code>EntryKey</code> taken apart: the primitive
+ * 64-bit id and the string key. Slots live in parallel arrays and collisions are resolved by linear
+ * probing, so looking a key up neither allocates nor goes through a generated <code>hashCode</code>
+ * or <code>equals</code>. Entries with the same id and different strings simply land in
+ * neighbouring slots and are told apart by the string.
+ * </p>
+ * <p>
+ * Removal shifts the following run of entries back instead of leaving tombstones, so probe
+ * sequences never grow with churn. Not thread safe.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class LongKeyedIndex<V> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[]           ids;
+    private String[]         keys;
+    private Object[]         values;
+    private int              mask;
+    private int              size;
+    private int              resizeAt;
+
+    public LongKeyedIndex() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize
+     *            how many entries to make room for up front
+     */
+    public LongKeyedIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 1) * 3 / 2) << 1;
+        allocate(Math.max(MIN_CAPACITY, capacity));
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long id, String key) {
+        int i = indexOf(id, key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    public boolean containsKey(long id, String key) {
+        return indexOf(id, key) >= 0;
+    }
+
+    /**
+     * @return the value the key had before, or <code>null</code>
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long id, String key, V value) {
+        int i = slot(id);
+        while (keys[i] != null) {
+            if (ids[i] == id && keys[i].equals(key)) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        ids[i] = id;
+        keys[i] = key;
+        values[i] = value;
+        if (++size > resizeAt) {
+            resize(keys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * @return the value the key had, or <code>null</code>
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long id, String key) {
+        int i = indexOf(id, key);
+        if (i < 0) {
+            return null;
+        }
+        V old = (V) values[i];
+        --size;
+
+        // Move back every later entry of the run that would be unreachable past the hole
+        int hole = i;
+        int next = (i + 1) & mask;
+        while (keys[next] != null) {
+            int home = slot(ids[next]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                ids[hole] = ids[next];
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = null;
+        values[hole] = null;
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * @return the number of slots, for walking the table with {@link #idAt}, {@link #keyAt} and
+     *         {@link #valueAt}
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    public long idAt(int slot) {
+        return ids[slot];
+    }
+
+    /**
+     * @return the string key in the slot, or <code>null</code> if the slot is empty
+     */
+    public String keyAt(int slot) {
+        return keys[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V valueAt(int slot) {
+        return (V) values[slot];
+    }
+
+    private int indexOf(long id, String key) {
+        int i = slot(id);
+        while (keys[i] != null) {
+            if (ids[i] == id && keys[i].equals(key)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int slot(long id) {
+        // Ids are already hashes, but spread the low bits anyway in case they were chosen by hand
+        long h = id * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void allocate(int capacity) {
+        ids = new long[capacity];
+        keys = new String[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeAt = capacity * 2 / 3;
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void resize(int capacity) {
+        long[] oldIds = ids;
+        String[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] != null) {
+                put(oldIds[i], oldKeys[i], (V) oldValues[i]);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.util;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * <p>
+ * An immutable sorted map. {@link #plus} and {@link #minus} return a new map and leave this one as
+ * it was, copying only the O(log n) nodes on the path to the changed key and sharing the rest. Any
+ * version can therefore be kept around as a snapshot for free, and read from any number of threads
+ * while newer versions are being made.
+ * </p>
+ * <p>
+ * The map is a treap: a binary search tree on the keys that is also a heap on random node
+ * priorities, which keeps it balanced in expectation without any rebalancing bookkeeping.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class PersistentSortedMap<K, V> implements Iterable<Map.Entry<K, V>> {
+
+    private static final Random PRIORITIES = new Random();
+
+    private final Comparator<K> comparator;
+    private final Node<K, V>    root;
+
+    /**
+     * @return an empty map ordered by {@code comparator}
+     */
+    public static <K, V> PersistentSortedMap<K, V> empty(Comparator<K> comparator) {
+        return new PersistentSortedMap<K, V>(comparator, null);
+    }
+
+    private PersistentSortedMap(Comparator<K> comparator, Node<K, V> root) {
+        this.comparator = comparator;
+        this.root = root;
+    }
+
+    public V get(K key) {
+        Node<K, V> node = find(key);
+        return node == null ? null : node.getValue();
+    }
+
+    public boolean containsKey(K key) {
+        return find(key) != null;
+    }
+
+    public int size() {
+        return size(root);
+    }
+
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    /**
+     * @return a map with {@code key} set to {@code value}
+     */
+    public PersistentSortedMap<K, V> plus(K key, V value) {
+        Node<K, V> newRoot;
+        if (containsKey(key)) {
+            newRoot = replace(root, key, value);
+        } else {
+            newRoot = insert(root, key, value, PRIORITIES.nextInt());
+        }
+        return new PersistentSortedMap<K, V>(comparator, newRoot);
+    }
+
+    /**
+     * @return a map without {@code key}, or this map if it did not have it
+     */
+    public PersistentSortedMap<K, V> minus(K key) {
+        Node<K, V> newRoot = delete(root, key);
+        return newRoot == root ? this : new PersistentSortedMap<K, V>(comparator, newRoot);
+    }
+
+    /**
+     * Iterates all the entries in order.
+     */
+    public Iterator<Map.Entry<K, V>> iterator() {
+        return iterator(null, null);
+    }
+
+    /**
+     * Iterates, in order, the entries with keys strictly between the two bounds.
+     * 
+     * @param low
+     *            the exclusive lower bound, or <code>null</code> for none
+     * @param high
+     *            the exclusive upper bound, or <code>null</code> for none
+     */
+    public Iterator<Map.Entry<K, V>> iterator(K low, K high) {
+        return new RangeIterator(low, high);
+    }
+
+    /**
+     * Adds a key that is not in the tree yet.
+     */
+    private Node<K, V> insert(Node<K, V> node, K key, V value, int priority) {
+        if (node == null) {
+            return new Node<K, V>(key, value, priority, null, null);
+        }
+        if (priority > node.priority) {
+            // The new node goes here, with everything below split around it
+            List<Node<K, V>> halves = new ArrayList<Node<K, V>>(2);
+            split(node, key, halves);
+            return new Node<K, V>(key, value, priority, halves.get(0), halves.get(1));
+        }
+        if (comparator.compare(key, node.getKey()) < 0) {
+            return node.withLeft(insert(node.left, key, value, priority));
+        } else {
+            return node.withRight(insert(node.right, key, value, priority));
+        }
+    }
+
+    /**
+     * Sets the value of a key that is already in the tree.
+     */
+    private Node<K, V> replace(Node<K, V> node, K key, V value) {
+        int c = comparator.compare(key, node.getKey());
+        if (c == 0) {
+            return new Node<K, V>(key, value, node.priority, node.left, node.right);
+        }
+        return c < 0 ? node.withLeft(replace(node.left, key, value)) : node.withRight(replace(
+                node.right, key, value));
+    }
+
+    private Node<K, V> find(K key) {
+        Node<K, V> node = root;
+        while (node != null) {
+            int c = comparator.compare(key, node.getKey());
+            if (c == 0) {
+                return node;
+            }
+            node = c < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    /**
+     * Splits a tree that does not contain {@code key} into the keys below and above it.
+     */
+    private void split(Node<K, V> node, K key, List<Node<K, V>> halves) {
+        if (node == null) {
+            halves.add(null);
+            halves.add(null);
+        } else if (comparator.compare(key, node.getKey()) < 0) {
+            split(node.left, key, halves);
+            halves.set(1, node.withLeft(halves.get(1)));
+        } else {
+            split(node.right, key, halves);
+            halves.set(0, node.withRight(halves.get(0)));
+        }
+    }
+
+    private Node<K, V> delete(Node<K, V> node, K key) {
+        if (node == null) {
+            return null;
+        }
+        int c = comparator.compare(key, node.getKey());
+        if (c == 0) {
+            return merge(node.left, node.right);
+        }
+        if (c < 0) {
+            Node<K, V> left = delete(node.left, key);
+            return left == node.left ? node : node.withLeft(left);
+        } else {
+            Node<K, V> right = delete(node.right, key);
+            return right == node.right ? node : node.withRight(right);
+        }
+    }
+
+    /**
+     * Joins two trees where every key of {@code low} is below every key of {@code high}.
+     */
+    private Node<K, V> merge(Node<K, V> low, Node<K, V> high) {
+        if (low == null) {
+            return high;
+        }
+        if (high == null) {
+            return low;
+        }
+        if (low.priority > high.priority) {
+            return low.withRight(merge(low.right, high));
+        } else {
+            return high.withLeft(merge(low, high.left));
+        }
+    }
+
+    private static int size(Node<?, ?> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    /**
+     * A node is also the entry handed out by the iterators.
+     */
+    private static class Node<K, V> extends AbstractMap.SimpleImmutableEntry<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        final int                 priority;
+        final Node<K, V>          left;
+        final Node<K, V>          right;
+        final int                 size;
+
+        Node(K key, V value, int priority, Node<K, V> left, Node<K, V> right) {
+            super(key, value);
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.size = 1 + size(left) + size(right);
+        }
+
+        Node<K, V> withLeft(Node<K, V> newLeft) {
+            return new Node<K, V>(getKey(), getValue(), priority, newLeft, right);
+        }
+
+        Node<K, V> withRight(Node<K, V> newRight) {
+            return new Node<K, V>(getKey(), getValue(), priority, left, newRight);
+        }
+    }
+
+    /**
+     * In order walk with an explicit stack of the nodes whose right subtree is still to come.
+     */
+    private class RangeIterator implements Iterator<Map.Entry<K, V>> {
+        private final K                high;
+        private final List<Node<K, V>> stack = new ArrayList<Node<K, V>>();
+
+        RangeIterator(K low, K high) {
+            this.high = high;
+            Node<K, V> node = root;
+            while (node != null) {
+                if (low != null && comparator.compare(node.getKey(), low) <= 0) {
+                    node = node.right;
+                } else {
+                    stack.add(node);
+                    node = node.left;
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            if (stack.isEmpty()) {
+                return false;
+            }
+            K next = stack.get(stack.size() - 1).getKey();
+            return high == null || comparator.compare(next, high) < 0;
+        }
+
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Node<K, V> next = stack.remove(stack.size() - 1);
+            for (Node<K, V> node = next.right; node != null; node = node.left) {
+                stack.add(node);
+            }
+            return next;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
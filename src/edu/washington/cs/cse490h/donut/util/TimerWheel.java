@@ -0,0 +1,233 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * A hierarchical timing wheel: schedules and cancels timeouts in O(1) no matter how many are
+ * pending or how far off they are.
+ * </p>
+ * <p>
+ * Time is cut into ticks. Level 0 has a slot for each of the next {@link #SLOTS} ticks, level 1 a
+ * slot for each of the next {@link #SLOTS} runs of {@link #SLOTS} ticks, and so on, so a timeout
+ * goes into the lowest level whose span reaches its deadline. Whenever a level comes round, the
+ * slot it reaches is emptied into the levels below, and by the time a timeout's tick comes it has
+ * trickled down into level 0. A timeout comes out of the first {@link #advance} that reaches its
+ * deadline, to the millisecond, whatever the length of a tick. Not thread safe.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class TimerWheel<T> {
+
+    public static final int      WHEEL_BITS = 6;
+    public static final int      SLOTS      = 1 << WHEEL_BITS;
+
+    /** Enough levels for any tick that fits in a long. */
+    private static final int     LEVELS     = (64 + WHEEL_BITS - 1) / WHEEL_BITS;
+
+    private final long           tickMillis;
+    private final Timeout<T>[][] wheels;
+    /** Timeouts whose tick has come, waiting for the rest of their deadline. */
+    private final Timeout<T>     due;
+    private long                 currentTick;
+    private int                  size;
+
+    /**
+     * @param tickMillis
+     *            the length of a tick, in milliseconds
+     * @param now
+     *            the current time, in milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long tickMillis, long now) {
+        if (tickMillis <= 0)
+            throw new IllegalArgumentException("tickMillis must be > 0");
+        this.tickMillis = tickMillis;
+        this.wheels = new Timeout[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; ++level) {
+            for (int slot = 0; slot < SLOTS; ++slot) {
+                wheels[level][slot] = new Timeout<T>(null, 0, 0);
+            }
+        }
+        this.due = new Timeout<T>(null, 0, 0);
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * @param deadline
+     *            when {@code item} should come out of {@link #advance}, in milliseconds
+     * @return a handle for {@link #cancel}
+     */
+    public Timeout<T> schedule(T item, long deadline) {
+        long tick = deadline / tickMillis;
+        Timeout<T> timeout = new Timeout<T>(item, deadline, tick);
+        place(timeout);
+        ++size;
+        return timeout;
+    }
+
+    /**
+     * @return <code>true</code> if the timeout was pending, <code>false</code> if it had already
+     *         fired or been cancelled
+     */
+    public boolean cancel(Timeout<T> timeout) {
+        if (!timeout.isPending()) {
+            return false;
+        }
+        timeout.unlink();
+        --size;
+        return true;
+    }
+
+    /**
+     * Moves the wheel on to {@code now}.
+     * 
+     * @return the items of every timeout whose deadline is at or before {@code now}, which are no
+     *         longer pending
+     */
+    public List<T> advance(long now) {
+        List<T> expired = new ArrayList<T>();
+        long target = now / tickMillis;
+        while (currentTick < target) {
+            if (size == 0) {
+                // Nothing to cascade or fire on the way
+                currentTick = target;
+                break;
+            }
+            ++currentTick;
+            // Every level below the lowest non-zero digit of the tick has just come round
+            int top = 0;
+            while (top < LEVELS - 1 && slot(currentTick, top) == 0) {
+                ++top;
+            }
+            // Cascade from the top, so timeouts can fall through several levels at once
+            for (int level = top; level > 0; --level) {
+                Timeout<T> head = wheels[level][slot(currentTick, level)];
+                while (head.next != head) {
+                    Timeout<T> timeout = head.next;
+                    timeout.unlink();
+                    place(timeout);
+                }
+            }
+            fire(wheels[0][slot(currentTick, 0)], now, expired);
+        }
+        fire(due, now, expired);
+        return expired;
+    }
+
+    /**
+     * @return the number of pending timeouts
+     */
+    public int size() {
+        return size;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    private void place(Timeout<T> timeout) {
+        if (timeout.tick <= currentTick) {
+            due.link(timeout);
+            return;
+        }
+        // The lowest level above which the tick and the current tick agree
+        long differing = timeout.tick ^ currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && differing >>> (WHEEL_BITS * (level + 1)) != 0) {
+            ++level;
+        }
+        wheels[level][slot(timeout.tick, level)].link(timeout);
+    }
+
+    /**
+     * Takes the timeouts that are due out of a slot, and moves the ones that are not yet to
+     * {@link #due}.
+     */
+    private void fire(Timeout<T> head, long now, List<T> expired) {
+        Timeout<T> timeout = head.next;
+        while (timeout != head) {
+            Timeout<T> next = timeout.next;
+            if (timeout.deadline <= now) {
+                timeout.unlink();
+                --size;
+                expired.add(timeout.item);
+            } else if (head != due) {
+                timeout.unlink();
+                due.link(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+    private static int slot(long tick, int level) {
+        return (int) (tick >>> (WHEEL_BITS * level)) & (SLOTS - 1);
+    }
+
+    /**
+     * A scheduled item. Pending timeouts sit in a circular list headed by the slot they are in.
+     */
+    public static class Timeout<T> {
+        private final T    item;
+        private final long deadline;
+        private final long tick;
+        private Timeout<T> previous;
+        private Timeout<T> next;
+
+        private Timeout(T item, long deadline, long tick) {
+            this.item = item;
+            this.deadline = deadline;
+            this.tick = tick;
+            if (item == null) {
+                // A slot's list head
+                previous = this;
+                next = this;
+            }
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public boolean isPending() {
+            return next != null;
+        }
+
+        private void link(Timeout<T> timeout) {
+            timeout.previous = previous;
+            timeout.next = this;
+            previous.next = timeout;
+            previous = timeout;
+        }
+
+        private void unlink() {
+            previous.next = next;
+            next.previous = previous;
+            previous = null;
+            next = null;
+        }
+    }
+
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import edu.washington.cs.cse490h.donut.business.ChunkedValue;
+
+/**
+ * <p>
+ * Compresses values on their way into the ring and decompresses them on their way out. Nodes never
+ * look inside a value, so an encoded value is stored, replicated and copied between nodes exactly
+ * as it was encoded.
+ * </p>
+ * <p>
+ * Values smaller than the threshold, and values that do not shrink, are left as they are. Every
+ * other value is deflated at {@link Deflater#BEST_SPEED} and prefixed with a header naming the
+ * codec, so each entry says for itself how to read it back:
+ * </p>
+ * 
+ * <pre>
+ * MAGIC (3 bytes) | codec (1 byte) | original length (int) | body
+ * </pre>
+ * <p>
+ * A value that does not start with {@link #MAGIC} is a plain value. A plain value that happens to
+ * start with it is stored with the {@link #STORED} codec, so it cannot be mistaken for an encoded
+ * one.
+ * </p>
+ * <p>
+ * A value that is too big to send whole is stored in chunks, each encoded on its own, and the
+ * entry for its key only holds a {@link ChunkedValue} saying where the chunks are, under the
+ * {@link #CHUNKED} codec.
+ * </p>
+ * 
+ * @author jprouty
+ */
+public class ValueCodec {
+
+    public static final int     DEFAULT_THRESHOLD = 1024;
+
+    private static final byte[] MAGIC             = { (byte) 0xd0, 0x17, 0x2c };
+    private static final int    HEADER_SIZE       = MAGIC.length + 5;
+    private static final byte   STORED            = 0;
+    private static final byte   DEFLATE           = 1;
+    private static final byte   CHUNKED           = 2;
+    private static final int    CHUNKED_SIZE      = 20;
+    /** The most deflate can shrink anything by. */
+    private static final int    MAX_DEFLATE_RATIO = 1032;
+
+    private final int           threshold;
+
+    private final AtomicLong    compressed        = new AtomicLong();
+    private final AtomicLong    uncompressed      = new AtomicLong();
+    private final AtomicLong    rawBytes          = new AtomicLong();
+    private final AtomicLong    encodedBytes      = new AtomicLong();
+    private final AtomicLong    encodeNanos       = new AtomicLong();
+    private final AtomicLong    decodeNanos       = new AtomicLong();
+
+    public ValueCodec() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold
+     *            the smallest value, in bytes, that is worth compressing. 0 turns compression off.
+     */
+    public ValueCodec(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public byte[] encode(byte[] value) {
+        long start = System.nanoTime();
+        byte[] encoded = null;
+        if (threshold > 0 && value.length >= threshold) {
+            encoded = deflate(value);
+        }
+        if (encoded == null) {
+            encoded = hasMagic(value) ? header(STORED, value, value.length) : value;
+            uncompressed.incrementAndGet();
+        } else {
+            compressed.incrementAndGet();
+        }
+        encodeNanos.addAndGet(System.nanoTime() - start);
+        rawBytes.addAndGet(value.length);
+        encodedBytes.addAndGet(encoded.length);
+        return encoded;
+    }
+
+    /**
+     * @throws DataFormatException
+     *             if the value claims to be compressed but is not, or its header is corrupt
+     */
+    public byte[] decode(byte[] encoded) throws DataFormatException {
+        if (!hasMagic(encoded)) {
+            return encoded;
+        }
+        if (encoded.length < HEADER_SIZE) {
+            throw new DataFormatException("Truncated value header");
+        }
+        long start = System.nanoTime();
+        int length = readInt(encoded, MAGIC.length + 1);
+        int bodyLength = encoded.length - HEADER_SIZE;
+        byte[] value;
+        switch (encoded[MAGIC.length]) {
+        case STORED:
+            if (length != bodyLength) {
+                throw new DataFormatException("Stored value is " + bodyLength + " bytes, not "
+                        + length);
+            }
+            value = new byte[length];
+            System.arraycopy(encoded, HEADER_SIZE, value, 0, length);
+            break;
+        case CHUNKED:
+            throw new DataFormatException("Value is stored in chunks");
+        case DEFLATE:
+            // Checked before allocating, as a corrupt header could claim anything
+            if (length < 0 || length > (long) bodyLength * MAX_DEFLATE_RATIO) {
+                throw new DataFormatException("Compressed value of " + bodyLength
+                        + " bytes cannot be " + length + " bytes long");
+            }
+            value = new byte[length];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(encoded, HEADER_SIZE, encoded.length - HEADER_SIZE);
+                if (inflater.inflate(value) != length || !inflater.finished()) {
+                    throw new DataFormatException("Compressed value is not " + length
+                            + " bytes long");
+                }
+            } finally {
+                inflater.end();
+            }
+            break;
+        default:
+            throw new DataFormatException("Unknown codec " + encoded[MAGIC.length]);
+        }
+        decodeNanos.addAndGet(System.nanoTime() - start);
+        return value;
+    }
+
+    /**
+     * @return the entry that stands for a value stored in chunks
+     */
+    public static byte[] encodeChunked(ChunkedValue chunked) {
+        byte[] body = new byte[CHUNKED_SIZE];
+        writeLong(body, 0, chunked.getUpload());
+        writeInt(body, 8, chunked.getChunks());
+        writeLong(body, 12, chunked.getLength());
+        return header(CHUNKED, body, body.length);
+    }
+
+    /**
+     * @return where the chunks of the value are, or <code>null</code> if {@code encoded} is not an
+     *         entry made by {@link #encodeChunked}
+     */
+    public static ChunkedValue decodeChunked(byte[] encoded) {
+        if (!hasMagic(encoded) || encoded.length != HEADER_SIZE + CHUNKED_SIZE
+                || encoded[MAGIC.length] != CHUNKED) {
+            return null;
+        }
+        return new ChunkedValue(readLong(encoded, HEADER_SIZE), readInt(encoded, HEADER_SIZE + 8),
+                readLong(encoded, HEADER_SIZE + 12));
+    }
+
+    /**
+     * @return the deflated value with its header, or <code>null</code> if it did not get smaller
+     */
+    private byte[] deflate(byte[] value) {
+        if (value.length <= HEADER_SIZE) {
+            return null;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(value);
+            deflater.finish();
+            // Anything that does not fit was not worth compressing
+            byte[] buffer = new byte[value.length - HEADER_SIZE];
+            int length = 0;
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if (!deflater.finished() || length == buffer.length) {
+                return null;
+            }
+            byte[] body = new byte[length];
+            System.arraycopy(buffer, 0, body, 0, length);
+            return header(DEFLATE, body, value.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] header(byte codec, byte[] body, int originalLength) {
+        byte[] encoded = new byte[HEADER_SIZE + body.length];
+        System.arraycopy(MAGIC, 0, encoded, 0, MAGIC.length);
+        encoded[MAGIC.length] = codec;
+        writeInt(encoded, MAGIC.length + 1, originalLength);
+        System.arraycopy(body, 0, encoded, HEADER_SIZE, body.length);
+        return encoded;
+    }
+
+    private static boolean hasMagic(byte[] value) {
+        if (value.length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; ++i) {
+            if (value[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeInt(byte[] b, int offset, int v) {
+        b[offset] = (byte) (v >>> 24);
+        b[offset + 1] = (byte) (v >>> 16);
+        b[offset + 2] = (byte) (v >>> 8);
+        b[offset + 3] = (byte) v;
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return (b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8
+                | (b[offset + 3] & 0xff);
+    }
+
+    private static void writeLong(byte[] b, int offset, long v) {
+        writeInt(b, offset, (int) (v >>> 32));
+        writeInt(b, offset + 4, (int) v);
+    }
+
+    private static long readLong(byte[] b, int offset) {
+        return (long) readInt(b, offset) << 32 | (readInt(b, offset + 4) & 0xffffffffL);
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return the number of values that were stored compressed
+     */
+    public long getCompressedCount() {
+        return compressed.get();
+    }
+
+    /**
+     * @return the number of values that were stored as they were
+     */
+    public long getUncompressedCount() {
+        return uncompressed.get();
+    }
+
+    /**
+     * @return the bytes handed to {@link #encode} divided by the bytes it returned
+     */
+    public double getCompressionRatio() {
+        long encoded = encodedBytes.get();
+        return encoded == 0 ? 1.0 : (double) rawBytes.get() / encoded;
+    }
+
+    /**
+     * @return the total time spent in {@link #encode}, in nanoseconds
+     */
+    public long getEncodeNanos() {
+        return encodeNanos.get();
+    }
+
+    /**
+     * @return the total time spent decompressing in {@link #decode}, in nanoseconds
+     */
+    public long getDecodeNanos() {
+        return decodeNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ValueCodec(%d compressed, %d as is, ratio %.2f, %d ms encoding,"
+                + " %d ms decoding)", getCompressedCount(), getUncompressedCount(),
+                getCompressionRatio(), getEncodeNanos() / 1000000, getDecodeNanos() / 1000000);
+    }
+
+}
@@ -16,7 +16,9 @@
 
 package edu.washington.cs.cse490h.donut.service;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import org.junit.Test;
 
@@ -52,8 +54,8 @@ public class DonutServiceReplicationTest {
         donutTestRunner.addEvent(4000).join(4, 0);
         donutTestRunner.addEvent(5000).setClosure(new DonutClosure() {
             public void run() throws Exception {
-                donutTestRunner.iface(0).put(key22, value22.getData());
-                donutTestRunner.iface(0).put(key21, value21.getData());
+                donutTestRunner.iface(0).put(key22, value22.getData(), 0);
+                donutTestRunner.iface(0).put(key21, value21.getData(), 0);
             }
         });
         donutTestRunner.addEvent(6000).leave(0);
@@ -84,8 +86,8 @@ public class DonutServiceReplicationTest {
         donutTestRunner.addEvent(4000).join(4, 0);
         donutTestRunner.addEvent(5000).setClosure(new DonutClosure() {
             public void run() throws Exception {
-                donutTestRunner.iface(1).put(key22, value22.getData());
-                donutTestRunner.iface(1).put(key21, value21.getData());
+                donutTestRunner.iface(1).put(key22, value22.getData(), 0);
+                donutTestRunner.iface(1).put(key21, value21.getData(), 0);
             }
         });
         donutTestRunner.addEvent(6000).join(5, 0);
@@ -99,4 +101,46 @@ public class DonutServiceReplicationTest {
         });
         donutTestRunner.run();
     }
+
+    @Test
+    public void testAntiEntropy() throws Exception {
+        final EntryKey key21 = new EntryKey(new KeyId(21), "key21");
+        final DataPair value21 = new DataPair("value21".getBytes(), Constants.SUCCESSOR_LIST_SIZE);
+        final EntryKey key25 = new EntryKey(new KeyId(25), "key25");
+
+        final DonutTestRunner donutTestRunner = new DonutTestRunner(30, 40, 50, 60, 70);
+        donutTestRunner.addEvent(0).join(0, 0);
+        donutTestRunner.addEvent(1000).join(1, 0);
+        donutTestRunner.addEvent(2000).join(2, 0);
+        donutTestRunner.addEvent(3000).join(3, 0);
+        donutTestRunner.addEvent(4000).join(4, 0);
+        donutTestRunner.addEvent(5000).setClosure(new DonutClosure() {
+            public void run() throws Exception {
+                donutTestRunner.iface(0).put(key21, value21.getData(), 0);
+            }
+        });
+        donutTestRunner.addEvent(5500).setClosure(new DonutClosure() {
+            public void run() throws Exception {
+                // As if a replicatePut and a replicateRemove had been lost on the way
+                donutTestRunner.service(2).remove(key21);
+                donutTestRunner.service(3).put(key25, "value25".getBytes(), 1);
+            }
+        });
+        // A round of anti-entropy on every node, rather than waiting minutes for one
+        donutTestRunner.addEvent(6000).setClosure(new DonutClosure() {
+            public void run() throws Exception {
+                for (int i = 0; i < 5; ++i) {
+                    donutTestRunner.client(i).antiEntropy();
+                }
+            }
+        });
+        donutTestRunner.addEvent(7000).test(new DonutTestCase() {
+            public void test() {
+                assertArrayEquals(value21.getData(), donutTestRunner.service(2).get(key21)
+                        .getData());
+                assertNull(donutTestRunner.service(3).get(key25));
+            }
+        });
+        donutTestRunner.run();
+    }
 }
@@ -16,6 +16,10 @@
 
 package edu.washington.cs.cse490h.donut.service;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -29,6 +33,8 @@ import edu.washington.cs.cse490h.donut.service.KeyLocator.Iface;
 public class LocalLocatorClientFactory implements LocatorClientFactory {
 
     private Map<KeyId, NodeLocator> locatorMap = new HashMap<KeyId, NodeLocator>();
+    private Map<KeyId, Long>        latencyMap = new HashMap<KeyId, Long>();
+    private long                    gets;
 
     public synchronized void add(TNode node, NodeLocator nodeLocator) {
         locatorMap.put(node.getNodeId(), nodeLocator);
@@ -38,8 +44,28 @@ public class LocalLocatorClientFactory implements LocatorClientFactory {
         locatorMap.remove(node.getNodeId());
     }
 
+    /**
+     * Emulates a network: every call to {@code node} from now on takes {@code millis} longer.
+     */
+    public synchronized void setLatency(TNode node, long millis) {
+        latencyMap.put(node.getNodeId(), millis);
+    }
+
+    /**
+     * @return how many clients have been handed out, which is how many calls a lookup made to
+     *         other nodes
+     */
+    public synchronized long getGets() {
+        return gets;
+    }
+
     public synchronized Iface get(TNode node) throws RetryFailedException {
         if (locatorMap.containsKey(node.getNodeId())) {
+            ++gets;
+            Long latency = latencyMap.get(node.getNodeId());
+            if (latency != null && latency > 0) {
+                return delayed(locatorMap.get(node.getNodeId()), latency);
+            }
             return locatorMap.get(node.getNodeId());
         }
 
@@ -51,4 +77,19 @@ public class LocalLocatorClientFactory implements LocatorClientFactory {
         // Do nothing
     }
 
+    private static Iface delayed(final Iface locator, final long millis) {
+        return (Iface) Proxy.newProxyInstance(Iface.class.getClassLoader(),
+                new Class<?>[] { Iface.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        Thread.sleep(millis);
+                        try {
+                            return method.invoke(locator, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Node;
+import edu.washington.cs.cse490h.donut.business.TNode;
+import edu.washington.cs.cse490h.donut.server.DonutClient;
+import edu.washington.cs.cse490h.donut.service.application.DonutInMemoryHashTableService;
+
+/**
+ * @author jprouty
+ */
+public class OneHopLookupTest {
+
+    private static final Logger       LOGGER     = Logger.getLogger(OneHopLookupTest.class
+                                                         .getName());
+    private static final int          NODES      = 16;
+    private static final int          MAX_ROUNDS = 50;
+
+    private LocalLocatorClientFactory clientFactory;
+    private long[]                    ids;
+    private Node[]                    nodes;
+    private NodeLocator[]             locators;
+    private DonutClient[]             clients;
+
+    @Before
+    public void setUp() {
+        // A stable ring, each node knowing just its successor and none of the others yet
+        clientFactory = new LocalLocatorClientFactory();
+        ids = new long[NODES];
+        nodes = new Node[NODES];
+        locators = new NodeLocator[NODES];
+        clients = new DonutClient[NODES];
+        for (int i = 0; i < NODES; ++i) {
+            ids[i] = i * (Long.MAX_VALUE / NODES) * 2 + Long.MIN_VALUE;
+            nodes[i] = new Node("node" + i, 8080, new KeyId(ids[i]));
+            locators[i] = new NodeLocator(nodes[i], new DonutInMemoryHashTableService(),
+                    clientFactory);
+            locators[i].setLookup(NodeLocator.Lookup.ONE_HOP);
+            clientFactory.add(nodes[i].getTNode(), locators[i]);
+            clients[i] = new DonutClient(nodes[i], clientFactory);
+            clients[i].setLookup(NodeLocator.Lookup.ONE_HOP);
+        }
+        for (int i = 0; i < NODES; ++i) {
+            nodes[i].setSuccessor(nodes[(i + 1) % NODES].getTNode());
+        }
+    }
+
+    @Test
+    public void testGossipSpreadsJoins() throws Exception {
+        int rounds = gossipUntil(NODES, -1);
+        LOGGER.info("Every node knew all " + NODES + " after " + rounds + " rounds");
+
+        Random random = new Random(0);
+        for (int l = 0; l < 100; ++l) {
+            long id = random.nextLong();
+            long before = clientFactory.getGets();
+            TNode found = locators[0].findSuccessor(new KeyId(id));
+            assertEquals("Looked up in no hops", before, clientFactory.getGets());
+            assertEquals(nodes[successor(id)].getTNode(), found);
+        }
+    }
+
+    @Test
+    public void testGossipSpreadsFailures() throws Exception {
+        gossipUntil(NODES, -1);
+
+        int dead = 5;
+        clientFactory.remove(nodes[dead].getTNode());
+        gossipUntil(NODES - 1, dead);
+
+        // Its range belongs to the next node now
+        long id = ids[dead];
+        assertEquals(nodes[dead + 1].getTNode(), locators[0].findSuccessor(new KeyId(id)));
+    }
+
+    /**
+     * Runs rounds of gossip on every node but {@code dead} until they all know of {@code size}
+     * live members.
+     * 
+     * @return the number of rounds it took
+     */
+    private int gossipUntil(int size, int dead) {
+        for (int round = 1; round <= MAX_ROUNDS; ++round) {
+            boolean done = true;
+            for (int i = 0; i < NODES; ++i) {
+                if (i != dead) {
+                    clients[i].gossip();
+                }
+            }
+            for (int i = 0; i < NODES; ++i) {
+                if (i != dead && nodes[i].getMembership().size() != size) {
+                    done = false;
+                }
+            }
+            if (done) {
+                return round;
+            }
+        }
+        assertTrue("Membership did not settle in " + MAX_ROUNDS + " rounds", false);
+        return MAX_ROUNDS;
+    }
+
+    private int successor(long id) {
+        for (int i = 0; i < NODES; ++i) {
+            if (ids[i] >= id) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Node;
+import edu.washington.cs.cse490h.donut.business.TNode;
+import edu.washington.cs.cse490h.donut.service.application.DonutInMemoryHashTableService;
+
+/**
+ * A benchmark of how long lookups take in a stable ring where one node in four is slow to
+ * answer, asking one hop at a time and several. Each ring has its fingers filled in directly
+ * rather than by running the maintenance threads.
+ * 
+ * @author jprouty
+ */
+public class ParallelLookupLatencyTest {
+
+    private static final Logger       LOGGER     = Logger.getLogger(ParallelLookupLatencyTest.class
+                                                         .getName());
+    private static final int          NODES      = 64;
+    private static final int          SUCCESSORS = 3;
+    private static final int          LOOKUPS    = 40;
+    private static final long         LATENCY    = 50;
+
+    private LocalLocatorClientFactory clientFactory;
+    private long[]                    ids;
+    private Node[]                    nodes;
+    private NodeLocator[]             locators;
+
+    @Before
+    public void setUp() {
+        Random random = new Random(0);
+        ids = new long[NODES];
+        for (int i = 0; i < NODES; ++i) {
+            ids[i] = random.nextLong();
+        }
+        Arrays.sort(ids);
+
+        clientFactory = new LocalLocatorClientFactory();
+        nodes = new Node[NODES];
+        locators = new NodeLocator[NODES];
+        for (int i = 0; i < NODES; ++i) {
+            nodes[i] = new Node("node" + i, 8080, new KeyId(ids[i]));
+            locators[i] = new NodeLocator(nodes[i], new DonutInMemoryHashTableService(),
+                    clientFactory);
+            clientFactory.add(nodes[i].getTNode(), locators[i]);
+            if (i % 4 == 3) {
+                clientFactory.setLatency(nodes[i].getTNode(), LATENCY);
+            }
+        }
+        for (int i = 0; i < NODES; ++i) {
+            nodes[i].setSuccessor(nodes[(i + 1) % NODES].getTNode());
+            nodes[i].setPredecessor(nodes[(i + NODES - 1) % NODES].getTNode());
+            List<TNode> successors = new ArrayList<TNode>();
+            for (int s = 1; s <= SUCCESSORS; ++s) {
+                successors.add(nodes[(i + s) % NODES].getTNode());
+            }
+            nodes[i].updateSuccessorList(successors);
+            for (int f = 1; f < nodes[i].getFingers().size(); ++f) {
+                long id = ids[i] + nodes[i].getFingerOffset(f);
+                nodes[i].setFinger(f, nodes[successor(id)].getTNode());
+            }
+        }
+    }
+
+    @Test
+    public void testSlowHopsCostLess() throws Exception {
+        long iterative = totalTime(NodeLocator.Lookup.ITERATIVE);
+        long parallel = totalTime(NodeLocator.Lookup.PARALLEL);
+        LOGGER.info(LOOKUPS + " lookups with one node in four " + LATENCY
+                + "ms slow took " + iterative + "ms iterative, " + parallel + "ms parallel");
+
+        assertTrue(parallel < iterative);
+    }
+
+    /**
+     * @return the milliseconds the same lookups from node 0 take, all of them answering
+     *         correctly
+     */
+    private long totalTime(NodeLocator.Lookup lookup) throws Exception {
+        Random random = new Random(1);
+        locators[0].setLookup(lookup);
+        long start = System.currentTimeMillis();
+        for (int l = 0; l < LOOKUPS; ++l) {
+            long id = random.nextLong();
+            assertEquals(nodes[successor(id)].getTNode(), locators[0].findSuccessor(new KeyId(id)));
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * @return the index of the first of the sorted ids at or after id, going round past the end
+     */
+    private int successor(long id) {
+        int i = Arrays.binarySearch(ids, id);
+        if (i < 0)
+            i = -i - 1;
+        return i % ids.length;
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Node;
+import edu.washington.cs.cse490h.donut.server.DonutClient;
+import edu.washington.cs.cse490h.donut.service.application.DonutInMemoryHashTableService;
+
+/**
+ * @author jprouty
+ */
+public class ProximityFingerTest {
+
+    private static final long[]       IDS = { 0, 64, 70, 80, 90, 200 };
+
+    private LocalLocatorClientFactory clientFactory;
+    private Node[]                    nodes;
+
+    @Before
+    public void setUp() {
+        // A ring that is already stable, each node knowing just its successor
+        clientFactory = new LocalLocatorClientFactory();
+        nodes = new Node[IDS.length];
+        for (int i = 0; i < IDS.length; ++i) {
+            nodes[i] = new Node("node" + i, 8080, new KeyId(IDS[i]));
+            clientFactory.add(nodes[i].getTNode(), new NodeLocator(nodes[i],
+                    new DonutInMemoryHashTableService(), clientFactory));
+        }
+        for (int i = 0; i < IDS.length; ++i) {
+            nodes[i].setSuccessor(nodes[(i + 1) % IDS.length].getTNode());
+            nodes[i].setPredecessor(nodes[(i + IDS.length - 1) % IDS.length].getTNode());
+        }
+    }
+
+    @Test
+    public void testFixFinger_PrefersNearestInInterval() throws Exception {
+        // Finger 6 of node0 covers [64, 128): node1 through node4
+        clientFactory.setLatency(nodes[1].getTNode(), 20);
+        clientFactory.setLatency(nodes[2].getTNode(), 20);
+        clientFactory.setLatency(nodes[4].getTNode(), 20);
+
+        DonutClient donutClient = new DonutClient(nodes[0], clientFactory);
+        donutClient.setProximityCandidates(4);
+        donutClient.fixFinger(6);
+        assertEquals(nodes[3].getTNode(), nodes[0].getFinger(6));
+    }
+
+    @Test
+    public void testFixFinger_OneCandidateTakesSuccessor() throws Exception {
+        clientFactory.setLatency(nodes[1].getTNode(), 20);
+
+        DonutClient donutClient = new DonutClient(nodes[0], clientFactory);
+        donutClient.setProximityCandidates(1);
+        donutClient.fixFinger(6);
+        assertEquals(nodes[1].getTNode(), nodes[0].getFinger(6));
+    }
+
+    @Test
+    public void testFixFinger_StaysInInterval() throws Exception {
+        // Finger 7 of node0 covers [128, 256): only node5, however slow it is
+        clientFactory.setLatency(nodes[5].getTNode(), 20);
+
+        DonutClient donutClient = new DonutClient(nodes[0], clientFactory);
+        donutClient.setProximityCandidates(4);
+        donutClient.fixFinger(7);
+        assertEquals(nodes[5].getTNode(), nodes[0].getFinger(7));
+    }
+
+    @Test
+    public void testFixFinger_EmptyInterval() throws Exception {
+        // Finger 5 of node0 covers [32, 64), where there is no node
+        DonutClient donutClient = new DonutClient(nodes[0], clientFactory);
+        donutClient.setProximityCandidates(4);
+        donutClient.fixFinger(5);
+        assertEquals(nodes[1].getTNode(), nodes[0].getFinger(5));
+    }
+
+}
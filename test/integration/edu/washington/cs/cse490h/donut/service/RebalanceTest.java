@@ -0,0 +1,130 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Load;
+import edu.washington.cs.cse490h.donut.business.Node;
+import edu.washington.cs.cse490h.donut.business.TNode;
+import edu.washington.cs.cse490h.donut.server.DonutClient;
+import edu.washington.cs.cse490h.donut.service.application.DonutInMemoryHashTableService;
+
+/**
+ * @author jprouty
+ */
+public class RebalanceTest {
+
+    private static final int          NODES   = 4;
+    private static final int          ENTRIES = 200;
+    private static final int          ROUNDS  = 20;
+
+    private LocalLocatorClientFactory clientFactory;
+    private Node[]                    nodes;
+    private NodeLocator[]             locators;
+    private DonutClient[]             clients;
+    private EntryKey[]                keys;
+
+    @Before
+    public void setUp() throws Exception {
+        clientFactory = new LocalLocatorClientFactory();
+        nodes = new Node[NODES];
+        locators = new NodeLocator[NODES];
+        clients = new DonutClient[NODES];
+        for (int i = 0; i < NODES; ++i) {
+            long id = i * (Long.MAX_VALUE / NODES) * 2 + Long.MIN_VALUE;
+            nodes[i] = new Node("node" + i, 8080, new KeyId(id));
+            locators[i] = new NodeLocator(nodes[i], new DonutInMemoryHashTableService(),
+                    clientFactory);
+            clientFactory.add(nodes[i].getTNode(), locators[i]);
+            clients[i] = new DonutClient(nodes[i], clientFactory);
+        }
+        for (int i = 0; i < NODES; ++i) {
+            nodes[i].setSuccessor(nodes[(i + 1) % NODES].getTNode());
+            nodes[(i + 1) % NODES].setPredecessor(nodes[i].getTNode());
+        }
+        stabilize();
+
+        // Everything is in the range of node 1
+        long start = nodes[0].getNodeId().getId();
+        long step = (nodes[1].getNodeId().getId() - start) / (ENTRIES + 1);
+        keys = new EntryKey[ENTRIES];
+        for (int i = 0; i < ENTRIES; ++i) {
+            keys[i] = new EntryKey(new KeyId(start + (i + 1) * step), "key" + i);
+            locators[1].put(keys[i], ("value" + i).getBytes(), 0);
+        }
+    }
+
+    @Test
+    public void testLightNodeSplitsHotRange() throws Exception {
+        TNode light = nodes[3].getTNode();
+        assertTrue(clients[1].rebalance(light));
+        // Reachable at its new id, as through the address of a connection
+        clientFactory.remove(light);
+        clientFactory.add(nodes[3].getTNode(), locators[3]);
+        stabilize();
+
+        // Node 3 is now just before node 1, in the middle of what node 1 had
+        assertEquals(nodes[1].getTNode(), nodes[3].getSuccessor());
+        assertEquals(nodes[3].getTNode(), nodes[1].getPredecessor());
+        assertEquals(nodes[3].getTNode(), nodes[0].getSuccessor());
+        assertEquals(nodes[0].getTNode(), nodes[2].getSuccessor());
+        Load moved = locators[3].getLoad();
+        Load hot = locators[1].getLoad();
+        assertEquals(ENTRIES, moved.getKeys() + hot.getKeys());
+        assertEquals(ENTRIES / 2, moved.getKeys(), ENTRIES / 10);
+
+        // And every entry is still where a lookup goes for it
+        for (int i = 0; i < ENTRIES; ++i) {
+            TNode owner = locators[2].findSuccessor(keys[i].getId());
+            assertArrayEquals(("value" + i).getBytes(), clientFactory.get(owner).get(keys[i]));
+        }
+    }
+
+    @Test
+    public void testBalancedNodesStay() throws Exception {
+        // Node 2 has nothing either, so node 3 is not overloaded next to it
+        assertFalse(clients[3].rebalance(nodes[2].getTNode()));
+        // And node 1 has too little against node 0 to bother
+        for (int i = 0; i < ENTRIES - 10; ++i) {
+            locators[1].remove(keys[i]);
+        }
+        assertFalse(clients[1].rebalance(nodes[0].getTNode()));
+        assertEquals(Long.MIN_VALUE, nodes[0].getNodeId().getId());
+    }
+
+    /**
+     * Runs the maintenance of every node by hand until the ring has had time to settle.
+     */
+    private void stabilize() {
+        for (int round = 0; round < ROUNDS; ++round) {
+            for (DonutClient client : clients) {
+                client.stabilize();
+                client.fixFingers();
+            }
+        }
+    }
+
+}
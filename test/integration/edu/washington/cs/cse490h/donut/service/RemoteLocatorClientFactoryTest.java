@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.ServerSocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.TNode;
+
+/**
+ * Peers that take connections and never answer, as a process that hangs does.
+ * 
+ * @author jprouty
+ */
+public class RemoteLocatorClientFactoryTest {
+
+    private static final int           CONNECT_TIMEOUT = 500;
+    private static final int           READ_TIMEOUT    = 2000;
+
+    private ServerSocket               hung;
+    private ServerSocket               other;
+    private RemoteLocatorClientFactory clientFactory;
+
+    @Before
+    public void setUp() throws Exception {
+        hung = new ServerSocket(0);
+        other = new ServerSocket(0);
+        clientFactory = new RemoteLocatorClientFactory(CONNECT_TIMEOUT, READ_TIMEOUT);
+        clientFactory.setRetries(1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        hung.close();
+        other.close();
+    }
+
+    @Test
+    public void testHungPeer_TimesOut() throws Exception {
+        long start = System.currentTimeMillis();
+        try {
+            clientFactory.get(new TNode("localhost", hung.getLocalPort(), new KeyId(1)));
+            fail("A peer that never answered which position it is was connected to");
+        } catch (RetryFailedException e) {
+        }
+        assertTrue(System.currentTimeMillis() - start < CONNECT_TIMEOUT + READ_TIMEOUT);
+    }
+
+    @Test
+    public void testHungPeer_DoesNotHoldUpOthers() throws Exception {
+        Thread waiting = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    clientFactory.get(new TNode("localhost", hung.getLocalPort(), new KeyId(1)));
+                } catch (RetryFailedException e) {
+                }
+            }
+        };
+        waiting.start();
+        Thread.sleep(100);
+
+        // Another peer connects while the first is still being asked which position it is
+        long start = System.currentTimeMillis();
+        TNode node = new TNode("localhost", other.getLocalPort(), null);
+        assertNotNull(clientFactory.get(node));
+        assertTrue(System.currentTimeMillis() - start < CONNECT_TIMEOUT);
+        clientFactory.release(node);
+        waiting.join();
+    }
+
+    @Test
+    public void testRelease_WakesThoseWaiting() throws Exception {
+        final TNode first = new TNode("localhost", hung.getLocalPort(), null);
+        final TNode second = new TNode("localhost", other.getLocalPort(), null);
+        clientFactory.get(first);
+        clientFactory.get(second);
+        Thread[] waiting = new Thread[2];
+        for (int i = 0; i < waiting.length; ++i) {
+            final TNode node = i == 0 ? first : second;
+            waiting[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        clientFactory.get(node);
+                        clientFactory.release(node);
+                    } catch (RetryFailedException e) {
+                    }
+                }
+            };
+            waiting[i].start();
+        }
+        Thread.sleep(100);
+
+        // Releasing one node lets through the thread waiting for it, whichever wakes first
+        clientFactory.release(second);
+        waiting[1].join(1000);
+        assertFalse(waiting[1].isAlive());
+        assertTrue(waiting[0].isAlive());
+        clientFactory.release(first);
+        waiting[0].join(1000);
+        assertFalse(waiting[0].isAlive());
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Node;
+import edu.washington.cs.cse490h.donut.business.TNode;
+import edu.washington.cs.cse490h.donut.service.application.DonutInMemoryHashTableService;
+
+/**
+ * A benchmark of how many hops a lookup takes in a stable ring, for each finger table base. Each
+ * ring has its fingers filled in directly rather than by running the maintenance threads.
+ * 
+ * @author jprouty
+ */
+public class RoutingHopCountTest {
+
+    private static final Logger LOGGER  = Logger.getLogger(RoutingHopCountTest.class.getName());
+    private static final int    NODES   = 2000;
+    private static final int    ORIGINS = 20;
+    private static final int    LOOKUPS = 50;
+
+    @Test
+    public void testHopCount() throws Exception {
+        double base2 = averageHops(2);
+        double base4 = averageHops(4);
+        double base16 = averageHops(16);
+        LOGGER.info("Hops per lookup among " + NODES + " nodes: base 2 " + base2 + ", base 4 "
+                + base4 + ", base 16 " + base16);
+
+        assertTrue(base4 < base2);
+        assertTrue(base16 < base4);
+    }
+
+    /**
+     * @return the average number of other nodes a lookup asks, all of them answering correctly
+     */
+    private double averageHops(int base) throws Exception {
+        Random random = new Random(base);
+        long[] ids = new long[NODES];
+        for (int i = 0; i < NODES; ++i) {
+            ids[i] = random.nextLong();
+        }
+        Arrays.sort(ids);
+
+        LocalLocatorClientFactory clientFactory = new LocalLocatorClientFactory();
+        Node[] nodes = new Node[NODES];
+        NodeLocator[] locators = new NodeLocator[NODES];
+        for (int i = 0; i < NODES; ++i) {
+            nodes[i] = new Node("node" + i, 8080, new KeyId(ids[i]), base);
+            locators[i] = new NodeLocator(nodes[i], new DonutInMemoryHashTableService(),
+                    clientFactory);
+            clientFactory.add(nodes[i].getTNode(), locators[i]);
+        }
+        for (int i = 0; i < NODES; ++i) {
+            nodes[i].setSuccessor(nodes[(i + 1) % NODES].getTNode());
+            nodes[i].setPredecessor(nodes[(i + NODES - 1) % NODES].getTNode());
+            for (int f = 1; f < nodes[i].getFingers().size(); ++f) {
+                long id = ids[i] + nodes[i].getFingerOffset(f);
+                nodes[i].setFinger(f, nodes[successor(ids, id)].getTNode());
+            }
+        }
+
+        long hops = 0;
+        for (int o = 0; o < ORIGINS; ++o) {
+            NodeLocator origin = locators[random.nextInt(NODES)];
+            for (int l = 0; l < LOOKUPS; ++l) {
+                long id = random.nextLong();
+                long before = clientFactory.getGets();
+                TNode found = origin.findSuccessor(new KeyId(id));
+                hops += clientFactory.getGets() - before;
+                assertEquals(nodes[successor(ids, id)].getTNode(), found);
+            }
+        }
+        return (double) hops / (ORIGINS * LOOKUPS);
+    }
+
+    /**
+     * @return the index of the first of the sorted ids at or after id, going round past the end
+     */
+    private static int successor(long[] ids, long id) {
+        int i = Arrays.binarySearch(ids, id);
+        if (i < 0)
+            i = -i - 1;
+        return i % ids.length;
+    }
+
+}
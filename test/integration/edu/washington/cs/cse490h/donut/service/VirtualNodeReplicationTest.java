@@ -0,0 +1,145 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Node;
+import edu.washington.cs.cse490h.donut.business.TNode;
+import edu.washington.cs.cse490h.donut.server.DonutClient;
+import edu.washington.cs.cse490h.donut.service.application.DonutHashTableService;
+import edu.washington.cs.cse490h.donut.service.application.DonutInMemoryHashTableService;
+
+/**
+ * A ring of processes that each have several positions on it, all sharing the store of their
+ * process.
+ * 
+ * @author jprouty
+ */
+public class VirtualNodeReplicationTest {
+
+    private static final int          PROCESSES = 4;
+    private static final int          POSITIONS = 4;
+    private static final int          NODES     = PROCESSES * POSITIONS;
+    private static final int          ENTRIES   = 200;
+    private static final int          ROUNDS    = 20;
+
+    private LocalLocatorClientFactory clientFactory;
+    private DonutHashTableService[]   stores;
+    private long[]                    ids;
+    private Node[]                    nodes;
+    private NodeLocator[]             locators;
+    private DonutClient[]             clients;
+
+    @Before
+    public void setUp() {
+        Random random = new Random(23);
+        clientFactory = new LocalLocatorClientFactory();
+        stores = new DonutHashTableService[PROCESSES];
+        for (int p = 0; p < PROCESSES; ++p) {
+            stores[p] = new DonutInMemoryHashTableService();
+        }
+        ids = new long[NODES];
+        for (int i = 0; i < NODES; ++i) {
+            ids[i] = random.nextLong();
+        }
+        Arrays.sort(ids);
+
+        // The positions of each process are spread at random around the ring
+        List<Integer> processes = new ArrayList<Integer>();
+        for (int i = 0; i < NODES; ++i) {
+            processes.add(i % PROCESSES);
+        }
+        Collections.shuffle(processes, random);
+        nodes = new Node[NODES];
+        locators = new NodeLocator[NODES];
+        clients = new DonutClient[NODES];
+        for (int i = 0; i < NODES; ++i) {
+            int p = processes.get(i);
+            nodes[i] = new Node("process" + p, 8080, new KeyId(ids[i]));
+            locators[i] = new NodeLocator(nodes[i], stores[p], clientFactory);
+            clientFactory.add(nodes[i].getTNode(), locators[i]);
+            clients[i] = new DonutClient(nodes[i], clientFactory);
+        }
+        for (int i = 0; i < NODES; ++i) {
+            nodes[i].setSuccessor(nodes[(i + 1) % NODES].getTNode());
+            nodes[(i + 1) % NODES].setPredecessor(nodes[i].getTNode());
+        }
+        for (int round = 0; round < ROUNDS; ++round) {
+            for (DonutClient client : clients) {
+                client.stabilize();
+            }
+        }
+    }
+
+    @Test
+    public void testReplicasInDistinctProcesses() throws Exception {
+        for (Node node : nodes) {
+            Set<String> names = new HashSet<String>();
+            for (TNode replica : node.getReplicas()) {
+                assertFalse(replica.getName().equals(node.getName()));
+                names.add(replica.getName());
+            }
+            assertEquals(PROCESSES - 1, names.size());
+        }
+    }
+
+    @Test
+    public void testEveryProcessHasACopy() throws Exception {
+        Random random = new Random(0);
+        for (int e = 0; e < ENTRIES; ++e) {
+            EntryKey key = new EntryKey(new KeyId(random.nextLong()), "key" + e);
+            locators[successor(key.getId().getId())].put(key, "value".getBytes(), 0);
+        }
+
+        // One copy where the key falls and one in each of the other processes, as there are no
+        // more of them than replicas
+        random = new Random(0);
+        for (int e = 0; e < ENTRIES; ++e) {
+            EntryKey key = new EntryKey(new KeyId(random.nextLong()), "key" + e);
+            for (DonutHashTableService store : stores) {
+                assertNotNull(store.get(key));
+            }
+        }
+    }
+
+    /**
+     * @return the index of the first of the sorted ids at or after id, going round past the end
+     */
+    private int successor(long id) {
+        int i = Arrays.binarySearch(ids, id);
+        if (i < 0)
+            i = -i - 1;
+        return i % ids.length;
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.name.Names;
+
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Node;
+import edu.washington.cs.cse490h.donut.business.TNode;
+import edu.washington.cs.cse490h.donut.server.DonutClient;
+import edu.washington.cs.cse490h.donut.server.VirtualNodes;
+import edu.washington.cs.cse490h.donut.service.application.DonutHashTableService;
+import edu.washington.cs.cse490h.donut.service.application.DonutInMemoryHashTableService;
+
+/**
+ * @author jprouty
+ */
+public class VirtualNodesTest {
+
+    private static final Logger       LOGGER = Logger.getLogger(VirtualNodesTest.class.getName());
+    private static final int          ROUNDS = 100;
+
+    private LocalLocatorClientFactory clientFactory;
+    private List<VirtualNodes>        processes;
+
+    @Before
+    public void setUp() {
+        clientFactory = new LocalLocatorClientFactory();
+        processes = new ArrayList<VirtualNodes>();
+    }
+
+    @Test
+    public void testPositionsShareTheService() throws Exception {
+        VirtualNodes process = start("big", 1000, 4);
+        stabilize();
+
+        assertEquals(4, process.getNodes().size());
+        DonutHashTableService service = process.getLocators().get(0).getService();
+        for (NodeLocator locator : process.getLocators()) {
+            assertSame(service, locator.getService());
+        }
+        // A ring of their own, in the order of their ids
+        List<Node> sorted = sortedNodes();
+        for (int i = 0; i < sorted.size(); ++i) {
+            assertEquals(sorted.get((i + 1) % sorted.size()).getTNode(), sorted.get(i)
+                    .getSuccessor());
+        }
+    }
+
+    @Test
+    public void testCapacityTakesKeySpace() throws Exception {
+        VirtualNodes small = start("small", 1000, 1);
+        VirtualNodes big = start("big", 2000, 8);
+        big.join(small.getNodes().get(0).getTNode());
+        stabilize();
+
+        // Every position of either process is on the one ring
+        List<Node> sorted = sortedNodes();
+        assertEquals(9, sorted.size());
+        for (int i = 0; i < sorted.size(); ++i) {
+            assertEquals(sorted.get((i + 1) % sorted.size()).getTNode(), sorted.get(i)
+                    .getSuccessor());
+        }
+
+        double bigShare = share(big);
+        LOGGER.info("8 positions took " + bigShare + " of the key space, 1 took "
+                + share(small));
+        assertEquals(1.0, bigShare + share(small), 1e-9);
+        assertTrue(bigShare > 0.5);
+
+        // And any position finds the owner of an id, whichever process it is on
+        TNode owner = sorted.get(3).getTNode();
+        KeyId id = new KeyId(owner.getNodeId().getId() - 1);
+        assertEquals(owner, small.getLocators().get(0).findSuccessor(id));
+        assertEquals(owner, big.getLocators().get(5).findSuccessor(id));
+    }
+
+    private VirtualNodes start(String name, long key, final int positions) throws Exception {
+        final Node node = new Node(name, 8080, new KeyId(key));
+        VirtualNodes process = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(Node.class).toInstance(node);
+                bind(DonutHashTableService.class).toInstance(new DonutInMemoryHashTableService());
+                bind(LocatorClientFactory.class).toInstance(clientFactory);
+                bindConstant().annotatedWith(Names.named(VirtualNodes.POSITIONS)).to(positions);
+            }
+        }).getInstance(VirtualNodes.class);
+        for (int i = 0; i < process.getNodes().size(); ++i) {
+            clientFactory.add(process.getNodes().get(i).getTNode(), process.getLocators().get(i));
+        }
+        if (processes.isEmpty()) {
+            process.join(node.getTNode());
+        }
+        processes.add(process);
+        return process;
+    }
+
+    /**
+     * Runs the maintenance of every position by hand until the ring has had time to settle.
+     */
+    private void stabilize() {
+        for (int round = 0; round < ROUNDS; ++round) {
+            for (VirtualNodes process : processes) {
+                for (DonutClient client : process.getClients()) {
+                    client.stabilize();
+                    client.fixFingers();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the fraction of the key space the positions of {@code process} are responsible for
+     */
+    private double share(VirtualNodes process) {
+        double share = 0;
+        for (Node node : process.getNodes()) {
+            long start = node.getPredecessor().getNodeId().getId();
+            long length = node.getNodeId().getId() - start;
+            // As an unsigned 64 bit number
+            share += ((double) (length >>> 1) * 2 + (length & 1)) / Math.pow(2, 64);
+        }
+        return share;
+    }
+
+    private List<Node> sortedNodes() {
+        List<Node> nodes = new ArrayList<Node>();
+        for (VirtualNodes process : processes) {
+            nodes.addAll(process.getNodes());
+        }
+        Collections.sort(nodes, new Comparator<Node>() {
+            public int compare(Node a, Node b) {
+                return Long.valueOf(a.getNodeId().getId()).compareTo(b.getNodeId().getId());
+            }
+        });
+        return nodes;
+    }
+
+}
@@ -127,7 +127,7 @@ public class DonutTestRunner {
         return clientFactory.get(node(index).getTNode());
     }
 
-    protected DonutClient client(int index) {
+    public DonutClient client(int index) {
         return clientList.get(index);
     }
 
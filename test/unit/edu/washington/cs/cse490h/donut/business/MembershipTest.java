@@ -0,0 +1,146 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.business;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author jprouty
+ */
+public class MembershipTest {
+
+    private static final TNode SELF  = new TNode("self", 8080, new KeyId(100));
+    private static final TNode NODE1 = new TNode("node1", 8080, new KeyId(200));
+    private static final TNode NODE2 = new TNode("node2", 8080, new KeyId(300));
+
+    @Test
+    public void testSuccessor() throws Exception {
+        Membership membership = new Membership(SELF);
+        membership.apply(new Member(NODE1, true, 1));
+        membership.apply(new Member(NODE2, true, 1));
+
+        assertEquals(3, membership.size());
+        assertEquals(NODE1, membership.successor(new KeyId(101)));
+        assertEquals(NODE1, membership.successor(new KeyId(200)));
+        assertEquals(NODE2, membership.successor(new KeyId(201)));
+        // Round past the top of the key space
+        assertEquals(SELF, membership.successor(new KeyId(301)));
+        assertEquals(SELF, membership.successor(new KeyId(-1)));
+    }
+
+    @Test
+    public void testSuccessor_NoneKnown() throws Exception {
+        Membership membership = new Membership(new TNode(null, 0, null));
+        assertNull(membership.successor(new KeyId(1)));
+        assertNull(membership.randomPeer(new Random()));
+    }
+
+    @Test
+    public void testApply_OnlyNewer() throws Exception {
+        Membership membership = new Membership(SELF);
+        assertTrue(membership.apply(new Member(NODE1, true, 2)));
+        assertFalse(membership.apply(new Member(NODE1, true, 2)));
+        assertFalse(membership.apply(new Member(NODE1, false, 1)));
+        assertEquals(NODE1, membership.successor(new KeyId(150)));
+
+        // At the same incarnation, dead beats alive
+        assertTrue(membership.apply(new Member(NODE1, false, 2)));
+        assertFalse(membership.apply(new Member(NODE1, true, 2)));
+        assertEquals(SELF, membership.successor(new KeyId(150)));
+
+        // Back, as a newer incarnation
+        assertTrue(membership.apply(new Member(NODE1, true, 3)));
+        assertEquals(NODE1, membership.successor(new KeyId(150)));
+    }
+
+    @Test
+    public void testApply_RefutesOwnDeath() throws Exception {
+        Membership membership = new Membership(SELF);
+        long incarnation = membership.getMembers().get(0).getIncarnation();
+        membership.getRumors();
+
+        assertTrue(membership.apply(new Member(SELF, false, incarnation)));
+        assertEquals(SELF, membership.successor(new KeyId(0)));
+        List<Member> rumors = membership.getRumors();
+        assertEquals(1, rumors.size());
+        assertEquals(new Member(SELF, true, incarnation + 1), rumors.get(0));
+    }
+
+    @Test
+    public void testSuspect() throws Exception {
+        Membership membership = new Membership(SELF);
+        membership.apply(new Member(NODE1, true, 5));
+        membership.suspect(NODE1);
+        assertEquals(1, membership.size());
+        assertTrue(membership.getMembers().contains(new Member(NODE1, false, 5)));
+
+        // Never itself
+        membership.suspect(SELF);
+        assertEquals(1, membership.size());
+    }
+
+    @Test
+    public void testGetRumors_PassedOnForRounds() throws Exception {
+        Membership membership = new Membership(SELF);
+        membership.apply(new Member(NODE1, true, 1));
+
+        // One of 2 members known, which takes 2 bits to count
+        for (int i = 0; i < 2 * Membership.RUMOR_ROUNDS; ++i) {
+            assertTrue(membership.getRumors().contains(new Member(NODE1, true, 1)));
+        }
+        assertTrue(membership.getRumors().isEmpty());
+    }
+
+    @Test
+    public void testIsKnown() throws Exception {
+        Membership membership = new Membership(SELF);
+        membership.apply(new Member(NODE1, false, 1));
+        assertTrue(membership.isKnown(NODE1));
+        assertFalse(membership.isAlive(NODE1));
+        assertFalse(membership.isKnown(NODE2));
+        assertTrue(membership.isAlive(SELF));
+    }
+
+    @Test
+    public void testIsStale() throws Exception {
+        Membership membership = new Membership(SELF);
+        assertTrue(membership.isStale());
+        membership.applyAll(new ArrayList<Member>());
+        assertFalse(membership.isStale());
+    }
+
+    @Test
+    public void testRandomPeer() throws Exception {
+        Membership membership = new Membership(SELF);
+        assertNull(membership.randomPeer(new Random()));
+        membership.apply(new Member(NODE1, true, 1));
+        Random random = new Random(0);
+        for (int i = 0; i < 10; ++i) {
+            assertEquals(NODE1, membership.randomPeer(random));
+        }
+    }
+
+}
@@ -17,8 +17,11 @@
 package edu.washington.cs.cse490h.donut.business;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Test;
@@ -150,4 +153,98 @@ public class NodeTest {
 
         assertEquals(expected, Node.TNodeListToString(list));
     }
+
+    @Test
+    public void testFingerOffsets_Base2() throws Exception {
+        Node node = new Node("testNode0", 8080, new KeyId(0));
+        assertEquals(64, node.getFingers().size());
+        assertEquals(1L, node.getFingerOffset(0));
+        assertEquals(2L, node.getFingerEnd(0));
+        assertEquals(1L << 10, node.getFingerOffset(10));
+        assertEquals(1L << 11, node.getFingerEnd(10));
+        // The last interval runs to the end of the key space
+        assertEquals(0L, node.getFingerEnd(63));
+    }
+
+    @Test
+    public void testFingerOffsets_Base16() throws Exception {
+        Node node = new Node("testNode0", 8080, new KeyId(0), 16);
+        assertEquals(15 * 16, node.getFingers().size());
+        assertEquals(1L, node.getFingerOffset(0));
+        assertEquals(15L, node.getFingerOffset(14));
+        assertEquals(16L, node.getFingerEnd(14));
+        assertEquals(16L, node.getFingerOffset(15));
+        assertEquals(32L, node.getFingerEnd(15));
+        assertEquals(3L << 16, node.getFingerOffset(15 * 4 + 2));
+        assertEquals(4L << 16, node.getFingerEnd(15 * 4 + 2));
+        assertEquals(15L << 60, node.getFingerOffset(15 * 16 - 1));
+        assertEquals(0L, node.getFingerEnd(15 * 16 - 1));
+    }
+
+    @Test
+    public void testFingerOffsets_TopDigitCutShort() throws Exception {
+        // 64 bits are 21 digits of 3 bits and one of a single bit
+        Node node = new Node("testNode0", 8080, new KeyId(0), 8);
+        assertEquals(7 * 21 + 1, node.getFingers().size());
+        assertEquals(1L << 63, node.getFingerOffset(7 * 21));
+        assertEquals(0L, node.getFingerEnd(7 * 21));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBase_NotPowerOfTwo() throws Exception {
+        new Node("testNode0", 8080, new KeyId(0), 10);
+    }
+
+    @Test
+    public void testMoveTo() throws Exception {
+        Node node = new Node("testNode0", 8080, new KeyId(100), 4);
+        TNode other = new TNode("testNode1", 8080, new KeyId(500));
+        node.setPredecessor(other);
+        node.setFinger(5, other);
+
+        TNode successor = new TNode("testNode2", 8080, new KeyId(900));
+        node.moveTo(new KeyId(700), successor);
+        assertEquals(new TNode("testNode0", 8080, new KeyId(700)), node.getTNode());
+        assertEquals(4, node.getBase());
+        assertEquals(successor, node.getSuccessor());
+        assertNull(node.getPredecessor());
+        assertEquals(node.getTNode(), node.getFinger(5));
+        assertEquals(1, node.getMembership().size());
+        assertTrue(node.getMembership().isKnown(node.getTNode()));
+    }
+
+    @Test
+    public void testUpdateSuccessorList_ReachesPastSiblings() throws Exception {
+        Node node = new Node("a", 8080, new KeyId(100));
+        TNode sibling1 = new TNode("a", 8080, new KeyId(200));
+        TNode b = new TNode("b", 8080, new KeyId(300));
+        TNode sibling2 = new TNode("a", 8080, new KeyId(400));
+        TNode c = new TNode("c", 8080, new KeyId(500));
+        TNode b2 = new TNode("b", 8080, new KeyId(600));
+        TNode d = new TNode("d", 8080, new KeyId(700));
+        TNode e = new TNode("e", 8080, new KeyId(800));
+        node.setSuccessor(sibling1);
+        node.updateSuccessorList(Arrays.asList(b, sibling2, c, b2, d, e));
+
+        // Three other processes, past the other positions of this one and of those already listed
+        assertEquals(Arrays.asList(sibling1, b, sibling2, c, b2, d), node.getSuccessorList());
+        // And one copy in each of them
+        assertEquals(Arrays.asList(b, c, d), node.getReplicas());
+    }
+
+    @Test
+    public void testUpdateSuccessorList_NoSiblings() throws Exception {
+        Node node = new Node("a", 8080, new KeyId(100));
+        TNode b = new TNode("b", 8080, new KeyId(300));
+        TNode c = new TNode("c", 8080, new KeyId(500));
+        TNode d = new TNode("d", 8080, new KeyId(700));
+        node.setSuccessor(b);
+        node.updateSuccessorList(Arrays.asList(c, d, new TNode("e", 8080, new KeyId(800))));
+        assertEquals(Arrays.asList(b, c, d), node.getSuccessorList());
+        assertEquals(Arrays.asList(b, c, d), node.getReplicas());
+
+        // Nor itself, in a ring too small to go round without coming back
+        node.updateSuccessorList(Arrays.asList(node.getTNode(), b));
+        assertEquals(Arrays.asList(b), node.getReplicas());
+    }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.business;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.Constants;
+import edu.washington.cs.cse490h.donut.util.KeyIdUtil;
+
+/**
+ * @author jprouty
+ */
+public class RoutingTableTest {
+
+    private static final TNode SELF = new TNode("self", 8080, new KeyId(1000));
+
+    @Test
+    public void testClosestPrecedingNode_Alone() throws Exception {
+        RoutingTable table = new RoutingTable(SELF);
+
+        assertEquals(0, table.getPeerCount());
+        assertSame(SELF, table.closestPrecedingNode(new KeyId(5)));
+        assertSame(SELF, table.closestPrecedingNode(SELF.getNodeId()));
+    }
+
+    @Test
+    public void testClosestPrecedingNode_DeduplicatesPeers() throws Exception {
+        TNode a = new TNode("a", 8080, new KeyId(1100));
+        TNode b = new TNode("b", 8080, new KeyId(-5));
+        RoutingTable table = new RoutingTable(SELF).withFinger(0, a);
+        for (int i = 1; i < 10; ++i) {
+            table = table.withFinger(i, a);
+        }
+        for (int i = 10; i < Constants.KEY_SPACE; ++i) {
+            table = table.withFinger(i, b);
+        }
+
+        assertEquals(2, table.getPeerCount());
+        assertSame(SELF, table.closestPrecedingNode(new KeyId(1100)));
+        assertSame(a, table.closestPrecedingNode(new KeyId(1101)));
+        // Wraps past the top of the key space
+        assertSame(a, table.closestPrecedingNode(new KeyId(-5)));
+        assertSame(b, table.closestPrecedingNode(new KeyId(-4)));
+        assertSame(b, table.closestPrecedingNode(new KeyId(999)));
+        assertSame(b, table.closestPrecedingNode(SELF.getNodeId()));
+    }
+
+    @Test
+    public void testClosestPrecedingNode_SameAsScan() throws Exception {
+        Random random = new Random(17);
+        for (int round = 0; round < 50; ++round) {
+            long[] ids = new long[8];
+            for (int i = 0; i < ids.length; ++i) {
+                ids[i] = random.nextLong();
+            }
+            Arrays.sort(ids);
+            // A well formed finger table: each finger is the first peer at least 2^i along
+            long self = random.nextLong();
+            RoutingTable table = new RoutingTable(new TNode("self", 0, new KeyId(self)));
+            TNode[] fingers = new TNode[Constants.KEY_SPACE];
+            for (int i = 0; i < fingers.length; ++i) {
+                long start = self + (1L << i);
+                fingers[i] = new TNode("self", 0, new KeyId(self));
+                for (long id : ids) {
+                    if (KeyIdUtil.isAfterXButBeforeOrEqualY(id, start - 1, fingers[i]
+                            .getNodeId().getId())) {
+                        fingers[i] = new TNode("n" + id, 0, new KeyId(id));
+                    }
+                }
+                table = table.withFinger(i, fingers[i]);
+            }
+
+            for (int probe = 0; probe < 100; ++probe) {
+                KeyId entryId = new KeyId(random.nextLong());
+                assertEquals(scan(self, fingers, entryId), table.closestPrecedingNode(entryId));
+            }
+        }
+    }
+
+    @Test
+    public void testWithFinger_LeavesOriginal() throws Exception {
+        TNode a = new TNode("a", 8080, new KeyId(1100));
+        RoutingTable table = new RoutingTable(SELF);
+        RoutingTable updated = table.withFinger(3, a);
+
+        assertSame(SELF, table.getFinger(3));
+        assertSame(a, updated.getFinger(3));
+        assertSame(SELF, table.closestPrecedingNode(new KeyId(2000)));
+        assertSame(a, updated.closestPrecedingNode(new KeyId(2000)));
+    }
+
+    @Test
+    public void testWithSuccessors_SuccessorIsFingerZero() throws Exception {
+        TNode a = new TNode("a", 8080, new KeyId(1100));
+        TNode b = new TNode("b", 8080, new KeyId(1200));
+        RoutingTable table = new RoutingTable(SELF).withSuccessors(Arrays.asList(a, b));
+
+        assertSame(a, table.getSuccessor());
+        assertSame(a, table.getFinger(0));
+        assertEquals(Arrays.asList(a, b), table.getSuccessorList());
+        assertSame(a, table.closestPrecedingNode(new KeyId(1300)));
+    }
+
+    @Test
+    public void testClosestPrecedingNode_SkipsUnknownIds() throws Exception {
+        RoutingTable table = new RoutingTable(SELF).withFinger(0, new TNode("hello", 0, null));
+
+        assertEquals(0, table.getPeerCount());
+        assertSame(SELF, table.closestPrecedingNode(new KeyId(2000)));
+    }
+
+    /**
+     * What Node did before: the last finger, from the top, strictly between it and the id.
+     */
+    private static TNode scan(long self, TNode[] fingers, KeyId entryId) {
+        for (int i = fingers.length - 1; i >= 0; --i) {
+            long finger = fingers[i].getNodeId().getId();
+            if (finger != self
+                    && KeyIdUtil.isAfterXButBeforeOrEqualY(entryId.getId(), finger, self)) {
+                return fingers[i];
+            }
+        }
+        return new TNode("self", 0, new KeyId(self));
+    }
+
+}
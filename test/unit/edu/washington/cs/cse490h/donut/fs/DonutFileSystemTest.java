@@ -0,0 +1,142 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.fs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Node;
+import edu.washington.cs.cse490h.donut.business.TNode;
+import edu.washington.cs.cse490h.donut.service.DataNotFoundException;
+import edu.washington.cs.cse490h.donut.service.DonutHashRequestService;
+import edu.washington.cs.cse490h.donut.service.KeyLocator;
+import edu.washington.cs.cse490h.donut.service.LocatorClientFactory;
+import edu.washington.cs.cse490h.donut.service.NodeLocator;
+import edu.washington.cs.cse490h.donut.service.application.DonutSortedHashTableService;
+
+/**
+ * @author jprouty
+ */
+public class DonutFileSystemTest {
+
+    private static final KeyId          ZERO = new KeyId(0);
+
+    private DonutSortedHashTableService store;
+    private DonutHashRequestService     hashService;
+    private DonutFileSystem             fs;
+
+    @Before
+    public void setUp() {
+        // A ring of one node
+        store = new DonutSortedHashTableService();
+        Node node = new Node("self", 8080, new KeyId(1));
+        node.setPredecessor(node.getTNode());
+        final NodeLocator locator = new NodeLocator(node, store, null);
+        LocatorClientFactory clientFactory = new LocatorClientFactory() {
+            public KeyLocator.Iface get(TNode node) {
+                return locator;
+            }
+
+            public void release(TNode node) {
+            }
+        };
+        hashService = new DonutHashRequestService(locator, clientFactory);
+        fs = new DonutFileSystem(hashService);
+    }
+
+    @Test
+    public void testWriteRead() throws Exception {
+        byte[] content = random(1, 300 * 1024);
+        int sent = fs.write("/a", content);
+        FileManifest manifest = fs.stat("/a");
+        assertEquals(content.length, manifest.getLength());
+        assertEquals(manifest.getChunkCount(), sent);
+        assertTrue(sent > 1);
+        assertArrayEquals(content, fs.read("/a"));
+    }
+
+    @Test
+    public void testWrite_SimilarFileSharesChunks() throws Exception {
+        byte[] original = random(2, 300 * 1024);
+        int chunks = fs.write("/original", original);
+        int entries = store.getRange(ZERO, ZERO).size();
+
+        // The same file again costs nothing but its manifest
+        assertEquals(0, fs.write("/copy", original));
+        assertEquals(entries + 1, store.getRange(ZERO, ZERO).size());
+
+        // And a small edit in the middle only the chunks around it
+        byte[] edited = original.clone();
+        System.arraycopy(random(3, 50), 0, edited, edited.length / 2, 50);
+        int sent = fs.write("/edited", edited);
+        assertTrue(sent + " of " + chunks, sent >= 1 && sent <= 3);
+        assertEquals(entries + 2 + sent, store.getRange(ZERO, ZERO).size());
+        assertArrayEquals(edited, fs.read("/edited"));
+        assertArrayEquals(original, fs.read("/copy"));
+    }
+
+    @Test
+    public void testWrite_KnownChunksFromAnotherClient() throws Exception {
+        byte[] content = random(4, 100 * 1024);
+        fs.write("/a", content);
+        DonutFileSystem other = new DonutFileSystem(hashService);
+        assertEquals(0, other.write("/b", content));
+    }
+
+    @Test
+    public void testWrite_RepeatedContent() throws Exception {
+        byte[] block = random(5, 64 * 1024);
+        byte[] content = new byte[block.length * 4];
+        for (int i = 0; i < 4; ++i) {
+            System.arraycopy(block, 0, content, i * block.length, block.length);
+        }
+        fs.write("/repeated", content);
+        FileManifest manifest = fs.stat("/repeated");
+        assertTrue(manifest.getChunkCount() > 4);
+        assertTrue(store.getRange(ZERO, ZERO).size() < manifest.getChunkCount());
+        assertArrayEquals(content, fs.read("/repeated"));
+    }
+
+    @Test(expected = DataNotFoundException.class)
+    public void testDelete() throws Exception {
+        fs.write("/a", "content".getBytes());
+        fs.delete("/a");
+        fs.read("/a");
+    }
+
+    @Test
+    public void testManifest_RoundTrip() throws Exception {
+        FileManifest manifest = new FileManifest(Arrays.asList("ab", "cd"), Arrays.asList(3, 4));
+        assertEquals(7, manifest.getLength());
+        assertEquals(manifest, FileManifest.decode(manifest.encode()));
+    }
+
+    private static byte[] random(long seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+}
@@ -20,6 +20,7 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
@@ -28,6 +29,7 @@ import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import org.apache.thrift.TException;
 import org.easymock.EasyMock;
@@ -36,14 +38,22 @@ import org.junit.Before;
 import org.junit.Test;
 
 import edu.washington.cs.cse490h.donut.Constants;
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
 import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Member;
 import edu.washington.cs.cse490h.donut.business.Node;
 import edu.washington.cs.cse490h.donut.business.TNode;
 import edu.washington.cs.cse490h.donut.service.KeyLocator;
 import edu.washington.cs.cse490h.donut.service.LocatorClientFactory;
+import edu.washington.cs.cse490h.donut.service.NodeLocator;
 import edu.washington.cs.cse490h.donut.service.NodeNotFoundException;
 import edu.washington.cs.cse490h.donut.service.RetryFailedException;
 import edu.washington.cs.cse490h.donut.service.KeyLocator.Iface;
+import edu.washington.cs.cse490h.donut.service.application.DonutHashTableService;
+import edu.washington.cs.cse490h.donut.service.application.DonutInMemoryHashTableService;
+import edu.washington.cs.cse490h.donut.service.application.DonutMerkleHashTableService;
+import edu.washington.cs.cse490h.donut.service.application.DonutSortedHashTableService;
 
 /**
  * @author alevy
@@ -190,6 +200,56 @@ public class DonutClientTest {
         assertSame(node.getSuccessorList().get(2), predecessor);
     }
 
+    @Test
+    public void testGossip_PullsFromSuccessorWhenAlone() throws Exception {
+        Node node = new Node("self", 0, new KeyId(100));
+        TNode successor = new TNode("other", 0, new KeyId(200));
+        TNode third = new TNode("third", 0, new KeyId(300));
+        node.setSuccessor(successor);
+
+        DonutClient donutClient = new DonutClient(node, clientLocatorMock);
+
+        List<Member> rumors = node.getMembership().getMembers();
+        List<Member> members = new ArrayList<Member>();
+        members.add(new Member(successor, true, 1));
+        members.add(new Member(third, true, 1));
+        expect(clientLocatorMock.get(successor)).andReturn(keyLocator);
+        clientLocatorMock.release(successor);
+        expect(keyLocator.gossip(rumors, true)).andReturn(members);
+        replay(clientLocatorMock, keyLocator);
+
+        donutClient.gossip();
+        assertEquals(3, node.getMembership().size());
+        assertEquals(third, node.getMembership().successor(new KeyId(250)));
+    }
+
+    @Test
+    public void testGossip_SuspectsUnreachable() throws Exception {
+        Node node = new Node("self", 0, new KeyId(100));
+        TNode other = new TNode("other", 0, new KeyId(200));
+        node.setSuccessor(other);
+        node.getMembership().apply(new Member(other, true, 1));
+
+        DonutClient donutClient = new DonutClient(node, clientLocatorMock);
+
+        expect(clientLocatorMock.get(other)).andThrow(new RetryFailedException());
+        replay(clientLocatorMock, keyLocator);
+
+        donutClient.gossip();
+        assertEquals(1, node.getMembership().size());
+        assertTrue(node.getMembership().getMembers().contains(new Member(other, false, 1)));
+    }
+
+    @Test
+    public void testGossip_Alone() throws Exception {
+        Node node = new Node("self", 0, new KeyId(100));
+        DonutClient donutClient = new DonutClient(node, clientLocatorMock);
+        replay(clientLocatorMock, keyLocator);
+
+        // Its own successor: no one to gossip with
+        donutClient.gossip();
+    }
+
     @Test
     public void testStabilize_JustNotifyBecauseNoPredecessor() throws Exception {
         Node node = new Node("self", 0, new KeyId(100));
@@ -271,7 +331,6 @@ public class DonutClientTest {
         DonutClient donutClient = new DonutClient(node, clientLocatorMock);
 
         expect(clientLocatorMock.get(successor)).andThrow(new RetryFailedException());
-        clientLocatorMock.release(successor);
         replay(clientLocatorMock, keyLocator);
 
         donutClient.stabilize();
@@ -332,7 +391,7 @@ public class DonutClientTest {
     @Test
     public void testUpdateSuccessorListOfSize3() throws Exception {
         Node node = new Node("self", 0, new KeyId(0));
-        TNode successor0 = new TNode("other1", 0, new KeyId(100));
+        TNode successor0 = new TNode("successor", 0, new KeyId(100));
         List<TNode> list = new ArrayList<TNode>(Constants.SUCCESSOR_LIST_SIZE);
         for (int i = 0; i < Constants.SUCCESSOR_LIST_SIZE; i++) {
             list.add(new TNode("other" + i, 0, new KeyId(200 * i)));
@@ -380,4 +439,52 @@ public class DonutClientTest {
         assertSame(successor0, node.getSuccessorList().get(0));
         assertSame(successor1, node.getSuccessorList().get(1));
     }
+
+    @Test
+    public void testSynchronize() throws Exception {
+        TNode self = new TNode("self", 8080, new KeyId(0));
+        DonutClient donutClient = new DonutClient(null, clientLocatorMock);
+        KeyId start = new KeyId(Long.MIN_VALUE / 2);
+        KeyId end = new KeyId(Long.MAX_VALUE / 2);
+
+        // One side keeps a Merkle tree, the other has it computed by scanning
+        DonutHashTableService primary = new DonutMerkleHashTableService(
+                new DonutSortedHashTableService());
+        DonutHashTableService replica = new DonutInMemoryHashTableService();
+        Random random = new Random(490);
+        List<EntryKey> keys = new ArrayList<EntryKey>();
+        for (int i = 0; i < 500; ++i) {
+            EntryKey key = new EntryKey(new KeyId(random.nextLong() / 2), "key" + i);
+            keys.add(key);
+            primary.put(key, ("value" + i).getBytes(), Constants.SUCCESSOR_LIST_SIZE);
+            replica.put(key, ("value" + i).getBytes(), Constants.SUCCESSOR_LIST_SIZE - 1);
+        }
+        // Outside the range, so none of the primary's business
+        EntryKey outside = new EntryKey(new KeyId(Long.MAX_VALUE - 5), "outside");
+        replica.put(outside, "outside".getBytes(), 1);
+
+        Iface primaryIface = new NodeLocator(null, primary, clientLocatorMock);
+        Iface replicaIface = new NodeLocator(null, replica, clientLocatorMock);
+        // Connected to itself only for a level or a leaf at a time
+        expect(clientLocatorMock.get(self)).andReturn(primaryIface).atLeastOnce();
+        clientLocatorMock.release(self);
+        expectLastCall().atLeastOnce();
+        replay(clientLocatorMock, keyLocator);
+        assertEquals(0, donutClient.synchronize(self, replicaIface, start, end));
+
+        // A missed put, a missed overwrite and a missed remove
+        replica.remove(keys.get(3));
+        replica.put(keys.get(7), "stale".getBytes(), 2);
+        EntryKey removed = new EntryKey(new KeyId(12345), "removed");
+        replica.put(removed, "removed".getBytes(), 2);
+
+        assertEquals(3, donutClient.synchronize(self, replicaIface, start, end));
+        for (EntryKey key : keys) {
+            assertArrayEquals(primary.get(key).getData(), replica.get(key).getData());
+        }
+        assertNull(replica.get(removed));
+        assertEquals(new DataPair("outside".getBytes(), 1), replica.get(outside));
+        assertEquals(0, donutClient.synchronize(self, replicaIface, start, end));
+    }
+
 }
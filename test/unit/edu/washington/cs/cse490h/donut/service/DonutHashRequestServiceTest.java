@@ -18,18 +18,33 @@ package edu.washington.cs.cse490h.donut.service;
 
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
+import static org.easymock.EasyMock.aryEq;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.geq;
+import static org.easymock.EasyMock.leq;
+import static org.easymock.EasyMock.and;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import edu.washington.cs.cse490h.donut.Constants;
+import edu.washington.cs.cse490h.donut.business.ChunkedValue;
 import edu.washington.cs.cse490h.donut.business.EntryKey;
 import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Node;
 import edu.washington.cs.cse490h.donut.business.TNode;
+import edu.washington.cs.cse490h.donut.service.application.DonutSortedHashTableService;
 import edu.washington.cs.cse490h.donut.util.KeyIdUtil;
+import edu.washington.cs.cse490h.donut.util.ValueCodec;
 
 /**
  * @author alevy
@@ -83,13 +98,33 @@ public class DonutHashRequestServiceTest {
         TNode successor = new TNode("successor", 8080, new KeyId(1));
         expect(curLocatorMock.findSuccessor(keyId)).andReturn(successor);
         expect(clientFactoryMock.get(successor)).andReturn(nextLocatorMock);
-        nextLocatorMock.put(new EntryKey(keyId, keyStr), value);
+        nextLocatorMock.put(new EntryKey(keyId, keyStr), value, 0);
         clientFactoryMock.release(successor);
         replay(clientFactoryMock, nextLocatorMock, curLocatorMock);
 
         requestService.put(keyStr, value);
     }
 
+    @Test
+    public void testPutWithTtl() throws Exception {
+        DonutHashRequestService requestService = new DonutHashRequestService(curLocatorMock,
+                clientFactoryMock);
+        String keyStr = "hello world";
+        KeyId keyId = KeyIdUtil.generateKeyId(keyStr);
+        byte[] value = "value".getBytes();
+        long before = System.currentTimeMillis();
+
+        TNode successor = new TNode("successor", 8080, new KeyId(1));
+        expect(curLocatorMock.findSuccessor(keyId)).andReturn(successor);
+        expect(clientFactoryMock.get(successor)).andReturn(nextLocatorMock);
+        nextLocatorMock.put(eq(new EntryKey(keyId, keyStr)), aryEq(value), and(geq(before + 5000),
+                leq(before + 6000)));
+        clientFactoryMock.release(successor);
+        replay(clientFactoryMock, nextLocatorMock, curLocatorMock);
+
+        requestService.putWithTtl(keyStr, value, 5000);
+    }
+
     @Test
     public void testRemove() throws Exception {
         DonutHashRequestService requestService = new DonutHashRequestService(curLocatorMock,
@@ -107,4 +142,188 @@ public class DonutHashRequestServiceTest {
         requestService.remove(keyStr);
     }
 
+    @Test
+    public void testPutGet_Compressed() throws Exception {
+        ValueCodec codec = new ValueCodec(64);
+        DonutHashRequestService requestService = new DonutHashRequestService(curLocatorMock,
+                clientFactoryMock, codec);
+        String keyStr = "hello world";
+        KeyId keyId = KeyIdUtil.generateKeyId(keyStr);
+        EntryKey entryKey = new EntryKey(keyId, keyStr);
+        byte[] value = new byte[4096];
+        byte[] stored = codec.encode(value);
+        assertTrue(stored.length < value.length);
+
+        // The node is handed the compressed bytes, and hands them back. The owner is only looked
+        // up once, for the put
+        TNode successor = new TNode("successor", 8080, new KeyId(1));
+        expect(curLocatorMock.findSuccessor(keyId)).andReturn(successor);
+        expect(clientFactoryMock.get(successor)).andReturn(nextLocatorMock).times(2);
+        nextLocatorMock.put(eq(entryKey), aryEq(stored), eq(0L));
+        expect(nextLocatorMock.get(entryKey)).andReturn(stored);
+        clientFactoryMock.release(successor);
+        clientFactoryMock.release(successor);
+        replay(clientFactoryMock, nextLocatorMock, curLocatorMock);
+
+        requestService.put(keyStr, value);
+        assertArrayEquals(value, requestService.get(keyStr));
+    }
+
+    @Test
+    public void testGet_CachedOwner() throws Exception {
+        DonutHashRequestService requestService = new DonutHashRequestService(curLocatorMock,
+                clientFactoryMock);
+        String keyStr = "hello world";
+        KeyId keyId = KeyIdUtil.generateKeyId(keyStr);
+        byte[] value = "value".getBytes();
+
+        // Owns everything from the key up to the top of the key space and round to 1
+        TNode successor = new TNode("successor", 8080, new KeyId(1));
+        expect(curLocatorMock.findSuccessor(keyId)).andReturn(successor);
+        expect(clientFactoryMock.get(successor)).andReturn(nextLocatorMock).times(3);
+        expect(nextLocatorMock.get(new EntryKey(keyId, keyStr))).andReturn(value).times(2);
+        // Another key whose id is in the range
+        String otherKeyStr = "zero";
+        KeyId otherKeyId = KeyIdUtil.generateKeyId(otherKeyStr);
+        assertTrue(otherKeyId.getId() > keyId.getId());
+        expect(nextLocatorMock.get(new EntryKey(otherKeyId, otherKeyStr))).andReturn(value);
+        clientFactoryMock.release(successor);
+        expectLastCall().times(3);
+        replay(clientFactoryMock, nextLocatorMock, curLocatorMock);
+
+        assertArrayEquals(value, requestService.get(keyStr));
+        assertArrayEquals(value, requestService.get(keyStr));
+        assertEquals(1, requestService.getOwners().getHits());
+        // Any id in the range goes to the same owner
+        assertEquals(successor, requestService.getOwners().get(new KeyId(0)));
+        assertArrayEquals(value, requestService.get(otherKeyStr));
+    }
+
+    @Test
+    public void testPut_NotResponsibleRefreshesOwner() throws Exception {
+        DonutHashRequestService requestService = new DonutHashRequestService(curLocatorMock,
+                clientFactoryMock);
+        String keyStr = "hello world";
+        KeyId keyId = KeyIdUtil.generateKeyId(keyStr);
+        EntryKey entryKey = new EntryKey(keyId, keyStr);
+        byte[] value = "value".getBytes();
+        TNode oldOwner = new TNode("old", 8080, new KeyId(1));
+        TNode newOwner = new TNode("new", 8080, new KeyId(-1));
+        KeyLocator.Iface newLocatorMock = createMock(KeyLocator.Iface.class);
+        requestService.getOwners().put(keyId, oldOwner);
+
+        // A node joined in front of the cached owner
+        expect(clientFactoryMock.get(oldOwner)).andReturn(nextLocatorMock);
+        nextLocatorMock.put(entryKey, value, 0);
+        expectLastCall().andThrow(new NotResponsibleForId(keyId));
+        clientFactoryMock.release(oldOwner);
+        expect(curLocatorMock.findSuccessor(keyId)).andReturn(newOwner);
+        expect(clientFactoryMock.get(newOwner)).andReturn(newLocatorMock);
+        newLocatorMock.put(entryKey, value, 0);
+        clientFactoryMock.release(newOwner);
+        replay(clientFactoryMock, nextLocatorMock, curLocatorMock, newLocatorMock);
+
+        requestService.put(keyStr, value);
+        assertEquals(newOwner, requestService.getOwners().get(keyId));
+        verify(newLocatorMock);
+    }
+
+    @Test
+    public void testGet_UnreachableOwnerRefreshed() throws Exception {
+        DonutHashRequestService requestService = new DonutHashRequestService(curLocatorMock,
+                clientFactoryMock);
+        String keyStr = "hello world";
+        KeyId keyId = KeyIdUtil.generateKeyId(keyStr);
+        byte[] value = "value".getBytes();
+        TNode oldOwner = new TNode("old", 8080, new KeyId(1));
+        TNode newOwner = new TNode("new", 8080, new KeyId(2));
+        requestService.getOwners().put(keyId, oldOwner);
+
+        expect(clientFactoryMock.get(oldOwner)).andThrow(new RetryFailedException());
+        expect(curLocatorMock.findSuccessor(keyId)).andReturn(newOwner);
+        expect(clientFactoryMock.get(newOwner)).andReturn(nextLocatorMock);
+        expect(nextLocatorMock.get(new EntryKey(keyId, keyStr))).andReturn(value);
+        clientFactoryMock.release(newOwner);
+        replay(clientFactoryMock, nextLocatorMock, curLocatorMock);
+
+        assertArrayEquals(value, requestService.get(keyStr));
+        assertEquals(newOwner, requestService.getOwners().get(keyId));
+    }
+
+    @Test(expected = DataNotFoundException.class)
+    public void testGet_NotFoundAtCachedOwner() throws Exception {
+        DonutHashRequestService requestService = new DonutHashRequestService(curLocatorMock,
+                clientFactoryMock);
+        String keyStr = "hello world";
+        KeyId keyId = KeyIdUtil.generateKeyId(keyStr);
+        TNode owner = new TNode("owner", 8080, new KeyId(1));
+        requestService.getOwners().put(keyId, owner);
+
+        // Still the owner once looked up again, so it really is not there
+        expect(clientFactoryMock.get(owner)).andReturn(nextLocatorMock);
+        expect(nextLocatorMock.get(new EntryKey(keyId, keyStr))).andThrow(
+                new DataNotFoundException());
+        clientFactoryMock.release(owner);
+        expect(curLocatorMock.findSuccessor(keyId)).andReturn(owner);
+        replay(clientFactoryMock, nextLocatorMock, curLocatorMock);
+
+        requestService.get(keyStr);
+    }
+
+    @Test
+    public void testPutGet_Chunked() throws Exception {
+        DonutSortedHashTableService store = new DonutSortedHashTableService();
+        DonutHashRequestService requestService = singleNode(store);
+        byte[] value = new byte[Constants.CHUNK_SIZE * 2 + Constants.CHUNK_SIZE / 2];
+        new Random(42).nextBytes(value);
+        replay(clientFactoryMock, nextLocatorMock, curLocatorMock);
+
+        requestService.put("big", value);
+        assertArrayEquals(value, requestService.get("big"));
+        ChunkedValue chunked = requestService.getChunks("big");
+        assertEquals(3, chunked.getChunks());
+        assertEquals(value.length, chunked.getLength());
+        byte[] last = requestService.getChunk("big", chunked.getUpload(), 2);
+        assertEquals(Constants.CHUNK_SIZE / 2, last.length);
+        // The value and its three chunks
+        KeyId id = KeyIdUtil.generateKeyId("big");
+        assertEquals(4, store.getRange(id, id).size());
+
+        // Replacing it with a small value drops the chunks
+        requestService.put("big", "small".getBytes());
+        assertArrayEquals("small".getBytes(), requestService.get("big"));
+        assertEquals(new ChunkedValue(0, 1, 5), requestService.getChunks("big"));
+        assertEquals(1, store.getRange(id, id).size());
+    }
+
+    @Test
+    public void testPutChunks() throws Exception {
+        DonutHashRequestService requestService = singleNode(new DonutSortedHashTableService());
+        replay(clientFactoryMock, nextLocatorMock, curLocatorMock);
+
+        long upload = requestService.beginChunks("streamed");
+        requestService.putChunk("streamed", upload, 1, "world".getBytes());
+        requestService.putChunk("streamed", upload, 0, "hello ".getBytes());
+        requestService.commitChunks("streamed", upload, 2, 11);
+        assertArrayEquals("hello world".getBytes(), requestService.get("streamed"));
+    }
+
+    /**
+     * @return a request service for a ring of one node, with the given store
+     */
+    private static DonutHashRequestService singleNode(DonutSortedHashTableService store) {
+        Node node = new Node("self", 8080, new KeyId(1));
+        node.setPredecessor(node.getTNode());
+        final NodeLocator locator = new NodeLocator(node, store, null);
+        LocatorClientFactory clientFactory = new LocatorClientFactory() {
+            public KeyLocator.Iface get(TNode node) {
+                return locator;
+            }
+
+            public void release(TNode node) {
+            }
+        };
+        return new DonutHashRequestService(locator, clientFactory);
+    }
+
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.makeThreadSafe;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.Hop;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Node;
+import edu.washington.cs.cse490h.donut.business.TNode;
+
+/**
+ * @author jprouty
+ */
+public class IterativeLookupTest {
+
+    private static final KeyId   ENTRY_ID = new KeyId(5000);
+
+    private LocatorClientFactory clientFactoryMock;
+    private KeyLocator.Iface     locatorMock;
+    private Node                 node;
+    private TNode                successor;
+    private TNode                finger;
+    private TNode                result;
+
+    @Before
+    public void setUp() throws Exception {
+        clientFactoryMock = createMock(LocatorClientFactory.class);
+        locatorMock = createMock(KeyLocator.Iface.class);
+        makeThreadSafe(clientFactoryMock, true);
+        makeThreadSafe(locatorMock, true);
+
+        node = new Node("self", 8080, new KeyId(100));
+        successor = new TNode("successor", 8080, new KeyId(900));
+        finger = new TNode("finger", 8080, new KeyId(1000));
+        result = new TNode("result", 8080, new KeyId(6000));
+        node.setSuccessor(successor);
+        node.setFinger(10, finger);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        verify(clientFactoryMock);
+        verify(locatorMock);
+    }
+
+    @Test
+    public void testFindSuccessor_FallsBackWhenAHopFails() throws Exception {
+        expect(clientFactoryMock.get(finger)).andThrow(new RetryFailedException());
+        expect(clientFactoryMock.get(successor)).andReturn(locatorMock);
+        clientFactoryMock.release(successor);
+        expect(locatorMock.findNextHop(ENTRY_ID, Arrays.asList(finger))).andReturn(
+                new Hop(result, true));
+        replay(clientFactoryMock, locatorMock);
+
+        IterativeLookup lookup = new IterativeLookup(node, clientFactoryMock, 1000);
+        assertEquals(result, lookup.findSuccessor(ENTRY_ID));
+        lookup.shutdown();
+    }
+
+    @Test
+    public void testFindSuccessor_FallsBackWhenAHopTimesOut() throws Exception {
+        final KeyLocator.Iface slowLocatorMock = createMock(KeyLocator.Iface.class);
+        makeThreadSafe(slowLocatorMock, true);
+        expect(clientFactoryMock.get(finger)).andReturn(slowLocatorMock);
+        // Only once the hop that timed out gives up, which may be after the lookup is done
+        clientFactoryMock.release(finger);
+        expectLastCall().anyTimes();
+        expect(slowLocatorMock.findNextHop(eq(ENTRY_ID), isA(List.class))).andAnswer(
+                new IAnswer<Hop>() {
+                    public Hop answer() throws Throwable {
+                        Thread.sleep(10000);
+                        return new Hop(result, true);
+                    }
+                });
+
+        expect(clientFactoryMock.get(successor)).andReturn(locatorMock);
+        clientFactoryMock.release(successor);
+        expect(locatorMock.findNextHop(ENTRY_ID, Arrays.asList(finger))).andReturn(
+                new Hop(result, true));
+        replay(clientFactoryMock, locatorMock, slowLocatorMock);
+
+        IterativeLookup lookup = new IterativeLookup(node, clientFactoryMock, 50);
+        long start = System.currentTimeMillis();
+        assertEquals(result, lookup.findSuccessor(ENTRY_ID));
+        assertEquals(true, System.currentTimeMillis() - start < 5000);
+        lookup.shutdown();
+    }
+
+    @Test
+    public void testFindSuccessor_BacksUpPastAHopThatStopsAnswering() throws Exception {
+        TNode far = new TNode("far", 8080, new KeyId(4000));
+        KeyLocator.Iface fingerLocatorMock = createMock(KeyLocator.Iface.class);
+        makeThreadSafe(fingerLocatorMock, true);
+
+        // The finger points on to far, which fails, and then the finger fails as well
+        expect(clientFactoryMock.get(finger)).andReturn(fingerLocatorMock);
+        clientFactoryMock.release(finger);
+        expect(fingerLocatorMock.findNextHop(ENTRY_ID, new ArrayList<TNode>())).andReturn(
+                new Hop(far, false));
+        expect(clientFactoryMock.get(far)).andThrow(new RetryFailedException());
+        expect(clientFactoryMock.get(finger)).andThrow(new RetryFailedException());
+
+        expect(clientFactoryMock.get(successor)).andReturn(locatorMock);
+        clientFactoryMock.release(successor);
+        expect(locatorMock.findNextHop(ENTRY_ID, Arrays.asList(far, finger))).andReturn(
+                new Hop(result, true));
+        replay(clientFactoryMock, locatorMock, fingerLocatorMock);
+
+        IterativeLookup lookup = new IterativeLookup(node, clientFactoryMock, 1000);
+        assertEquals(result, lookup.findSuccessor(ENTRY_ID));
+        lookup.shutdown();
+        verify(fingerLocatorMock);
+    }
+
+}
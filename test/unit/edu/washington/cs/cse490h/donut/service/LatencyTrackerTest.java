@@ -0,0 +1,99 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service;
+
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.thrift.TException;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.TNode;
+import edu.washington.cs.cse490h.donut.service.KeyLocator.Iface;
+
+/**
+ * @author jprouty
+ */
+public class LatencyTrackerTest {
+
+    private LocatorClientFactory clientFactoryMock;
+    private Iface                keyLocator;
+    private TNode                peer;
+
+    @Before
+    public void setUp() {
+        clientFactoryMock = EasyMock.createMock(LocatorClientFactory.class);
+        keyLocator = EasyMock.createMock(KeyLocator.Iface.class);
+        peer = new TNode("peer", 8080, new KeyId(100));
+    }
+
+    @After
+    public void tearDown() {
+        verify(clientFactoryMock, keyLocator);
+    }
+
+    @Test
+    public void testGetRtt_ReusesRecentMeasurement() throws Exception {
+        expect(clientFactoryMock.get(peer)).andReturn(keyLocator);
+        clientFactoryMock.release(peer);
+        keyLocator.ping();
+        replay(clientFactoryMock, keyLocator);
+
+        LatencyTracker latencies = new LatencyTracker(clientFactoryMock);
+        long rtt = latencies.getRtt(peer);
+        assertTrue(rtt >= 0 && rtt < Long.MAX_VALUE);
+        assertEquals(rtt, latencies.getRtt(peer));
+    }
+
+    @Test
+    public void testGetRtt_MeasuresAgainWhenOld() throws Exception {
+        expect(clientFactoryMock.get(peer)).andReturn(keyLocator).times(2);
+        clientFactoryMock.release(peer);
+        expectLastCall().times(2);
+        keyLocator.ping();
+        expectLastCall().times(2);
+        replay(clientFactoryMock, keyLocator);
+
+        LatencyTracker latencies = new LatencyTracker(clientFactoryMock, 0);
+        latencies.getRtt(peer);
+        latencies.getRtt(peer);
+    }
+
+    @Test
+    public void testGetRtt_Unreachable() throws Exception {
+        expect(clientFactoryMock.get(peer)).andReturn(keyLocator).times(2);
+        clientFactoryMock.release(peer);
+        expectLastCall().times(2);
+        keyLocator.ping();
+        expectLastCall().andThrow(new TException()).times(2);
+        replay(clientFactoryMock, keyLocator);
+
+        // Nothing is remembered of a node that could not be reached
+        LatencyTracker latencies = new LatencyTracker(clientFactoryMock);
+        assertEquals(Long.MAX_VALUE, latencies.getRtt(peer));
+        assertEquals(Long.MAX_VALUE, latencies.getRtt(peer));
+    }
+
+}
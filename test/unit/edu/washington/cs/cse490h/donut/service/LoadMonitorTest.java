@@ -0,0 +1,157 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Load;
+import edu.washington.cs.cse490h.donut.service.application.DonutHashTableService;
+import edu.washington.cs.cse490h.donut.service.application.DonutInMemoryHashTableService;
+
+/**
+ * @author jprouty
+ */
+public class LoadMonitorTest {
+
+    private DonutHashTableService service;
+    private LoadMonitor           monitor;
+
+    @Before
+    public void setUp() {
+        service = new DonutInMemoryHashTableService();
+        monitor = new LoadMonitor(50);
+    }
+
+    @Test
+    public void testSplitsKeysInHalf() throws Exception {
+        for (int i = 1; i <= 100; ++i) {
+            service.put(new EntryKey(new KeyId(i * 10), "key" + i), new byte[10], 0);
+        }
+        // Not in the range
+        service.put(new EntryKey(new KeyId(5000), "other"), new byte[10], 0);
+
+        Load load = monitor.getLoad(service, new KeyId(0), new KeyId(1000));
+        assertEquals(100, load.getKeys());
+        assertEquals(1000, load.getBytes());
+        assertEquals(new KeyId(500), load.getSplitId());
+    }
+
+    @Test
+    public void testSplitsByBytes() throws Exception {
+        for (int i = 1; i <= 100; ++i) {
+            service.put(new EntryKey(new KeyId(i * 10), "key" + i), new byte[i <= 10 ? 1000 : 1],
+                    0);
+        }
+        // The first ten keys have nearly all the bytes, which is more than half of the load
+        Load load = monitor.getLoad(service, new KeyId(0), new KeyId(1000));
+        assertEquals(new KeyId(100), load.getSplitId());
+    }
+
+    @Test
+    public void testSplitsByRequests() throws Exception {
+        for (int i = 1; i <= 100; ++i) {
+            service.put(new EntryKey(new KeyId(i * 10), "key" + i), new byte[10], 0);
+        }
+        for (int i = 0; i < 1000; ++i) {
+            monitor.record(new KeyId(900 + i % 100));
+        }
+        // Every request is near the end, which draws the split past the middle of the keys
+        Load load = monitor.getLoad(service, new KeyId(0), new KeyId(1000));
+        assertTrue(load.getSplitId().getId() > 500);
+        assertTrue(load.getSplitId().getId() < 1000);
+    }
+
+    @Test
+    public void testEstimatesBytesFromSamples() throws Exception {
+        final int[] reads = new int[1];
+        DonutHashTableService counting = new DonutInMemoryHashTableService() {
+            @Override
+            public DataPair get(EntryKey entryKey) {
+                ++reads[0];
+                return super.get(entryKey);
+            }
+        };
+        for (int i = 1; i <= 10000; ++i) {
+            counting.put(new EntryKey(new KeyId(i), "key" + i), new byte[i <= 5000 ? 10 : 30], 0);
+        }
+
+        Load load = monitor.getLoad(counting, new KeyId(0), new KeyId(10000));
+        assertEquals(10000, load.getKeys());
+        assertTrue(reads[0] <= LoadMonitor.SIZE_SAMPLES);
+        assertEquals(200000, load.getBytes(), 200000 / 50);
+        // Three quarters of the bytes are in the upper half, which draws the split past it
+        assertTrue(load.getSplitId().getId() > 5000);
+    }
+
+    @Test
+    public void testSplitAcrossTheTop() throws Exception {
+        service.put(new EntryKey(new KeyId(Long.MAX_VALUE), "a"), new byte[10], 0);
+        service.put(new EntryKey(new KeyId(Long.MIN_VALUE), "b"), new byte[10], 0);
+        service.put(new EntryKey(new KeyId(Long.MIN_VALUE + 1), "c"), new byte[10], 0);
+        Load load = monitor.getLoad(service, new KeyId(Long.MAX_VALUE - 1), new KeyId(
+                Long.MIN_VALUE + 5));
+        assertEquals(new KeyId(Long.MIN_VALUE), load.getSplitId());
+    }
+
+    @Test
+    public void testNothingToSplit() throws Exception {
+        assertNull(monitor.getLoad(service, new KeyId(0), new KeyId(1000)).getSplitId());
+        // All of it at the end of the range, which would not move anything
+        service.put(new EntryKey(new KeyId(1000), "key"), new byte[10], 0);
+        assertNull(monitor.getLoad(service, new KeyId(0), new KeyId(1000)).getSplitId());
+    }
+
+    @Test
+    public void testRequestRate() throws Exception {
+        assertEquals(0.0, monitor.getRequestRate(), 0);
+        for (int i = 0; i < 100; ++i) {
+            monitor.record(new KeyId(i));
+        }
+        Thread.sleep(60);
+        assertTrue(monitor.getRequestRate() > 0);
+        assertTrue(monitor.getRequestRate() <= 100 * 1000.0 / 50);
+
+        monitor.reset();
+        assertEquals(0.0, monitor.getRequestRate(), 0);
+    }
+
+    @Test
+    public void testIsOverloaded() throws Exception {
+        Load light = new Load(10, 1000, 1, null);
+        assertTrue(LoadMonitor.isOverloaded(new Load(100, 1000, 1, null), light));
+        assertTrue(LoadMonitor.isOverloaded(new Load(10, 10 * 1024 * 1024, 1, null), light));
+        assertTrue(LoadMonitor.isOverloaded(new Load(10, 1000, 100, null), light));
+
+        // Not by enough, or too little to bother
+        assertFalse(LoadMonitor.isOverloaded(new Load(30, 1000, 1, null), light));
+        assertFalse(LoadMonitor.isOverloaded(new Load(50, 1000, 1, null), new Load(0, 0, 0,
+                null)));
+        // Light on keys, but it would hand even more requests to its successor
+        assertFalse(LoadMonitor.isOverloaded(new Load(100, 1000, 1, null), new Load(10, 1000,
+                50, null)));
+    }
+
+}
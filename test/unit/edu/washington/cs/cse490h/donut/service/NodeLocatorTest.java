@@ -18,27 +18,48 @@ package edu.washington.cs.cse490h.donut.service;
 
 import static org.easymock.EasyMock.aryEq;
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createStrictMock;
 import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.makeThreadSafe;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
-
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 
+import org.apache.thrift.TException;
+import org.easymock.IAnswer;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import edu.washington.cs.cse490h.donut.Constants;
+import edu.washington.cs.cse490h.donut.business.ChunkedValue;
 import edu.washington.cs.cse490h.donut.business.DataPair;
 import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.Hop;
 import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Load;
+import edu.washington.cs.cse490h.donut.business.Member;
 import edu.washington.cs.cse490h.donut.business.Node;
 import edu.washington.cs.cse490h.donut.business.TNode;
+import edu.washington.cs.cse490h.donut.service.application.DonutExpiringHashTableService;
 import edu.washington.cs.cse490h.donut.service.application.DonutHashTableService;
+import edu.washington.cs.cse490h.donut.service.application.DonutSortedHashTableService;
+import edu.washington.cs.cse490h.donut.util.ValueCodec;
 
 public class NodeLocatorTest {
 
@@ -86,6 +107,7 @@ public class NodeLocatorTest {
 
         node1.setSuccessor(node2);
         NodeLocator nodeLocator = new NodeLocator(node1, null, clientFactoryMock);
+        nodeLocator.setLookup(NodeLocator.Lookup.RECURSIVE);
 
         // ClientFactory Expectations:
         expect(clientFactoryMock.get(node2)).andReturn(nextLocatorMock);
@@ -98,6 +120,273 @@ public class NodeLocatorTest {
         assertEquals(resultNode, nodeLocator.findSuccessor(entryId));
     }
 
+    @Test
+    public void testFindSuccessor_Iterative() throws Exception {
+        KeyId entryId = new KeyId(1024);
+
+        Node node1 = new Node("node1", 8080, new KeyId(100));
+        TNode node2 = new TNode("node2", 8080, new KeyId(900));
+        TNode node3 = new TNode("node3", 8080, new KeyId(1000));
+        TNode resultNode = new TNode("resultNode", 8080, new KeyId(2000));
+
+        node1.setSuccessor(node2);
+        NodeLocator nodeLocator = new NodeLocator(node1, null, clientFactoryMock);
+        makeThreadSafe(clientFactoryMock, true);
+        makeThreadSafe(nextLocatorMock, true);
+
+        // Each hop only answers with the next one, the lookup does not go through node2
+        expect(clientFactoryMock.get(node2)).andReturn(nextLocatorMock);
+        clientFactoryMock.release(node2);
+        expect(nextLocatorMock.findNextHop(entryId, new ArrayList<TNode>())).andReturn(
+                new Hop(node3, false));
+        expect(clientFactoryMock.get(node3)).andReturn(nextLocatorMock);
+        clientFactoryMock.release(node3);
+        expect(nextLocatorMock.findNextHop(entryId, new ArrayList<TNode>())).andReturn(
+                new Hop(resultNode, true));
+        replay(clientFactoryMock, nextLocatorMock, service);
+
+        assertEquals(resultNode, nodeLocator.findSuccessor(entryId));
+    }
+
+    @Test
+    public void testFindSuccessor_OneHop() throws Exception {
+        KeyId entryId = new KeyId(1024);
+
+        Node node1 = new Node("node1", 8080, new KeyId(100));
+        TNode node2 = new TNode("node2", 8080, new KeyId(900));
+        TNode resultNode = new TNode("resultNode", 8080, new KeyId(2000));
+
+        node1.setSuccessor(node2);
+        List<Member> members = new ArrayList<Member>();
+        members.add(new Member(node2, true, 1));
+        members.add(new Member(new TNode("node3", 8080, new KeyId(1000)), true, 1));
+        members.add(new Member(resultNode, true, 1));
+        node1.getMembership().applyAll(members);
+        NodeLocator nodeLocator = new NodeLocator(node1, null, clientFactoryMock);
+        nodeLocator.setLookup(NodeLocator.Lookup.ONE_HOP);
+
+        // Answered without asking any other node
+        replay(clientFactoryMock, nextLocatorMock, service);
+
+        assertEquals(resultNode, nodeLocator.findSuccessor(entryId));
+    }
+
+    @Test
+    public void testFindSuccessor_OneHopMissingFinger() throws Exception {
+        KeyId entryId = new KeyId(1024);
+
+        Node node1 = new Node("node1", 8080, new KeyId(100));
+        TNode node2 = new TNode("node2", 8080, new KeyId(900));
+        TNode node3 = new TNode("node3", 8080, new KeyId(1500));
+        TNode resultNode = new TNode("resultNode", 8080, new KeyId(1100));
+
+        node1.setSuccessor(node2);
+        node1.setFinger(10, node3);
+        // Has not heard of node3 yet, so would answer past it
+        List<Member> members = new ArrayList<Member>();
+        members.add(new Member(node2, true, 1));
+        members.add(new Member(new TNode("node4", 8080, new KeyId(3000)), true, 1));
+        node1.getMembership().applyAll(members);
+        NodeLocator nodeLocator = new NodeLocator(node1, null, clientFactoryMock);
+        nodeLocator.setLookup(NodeLocator.Lookup.ONE_HOP);
+        makeThreadSafe(clientFactoryMock, true);
+        makeThreadSafe(nextLocatorMock, true);
+
+        expect(clientFactoryMock.get(node2)).andReturn(nextLocatorMock);
+        clientFactoryMock.release(node2);
+        expect(nextLocatorMock.findNextHop(entryId, new ArrayList<TNode>())).andReturn(
+                new Hop(resultNode, true));
+        replay(clientFactoryMock, nextLocatorMock, service);
+
+        assertEquals(resultNode, nodeLocator.findSuccessor(entryId));
+    }
+
+    @Test
+    public void testFindSuccessor_OneHopNeverGossiped() throws Exception {
+        KeyId entryId = new KeyId(1024);
+
+        Node node1 = new Node("node1", 8080, new KeyId(100));
+        TNode node2 = new TNode("node2", 8080, new KeyId(900));
+        TNode resultNode = new TNode("resultNode", 8080, new KeyId(2000));
+
+        node1.setSuccessor(node2);
+        node1.getMembership().apply(new Member(resultNode, true, 1));
+        NodeLocator nodeLocator = new NodeLocator(node1, null, clientFactoryMock);
+        nodeLocator.setLookup(NodeLocator.Lookup.ONE_HOP);
+        makeThreadSafe(clientFactoryMock, true);
+        makeThreadSafe(nextLocatorMock, true);
+
+        expect(clientFactoryMock.get(node2)).andReturn(nextLocatorMock);
+        clientFactoryMock.release(node2);
+        expect(nextLocatorMock.findNextHop(entryId, new ArrayList<TNode>())).andReturn(
+                new Hop(resultNode, true));
+        replay(clientFactoryMock, nextLocatorMock, service);
+
+        assertEquals(resultNode, nodeLocator.findSuccessor(entryId));
+    }
+
+    @Test
+    public void testGossip() throws Exception {
+        Node node1 = new Node("node1", 8080, new KeyId(100));
+        TNode node2 = new TNode("node2", 8080, new KeyId(900));
+        NodeLocator nodeLocator = new NodeLocator(node1, null, null);
+        replay(clientFactoryMock, nextLocatorMock, service);
+
+        // Pulled: everything known here, before hearing of node2
+        List<Member> answer = nodeLocator.gossip(Arrays.asList(new Member(node2, true, 1)), true);
+        assertEquals(1, answer.size());
+        assertEquals(node1.getTNode(), answer.get(0).getNode());
+
+        assertEquals(2, node1.getMembership().size());
+        assertEquals(node2, node1.getMembership().successor(new KeyId(500)));
+    }
+
+    @Test
+    public void testAddress() throws Exception {
+        Node node1 = new Node("node1", 8080, new KeyId(100));
+        NodeLocator nodeLocator = new NodeLocator(node1, null, null);
+        replay(clientFactoryMock, nextLocatorMock, service);
+
+        nodeLocator.address(new KeyId(100));
+        try {
+            nodeLocator.address(new KeyId(900));
+            fail("Addressed a position that is not here");
+        } catch (NodeNotFoundException e) {
+        }
+    }
+
+    @Test
+    public void testMigrate() throws Exception {
+        Node node1 = new Node("node1", 8080, new KeyId(100));
+        TNode node0 = new TNode("node0", 8080, new KeyId(50));
+        TNode node2 = new TNode("node2", 8080, new KeyId(900));
+        TNode node3 = new TNode("node3", 8080, new KeyId(3000));
+        node1.setPredecessor(node0);
+        node1.setSuccessor(node2);
+        NodeLocator nodeLocator = new NodeLocator(node1, service, clientFactoryMock);
+
+        // What it was responsible for goes to its successor, which also finds where it goes
+        expect(service.getRange(new KeyId(50), new KeyId(100))).andReturn(
+                new HashSet<EntryKey>(Arrays.asList(ENTRY_KEY)));
+        expect(service.get(ENTRY_KEY)).andReturn(new DataPair("value".getBytes(), 0)).times(2);
+        expect(clientFactoryMock.get(node2)).andReturn(nextLocatorMock);
+        nextLocatorMock.replicatePut(eq(ENTRY_KEY), aryEq("value".getBytes()), eq(0), eq(0L));
+        expect(nextLocatorMock.findSuccessor(new KeyId(2000))).andReturn(node3);
+        clientFactoryMock.release(node2);
+        // And no longer kept here, once the successor has it
+        service.remove(ENTRY_KEY);
+        replay(clientFactoryMock, nextLocatorMock, service);
+
+        assertTrue(nodeLocator.migrate(new KeyId(2000)));
+        assertEquals(new TNode("node1", 8080, new KeyId(2000)), node1.getTNode());
+        assertEquals(node3, node1.getSuccessor());
+        assertNull(node1.getPredecessor());
+        nodeLocator.address(new KeyId(2000));
+
+        // Not again so soon
+        node1.setPredecessor(node2);
+        assertFalse(nodeLocator.migrate(new KeyId(2500)));
+    }
+
+    @Test
+    public void testMigrate_SiblingKeepsEntries() throws Exception {
+        Node node1 = new Node("node1", 8080, new KeyId(100));
+        TNode node0 = new TNode("node0", 8080, new KeyId(50));
+        TNode node2 = new TNode("node2", 8080, new KeyId(900));
+        TNode sibling = new TNode("node1", 8080, new KeyId(1000));
+        TNode node3 = new TNode("node3", 8080, new KeyId(3000));
+        node1.setPredecessor(node0);
+        node1.setSuccessor(node2);
+        node1.updateSuccessorList(Arrays.asList(sibling, node3));
+        final NodeLocator nodeLocator = new NodeLocator(node1, service, clientFactoryMock);
+
+        expect(service.getRange(new KeyId(50), new KeyId(100))).andReturn(
+                new HashSet<EntryKey>(Arrays.asList(ENTRY_KEY)));
+        expect(service.get(ENTRY_KEY)).andReturn(new DataPair("value".getBytes(), 0));
+        expect(clientFactoryMock.get(node2)).andReturn(nextLocatorMock);
+        nextLocatorMock.replicatePut(eq(ENTRY_KEY), aryEq("value".getBytes()), eq(0), eq(0L));
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            public Object answer() throws Throwable {
+                // Lookups go on while the entries are handed over, but no other move starts
+                Thread lookup = new Thread() {
+                    @Override
+                    public void run() {
+                        nodeLocator.getAlpha();
+                    }
+                };
+                lookup.start();
+                lookup.join(1000);
+                assertFalse(lookup.isAlive());
+                assertFalse(nodeLocator.migrate(new KeyId(2500)));
+                return null;
+            }
+        });
+        expect(nextLocatorMock.findSuccessor(new KeyId(2000))).andReturn(node3);
+        clientFactoryMock.release(node2);
+        replay(clientFactoryMock, nextLocatorMock, service);
+
+        // Another position of this process is a replica of node2, so the store keeps the entry
+        assertTrue(nodeLocator.migrate(new KeyId(2000)));
+        assertEquals(new TNode("node1", 8080, new KeyId(2000)), node1.getTNode());
+    }
+
+    @Test
+    public void testMigrateRefused() throws Exception {
+        Node node1 = new Node("node1", 8080, new KeyId(100));
+        NodeLocator nodeLocator = new NodeLocator(node1, service, clientFactoryMock);
+        replay(clientFactoryMock, nextLocatorMock, service);
+
+        // Alone in the ring
+        node1.setPredecessor(node1.getTNode());
+        assertFalse(nodeLocator.migrate(new KeyId(2000)));
+        // No range of its own yet
+        node1.setPredecessor(null);
+        node1.setSuccessor(new TNode("node2", 8080, new KeyId(900)));
+        assertFalse(nodeLocator.migrate(new KeyId(2000)));
+        assertEquals(new KeyId(100), node1.getNodeId());
+    }
+
+    @Test
+    public void testGetLoad() throws Exception {
+        Node node1 = new Node("node1", 8080, new KeyId(100));
+        NodeLocator nodeLocator = new NodeLocator(node1, service, clientFactoryMock);
+        expect(service.getRange(new KeyId(0), new KeyId(100))).andReturn(
+                new HashSet<EntryKey>(Arrays.asList(ENTRY_KEY)));
+        expect(service.get(ENTRY_KEY)).andReturn(new DataPair("value".getBytes(), 0));
+        replay(clientFactoryMock, nextLocatorMock, service);
+
+        // Nothing is known of its range without a predecessor
+        assertEquals(0, nodeLocator.getLoad().getKeys());
+
+        node1.setPredecessor(new TNode("node0", 8080, new KeyId(0)));
+        Load load = nodeLocator.getLoad();
+        assertEquals(1, load.getKeys());
+        assertEquals(5, load.getBytes());
+        assertEquals(ENTRY_KEY.getId(), load.getSplitId());
+    }
+
+    @Test
+    public void testFindNextHop() throws Exception {
+        Node node1 = new Node("node1", 8080, new KeyId(100));
+        TNode node2 = new TNode("node2", 8080, new KeyId(900));
+        TNode node3 = new TNode("node3", 8080, new KeyId(1000));
+        node1.setSuccessor(node2);
+        node1.setSuccessor(1, node3);
+        node1.setFinger(10, node3);
+        NodeLocator nodeLocator = new NodeLocator(node1, null, null);
+
+        replay(clientFactoryMock, nextLocatorMock, service);
+
+        List<TNode> none = new ArrayList<TNode>();
+        assertEquals(new Hop(node2, true), nodeLocator.findNextHop(new KeyId(500), none));
+        assertEquals(new Hop(node3, false), nodeLocator.findNextHop(new KeyId(5000), none));
+        // Around a failed finger, and then a failed successor
+        assertEquals(new Hop(node2, false), nodeLocator.findNextHop(new KeyId(5000), Arrays
+                .asList(node3)));
+        assertEquals(new Hop(node3, true), nodeLocator.findNextHop(new KeyId(950), Arrays
+                .asList(node2)));
+    }
+
     @Test(expected = DataNotFoundException.class)
     public void testGet_Dne() throws Exception {
         NodeLocator nodeLocator = new NodeLocator(null, service, null);
@@ -108,6 +397,16 @@ public class NodeLocatorTest {
         nodeLocator.get(ENTRY_KEY);
     }
 
+    @Test(expected = TException.class)
+    public void testGetMissingRange_DamagedSummary() throws Exception {
+        NodeLocator nodeLocator = new NodeLocator(null, service, null);
+        replay(clientFactoryMock, nextLocatorMock, service);
+
+        // Claims no words at all, which would divide by zero when probed
+        nodeLocator.getMissingRange(new KeyId(0), new KeyId(100), new byte[] { 0, 0, 0, 0, 0,
+                0, 0, 3 });
+    }
+
     @Test
     public void testGet_Exists() throws Exception {
         NodeLocator nodeLocator = new NodeLocator(null, service, null);
@@ -127,7 +426,7 @@ public class NodeLocatorTest {
         service.put(eq(ENTRY_KEY), aryEq(value.getBytes()), eq(0));
         replay(clientFactoryMock, nextLocatorMock, service);
 
-        nodeLocator.replicatePut(ENTRY_KEY, value.getBytes(), 0);
+        nodeLocator.replicatePut(ENTRY_KEY, value.getBytes(), 0, 0);
     }
 
     @Test
@@ -139,11 +438,11 @@ public class NodeLocatorTest {
 
         expect(clientFactoryMock.get(node.getSuccessor())).andReturn(nextLocatorMock);
         clientFactoryMock.release(node.getSuccessor());
-        nextLocatorMock.replicatePut(eq(ENTRY_KEY), aryEq(value.getBytes()), eq(1));
+        nextLocatorMock.replicatePut(eq(ENTRY_KEY), aryEq(value.getBytes()), eq(1), eq(0L));
         service.put(eq(ENTRY_KEY), aryEq(value.getBytes()), eq(2));
         replay(clientFactoryMock, nextLocatorMock, service);
 
-        nodeLocator.replicatePut(ENTRY_KEY, value.getBytes(), 2);
+        nodeLocator.replicatePut(ENTRY_KEY, value.getBytes(), 2, 0);
     }
 
     @Test
@@ -180,12 +479,112 @@ public class NodeLocatorTest {
 
         expect(clientFactoryMock.get(node.getSuccessor())).andReturn(nextLocatorMock);
         clientFactoryMock.release(node.getSuccessor());
-        nextLocatorMock.replicatePut(eq(ENTRY_KEY), aryEq("data".getBytes()),
-                eq(Constants.SUCCESSOR_LIST_SIZE - 1));
+        nextLocatorMock.replicatePut(eq(ENTRY_KEY), aryEq("data".getBytes()), eq(0), eq(0L));
+        expect(service.get(ENTRY_KEY)).andReturn(null);
         service.put(eq(ENTRY_KEY), aryEq("data".getBytes()), eq(Constants.SUCCESSOR_LIST_SIZE));
         replay(clientFactoryMock, nextLocatorMock, service);
 
-        nodeLocator.put(ENTRY_KEY, "data".getBytes());
+        nodeLocator.put(ENTRY_KEY, "data".getBytes(), 0);
+    }
+
+    @Test
+    public void testPut_Expiring() throws Exception {
+        Node node = new Node(null, 8080, new KeyId(1000));
+        node.setSuccessor(new TNode("successor", 1234, new KeyId(123)));
+        node.setPredecessor(new TNode("predecessor", 1234, new KeyId(0)));
+        DonutExpiringHashTableService store = new DonutExpiringHashTableService(
+                new DonutSortedHashTableService());
+        NodeLocator nodeLocator = new NodeLocator(node, store, clientFactoryMock);
+        long expiresAt = System.currentTimeMillis() + 60000;
+
+        // The successors are handed the same deadline rather than the TTL
+        expect(clientFactoryMock.get(node.getSuccessor())).andReturn(nextLocatorMock);
+        clientFactoryMock.release(node.getSuccessor());
+        nextLocatorMock.replicatePut(eq(ENTRY_KEY), aryEq("data".getBytes()), eq(0), eq(expiresAt));
+        replay(clientFactoryMock, nextLocatorMock, service);
+
+        nodeLocator.put(ENTRY_KEY, "data".getBytes(), expiresAt);
+        assertEquals(expiresAt, store.getExpiresAt(ENTRY_KEY));
+        assertEquals(expiresAt, nodeLocator.getEntry(ENTRY_KEY).getExpiresAt());
+    }
+
+    @Test
+    public void testPutChunk_ReplicatedBeforeValue() throws Exception {
+        Node node = new Node(null, 8080, new KeyId(1000));
+        node.setSuccessor(new TNode("successor", 1234, new KeyId(123)));
+        node.setPredecessor(new TNode("predecessor", 1234, new KeyId(0)));
+        DonutSortedHashTableService store = new DonutSortedHashTableService();
+        clientFactoryMock = createStrictMock(LocatorClientFactory.class);
+        nextLocatorMock = createStrictMock(KeyLocator.Iface.class);
+        // Chunks are passed on from a thread of their own
+        makeThreadSafe(clientFactoryMock, true);
+        makeThreadSafe(nextLocatorMock, true);
+        NodeLocator nodeLocator = new NodeLocator(node, store, clientFactoryMock);
+        EntryKey chunkKey = DonutHashRequestService.chunkKey(ENTRY_KEY, 7, 0);
+        byte[] manifest = ValueCodec.encodeChunked(new ChunkedValue(7, 1, 5));
+
+        expect(clientFactoryMock.get(node.getSuccessor())).andReturn(nextLocatorMock);
+        nextLocatorMock.replicatePutChunk(eq(chunkKey), aryEq("chunk".getBytes()), eq(0), eq(0L));
+        clientFactoryMock.release(node.getSuccessor());
+        expect(clientFactoryMock.get(node.getSuccessor())).andReturn(nextLocatorMock);
+        nextLocatorMock.replicatePut(eq(ENTRY_KEY), aryEq(manifest), eq(0), eq(0L));
+        clientFactoryMock.release(node.getSuccessor());
+        replay(clientFactoryMock, nextLocatorMock, service);
+
+        nodeLocator.putChunk(chunkKey, "chunk".getBytes(), 0);
+        nodeLocator.put(ENTRY_KEY, manifest, 0);
+        assertArrayEquals("chunk".getBytes(), store.get(chunkKey).getData());
+    }
+
+    @Test
+    public void testPutChunk_FailureOnlyFailsItsValue() throws Exception {
+        Node node = new Node(null, 8080, new KeyId(1000));
+        node.setSuccessor(new TNode("successor", 1234, new KeyId(123)));
+        node.setPredecessor(new TNode("predecessor", 1234, new KeyId(0)));
+        DonutSortedHashTableService store = new DonutSortedHashTableService();
+        makeThreadSafe(clientFactoryMock, true);
+        makeThreadSafe(nextLocatorMock, true);
+        NodeLocator nodeLocator = new NodeLocator(node, store, clientFactoryMock);
+        EntryKey chunkKey = DonutHashRequestService.chunkKey(ENTRY_KEY, 7, 0);
+        EntryKey otherKey = new EntryKey(new KeyId(500), "other");
+
+        expect(clientFactoryMock.get(node.getSuccessor())).andReturn(nextLocatorMock).times(2);
+        clientFactoryMock.release(node.getSuccessor());
+        expectLastCall().times(2);
+        nextLocatorMock.replicatePutChunk(eq(chunkKey), aryEq("chunk".getBytes()), eq(0), eq(0L));
+        expectLastCall().andThrow(new TException("down"));
+        nextLocatorMock.replicatePut(eq(otherKey), aryEq("other".getBytes()), eq(0), eq(0L));
+        replay(clientFactoryMock, nextLocatorMock, service);
+
+        nodeLocator.putChunk(chunkKey, "chunk".getBytes(), 0);
+        // Another value does not hear of it
+        nodeLocator.put(otherKey, "other".getBytes(), 0);
+        // The value it is a chunk of does, before it is stored anywhere
+        try {
+            nodeLocator.put(ENTRY_KEY, ValueCodec.encodeChunked(new ChunkedValue(7, 1, 5)), 0);
+            fail("Put a value one of whose chunks was not replicated");
+        } catch (TException e) {
+        }
+        assertNull(store.get(ENTRY_KEY));
+    }
+
+    @Test
+    public void testPut_RemovesReplacedChunks() throws Exception {
+        Node node = new Node(null, 8080, new KeyId(1000));
+        node.setPredecessor(node.getTNode());
+        DonutSortedHashTableService store = new DonutSortedHashTableService();
+        NodeLocator nodeLocator = new NodeLocator(node, store, null);
+        EntryKey chunk0 = DonutHashRequestService.chunkKey(ENTRY_KEY, 7, 0);
+        EntryKey chunk1 = DonutHashRequestService.chunkKey(ENTRY_KEY, 7, 1);
+        replay(clientFactoryMock, nextLocatorMock, service);
+
+        nodeLocator.putChunk(chunk0, "chunk0".getBytes(), 0);
+        nodeLocator.putChunk(chunk1, "chunk1".getBytes(), 0);
+        nodeLocator.put(ENTRY_KEY, ValueCodec.encodeChunked(new ChunkedValue(7, 2, 12)), 0);
+        nodeLocator.put(ENTRY_KEY, "whole".getBytes(), 0);
+        assertNull(store.get(chunk0));
+        assertNull(store.get(chunk1));
+        assertArrayEquals("whole".getBytes(), store.get(ENTRY_KEY).getData());
     }
 
     @Test(expected = NotResponsibleForId.class)
@@ -197,7 +596,7 @@ public class NodeLocatorTest {
 
         replay(clientFactoryMock, nextLocatorMock, service);
 
-        nodeLocator.put(new EntryKey(new KeyId(-1), "key"), "data".getBytes());
+        nodeLocator.put(new EntryKey(new KeyId(-1), "key"), "data".getBytes(), 0);
     }
 
     @Test
@@ -209,7 +608,8 @@ public class NodeLocatorTest {
 
         expect(clientFactoryMock.get(node.getSuccessor())).andReturn(nextLocatorMock);
         clientFactoryMock.release(node.getSuccessor());
-        nextLocatorMock.replicateRemove(eq(ENTRY_KEY), eq(Constants.SUCCESSOR_LIST_SIZE - 1));
+        nextLocatorMock.replicateRemove(eq(ENTRY_KEY), eq(0));
+        expect(service.get(ENTRY_KEY)).andReturn(null);
         service.remove(eq(ENTRY_KEY));
         replay(clientFactoryMock, nextLocatorMock, service);
 
@@ -275,9 +675,11 @@ public class NodeLocatorTest {
 
         expect(clientFactoryMock.get(newPredecessor)).andReturn(nextLocatorMock);
         clientFactoryMock.release(newPredecessor);
-        expect(nextLocatorMock.getDataRange(node.getNodeId(), newPredecessor.getNodeId()))
-                .andReturn(keys);
-        expect(nextLocatorMock.get(key)).andReturn("world".getBytes());
+        expect(service.getRange(node.getNodeId(), newPredecessor.getNodeId())).andReturn(
+                new TreeSet<EntryKey>());
+        expect(nextLocatorMock.getMissingRange(eq(node.getNodeId()),
+                eq(newPredecessor.getNodeId()), isA(byte[].class))).andReturn(keys);
+        expect(nextLocatorMock.getEntry(key)).andReturn(new DataPair("world".getBytes(), 1));
         service.put(eq(key), aryEq("world".getBytes()), eq(Constants.SUCCESSOR_LIST_SIZE));
         replay(clientFactoryMock, nextLocatorMock, service);
 
@@ -303,20 +705,128 @@ public class NodeLocatorTest {
 
         expect(clientFactoryMock.get(successor)).andReturn(nextLocatorMock);
         clientFactoryMock.release(successor);
-        expect(nextLocatorMock.getDataRange(newPredecessor.getNodeId(), node.getNodeId()))
-                .andReturn(keys0);
-        expect(nextLocatorMock.get(key0)).andReturn("testing".getBytes());
+        expect(service.getRange(newPredecessor.getNodeId(), node.getNodeId())).andReturn(
+                new TreeSet<EntryKey>());
+        expect(nextLocatorMock.getMissingRange(eq(newPredecessor.getNodeId()),
+                eq(node.getNodeId()), isA(byte[].class))).andReturn(keys0);
+        expect(nextLocatorMock.getEntry(key0)).andReturn(new DataPair("testing".getBytes(), 1));
         service.put(eq(key0), aryEq("testing".getBytes()), eq(Constants.SUCCESSOR_LIST_SIZE));
 
         expect(clientFactoryMock.get(newPredecessor)).andReturn(nextLocatorMock);
         clientFactoryMock.release(newPredecessor);
-        expect(nextLocatorMock.getDataRange(node.getNodeId(), newPredecessor.getNodeId()))
-                .andReturn(keys1);
-        expect(nextLocatorMock.get(key1)).andReturn("world".getBytes());
+        expect(service.getRange(node.getNodeId(), newPredecessor.getNodeId())).andReturn(
+                new TreeSet<EntryKey>());
+        expect(nextLocatorMock.getMissingRange(eq(node.getNodeId()),
+                eq(newPredecessor.getNodeId()), isA(byte[].class))).andReturn(keys1);
+        expect(nextLocatorMock.getEntry(key1)).andReturn(new DataPair("world".getBytes(), 1));
         service.put(eq(key1), aryEq("world".getBytes()), eq(Constants.SUCCESSOR_LIST_SIZE));
         replay(clientFactoryMock, nextLocatorMock, service);
 
         nodeLocator.notify(newPredecessor);
     }
 
+    @Test
+    public void testNotify_OnlyFetchesMissing() throws Exception {
+        Node node = new Node(null, 8080, new KeyId(1000));
+        node.setPredecessor(new TNode("realPred", 8080, new KeyId(1)));
+        TNode newPredecessor = new TNode("mynode", 8080, new KeyId(999));
+        DonutSortedHashTableService store = new DonutSortedHashTableService();
+        DonutSortedHashTableService peerStore = new DonutSortedHashTableService();
+        EntryKey same = new EntryKey(new KeyId(1234), "same");
+        EntryKey stale = new EntryKey(new KeyId(2000), "stale");
+        EntryKey missing = new EntryKey(new KeyId(3000), "missing");
+        peerStore.put(same, "same".getBytes(), 1);
+        peerStore.put(stale, "new".getBytes(), 1);
+        peerStore.put(missing, "missing".getBytes(), 1);
+        store.put(same, "same".getBytes(), 3);
+        store.put(stale, "old".getBytes(), 3);
+
+        final Set<EntryKey> fetched = new TreeSet<EntryKey>();
+        final NodeLocator peer = new NodeLocator(new Node(newPredecessor), peerStore, null) {
+            @Override
+            public DataPair getEntry(EntryKey key) throws TException, DataNotFoundException {
+                fetched.add(key);
+                return super.getEntry(key);
+            }
+        };
+        NodeLocator nodeLocator = new NodeLocator(node, store, new LocatorClientFactory() {
+            public KeyLocator.Iface get(TNode node) {
+                return peer;
+            }
+
+            public void release(TNode node) {
+            }
+        });
+        replay(clientFactoryMock, nextLocatorMock, service);
+
+        nodeLocator.notify(newPredecessor);
+        assertEquals(new TreeSet<EntryKey>(Arrays.asList(stale, missing)), fetched);
+        assertArrayEquals("new".getBytes(), store.get(stale).getData());
+        assertArrayEquals("missing".getBytes(), store.get(missing).getData());
+        assertEquals(newPredecessor, node.getPredecessor());
+    }
+
+    @Test
+    public void testNotify_SkipsEntriesGoneMeanwhile() throws Exception {
+        Node node = new Node(null, 8080, new KeyId(1000));
+        node.setPredecessor(new TNode("realPred", 8080, new KeyId(1)));
+        TNode newPredecessor = new TNode("mynode", 8080, new KeyId(999));
+        DonutSortedHashTableService store = new DonutSortedHashTableService();
+        final DonutSortedHashTableService peerStore = new DonutSortedHashTableService();
+        final EntryKey gone = new EntryKey(new KeyId(2000), "gone");
+        EntryKey missing = new EntryKey(new KeyId(3000), "missing");
+        peerStore.put(gone, "gone".getBytes(), 1);
+        peerStore.put(missing, "missing".getBytes(), 1);
+
+        final NodeLocator peer = new NodeLocator(new Node(newPredecessor), peerStore, null) {
+            @Override
+            public DataPair getEntry(EntryKey key) throws TException, DataNotFoundException {
+                // Expires between being listed and being fetched
+                peerStore.remove(gone);
+                return super.getEntry(key);
+            }
+        };
+        NodeLocator nodeLocator = new NodeLocator(node, store, new LocatorClientFactory() {
+            public KeyLocator.Iface get(TNode node) {
+                return peer;
+            }
+
+            public void release(TNode node) {
+            }
+        });
+        replay(clientFactoryMock, nextLocatorMock, service);
+
+        nodeLocator.notify(newPredecessor);
+        assertNull(store.get(gone));
+        assertArrayEquals("missing".getBytes(), store.get(missing).getData());
+        assertEquals(newPredecessor, node.getPredecessor());
+    }
+
+    @Test
+    public void testGetMerkleHashes_ScansOncePerRound() throws Exception {
+        final int[] scans = new int[1];
+        DonutSortedHashTableService store = new DonutSortedHashTableService() {
+            @Override
+            public Set<EntryKey> getRange(KeyId start, KeyId end) {
+                ++scans[0];
+                return super.getRange(start, end);
+            }
+        };
+        store.put(ENTRY_KEY, "value".getBytes(), 0);
+        NodeLocator nodeLocator = new NodeLocator(null, store, clientFactoryMock);
+        replay(clientFactoryMock, nextLocatorMock, service);
+
+        KeyId start = new KeyId(0);
+        KeyId end = new KeyId(1000);
+        List<Long> root = nodeLocator.getMerkleHashes(start, end, 0, Arrays.asList(0));
+        nodeLocator.getMerkleHashes(start, end, 1, Arrays.asList(0, 1));
+        nodeLocator.getMerkleHashes(start, end, 2, Arrays.asList(0, 1, 2, 3));
+        assertEquals(1, scans[0]);
+
+        // The next round starts at the root again, and sees what changed since
+        store.put(ENTRY_KEY, "other".getBytes(), 0);
+        assertFalse(root.equals(nodeLocator.getMerkleHashes(start, end, 0, Arrays.asList(0))));
+        assertEquals(2, scans[0]);
+    }
+
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.TNode;
+
+/**
+ * @author jprouty
+ */
+public class OwnerCacheTest {
+
+    private static final TNode A = new TNode("a", 8080, new KeyId(100));
+    private static final TNode B = new TNode("b", 8080, new KeyId(200));
+
+    @Test
+    public void testGet_WithinRange() throws Exception {
+        OwnerCache cache = new OwnerCache();
+        cache.put(new KeyId(50), A);
+
+        assertNull(cache.get(new KeyId(49)));
+        assertEquals(A, cache.get(new KeyId(50)));
+        assertEquals(A, cache.get(new KeyId(75)));
+        assertEquals(A, cache.get(new KeyId(100)));
+        assertNull(cache.get(new KeyId(101)));
+        assertEquals(3, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testPut_GrowsRange() throws Exception {
+        OwnerCache cache = new OwnerCache();
+        cache.put(new KeyId(50), A);
+        cache.put(new KeyId(80), A);
+        cache.put(new KeyId(10), A);
+
+        assertEquals(1, cache.size());
+        assertEquals(A, cache.get(new KeyId(10)));
+        assertEquals(A, cache.get(new KeyId(50)));
+    }
+
+    @Test
+    public void testPut_WrapsRound() throws Exception {
+        OwnerCache cache = new OwnerCache();
+        cache.put(new KeyId(Long.MAX_VALUE - 5), A);
+        cache.put(new KeyId(150), B);
+
+        assertEquals(A, cache.get(new KeyId(Long.MAX_VALUE)));
+        assertEquals(A, cache.get(new KeyId(Long.MIN_VALUE)));
+        assertEquals(A, cache.get(new KeyId(0)));
+        assertEquals(B, cache.get(new KeyId(200)));
+        assertNull(cache.get(new KeyId(201)));
+        assertNull(cache.get(new KeyId(Long.MAX_VALUE - 6)));
+    }
+
+    @Test
+    public void testPut_DropsRangesItCovers() throws Exception {
+        OwnerCache cache = new OwnerCache();
+        cache.put(new KeyId(50), A);
+        // B is found to own 50, so A can no longer own anything before B
+        cache.put(new KeyId(50), B);
+
+        assertEquals(1, cache.size());
+        assertEquals(B, cache.get(new KeyId(75)));
+        assertEquals(B, cache.get(new KeyId(150)));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        OwnerCache cache = new OwnerCache();
+        cache.put(new KeyId(50), A);
+        cache.put(new KeyId(150), B);
+        cache.invalidate(A);
+
+        assertNull(cache.get(new KeyId(75)));
+        assertEquals(B, cache.get(new KeyId(175)));
+    }
+
+    @Test
+    public void testPut_Bounded() throws Exception {
+        OwnerCache cache = new OwnerCache(2);
+        cache.put(new KeyId(50), A);
+        cache.put(new KeyId(150), B);
+        TNode c = new TNode("c", 8080, new KeyId(300));
+        cache.put(new KeyId(250), c);
+
+        assertEquals(2, cache.size());
+        assertEquals(c, cache.get(new KeyId(275)));
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.business.Node;
+import edu.washington.cs.cse490h.donut.business.TNode;
+
+/**
+ * @author jprouty
+ */
+public class VirtualNodeLocatorTest {
+
+    private Node                    node1;
+    private Node                    node2;
+    private TNode                   predecessor1;
+    private TNode                   predecessor2;
+    private NodeLocator             locator1;
+    private VirtualNodeLocator      virtualLocator;
+
+    @Before
+    public void setUp() {
+        // Two positions of the same process, told apart by their predecessors
+        node1 = new Node("node", 8080, new KeyId(100));
+        node2 = new Node("node", 8080, new KeyId(900));
+        predecessor1 = new TNode("other", 8080, new KeyId(50));
+        predecessor2 = new TNode("other", 8080, new KeyId(500));
+        node1.setPredecessor(predecessor1);
+        node2.setPredecessor(predecessor2);
+
+        locator1 = new NodeLocator(node1, null, null);
+        virtualLocator = new VirtualNodeLocator(Arrays.asList(locator1, new NodeLocator(node2,
+                null, null)));
+    }
+
+    @Test
+    public void testFirstByDefault() throws Exception {
+        assertEquals(predecessor1, virtualLocator.getPredecessor());
+    }
+
+    @Test
+    public void testAddress() throws Exception {
+        virtualLocator.address(new KeyId(900));
+        assertEquals(predecessor2, virtualLocator.getPredecessor());
+        virtualLocator.address(new KeyId(100));
+        assertEquals(predecessor1, virtualLocator.getPredecessor());
+    }
+
+    @Test
+    public void testAddressUnknown() throws Exception {
+        virtualLocator.address(new KeyId(900));
+        try {
+            virtualLocator.address(new KeyId(300));
+            fail("Addressed a position that is not here");
+        } catch (NodeNotFoundException e) {
+        }
+        // Still the one addressed before
+        assertEquals(predecessor2, virtualLocator.getPredecessor());
+    }
+
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+
+/**
+ * @author jprouty
+ */
+public class DonutBoundedHashTableServiceTest {
+
+    private static final long            BUDGET = 64 * 1024;
+
+    private DonutSortedHashTableService  disk;
+    private DonutBoundedHashTableService service;
+
+    @Before
+    public void setUp() {
+        disk = new DonutSortedHashTableService();
+        service = new DonutBoundedHashTableService(disk, BUDGET);
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        service.put(key(1), "hello".getBytes(), 3);
+        assertEquals(new DataPair("hello".getBytes(), 3), service.get(key(1)));
+        service.remove(key(1));
+        assertNull(service.get(key(1)));
+    }
+
+    @Test
+    public void testStaysWithinBudget_SpillsToDisk() {
+        for (int i = 0; i < 1000; ++i) {
+            service.put(key(i), new byte[1000], 3);
+        }
+        assertTrue(service.getMemoryBytes() <= BUDGET);
+        assertTrue(service.getMemoryCount() < 1000);
+
+        // Nothing is lost, and everything is still in range
+        for (int i = 0; i < 1000; ++i) {
+            assertNotNull(service.get(key(i)));
+            assertTrue(service.getMemoryBytes() <= BUDGET);
+        }
+        assertEquals(1000, service.getRange(new KeyId(0), new KeyId(0)).size());
+    }
+
+    @Test
+    public void testRemove_AlsoRemovesSpilledCopy() {
+        for (int i = 0; i < 1000; ++i) {
+            service.put(key(i), new byte[1000], 3);
+        }
+        for (int i = 0; i < 1000; ++i) {
+            service.remove(key(i));
+        }
+        for (int i = 0; i < 1000; ++i) {
+            assertNull(service.get(key(i)));
+        }
+        assertEquals(0, service.getRange(new KeyId(0), new KeyId(0)).size());
+        assertEquals(0, disk.getRange(new KeyId(0), new KeyId(0)).size());
+    }
+
+    @Test
+    public void testSync_WritesChangedEntriesToDisk() throws Exception {
+        service.put(key(1), "one".getBytes(), 3);
+        service.put(key(2), "two".getBytes(), 3);
+        assertNull(disk.get(key(1)));
+
+        service.sync();
+        assertEquals(new DataPair("one".getBytes(), 3), disk.get(key(1)));
+        assertEquals(new DataPair("two".getBytes(), 3), disk.get(key(2)));
+        assertEquals(2, service.getMemoryCount());
+
+        // Written again once it changes again
+        service.put(key(1), "uno".getBytes(), 3);
+        service.sync();
+        assertEquals(new DataPair("uno".getBytes(), 3), disk.get(key(1)));
+    }
+
+    @Test
+    public void testOverwrite_SpilledEntry() {
+        for (int i = 0; i < 1000; ++i) {
+            service.put(key(i), "old".getBytes(), 3);
+            service.put(key(i + 1000), new byte[1000], 3);
+        }
+        for (int i = 0; i < 1000; ++i) {
+            service.put(key(i), "new".getBytes(), 2);
+        }
+        for (int i = 0; i < 1000; ++i) {
+            assertEquals(new DataPair("new".getBytes(), 2), service.get(key(i)));
+        }
+    }
+
+    @Test
+    public void testHotKeysSurviveScan() {
+        // 20 hot keys are read over and over...
+        for (int round = 0; round < 20; ++round) {
+            for (int i = 0; i < 20; ++i) {
+                if (round == 0) {
+                    service.put(key(i), new byte[1000], 3);
+                } else {
+                    service.get(key(i));
+                }
+            }
+        }
+        // ...then a scan writes many keys that are never read again
+        Random random = new Random(490);
+        for (int i = 0; i < 2000; ++i) {
+            service.put(key(1000 + random.nextInt(100000)), new byte[1000], 3);
+        }
+
+        int hot = 0;
+        for (int i = 0; i < 20; ++i) {
+            if (!disk.getRange(new KeyId(i - 1), new KeyId(i)).contains(key(i))) {
+                ++hot;
+            }
+        }
+        assertEquals(20, hot);
+    }
+
+    @Test
+    public void testHitRatio_SkewedReads() {
+        // 2000 keys on disk, of which the 100 that get 95% of the reads fit in memory many times
+        for (int i = 0; i < 2000; ++i) {
+            disk.put(key(i), new byte[200], 3);
+        }
+        Random random = new Random(16);
+        for (int i = 0; i < 40000; ++i) {
+            service.get(key(random.nextInt(20) < 19 ? random.nextInt(100) : random.nextInt(2000)));
+        }
+        assertTrue(service.getMemoryBytes() <= BUDGET);
+        assertTrue("Hit ratio " + service.getHitRatio(), service.getHitRatio() > 0.9);
+    }
+
+    @Test
+    public void testConcurrentHits() throws Exception {
+        for (int i = 0; i < 50; ++i) {
+            service.put(key(i), new byte[100], 3);
+        }
+        List<Thread> readers = new ArrayList<Thread>();
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        for (int t = 0; t < 8; ++t) {
+            final Random random = new Random(t);
+            readers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20000; ++i) {
+                            assertNotNull(service.get(key(random.nextInt(50))));
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertEquals(new ArrayList<Throwable>(), failures);
+        assertEquals(1.0, service.getHitRatio(), 0);
+        assertEquals(50, service.getMemoryCount());
+    }
+
+    @Test
+    public void testLsmColdTier() throws Exception {
+        File directory = File.createTempFile("donut-cold", "");
+        directory.delete();
+        DonutLsmHashTableService cold = new DonutLsmHashTableService(directory, 16 * 1024,
+                16 * 1024);
+        try {
+            service = new DonutBoundedHashTableService(cold, BUDGET);
+            for (int i = 0; i < 500; ++i) {
+                service.put(key(i), new byte[1000], 3);
+            }
+            assertTrue(service.getMemoryBytes() <= BUDGET);
+            for (int i = 0; i < 500; ++i) {
+                assertNotNull(service.get(key(i)));
+            }
+            assertEquals(500, service.getRange(new KeyId(0), new KeyId(0)).size());
+        } finally {
+            cold.close();
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private static EntryKey key(int i) {
+        return new EntryKey(new KeyId(i), "key" + i);
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+
+/**
+ * @author jprouty
+ */
+public class DonutConcurrentHashTableServiceTest {
+
+    private static final Logger LOGGER  = Logger.getLogger(DonutConcurrentHashTableServiceTest.class
+                                                .getName());
+
+    private static final int    THREADS = 8;
+    private static final int    KEYS    = 20000;
+
+    @Test
+    public void testConcurrentWritersAndRangeReaders() throws Exception {
+        final DonutHashTableService service = new DonutConcurrentHashTableService();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch writersDone = new CountDownLatch(THREADS);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; ++t) {
+            final int thread = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        // Each writer owns every THREADS-th id. Odd ids are removed again.
+                        for (int i = thread; i < KEYS; i += THREADS) {
+                            EntryKey key = key(i);
+                            service.put(key, ("value" + i).getBytes(), 3);
+                            if (i % 2 == 1) {
+                                service.remove(key);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        writersDone.countDown();
+                    }
+                }
+            });
+        }
+
+        // Readers keep asking for ranges while the writers go
+        for (int t = 0; t < 2; ++t) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (writersDone.getCount() > 0) {
+                            Set<EntryKey> range = service.getRange(new KeyId(0), new KeyId(
+                                    KEYS / 2));
+                            for (EntryKey key : range) {
+                                long id = key.getId().getId();
+                                assertTrue(id > 0 && id <= KEYS / 2);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        writersDone.await();
+        long elapsed = System.nanoTime() - begin;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        // KEYS puts + KEYS / 2 removes
+        LOGGER.info(THREADS + " writers: " + (KEYS * 3L / 2 * 1000000000L / Math.max(elapsed, 1))
+                + " ops/s");
+
+        for (int i = 0; i < KEYS; ++i) {
+            if (i % 2 == 0) {
+                assertEquals("value" + i, new String(service.get(key(i)).getData()));
+            } else {
+                assertNull(service.get(key(i)));
+            }
+        }
+        assertEquals(KEYS / 2, service.getRange(new KeyId(0), new KeyId(0)).size());
+    }
+
+    private static EntryKey key(int i) {
+        return new EntryKey(new KeyId(i), "key" + i);
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+
+/**
+ * @author jprouty
+ */
+public class DonutExpiringHashTableServiceTest {
+
+    private static final long             HOUR = 60 * 60 * 1000;
+    private static final EntryKey         KEY  = new EntryKey(new KeyId(5), "key");
+    private static final List<Integer>    ROOT = Collections.singletonList(0);
+    private static final KeyId            ZERO = new KeyId(0);
+
+    private DonutSortedHashTableService   store;
+    private DonutExpiringHashTableService service;
+    private long                          now;
+
+    @Before
+    public void setUp() {
+        store = new DonutSortedHashTableService();
+        service = new DonutExpiringHashTableService(store);
+        now = System.currentTimeMillis();
+    }
+
+    @Test
+    public void testPut_NoExpiry() {
+        service.put(KEY, "value".getBytes(), 1);
+        assertEquals(new DataPair("value".getBytes(), 1), service.get(KEY));
+        assertEquals(0, service.getExpiresAt(KEY));
+        assertEquals(0, service.expire(now + 1000 * HOUR));
+        assertNotNull(store.get(KEY));
+    }
+
+    @Test
+    public void testExpire() {
+        service.put(KEY, "value".getBytes(), 1, now + HOUR);
+        DataPair value = service.get(KEY);
+        assertArrayEquals("value".getBytes(), value.getData());
+        assertEquals(now + HOUR, value.getExpiresAt());
+        assertEquals(1, service.getPendingCount());
+
+        assertEquals(0, service.expire(now + HOUR - 1));
+        assertNotNull(store.get(KEY));
+        assertEquals(1, service.expire(now + HOUR));
+        assertNull(store.get(KEY));
+        assertEquals(0, service.getPendingCount());
+    }
+
+    @Test
+    public void testExpired_HiddenBeforeSweep() {
+        service.put(KEY, "value".getBytes(), 1, now - 1);
+        assertNull(service.get(KEY));
+        assertFalse(service.getRange(new KeyId(0), new KeyId(10)).contains(KEY));
+        // Still in the underlying store until the next sweep
+        assertNotNull(store.get(KEY));
+        assertEquals(1, service.expire(now));
+        assertNull(store.get(KEY));
+    }
+
+    @Test
+    public void testPutAgain_ReplacesExpiry() {
+        service.put(KEY, "first".getBytes(), 1, now + HOUR);
+        service.put(KEY, "second".getBytes(), 1, now + 2 * HOUR);
+        assertEquals(0, service.expire(now + HOUR));
+        assertArrayEquals("second".getBytes(), service.get(KEY).getData());
+
+        // And a put without a TTL makes it permanent
+        service.put(KEY, "third".getBytes(), 1);
+        assertEquals(0, service.expire(now + 3 * HOUR));
+        assertArrayEquals("third".getBytes(), store.get(KEY).getData());
+        assertEquals(0, service.getPendingCount());
+    }
+
+    @Test
+    public void testRemove_CancelsExpiry() {
+        service.put(KEY, "value".getBytes(), 1, now + HOUR);
+        service.remove(KEY);
+        assertEquals(0, service.getPendingCount());
+        assertEquals(0, service.expire(now + HOUR));
+    }
+
+    @Test
+    public void testExpiry_SurvivesReopening() {
+        EntryKey other = new EntryKey(new KeyId(7), "other");
+        service.put(KEY, "value".getBytes(), 1, now + HOUR);
+        service.put(other, "other".getBytes(), 1);
+
+        // As after a restart on a store that kept its data, which is not read on opening
+        service = new DonutExpiringHashTableService(store);
+        assertEquals(0, service.getPendingCount());
+        assertEquals(now + HOUR, service.get(KEY).getExpiresAt());
+        assertEquals(1, service.recover());
+        assertEquals(0, service.recover());
+        assertEquals(now + HOUR, service.getExpiresAt(KEY));
+        assertEquals(1, service.getPendingCount());
+        assertEquals(1, service.expire(now + HOUR));
+        assertNull(store.get(KEY));
+        assertArrayEquals("other".getBytes(), service.get(other).getData());
+    }
+
+    @Test
+    public void testPut_DataLikeAHeader() {
+        // Starts the way a stored expiry does, but never expires
+        byte[] data = { 0x5e, 0x1d, 0x7a, 0, 0, 0, 0, 0, 0, 0, 1, 42 };
+        service.put(KEY, data, 1);
+        assertArrayEquals(data, service.get(KEY).getData());
+        assertEquals(0, service.get(KEY).getExpiresAt());
+        service = new DonutExpiringHashTableService(store);
+        assertEquals(0, service.recover());
+        assertEquals(0, service.getPendingCount());
+        assertArrayEquals(data, service.get(KEY).getData());
+    }
+
+    @Test
+    public void testExpire_UpdatesMerkleTree() {
+        DonutMerkleHashTableService merkle = new DonutMerkleHashTableService(store);
+        service = new DonutExpiringHashTableService(merkle);
+        EntryKey other = new EntryKey(new KeyId(7), "other");
+        service.put(other, "other".getBytes(), 1);
+        List<Long> before = merkle.getMerkleTree().getHashes(ZERO, ZERO, 0, ROOT);
+
+        service.put(KEY, "value".getBytes(), 1, now + HOUR);
+        assertFalse(before.equals(merkle.getMerkleTree().getHashes(ZERO, ZERO, 0, ROOT)));
+        assertEquals(1, service.expire(now + HOUR));
+        assertTrue(store.getRange(ZERO, ZERO).contains(other));
+        assertEquals(before, merkle.getMerkleTree().getHashes(ZERO, ZERO, 0, ROOT));
+    }
+
+}
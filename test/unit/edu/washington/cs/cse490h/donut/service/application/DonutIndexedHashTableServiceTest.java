@@ -0,0 +1,87 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+
+/**
+ * @author jprouty
+ */
+public class DonutIndexedHashTableServiceTest {
+
+    private static final EntryKey        KEY_NEG = new EntryKey(new KeyId(-20), "neg");
+    private static final EntryKey        KEY_1   = new EntryKey(new KeyId(1), "key1");
+    private static final EntryKey        KEY_7B  = new EntryKey(new KeyId(7), "b");
+    private static final EntryKey        KEY_7A  = new EntryKey(new KeyId(7), "a");
+    private static final EntryKey        KEY_MAX = new EntryKey(new KeyId(Long.MAX_VALUE), "max");
+
+    private DonutIndexedHashTableService service;
+
+    @Before
+    public void setUp() {
+        service = new DonutIndexedHashTableService();
+        for (EntryKey key : Arrays.asList(KEY_7B, KEY_MAX, KEY_1, KEY_NEG, KEY_7A)) {
+            service.put(key, key.getKey().getBytes(), 1);
+        }
+    }
+
+    @Test
+    public void testGetPutRemove() {
+        assertEquals(new DataPair("key1".getBytes(), 1), service.get(KEY_1));
+        service.put(KEY_1, "other".getBytes(), 3);
+        assertEquals(new DataPair("other".getBytes(), 3), service.get(KEY_1));
+        service.remove(KEY_1);
+        assertNull(service.get(KEY_1));
+        assertEquals(4, service.size());
+        assertEquals(new HashSet<EntryKey>(Arrays.asList(KEY_7A, KEY_7B)), service.getRange(
+                new KeyId(0), new KeyId(10)));
+    }
+
+    @Test
+    public void testSameId() {
+        assertEquals(new DataPair("a".getBytes(), 1), service.get(KEY_7A));
+        assertEquals(new DataPair("b".getBytes(), 1), service.get(KEY_7B));
+        service.remove(KEY_7A);
+        assertNull(service.get(KEY_7A));
+        assertEquals(new DataPair("b".getBytes(), 1), service.get(KEY_7B));
+    }
+
+    @Test
+    public void testGetRange() {
+        assertEquals(new HashSet<EntryKey>(Arrays.asList(KEY_1, KEY_7A, KEY_7B)), service
+                .getRange(new KeyId(0), new KeyId(10)));
+        assertEquals(new HashSet<EntryKey>(Arrays.asList(KEY_MAX, KEY_NEG)), service.getRange(
+                new KeyId(7), new KeyId(-1)));
+        // In ring order, past the top
+        assertEquals(Arrays.asList(KEY_MAX, KEY_NEG, KEY_1, KEY_7A, KEY_7B),
+                new ArrayList<EntryKey>(service.getRange(new KeyId(Long.MAX_VALUE - 1),
+                        new KeyId(7))));
+    }
+
+}
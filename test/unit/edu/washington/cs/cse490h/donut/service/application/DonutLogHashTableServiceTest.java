@@ -0,0 +1,239 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+
+/**
+ * @author jprouty
+ */
+public class DonutLogHashTableServiceTest {
+
+    private File                     directory;
+    private DonutLogHashTableService service;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("donut-log", "");
+        directory.delete();
+        service = new DonutLogHashTableService(directory, 1024);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        service.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        service.put(key(1), "hello".getBytes(), 5);
+        assertEquals(new DataPair("hello".getBytes(), 5), service.get(key(1)));
+
+        service.put(key(1), "world".getBytes(), 3);
+        assertEquals(new DataPair("world".getBytes(), 3), service.get(key(1)));
+
+        service.remove(key(1));
+        assertNull(service.get(key(1)));
+    }
+
+    @Test
+    public void testRestart_FromHints() throws Exception {
+        for (int i = 0; i < 100; ++i) {
+            service.put(key(i), ("value" + i).getBytes(), 3);
+        }
+        service.remove(key(50));
+        assertTrue(service.getSegmentCount() > 1);
+
+        reopen();
+
+        assertNull(service.get(key(50)));
+        for (int i = 0; i < 100; ++i) {
+            if (i != 50) {
+                assertEquals(new DataPair(("value" + i).getBytes(), 3), service.get(key(i)));
+            }
+        }
+        assertEquals(99, service.getRange(new KeyId(0), new KeyId(0)).size());
+    }
+
+    @Test
+    public void testRestart_AfterCrash() throws Exception {
+        service.put(key(1), "one".getBytes(), 3);
+        service.put(key(2), "two".getBytes(), 3);
+
+        // Crash without closing: the active segment has no hint. Then tear its last record.
+        File active = newestLog();
+        RandomAccessFile file = new RandomAccessFile(active, "rw");
+        file.setLength(file.length() - 2);
+        file.close();
+        service = new DonutLogHashTableService(directory, 1024);
+
+        assertEquals(new DataPair("one".getBytes(), 3), service.get(key(1)));
+        assertNull(service.get(key(2)));
+
+        service.put(key(2), "two again".getBytes(), 3);
+        reopen();
+        assertEquals(new DataPair("two again".getBytes(), 3), service.get(key(2)));
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        for (int round = 0; round < 10; ++round) {
+            for (int i = 0; i < 10; ++i) {
+                service.put(key(i), ("value" + round).getBytes(), 3);
+            }
+        }
+        service.remove(key(0));
+        int segments = service.getSegmentCount();
+
+        service.compact();
+
+        assertTrue(service.getSegmentCount() < segments);
+        assertNull(service.get(key(0)));
+        for (int i = 1; i < 10; ++i) {
+            assertEquals(new DataPair("value9".getBytes(), 3), service.get(key(i)));
+        }
+
+        reopen();
+        assertNull(service.get(key(0)));
+        assertEquals(new DataPair("value9".getBytes(), 3), service.get(key(9)));
+    }
+
+    @Test
+    public void testCompact_ClosesWhatItRewrote() throws Exception {
+        for (int round = 0; round < 10; ++round) {
+            for (int i = 0; i < 10; ++i) {
+                service.put(key(i), ("value" + round).getBytes(), 3);
+            }
+        }
+        service.compact();
+
+        // Every segment but the new active one has its hint, so nothing rewritten waits on a sync
+        File active = newestLog();
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".log") && !file.equals(active)) {
+                String name = file.getName();
+                assertTrue(new File(directory, name.substring(0, name.length() - 4) + ".hint")
+                        .exists());
+            }
+        }
+        assertEquals(0, active.length());
+
+        // And it holds up without closing
+        service = new DonutLogHashTableService(directory, 1024);
+        for (int i = 0; i < 10; ++i) {
+            assertEquals(new DataPair("value9".getBytes(), 3), service.get(key(i)));
+        }
+    }
+
+    @Test
+    public void testCompact_SettlesRemoves() throws Exception {
+        for (int round = 0; round < 10; ++round) {
+            for (int i = 0; i < 10; ++i) {
+                service.put(key(i), ("value" + round).getBytes(), 3);
+            }
+        }
+        for (int i = 0; i < 5; ++i) {
+            service.remove(key(i));
+        }
+        service.compact();
+        // Past the segment the removes were carried over to
+        for (int round = 10; round < 20; ++round) {
+            for (int i = 5; i < 10; ++i) {
+                service.put(key(i), ("value" + round).getBytes(), 3);
+            }
+        }
+        // Once to close the active segment, once more for what it had that was already dead
+        service.compact();
+        service.compact();
+        Set<String> files = listing();
+
+        // The removes that had to be kept are not rewritten on every pass
+        service.compact();
+        assertEquals(files, listing());
+        reopen();
+        for (int i = 0; i < 10; ++i) {
+            if (i < 5) {
+                assertNull(service.get(key(i)));
+            } else {
+                assertEquals(new DataPair("value19".getBytes(), 3), service.get(key(i)));
+            }
+        }
+    }
+
+    @Test
+    public void testGetRange() throws Exception {
+        service.put(new EntryKey(new KeyId(1), "key1"), "val1".getBytes(), 1);
+        service.put(new EntryKey(new KeyId(7), "key7"), "val7".getBytes(), 1);
+        service.put(new EntryKey(new KeyId(15), "key15"), "val15".getBytes(), 1);
+
+        Set<EntryKey> result = service.getRange(new KeyId(0), new KeyId(10));
+        assertEquals(2, result.size());
+        assertTrue(result.contains(new EntryKey(new KeyId(1), "key1")));
+        assertTrue(result.contains(new EntryKey(new KeyId(7), "key7")));
+    }
+
+    private void reopen() throws Exception {
+        service.close();
+        service = new DonutLogHashTableService(directory, 1024);
+    }
+
+    /**
+     * @return the name and length of every file of the log
+     */
+    private Set<String> listing() {
+        Set<String> listing = new TreeSet<String>();
+        for (File file : directory.listFiles()) {
+            listing.add(file.getName() + " " + file.length());
+        }
+        return listing;
+    }
+
+    private File newestLog() {
+        File newest = null;
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".log")
+                    && (newest == null || file.getName().compareTo(newest.getName()) > 0)) {
+                newest = file;
+            }
+        }
+        return newest;
+    }
+
+    private static EntryKey key(int i) {
+        return new EntryKey(new KeyId(i), "key" + i);
+    }
+
+}
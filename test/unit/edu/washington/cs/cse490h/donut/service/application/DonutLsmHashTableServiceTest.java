@@ -0,0 +1,138 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+
+/**
+ * @author jprouty
+ */
+public class DonutLsmHashTableServiceTest {
+
+    private File                     directory;
+    private DonutLsmHashTableService service;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("donut-lsm", "");
+        directory.delete();
+        service = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        service.put(key(1), "hello".getBytes(), 5);
+        assertEquals(new DataPair("hello".getBytes(), 5), service.get(key(1)));
+
+        service.flush();
+        assertEquals(new DataPair("hello".getBytes(), 5), service.get(key(1)));
+
+        service.remove(key(1));
+        assertNull(service.get(key(1)));
+        service.flush();
+        assertNull(service.get(key(1)));
+    }
+
+    @Test
+    public void testAgainstReference() throws Exception {
+        DonutHashTableService reference = new DonutSortedHashTableService();
+        Random random = new Random(490);
+        for (int i = 0; i < 5000; ++i) {
+            EntryKey key = key(random.nextInt(500) - 250);
+            if (random.nextInt(4) == 0) {
+                service.remove(key);
+                reference.remove(key);
+            } else {
+                byte[] data = ("value" + i).getBytes();
+                service.put(key, data, 3);
+                reference.put(key, data, 3);
+            }
+        }
+        assertTrue(service.getRunCounts().size() > 2);
+        assertSame(reference, service);
+
+        service.close();
+        service = open();
+        assertSame(reference, service);
+    }
+
+    @Test
+    public void testGetRange_MergesRuns() throws Exception {
+        service.put(key(1), "val1".getBytes(), 1);
+        service.put(key(7), "val7".getBytes(), 1);
+        service.flush();
+        service.put(key(15), "val15".getBytes(), 1);
+        service.remove(key(7));
+        service.put(key(-3), "val-3".getBytes(), 1);
+
+        assertEquals(list(key(1)), new ArrayList<EntryKey>(service.getRange(new KeyId(0),
+                new KeyId(10))));
+        assertEquals(list(key(15), key(-3)), new ArrayList<EntryKey>(service.getRange(new KeyId(
+                10), new KeyId(-1))));
+        assertEquals(list(key(-3), key(1), key(15)), new ArrayList<EntryKey>(service.getRange(
+                new KeyId(5), new KeyId(5))));
+    }
+
+    private void assertSame(DonutHashTableService reference, DonutHashTableService actual) {
+        for (int i = -250; i < 250; ++i) {
+            assertEquals(reference.get(key(i)), actual.get(key(i)));
+        }
+        assertEquals(new ArrayList<EntryKey>(reference.getRange(new KeyId(100), new KeyId(-100))),
+                new ArrayList<EntryKey>(actual.getRange(new KeyId(100), new KeyId(-100))));
+        assertEquals(new ArrayList<EntryKey>(reference.getRange(new KeyId(0), new KeyId(0))),
+                new ArrayList<EntryKey>(actual.getRange(new KeyId(0), new KeyId(0))));
+    }
+
+    private DonutLsmHashTableService open() throws Exception {
+        return new DonutLsmHashTableService(directory, 1024, 2048);
+    }
+
+    private static ArrayList<EntryKey> list(EntryKey... keys) {
+        ArrayList<EntryKey> list = new ArrayList<EntryKey>();
+        for (EntryKey key : keys) {
+            list.add(key);
+        }
+        return list;
+    }
+
+    private static EntryKey key(int i) {
+        return new EntryKey(new KeyId(i), "key" + i);
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+
+/**
+ * @author jprouty
+ */
+public class DonutOffHeapHashTableServiceTest {
+
+    private DonutOffHeapHashTableService service;
+
+    @Before
+    public void setUp() {
+        service = new DonutOffHeapHashTableService();
+    }
+
+    @Test
+    public void testPutGet() {
+        EntryKey key = new EntryKey(new KeyId(1), "key1");
+        service.put(key, "hello".getBytes(), 5);
+        assertEquals(new DataPair("hello".getBytes(), 5), service.get(key));
+        assertNull(service.get(new EntryKey(new KeyId(1), "key2")));
+    }
+
+    @Test
+    public void testPut_Overwrite() {
+        EntryKey key = new EntryKey(new KeyId(1), "key1");
+        service.put(key, "hello".getBytes(), 5);
+        service.put(key, "a much longer value than before".getBytes(), 2);
+        assertEquals(new DataPair("a much longer value than before".getBytes(), 2), service
+                .get(key));
+    }
+
+    @Test
+    public void testPut_Huge() {
+        EntryKey key = new EntryKey(new KeyId(1), "key1");
+        byte[] data = new byte[SlabAllocator.SLAB_SIZE + 1];
+        data[data.length - 1] = 42;
+        service.put(key, data, 3);
+        assertEquals(new DataPair(data, 3), service.get(key));
+
+        service.remove(key);
+        assertNull(service.get(key));
+        assertEquals(0, service.getAllocator().getAllocatedBytes());
+    }
+
+    @Test
+    public void testRemove_ReusesChunks() {
+        SlabAllocator allocator = service.getAllocator();
+        for (int i = 0; i < 1000; ++i) {
+            service.put(new EntryKey(new KeyId(i), "key" + i), new byte[100], 3);
+        }
+        long allocated = allocator.getAllocatedBytes();
+        for (int i = 0; i < 1000; ++i) {
+            service.remove(new EntryKey(new KeyId(i), "key" + i));
+        }
+        assertEquals(0, allocator.getUsedBytes());
+        assertEquals(0, allocator.getRequestedBytes());
+
+        for (int i = 0; i < 1000; ++i) {
+            service.put(new EntryKey(new KeyId(i), "other" + i), new byte[100], 3);
+        }
+        assertEquals(allocated, allocator.getAllocatedBytes());
+    }
+
+    @Test
+    public void testOccupancyAndFragmentation() {
+        SlabAllocator allocator = service.getAllocator();
+        assertEquals(0.0, allocator.getOccupancy(), 0.0);
+        assertEquals(0.0, allocator.getFragmentation(), 0.0);
+
+        // 8 byte header + 56 bytes fills a 64 byte chunk exactly
+        service.put(new EntryKey(new KeyId(1), "key1"), new byte[56], 3);
+        assertEquals(0.0, allocator.getFragmentation(), 0.0);
+        assertEquals(64.0 / SlabAllocator.SLAB_SIZE, allocator.getOccupancy(), 0.0);
+
+        // 8 + 57 bytes needs a 128 byte chunk
+        service.put(new EntryKey(new KeyId(2), "key2"), new byte[57], 3);
+        assertEquals(1 - (64.0 + 65.0) / (64.0 + 128.0), allocator.getFragmentation(), 1e-9);
+    }
+
+    @Test
+    public void testGetRange() {
+        service.put(new EntryKey(new KeyId(1), "key1"), "val1".getBytes(), 1);
+        service.put(new EntryKey(new KeyId(7), "key7"), "val7".getBytes(), 1);
+        service.put(new EntryKey(new KeyId(15), "key15"), "val15".getBytes(), 1);
+
+        Set<EntryKey> result = service.getRange(new KeyId(0), new KeyId(10));
+        assertEquals(2, result.size());
+        assertTrue(result.contains(new EntryKey(new KeyId(1), "key1")));
+        assertTrue(result.contains(new EntryKey(new KeyId(7), "key7")));
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+
+/**
+ * @author jprouty
+ */
+public class DonutSortedHashTableServiceTest {
+
+    private static final EntryKey KEY_NEG   = new EntryKey(new KeyId(-20), "neg");
+    private static final EntryKey KEY_1     = new EntryKey(new KeyId(1), "key1");
+    private static final EntryKey KEY_7B    = new EntryKey(new KeyId(7), "b");
+    private static final EntryKey KEY_7A    = new EntryKey(new KeyId(7), "a");
+    private static final EntryKey KEY_15    = new EntryKey(new KeyId(15), "key15");
+    private static final EntryKey KEY_MAX   = new EntryKey(new KeyId(Long.MAX_VALUE), "max");
+
+    private DonutHashTableService service;
+
+    @Before
+    public void setUp() {
+        service = new DonutSortedHashTableService();
+        for (EntryKey key : Arrays.asList(KEY_15, KEY_7B, KEY_MAX, KEY_1, KEY_NEG, KEY_7A)) {
+            service.put(key, key.getKey().getBytes(), 1);
+        }
+    }
+
+    @Test
+    public void testGetPutRemove() {
+        assertEquals(new DataPair("key1".getBytes(), 1), service.get(KEY_1));
+        service.put(KEY_1, "other".getBytes(), 3);
+        assertEquals(new DataPair("other".getBytes(), 3), service.get(KEY_1));
+        service.remove(KEY_1);
+        assertNull(service.get(KEY_1));
+    }
+
+    @Test
+    public void testGetRange() {
+        assertEquals(Arrays.asList(KEY_1, KEY_7A, KEY_7B), range(0, 10));
+    }
+
+    @Test
+    public void testGetRange_BoundsExclusiveInclusive() {
+        assertEquals(Arrays.asList(KEY_7A, KEY_7B, KEY_15), range(1, 15));
+        assertEquals(Arrays.asList(KEY_15), range(7, 15));
+    }
+
+    @Test
+    public void testGetRange_Wraps() {
+        assertEquals(Arrays.asList(KEY_MAX, KEY_NEG, KEY_1), range(15, 1));
+        assertEquals(Arrays.asList(KEY_NEG), range(Long.MAX_VALUE, -1));
+    }
+
+    @Test
+    public void testGetRange_WholeRing() {
+        assertEquals(Arrays.asList(KEY_NEG, KEY_1, KEY_7A, KEY_7B, KEY_15, KEY_MAX), range(7, 7));
+    }
+
+    private List<EntryKey> range(long start, long end) {
+        return new ArrayList<EntryKey>(service.getRange(new KeyId(start), new KeyId(end)));
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+
+/**
+ * @author jprouty
+ */
+public class DonutVersionedHashTableServiceTest {
+
+    private static final EntryKey          KEY_NEG = new EntryKey(new KeyId(-20), "neg");
+    private static final EntryKey          KEY_1   = new EntryKey(new KeyId(1), "key1");
+    private static final EntryKey          KEY_7B  = new EntryKey(new KeyId(7), "b");
+    private static final EntryKey          KEY_7A  = new EntryKey(new KeyId(7), "a");
+    private static final EntryKey          KEY_MAX = new EntryKey(new KeyId(Long.MAX_VALUE), "max");
+
+    private DonutVersionedHashTableService service;
+
+    @Before
+    public void setUp() {
+        service = new DonutVersionedHashTableService();
+        for (EntryKey key : Arrays.asList(KEY_7B, KEY_MAX, KEY_1, KEY_NEG, KEY_7A)) {
+            service.put(key, key.getKey().getBytes(), 1);
+        }
+    }
+
+    @Test
+    public void testGetPutRemove() {
+        assertEquals(new DataPair("key1".getBytes(), 1), service.get(KEY_1));
+        service.put(KEY_1, "other".getBytes(), 3);
+        assertEquals(new DataPair("other".getBytes(), 3), service.get(KEY_1));
+        service.remove(KEY_1);
+        assertNull(service.get(KEY_1));
+    }
+
+    @Test
+    public void testGetRange() {
+        assertEquals(Arrays.asList(KEY_1, KEY_7A, KEY_7B), range(service.snapshot(), 0, 10));
+        assertEquals(Arrays.asList(KEY_MAX, KEY_NEG), range(service.snapshot(), 7, -1));
+        assertEquals(Arrays.asList(KEY_NEG, KEY_1, KEY_7A, KEY_7B, KEY_MAX), range(service
+                .snapshot(), 7, 7));
+    }
+
+    @Test
+    public void testSnapshot_UnchangedByWrites() {
+        HashTableSnapshot snapshot = service.snapshot();
+        service.remove(KEY_1);
+        service.put(KEY_7A, "changed".getBytes(), 2);
+        service.put(new EntryKey(new KeyId(5), "new"), "new".getBytes(), 1);
+
+        assertEquals(5, snapshot.size());
+        assertEquals(new DataPair("key1".getBytes(), 1), snapshot.get(KEY_1));
+        assertEquals(new DataPair("a".getBytes(), 1), snapshot.get(KEY_7A));
+        assertEquals(Arrays.asList(KEY_1, KEY_7A, KEY_7B), range(snapshot, 0, 10));
+
+        List<EntryKey> all = new ArrayList<EntryKey>();
+        for (Map.Entry<EntryKey, DataPair> entry : snapshot) {
+            all.add(entry.getKey());
+        }
+        assertEquals(Arrays.asList(KEY_NEG, KEY_1, KEY_7A, KEY_7B, KEY_MAX), all);
+    }
+
+    @Test
+    public void testSnapshot_WhileWriting() throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; ++t) {
+            final int thread = t;
+            writers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 5000; ++i) {
+                            service.put(new EntryKey(new KeyId(i), "t" + thread), new byte[1], 1);
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            writers[t].start();
+        }
+
+        // Every snapshot taken along the way is internally consistent
+        int last = 0;
+        while (last < 5 + 4 * 5000) {
+            HashTableSnapshot snapshot = service.snapshot();
+            int count = 0;
+            for (@SuppressWarnings("unused")
+            Map.Entry<EntryKey, DataPair> entry : snapshot) {
+                ++count;
+            }
+            assertEquals(snapshot.size(), count);
+            assertTrue(count >= last);
+            last = count;
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertNull(failure.get());
+    }
+
+    private static List<EntryKey> range(HashTableSnapshot snapshot, long start, long end) {
+        return new ArrayList<EntryKey>(snapshot.getRange(new KeyId(start), new KeyId(end)));
+    }
+
+}
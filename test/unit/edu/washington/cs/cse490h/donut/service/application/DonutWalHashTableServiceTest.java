@@ -0,0 +1,202 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+
+/**
+ * @author jprouty
+ */
+public class DonutWalHashTableServiceTest {
+
+    private File                     directory;
+    private DonutWalHashTableService service;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("donut-wal", "");
+        directory.delete();
+        service = new DonutWalHashTableService(new DonutSortedHashTableService(), directory, 0,
+                1024);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        service.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        for (int i = 0; i < 100; ++i) {
+            service.put(key(i), ("value" + i).getBytes(), 3);
+        }
+        service.put(key(7), "again".getBytes(), 2);
+        service.remove(key(50));
+        assertTrue(service.getSegmentCount() > 1);
+
+        reopen();
+        assertEquals(new DataPair("value1".getBytes(), 3), service.get(key(1)));
+        assertEquals(new DataPair("again".getBytes(), 2), service.get(key(7)));
+        assertNull(service.get(key(50)));
+        assertEquals(99, service.getRange(new KeyId(0), new KeyId(0)).size());
+    }
+
+    @Test
+    public void testReplay_AfterCrash() throws Exception {
+        service.put(key(1), "one".getBytes(), 3);
+        service.put(key(2), "two".getBytes(), 3);
+
+        // Crash without closing, with the last record torn
+        File newest = null;
+        for (File file : directory.listFiles()) {
+            if (newest == null || file.getName().compareTo(newest.getName()) > 0) {
+                newest = file;
+            }
+        }
+        RandomAccessFile file = new RandomAccessFile(newest, "rw");
+        file.setLength(file.length() - 2);
+        file.close();
+        service = new DonutWalHashTableService(new DonutSortedHashTableService(), directory, 0,
+                1024);
+
+        assertEquals(new DataPair("one".getBytes(), 3), service.get(key(1)));
+        assertNull(service.get(key(2)));
+
+        service.put(key(2), "two again".getBytes(), 3);
+        reopen();
+        assertEquals(new DataPair("two again".getBytes(), 3), service.get(key(2)));
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        for (int i = 0; i < 100; ++i) {
+            service.put(key(i), ("value" + i).getBytes(), 3);
+        }
+        service.remove(key(0));
+        assertTrue(service.getSegmentCount() > 1);
+
+        service.checkpoint();
+        assertEquals(1, service.getSegmentCount());
+        service.put(key(100), "after".getBytes(), 3);
+        service.remove(key(1));
+
+        reopen();
+        assertNull(service.get(key(0)));
+        assertNull(service.get(key(1)));
+        assertEquals(new DataPair("value99".getBytes(), 3), service.get(key(99)));
+        assertEquals(new DataPair("after".getBytes(), 3), service.get(key(100)));
+
+        // And again, on top of the last one
+        service.checkpoint();
+        reopen();
+        assertEquals(99, service.getRange(new KeyId(0), new KeyId(0)).size());
+    }
+
+    @Test
+    public void testCheckpoint_DurableStore() throws Exception {
+        File storeDirectory = File.createTempFile("donut-wal-lsm", "");
+        storeDirectory.delete();
+        service.close();
+        service = new DonutWalHashTableService(new DonutLsmHashTableService(storeDirectory),
+                directory, 0, 1024);
+        try {
+            for (int i = 0; i < 100; ++i) {
+                service.put(key(i), ("value" + i).getBytes(), 3);
+            }
+            service.remove(key(0));
+
+            service.checkpoint();
+            // The store holds it all itself, so only where the log starts is written
+            assertEquals(8, new File(directory, "checkpoint").length());
+            assertEquals(1, service.getSegmentCount());
+            service.put(key(100), "after".getBytes(), 3);
+
+            // Crash without closing the log or the store
+            service = new DonutWalHashTableService(new DonutLsmHashTableService(storeDirectory),
+                    directory, 0, 1024);
+            assertNull(service.get(key(0)));
+            assertEquals(new DataPair("value99".getBytes(), 3), service.get(key(99)));
+            assertEquals(new DataPair("after".getBytes(), 3), service.get(key(100)));
+            assertEquals(100, service.getRange(new KeyId(0), new KeyId(0)).size());
+        } finally {
+            for (File file : storeDirectory.listFiles()) {
+                file.delete();
+            }
+            storeDirectory.delete();
+        }
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        service.close();
+        service = new DonutWalHashTableService(new DonutSortedHashTableService(), directory, 5,
+                DonutWalHashTableService.DEFAULT_MAX_SEGMENT_SIZE);
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int t = 0; t < 16; ++t) {
+            final int writer = t;
+            writers.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20; ++i) {
+                        service.put(key(writer * 100 + i), "value".getBytes(), 3);
+                    }
+                }
+            });
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        // Every write waited for its own fsync, but most of them shared it
+        assertTrue(service.getCommitCount() < 16 * 20 / 4);
+        reopen();
+        assertEquals(16 * 20, service.getRange(new KeyId(0), new KeyId(0)).size());
+    }
+
+    private void reopen() throws Exception {
+        service.close();
+        service = new DonutWalHashTableService(new DonutSortedHashTableService(), directory, 0,
+                1024);
+    }
+
+    private static EntryKey key(int i) {
+        return new EntryKey(new KeyId(i * 1000L), "key" + i);
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.service.application;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+import edu.washington.cs.cse490h.donut.util.KeyIdUtil;
+
+/**
+ * @author jprouty
+ */
+public class MerkleTreeTest {
+
+    private static final long[][]       RANGES = { { 0, 0 }, { -100, 100 }, { 100, -100 },
+            { 5, 6 }, { 10, 1000 }, { Long.MIN_VALUE / 2, Long.MAX_VALUE / 2 },
+            { Long.MAX_VALUE / 2, Long.MIN_VALUE / 2 }, { 1000, 10 }, { Long.MAX_VALUE, 7 } };
+
+    private DonutMerkleHashTableService service;
+    private List<EntryKey>              keys;
+
+    @Before
+    public void setUp() {
+        service = new DonutMerkleHashTableService(new DonutSortedHashTableService());
+        // Built before the writes, so they are all taken into the tree as they happen
+        service.getMerkleTree();
+        keys = new ArrayList<EntryKey>();
+        Random random = new Random(490);
+        for (int i = 0; i < 2000; ++i) {
+            // Spread over the ring, with some right around 0 and the range edges
+            long id = i % 4 == 0 ? random.nextInt(2000) - 1000 : random.nextLong();
+            EntryKey key = new EntryKey(new KeyId(id), "key" + i);
+            keys.add(key);
+            service.put(key, ("value" + i).getBytes(), 3);
+        }
+        // Overwrites and removes have to be taken out of the tree again
+        for (int i = 0; i < 2000; i += 7) {
+            service.put(keys.get(i), ("new value" + i).getBytes(), 2);
+        }
+        for (int i = 0; i < 2000; i += 11) {
+            service.remove(keys.get(i));
+        }
+    }
+
+    @Test
+    public void testKeptTree_MatchesScan() {
+        for (long[] bounds : RANGES) {
+            KeyId start = new KeyId(bounds[0]);
+            KeyId end = new KeyId(bounds[1]);
+            int depth = MerkleTree.getDepth(start, end);
+            for (int level = 0; level <= depth; ++level) {
+                List<Integer> positions = new ArrayList<Integer>();
+                for (int i = 0; i < 1 << level; ++i) {
+                    positions.add(i);
+                }
+                List<Long> scanned = MerkleTree.getHashes(service.getDelegate(), start, end,
+                        level, positions);
+                assertEquals(scanned, service.getMerkleTree().getHashes(start, end, level,
+                        positions));
+            }
+        }
+    }
+
+    @Test
+    public void testRebuiltTree_MatchesKeptTree() {
+        MerkleTree rebuilt = new MerkleTree(service.getDelegate());
+        List<Integer> root = new ArrayList<Integer>();
+        root.add(0);
+        for (long[] bounds : RANGES) {
+            KeyId start = new KeyId(bounds[0]);
+            KeyId end = new KeyId(bounds[1]);
+            assertEquals(rebuilt.getHashes(start, end, 0, root), service.getMerkleTree()
+                    .getHashes(start, end, 0, root));
+        }
+    }
+
+    @Test
+    public void testLazyTree_MatchesKeptTree() {
+        DonutMerkleHashTableService lazy = new DonutMerkleHashTableService(
+                new DonutSortedHashTableService());
+        for (EntryKey key : service.getRange(new KeyId(0), new KeyId(0))) {
+            lazy.put(key, service.get(key).getData(), 3);
+        }
+        List<Integer> root = new ArrayList<Integer>();
+        root.add(0);
+        for (long[] bounds : RANGES) {
+            KeyId start = new KeyId(bounds[0]);
+            KeyId end = new KeyId(bounds[1]);
+            assertEquals(service.getMerkleTree().getHashes(start, end, 0, root), lazy
+                    .getMerkleTree().getHashes(start, end, 0, root));
+        }
+    }
+
+    @Test
+    public void testRootChanges() {
+        List<Integer> root = new ArrayList<Integer>();
+        root.add(0);
+        KeyId start = new KeyId(-1000);
+        KeyId end = new KeyId(1000);
+        List<Long> before = service.getMerkleTree().getHashes(start, end, 0, root);
+        service.put(new EntryKey(new KeyId(3), "new"), "new".getBytes(), 3);
+        assertFalse(before.equals(service.getMerkleTree().getHashes(start, end, 0, root)));
+        service.remove(new EntryKey(new KeyId(3), "new"));
+        assertEquals(before, service.getMerkleTree().getHashes(start, end, 0, root));
+    }
+
+    @Test
+    public void testLeafRanges_CoverRange() {
+        for (long[] bounds : RANGES) {
+            KeyId start = new KeyId(bounds[0]);
+            KeyId end = new KeyId(bounds[1]);
+            // Leaves follow on from each other around the ring, from start to end (or all the
+            // way around for the whole ring)
+            KeyId first = MerkleTree.getLeafRange(start, end, 0)[0];
+            if (!start.equals(end)) {
+                assertEquals(start, first);
+            }
+            KeyId previous = first;
+            int leaf = 0;
+            for (KeyId[] range = MerkleTree.getLeafRange(start, end, leaf); range != null;) {
+                assertEquals(previous, range[0]);
+                previous = range[1];
+                range = MerkleTree.getLeafRange(start, end, ++leaf);
+            }
+            assertEquals(start.equals(end) ? first : end, previous);
+            assertEquals(1 << MerkleTree.getDepth(start, end), Integer.highestOneBit(leaf * 2 - 1));
+
+            // And every key in the range lands in exactly one of them
+            for (EntryKey key : service.getRange(start, end)) {
+                int found = 0;
+                for (int i = 0; i < leaf; ++i) {
+                    KeyId[] range = MerkleTree.getLeafRange(start, end, i);
+                    if (KeyIdUtil.isAfterXButBeforeEqualY(key.getId(), range[0], range[1])) {
+                        ++found;
+                    }
+                }
+                assertEquals(1, found);
+            }
+        }
+        assertNull(MerkleTree.getLeafRange(new KeyId(5), new KeyId(6), 1));
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.util;
+
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * @author jprouty
+ */
+public class BloomFilterTest {
+
+    @Test
+    public void testWriteRead() {
+        BloomFilter filter = new BloomFilter(100, 0.01);
+        for (long i = 0; i < 100; ++i) {
+            filter.add(i * 0x9e3779b97f4a7c15L);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(filter.serializedSize());
+        filter.writeTo(buffer);
+        buffer.flip();
+
+        BloomFilter read = BloomFilter.readFrom(buffer);
+        for (long i = 0; i < 100; ++i) {
+            assertTrue(read.mightContain(i * 0x9e3779b97f4a7c15L));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRead_TruncatedHeader() {
+        BloomFilter.readFrom(ByteBuffer.allocate(4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRead_NegativeLength() {
+        BloomFilter.readFrom(filter(-1, 3, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRead_LongerThanBuffer() {
+        BloomFilter.readFrom(filter(Integer.MAX_VALUE, 3, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRead_NoWords() {
+        BloomFilter.readFrom(filter(0, 3, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRead_NoHashes() {
+        BloomFilter.readFrom(filter(1, 0, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRead_TooManyHashes() {
+        BloomFilter.readFrom(filter(1, Integer.MAX_VALUE, 1));
+    }
+
+    private static ByteBuffer filter(int words, int numHashes, int wordsPresent) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + wordsPresent * 8);
+        buffer.putInt(words);
+        buffer.putInt(numHashes);
+        buffer.position(0);
+        return buffer;
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * @author jprouty
+ */
+public class ContentChunkerTest {
+
+    @Test
+    public void testSplit_Sizes() {
+        ContentChunker chunker = new ContentChunker(256, 1024, 4096);
+        byte[] data = random(1, 1 << 20);
+        int[] ends = chunker.split(data);
+        assertEquals(data.length, ends[ends.length - 1]);
+        int start = 0;
+        for (int i = 0; i < ends.length; ++i) {
+            int size = ends[i] - start;
+            assertTrue(size <= 4096);
+            assertTrue(size >= 256 || i == ends.length - 1);
+            start = ends[i];
+        }
+        // About one boundary per average size past the minimum
+        assertTrue(ends.length > (1 << 20) / 4096 && ends.length < (1 << 20) / 512);
+    }
+
+    @Test
+    public void testSplit_Empty() {
+        assertArrayEquals(new int[0], new ContentChunker().split(new byte[0]));
+    }
+
+    @Test
+    public void testSplit_EditOnlyMovesNearbyBoundaries() {
+        ContentChunker chunker = new ContentChunker();
+        byte[] original = random(2, 1 << 20);
+        byte[] edited = new byte[original.length + 100];
+        int at = original.length / 2;
+        System.arraycopy(original, 0, edited, 0, at);
+        System.arraycopy(random(3, 100), 0, edited, at, 100);
+        System.arraycopy(original, at, edited, at + 100, original.length - at);
+
+        Set<Integer> before = new HashSet<Integer>();
+        for (int end : chunker.split(original)) {
+            before.add(end);
+        }
+        int moved = 0;
+        int[] after = chunker.split(edited);
+        for (int end : after) {
+            if (!before.contains(end < at ? end : end - 100)) {
+                ++moved;
+            }
+        }
+        assertTrue("Moved " + moved + " of " + after.length, moved <= 2);
+    }
+
+    private static byte[] random(long seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+}
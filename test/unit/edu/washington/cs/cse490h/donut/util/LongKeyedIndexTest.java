@@ -0,0 +1,183 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.DataPair;
+import edu.washington.cs.cse490h.donut.business.EntryKey;
+import edu.washington.cs.cse490h.donut.business.KeyId;
+
+/**
+ * @author jprouty
+ */
+public class LongKeyedIndexTest {
+
+    private static final Logger LOGGER  = Logger.getLogger(LongKeyedIndexTest.class.getName());
+
+    private static final int    KEYS    = 100000;
+    private static final int    LOOKUPS = 2000000;
+
+    @Test
+    public void testPutGetRemove() {
+        LongKeyedIndex<String> index = new LongKeyedIndex<String>();
+        assertNull(index.put(1, "a", "one"));
+        assertEquals("one", index.put(1, "a", "uno"));
+        assertEquals("uno", index.get(1, "a"));
+        assertNull(index.get(1, "b"));
+        assertNull(index.get(2, "a"));
+        assertEquals("uno", index.remove(1, "a"));
+        assertNull(index.get(1, "a"));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testSameIdDifferentKeys() {
+        LongKeyedIndex<Integer> index = new LongKeyedIndex<Integer>();
+        for (int i = 0; i < 100; ++i) {
+            index.put(42, "key" + i, i);
+        }
+        for (int i = 0; i < 100; i += 2) {
+            index.remove(42, "key" + i);
+        }
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(i % 2 == 0 ? null : Integer.valueOf(i), index.get(42, "key" + i));
+        }
+        assertEquals(50, index.size());
+    }
+
+    @Test
+    public void testRandomOperations_MatchHashMap() {
+        Random random = new Random(490);
+        LongKeyedIndex<Integer> index = new LongKeyedIndex<Integer>();
+        Map<EntryKey, Integer> expected = new HashMap<EntryKey, Integer>();
+        for (int i = 0; i < 200000; ++i) {
+            // Few ids and strings, so there are plenty of collisions and removals of both
+            long id = random.nextInt(500);
+            String key = "k" + random.nextInt(4);
+            EntryKey entryKey = new EntryKey(new KeyId(id), key);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(entryKey), index.remove(id, key));
+            } else {
+                assertEquals(expected.put(entryKey, i), index.put(id, key, i));
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        for (Map.Entry<EntryKey, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), index.get(entry.getKey().getId().getId(), entry.getKey()
+                    .getKey()));
+        }
+        int filled = 0;
+        for (int i = 0; i < index.capacity(); ++i) {
+            if (index.keyAt(i) != null) {
+                ++filled;
+            }
+        }
+        assertEquals(expected.size(), filled);
+    }
+
+    /**
+     * Compares lookups through a {@link HashMap} keyed by {@link EntryKey}, which needs a key built
+     * for every lookup, with lookups straight on the id and string.
+     */
+    @Test
+    public void testBenchmark_AgainstHashMap() {
+        Random random = new Random(490);
+        long[] ids = new long[KEYS];
+        String[] keys = new String[KEYS];
+        Map<EntryKey, DataPair> map = new HashMap<EntryKey, DataPair>();
+        LongKeyedIndex<DataPair> index = new LongKeyedIndex<DataPair>();
+        for (int i = 0; i < KEYS; ++i) {
+            ids[i] = random.nextLong();
+            keys[i] = "key" + i;
+            DataPair value = new DataPair(new byte[0], 3);
+            map.put(new EntryKey(new KeyId(ids[i]), keys[i]), value);
+            index.put(ids[i], keys[i], value);
+        }
+
+        // Warm up both, then measure
+        mapLookups(map, ids, keys);
+        indexLookups(index, ids, keys);
+
+        long mapBytes = allocatedBytes();
+        long mapNanos = System.nanoTime();
+        int mapFound = mapLookups(map, ids, keys);
+        mapNanos = System.nanoTime() - mapNanos;
+        mapBytes = allocatedBytes() - mapBytes;
+
+        long indexBytes = allocatedBytes();
+        long indexNanos = System.nanoTime();
+        int indexFound = indexLookups(index, ids, keys);
+        indexNanos = System.nanoTime() - indexNanos;
+        indexBytes = allocatedBytes() - indexBytes;
+
+        assertEquals(LOOKUPS, mapFound);
+        assertEquals(LOOKUPS, indexFound);
+        LOGGER.info("HashMap<EntryKey, DataPair>: " + LOOKUPS * 1000000000L / Math.max(mapNanos, 1)
+                + " gets/s, " + (double) mapBytes / LOOKUPS + " bytes/get");
+        LOGGER.info("LongKeyedIndex: " + LOOKUPS * 1000000000L / Math.max(indexNanos, 1)
+                + " gets/s, " + (double) indexBytes / LOOKUPS + " bytes/get");
+        if (indexBytes >= 0) {
+            assertTrue(indexBytes < LOOKUPS / 100);
+        }
+    }
+
+    private static int mapLookups(Map<EntryKey, DataPair> map, long[] ids, String[] keys) {
+        int found = 0;
+        for (int i = 0; i < LOOKUPS; ++i) {
+            int j = i % KEYS;
+            if (map.get(new EntryKey(new KeyId(ids[j]), keys[j])) != null) {
+                ++found;
+            }
+        }
+        return found;
+    }
+
+    private static int indexLookups(LongKeyedIndex<DataPair> index, long[] ids, String[] keys) {
+        int found = 0;
+        for (int i = 0; i < LOOKUPS; ++i) {
+            int j = i % KEYS;
+            if (index.get(ids[j], keys[j]) != null) {
+                ++found;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the bytes allocated by this thread so far, or -1 if the JVM cannot tell
+     */
+    private static long allocatedBytes() {
+        Object bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread
+                    .currentThread().getId());
+        }
+        return -1;
+    }
+
+}
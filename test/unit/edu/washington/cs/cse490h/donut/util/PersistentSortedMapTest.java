@@ -0,0 +1,125 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * @author jprouty
+ */
+public class PersistentSortedMapTest {
+
+    private static final Comparator<Integer> ORDER = new Comparator<Integer>() {
+                                                       public int compare(Integer a, Integer b) {
+                                                           return a.compareTo(b);
+                                                       }
+                                                   };
+
+    @Test
+    public void testPlusMinus_LeaveOldVersionsAlone() {
+        PersistentSortedMap<Integer, String> empty = PersistentSortedMap.empty(ORDER);
+        PersistentSortedMap<Integer, String> one = empty.plus(1, "one");
+        PersistentSortedMap<Integer, String> two = one.plus(2, "two");
+        PersistentSortedMap<Integer, String> changed = two.plus(1, "uno");
+        PersistentSortedMap<Integer, String> removed = changed.minus(2);
+
+        assertEquals(0, empty.size());
+        assertNull(empty.get(1));
+        assertEquals("one", one.get(1));
+        assertNull(one.get(2));
+        assertEquals("one", two.get(1));
+        assertEquals("two", two.get(2));
+        assertEquals("uno", changed.get(1));
+        assertEquals(2, changed.size());
+        assertNull(removed.get(2));
+        assertEquals(1, removed.size());
+        assertSame(removed, removed.minus(7));
+    }
+
+    @Test
+    public void testRandomOperations_MatchTreeMap() {
+        Random random = new Random(490);
+        PersistentSortedMap<Integer, Integer> map = PersistentSortedMap.empty(ORDER);
+        TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+        List<PersistentSortedMap<Integer, Integer>> versions;
+        versions = new ArrayList<PersistentSortedMap<Integer, Integer>>();
+        List<TreeMap<Integer, Integer>> expectedVersions;
+        expectedVersions = new ArrayList<TreeMap<Integer, Integer>>();
+        for (int i = 0; i < 20000; ++i) {
+            int key = random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                map = map.minus(key);
+                expected.remove(key);
+            } else {
+                map = map.plus(key, i);
+                expected.put(key, i);
+            }
+            if (i % 1000 == 0) {
+                versions.add(map);
+                expectedVersions.add(new TreeMap<Integer, Integer>(expected));
+            }
+        }
+        versions.add(map);
+        expectedVersions.add(expected);
+
+        for (int v = 0; v < versions.size(); ++v) {
+            assertEquals(new ArrayList<Map.Entry<Integer, Integer>>(expectedVersions.get(v)
+                    .entrySet()), entries(versions.get(v).iterator()));
+            assertEquals(expectedVersions.get(v).size(), versions.get(v).size());
+        }
+    }
+
+    @Test
+    public void testRangeIterator() {
+        PersistentSortedMap<Integer, Integer> map = PersistentSortedMap.empty(ORDER);
+        TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+        for (int i = 0; i < 100; i += 3) {
+            map = map.plus(i, i);
+            expected.put(i, i);
+        }
+        assertEquals(new ArrayList<Map.Entry<Integer, Integer>>(expected.subMap(10, 40)
+                .entrySet()), entries(map.iterator(9, 40)));
+        assertEquals(new ArrayList<Map.Entry<Integer, Integer>>(expected.subMap(12, false, 39,
+                false).entrySet()), entries(map.iterator(12, 39)));
+        assertEquals(new ArrayList<Map.Entry<Integer, Integer>>(expected.tailMap(50, false)
+                .entrySet()), entries(map.iterator(50, null)));
+        assertEquals(new ArrayList<Map.Entry<Integer, Integer>>(expected.headMap(50).entrySet()),
+                entries(map.iterator(null, 50)));
+    }
+
+    private static List<Map.Entry<Integer, Integer>> entries(
+            Iterator<Map.Entry<Integer, Integer>> it) {
+        List<Map.Entry<Integer, Integer>> result = new ArrayList<Map.Entry<Integer, Integer>>();
+        while (it.hasNext()) {
+            result.add(it.next());
+        }
+        return result;
+    }
+
+}
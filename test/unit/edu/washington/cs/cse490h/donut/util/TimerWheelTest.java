@@ -0,0 +1,122 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.util.TimerWheel.Timeout;
+
+/**
+ * @author jprouty
+ */
+public class TimerWheelTest {
+
+    @Test
+    public void testAdvance_FiresInOrderOfTicks() {
+        TimerWheel<String> wheel = new TimerWheel<String>(10, 1000);
+        wheel.schedule("c", 1300);
+        wheel.schedule("a", 1010);
+        wheel.schedule("b", 1015);
+        assertEquals(3, wheel.size());
+
+        assertEquals(Collections.emptyList(), wheel.advance(1009));
+        assertEquals(Arrays.asList("a"), wheel.advance(1010));
+        // To the millisecond, not to the tick
+        assertEquals(Collections.emptyList(), wheel.advance(1014));
+        assertEquals(Arrays.asList("b"), wheel.advance(1015));
+        assertEquals(Arrays.asList("c"), wheel.advance(5000));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testSchedule_AlreadyDue() {
+        TimerWheel<String> wheel = new TimerWheel<String>(10, 1000);
+        wheel.schedule("past", 500);
+        assertEquals(Arrays.asList("past"), wheel.advance(1000));
+    }
+
+    @Test
+    public void testCancel() {
+        TimerWheel<String> wheel = new TimerWheel<String>(10, 0);
+        Timeout<String> kept = wheel.schedule("kept", 100);
+        Timeout<String> cancelled = wheel.schedule("cancelled", 100);
+        assertTrue(wheel.cancel(cancelled));
+        assertFalse(wheel.cancel(cancelled));
+        assertFalse(cancelled.isPending());
+        assertEquals(1, wheel.size());
+
+        assertEquals(Arrays.asList("kept"), wheel.advance(100));
+        assertFalse(kept.isPending());
+        assertFalse(wheel.cancel(kept));
+    }
+
+    @Test
+    public void testAdvance_ExactlyWhenDue() {
+        Random random = new Random(42);
+        long tick = 7;
+        long start = 123456;
+        TimerWheel<Long> wheel = new TimerWheel<Long>(tick, start);
+        List<Long> deadlines = new ArrayList<Long>();
+        for (int i = 0; i < 5000; ++i) {
+            // Spread over several levels of the wheel
+            long deadline = start + (long) Math.pow(2, random.nextDouble() * 30);
+            deadlines.add(deadline);
+            wheel.schedule(deadline, deadline);
+        }
+        Collections.sort(deadlines);
+
+        List<Long> fired = new ArrayList<Long>();
+        long now = start;
+        while (wheel.size() > 0) {
+            long previous = now;
+            now += 1 + random.nextInt(5000);
+            for (long deadline : wheel.advance(now)) {
+                assertTrue(deadline > previous && deadline <= now);
+                fired.add(deadline);
+            }
+        }
+        Collections.sort(fired);
+        assertEquals(deadlines, fired);
+    }
+
+    @Test
+    public void testAdvance_OneTickAtATime() {
+        TimerWheel<Long> wheel = new TimerWheel<Long>(1, 0);
+        for (long deadline = 1; deadline <= 10000; deadline += 3) {
+            wheel.schedule(deadline, deadline);
+        }
+        for (long now = 1; now <= 10000; ++now) {
+            List<Long> fired = wheel.advance(now);
+            if (now % 3 == 1) {
+                assertEquals(Arrays.asList(now), fired);
+            } else {
+                assertEquals(Collections.emptyList(), fired);
+            }
+        }
+    }
+
+}
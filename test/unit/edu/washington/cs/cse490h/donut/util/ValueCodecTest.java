@@ -0,0 +1,141 @@
+/*
+ * Copyright 2009 Amit Levy, Jeff Prouty, Rylan Hawkins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.washington.cs.cse490h.donut.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import org.junit.Test;
+
+import edu.washington.cs.cse490h.donut.business.ChunkedValue;
+
+/**
+ * @author jprouty
+ */
+public class ValueCodecTest {
+
+    @Test
+    public void testSmallValue_LeftAlone() throws Exception {
+        ValueCodec codec = new ValueCodec(1024);
+        byte[] value = "value".getBytes();
+        assertSame(value, codec.encode(value));
+        assertSame(value, codec.decode(value));
+        assertEquals(1, codec.getUncompressedCount());
+    }
+
+    @Test
+    public void testLargeValue_Compressed() throws Exception {
+        ValueCodec codec = new ValueCodec(1024);
+        byte[] value = json(200);
+        byte[] encoded = codec.encode(value);
+        assertTrue(encoded.length < value.length / 2);
+        assertArrayEquals(value, codec.decode(encoded));
+        assertEquals(1, codec.getCompressedCount());
+        assertTrue(codec.getCompressionRatio() > 2);
+    }
+
+    @Test
+    public void testIncompressibleValue_LeftAlone() throws Exception {
+        ValueCodec codec = new ValueCodec(1024);
+        byte[] value = new byte[4096];
+        new Random(490).nextBytes(value);
+        value[0] = 0;
+        assertSame(value, codec.encode(value));
+        assertEquals(0, codec.getCompressedCount());
+    }
+
+    @Test
+    public void testValueLookingEncoded_Escaped() throws Exception {
+        ValueCodec codec = new ValueCodec(1024);
+        byte[] value = { (byte) 0xd0, 0x17, 0x2c, 1, 0, 0, 0, 5, 42 };
+        byte[] encoded = codec.encode(value);
+        assertArrayEquals(value, codec.decode(encoded));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        ValueCodec codec = new ValueCodec(0);
+        byte[] value = json(200);
+        assertSame(value, codec.encode(value));
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void testCorruptValue() throws Exception {
+        ValueCodec codec = new ValueCodec(1024);
+        byte[] encoded = codec.encode(json(200));
+        encoded[encoded.length / 2] ^= 0x55;
+        encoded[encoded.length / 2 + 1] ^= 0x55;
+        codec.decode(encoded);
+    }
+
+    @Test
+    public void testCorruptHeader() throws Exception {
+        ValueCodec codec = new ValueCodec(1024);
+        byte[] encoded = codec.encode(json(200));
+        assertCorrupt(codec, Arrays.copyOf(encoded, 5));
+        // The original length, as negative and as more than the body could ever inflate to
+        byte[] negative = encoded.clone();
+        negative[4] = (byte) 0x80;
+        assertCorrupt(codec, negative);
+        byte[] huge = encoded.clone();
+        huge[4] = 0x7f;
+        assertCorrupt(codec, huge);
+
+        // A stored value cut short
+        byte[] stored = codec.encode(Arrays.copyOf(encoded, 100));
+        assertCorrupt(codec, Arrays.copyOf(stored, stored.length - 1));
+    }
+
+    @Test
+    public void testChunked() throws Exception {
+        ChunkedValue chunked = new ChunkedValue(-1234567890123L, 3, 5L << 32);
+        byte[] encoded = ValueCodec.encodeChunked(chunked);
+        assertEquals(chunked, ValueCodec.decodeChunked(encoded));
+        assertNull(ValueCodec.decodeChunked(new ValueCodec().encode("value".getBytes())));
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void testChunked_NotDecodedWhole() throws Exception {
+        new ValueCodec().decode(ValueCodec.encodeChunked(new ChunkedValue(1, 2, 3)));
+    }
+
+    private static void assertCorrupt(ValueCodec codec, byte[] encoded) {
+        try {
+            codec.decode(encoded);
+            fail("Decoded a corrupt value");
+        } catch (DataFormatException e) {
+        }
+    }
+
+    private static byte[] json(int records) {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < records; ++i) {
+            builder.append("{\"id\": ").append(i).append(", \"name\": \"node").append(i % 7)
+                    .append("\", \"replicas\": 3},");
+        }
+        return builder.append("]").toString().getBytes();
+    }
+
+}
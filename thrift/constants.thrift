@@ -21,4 +21,9 @@ const i32 KEY_SPACE = 64;
 const i32 SUCCESSOR_LIST_SIZE = 3;
 const i32 FIX_FINGERS_INTERVAL = 10;
 const i32 STABILIZE_INTERVAL = 100;
-const i32 CHECK_PREDECESSOR_INTERVAL = 150;
\ No newline at end of file
+const i32 CHECK_PREDECESSOR_INTERVAL = 150;
+const i32 ANTI_ENTROPY_INTERVAL = 300000;
+const i32 GOSSIP_INTERVAL = 200;
+const i32 REBALANCE_INTERVAL = 10000;
+const i32 CHUNK_SIZE = 1048576;
+const i32 CHUNK_PIPELINE_DEPTH = 4;
\ No newline at end of file
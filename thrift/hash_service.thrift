@@ -17,14 +17,42 @@
 namespace java edu.washington.cs.cse490h.donut.service
 namespace py donut.service
 
+include "types.thrift"
 include "exceptions.thrift"
 
 service HashService {
 	
 	void put(string key, binary value)
 	
+	/**
+	 * Like put, but the entry is removed from every replica once ttl milliseconds have passed.
+	 */
+	void putWithTtl(string key, binary value, i64 ttl)
+	
 	binary get(string key) throws (exceptions.DataNotFoundException e)
 	
 	void remove(string key)
 	
+	/**
+	 * Starts storing a value in chunks of at most constants.CHUNK_SIZE bytes, so that no single
+	 * message has to hold all of it.
+	 *
+	 * @return the id of the upload, for putChunk and commitChunks
+	 */
+	i64 beginChunks(string key)
+	
+	void putChunk(string key, i64 upload, i32 index, binary chunk)
+	
+	/**
+	 * Makes chunks 0 to chunks - 1 of the upload the value of key, in place of the old one.
+	 */
+	void commitChunks(string key, i64 upload, i32 chunks, i64 length)
+	
+	/**
+	 * @return how the value of key is split up. A value that was put whole is a single chunk.
+	 */
+	types.ChunkedValue getChunks(string key) throws (exceptions.DataNotFoundException e)
+	
+	binary getChunk(string key, i64 upload, i32 index) throws (exceptions.DataNotFoundException e)
+	
 }
\ No newline at end of file
@@ -30,15 +30,56 @@ service KeyLocator {
    */
   types.TNode findSuccessor(types.KeyId entryId),
   
+  /**
+   * Takes one step of an iterative lookup, leaving the next one to the caller, so no thread or
+   * connection here waits on the rest of the lookup.
+   *
+   * @param failed nodes the caller could not reach, which are not returned if there is another
+   *        way round them
+   */
+  types.Hop findNextHop(types.KeyId entryId, list<types.TNode> failed),
+  
+  /**
+   * One round of membership gossip.
+   *
+   * @param members what the caller has heard lately
+   * @param pull whether to answer with every member known here, rather than only with what was
+   *        heard lately
+   */
+  list<types.Member> gossip(list<types.Member> members, bool pull),
+  
+  /**
+   * Directs the rest of the calls on this connection to the ring position nodeId of a process that
+   * hosts several. A connection that never calls this talks to the first.
+   */
+  void address(types.KeyId nodeId) throws (exceptions.NodeNotFoundException e),
+  
   types.TNode getPredecessor() throws (exceptions.NodeNotFoundException e),
   
   void ping(),
   
   binary get(types.EntryKey key) throws (exceptions.DataNotFoundException e)
   
-  void put(types.EntryKey key, binary data) throws (exceptions.NotResponsibleForId e)
+  /**
+   * @return the data of the entry along with when it expires
+   */
+  types.DataPair getEntry(types.EntryKey key) throws (exceptions.DataNotFoundException e)
+  
+  /**
+   * @param expiresAt when the entry expires, in milliseconds since the epoch, or 0 for never
+   */
+  void put(types.EntryKey key, binary data, i64 expiresAt) throws (exceptions.NotResponsibleForId e)
+  
+  void replicatePut(types.EntryKey key, binary data, i32 numReplicas, i64 expiresAt)
   
-  void replicatePut(types.EntryKey key, binary data, i32 numReplicas)
+  /**
+   * Like put, but returns as soon as the chunk is stored here and queued for the successor, so
+   * the next chunk can come in while this one is on its way down the replication chain. A put or
+   * remove waits for the queued chunks to be replicated first.
+   */
+  void putChunk(types.EntryKey key, binary data, i64 expiresAt) throws (exceptions.NotResponsibleForId e)
+  
+  void replicatePutChunk(types.EntryKey key, binary data, i32 numReplicas, i64 expiresAt)
   
   void remove(types.EntryKey key) throws (exceptions.NotResponsibleForId e)
   
@@ -46,7 +87,33 @@ service KeyLocator {
   
   set<types.EntryKey> getDataRange(types.KeyId startVal, types.KeyId endVal)
   
+  /**
+   * @param summary a Bloom filter of the entries in the range that the caller already has
+   * @return the keys of the entries after startVal and before or equal to endVal that are not in
+   *         the summary, so the caller only fetches what it is missing or has out of date
+   */
+  set<types.EntryKey> getMissingRange(types.KeyId startVal, types.KeyId endVal, binary summary)
+  
   list<types.TNode> notify(types.TNode n)
   
   list<types.TNode> getFingers()
+  
+  /**
+   * @return the keys and bytes this node is responsible for and how often they are asked for
+   */
+  types.Load getLoad()
+  
+  /**
+   * Asks this node to hand its range to its successor and rejoin the ring at nodeId, to take
+   * part of an overloaded node's range.
+   *
+   * @return false if it moved too recently to move again
+   */
+  bool migrate(types.KeyId nodeId)
+  
+  /**
+   * @return the hashes of the Merkle tree nodes at the given positions of one level of the tree
+   *         over the entries whose id is after start and before or equal to end
+   */
+  list<i64> getMerkleHashes(types.KeyId start, types.KeyId end, i32 level, list<i32> positions)
 }
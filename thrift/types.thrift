@@ -35,4 +35,47 @@ struct TNode {
 struct DataPair {
 	binary data
 	i32 replicas
+	/** When the entry expires, in milliseconds since the epoch. Unset or 0 for never. */
+	optional i64 expiresAt
+}
+
+/**
+ * How a value that is stored in chunks is split up. Chunks 0 to chunks - 1 of the upload, put
+ * together in order, are the value.
+ */
+struct ChunkedValue {
+	i64 upload
+	i32 chunks
+	i64 length
+}
+
+/**
+ * One step of an iterative lookup. If done, node is the successor of the id being looked up;
+ * otherwise it is the next node to ask, closer to the id than the one that answered.
+ */
+struct Hop {
+	TNode node
+	bool done
+}
+
+/**
+ * What one node has heard of another, passed on by gossip. A higher incarnation is newer news; at
+ * the same incarnation, that the node is dead is newer than that it is alive.
+ */
+struct Member {
+	TNode node
+	bool alive
+	i64 incarnation
+}
+
+/**
+ * What a node is responsible for and how busy it is with it.
+ */
+struct Load {
+	i64 keys
+	i64 bytes
+	/** Client requests per second, over the last few seconds. */
+	double requestRate
+	/** The id that splits the load of the range in half, unset if it cannot be split. */
+	KeyId splitId
 }